@@ -0,0 +1,148 @@
+package com.gu.logback.appender.kinesis.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import com.gu.logback.appender.kinesis.BaseKinesisAppender;
+import com.gu.logback.appender.kinesis.FirehoseAppender;
+import com.gu.logback.appender.kinesis.KinesisAppender;
+import com.gu.logback.appender.kinesis.stub.StubEndpoint;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.status.Status;
+
+/**
+ * Throughput of {@code append()} from one and from eight logging threads,
+ * with the appender sending to a {@link StubEndpoint}, for each way of
+ * handing events to the SDK. Run with {@code -prof gc} to get the allocation
+ * rate per event.
+ *
+ * The appender applies backpressure once its buffer is full, so these are
+ * end-to-end figures: they measure the send path and the stub as much as the
+ * logging threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AppendBenchmark {
+
+  /**
+   * How the appender is configured to hand events to the SDK.
+   */
+  public enum HandOff {
+    /**
+     * One request per event, submitted from the logging thread.
+     */
+    DIRECT,
+    /**
+     * One request per event, from the ring buffer's sender thread.
+     */
+    RING_BUFFER,
+    /**
+     * Batched requests, submitted from the logging thread.
+     */
+    BATCHED,
+    /**
+     * Batched requests, from the ring buffer's sender thread.
+     */
+    RING_BUFFER_BATCHED
+  }
+
+  @Param({ "KINESIS", "FIREHOSE" })
+  public String service;
+
+  @Param
+  public HandOff handOff;
+
+  @Param({ "200" })
+  public int messageLength;
+
+  private StubEndpoint endpoint;
+  private LoggerContext context;
+  private Logger logger;
+  private BaseKinesisAppender<ILoggingEvent, ?> appender;
+  private String message;
+
+  @Setup(Level.Trial)
+  public void setUp() throws InterruptedException {
+    endpoint = new StubEndpoint();
+    context = new LoggerContext();
+    logger = context.getLogger(AppendBenchmark.class);
+
+    PatternLayout layout = new PatternLayout();
+    layout.setContext(context);
+    layout.setPattern("%d{ISO8601} %-5level [%thread] %logger{36} - %msg%n");
+    layout.start();
+
+    appender = "FIREHOSE".equals(service) ? new FirehoseAppender<ILoggingEvent>() : new KinesisAppender<ILoggingEvent>();
+    appender.setContext(context);
+    appender.setName("benchmark");
+    appender.setStreamName("benchmark");
+    appender.setEndpoint(endpoint.getUri().toString());
+    appender.setCredentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("benchmark", "benchmark")));
+    appender.setLayout(layout);
+    appender.setRingBufferEnabled(handOff == HandOff.RING_BUFFER || handOff == HandOff.RING_BUFFER_BATCHED);
+    appender.setBatchingEnabled(handOff == HandOff.BATCHED || handOff == HandOff.RING_BUFFER_BATCHED);
+    appender.start();
+    if(!appender.isStarted()) {
+      StringBuilder statuses = new StringBuilder("Appender failed to start:");
+      for(Status status : context.getStatusManager().getCopyOfStatusList()) {
+        statuses.append('\n').append(status);
+      }
+      throw new IllegalStateException(statuses.toString());
+    }
+
+    StringBuilder builder = new StringBuilder(messageLength);
+    for(int i = 0; i < messageLength; i++) {
+      builder.append((char) ('a' + i % 26));
+    }
+    message = builder.toString();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    appender.stop();
+    context.stop();
+    endpoint.close();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void appendSingleThread() {
+    appender.doAppend(newEvent());
+  }
+
+  @Benchmark
+  @Threads(8)
+  public void appendEightThreads() {
+    appender.doAppend(newEvent());
+  }
+
+  /**
+   * Creates an event the way a logger does, so that nothing the layout
+   * caches in it carries over from one append to the next.
+   */
+  private ILoggingEvent newEvent() {
+    return new LoggingEvent(Logger.FQCN, logger, ch.qos.logback.classic.Level.INFO, message, null, null);
+  }
+}
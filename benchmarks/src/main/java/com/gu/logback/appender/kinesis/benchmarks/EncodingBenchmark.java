@@ -0,0 +1,119 @@
+package com.gu.logback.appender.kinesis.benchmarks;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import com.gu.logback.appender.kinesis.helpers.JsonEventEncoder;
+import com.gu.logback.appender.kinesis.helpers.ProtobufEventEncoder;
+
+/**
+ * Cost of turning a log event into a record payload, the part of
+ * {@code append()} spent on the logging thread, for a few typical patterns:
+ * through a layout and its String, as the appender does with
+ * {@code <layout>}, or straight to bytes through an encoder, as it does with
+ * {@code <encoder>}. {@link JsonEventEncoder} and {@link ProtobufEventEncoder}
+ * write the fields of the JSON pattern whatever the pattern, to compare with
+ * the JSON layout.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodingBenchmark {
+
+  @Param({ "MESSAGE", "DEFAULT", "JSON" })
+  public String pattern;
+
+  private LoggerContext context;
+  private Logger logger;
+  private PatternLayout layout;
+  private PatternLayoutEncoder encoder;
+  private JsonEventEncoder jsonEncoder;
+  private ProtobufEventEncoder protobufEncoder;
+  private final Charset charset = StandardCharsets.UTF_8;
+  private final Object[] arguments = { 42, "benchmark" };
+
+  @Setup
+  public void setUp() {
+    context = new LoggerContext();
+    logger = context.getLogger(EncodingBenchmark.class);
+    context.putProperty("app", "benchmark");
+
+    layout = new PatternLayout();
+    layout.setContext(context);
+    layout.setPattern(patternOf(pattern));
+    layout.start();
+
+    encoder = new PatternLayoutEncoder();
+    encoder.setContext(context);
+    encoder.setPattern(patternOf(pattern));
+    encoder.setCharset(charset);
+    encoder.start();
+
+    jsonEncoder = new JsonEventEncoder();
+    jsonEncoder.setContext(context);
+    jsonEncoder.start();
+
+    protobufEncoder = new ProtobufEventEncoder();
+    protobufEncoder.setContext(context);
+    protobufEncoder.start();
+  }
+
+  @Benchmark
+  public byte[] layout() {
+    return layout.doLayout(newEvent()).getBytes(charset);
+  }
+
+  @Benchmark
+  public byte[] encoder() {
+    return encoder.encode(newEvent());
+  }
+
+  @Benchmark
+  public byte[] jsonEncoder() {
+    return jsonEncoder.encode(newEvent());
+  }
+
+  @Benchmark
+  public byte[] protobufEncoder() {
+    return protobufEncoder.encode(newEvent());
+  }
+
+  private ILoggingEvent newEvent() {
+    return new LoggingEvent(Logger.FQCN, logger, Level.INFO, "Processed request {} for {}", null, arguments);
+  }
+
+  private static String patternOf(String name) {
+    switch(name) {
+      case "MESSAGE":
+        return "%msg%n";
+      case "DEFAULT":
+        return "%d{ISO8601} %-5level [%thread] %logger{36} - %msg%n";
+      case "JSON":
+        return "{\"timestamp\":\"%d{yyyy-MM-dd'T'HH:mm:ss.SSSZ}\",\"level\":\"%level\",\"thread\":\"%thread\","
+               + "\"logger\":\"%logger\",\"app\":\"%property{app}\",\"message\":\"%msg\"}%n";
+      default:
+        throw new IllegalArgumentException("Unknown pattern " + name);
+    }
+  }
+}
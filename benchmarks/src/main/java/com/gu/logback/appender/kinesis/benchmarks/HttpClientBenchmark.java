@@ -0,0 +1,136 @@
+package com.gu.logback.appender.kinesis.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.Protocol;
+import com.gu.logback.appender.kinesis.KinesisAppender;
+import com.gu.logback.appender.kinesis.helpers.HttpClientSettings;
+import com.gu.logback.appender.kinesis.helpers.HttpClientType;
+import com.gu.logback.appender.kinesis.stub.FaultSchedule;
+import com.gu.logback.appender.kinesis.stub.StubEndpoint;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.status.Status;
+
+/**
+ * Throughput of {@code append()} from eight logging threads, sending one
+ * request per event to a {@link StubEndpoint} answering after a given
+ * latency, for each HTTP client and number of connections. The in-flight
+ * window is wide enough for the connections of the HTTP client to be the
+ * limit, as they are when sends stall on connection acquisition.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HttpClientBenchmark {
+
+  private static final int MAX_IN_FLIGHT_REQUESTS = 1000;
+
+  /**
+   * HTTP client implementation and protocol.
+   */
+  public enum Client {
+    NETTY_HTTP1_1(HttpClientType.NETTY, Protocol.HTTP1_1),
+    NETTY_HTTP2(HttpClientType.NETTY, Protocol.HTTP2),
+    /**
+     * Needs software.amazon.awssdk:aws-crt-client, which the benchmarks
+     * depend on.
+     */
+    CRT_HTTP1_1(HttpClientType.CRT, Protocol.HTTP1_1);
+
+    private final HttpClientType type;
+    private final Protocol protocol;
+
+    Client(HttpClientType type, Protocol protocol) {
+      this.type = type;
+      this.protocol = protocol;
+    }
+  }
+
+  @Param
+  public Client client;
+
+  @Param({ "10", "50" })
+  public int maxConcurrency;
+
+  @Param({ "0", "20" })
+  public long latencyMillis;
+
+  private StubEndpoint endpoint;
+  private LoggerContext context;
+  private Logger logger;
+  private KinesisAppender<ILoggingEvent> appender;
+
+  @Setup(Level.Trial)
+  public void setUp() throws InterruptedException {
+    endpoint = new StubEndpoint();
+    if(latencyMillis > 0) {
+      endpoint.setFaultSchedule(FaultSchedule.parse("1h:latency=" + latencyMillis));
+    }
+    context = new LoggerContext();
+    logger = context.getLogger(HttpClientBenchmark.class);
+
+    PatternLayout layout = new PatternLayout();
+    layout.setContext(context);
+    layout.setPattern("%msg%n");
+    layout.start();
+
+    HttpClientSettings httpClient = new HttpClientSettings();
+    httpClient.setType(client.type);
+    httpClient.setProtocol(client.protocol);
+    httpClient.setMaxConcurrency(maxConcurrency);
+
+    appender = new KinesisAppender<ILoggingEvent>();
+    appender.setContext(context);
+    appender.setName("benchmark");
+    appender.setStreamName("benchmark");
+    appender.setEndpoint(endpoint.getUri().toString());
+    appender.setCredentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("benchmark", "benchmark")));
+    appender.setLayout(layout);
+    appender.setHttpClient(httpClient);
+    appender.setMaxInFlightRequests(MAX_IN_FLIGHT_REQUESTS);
+    appender.setBufferSize(MAX_IN_FLIGHT_REQUESTS);
+    appender.start();
+    if(!appender.isStarted()) {
+      StringBuilder statuses = new StringBuilder("Appender failed to start:");
+      for(Status status : context.getStatusManager().getCopyOfStatusList()) {
+        statuses.append('\n').append(status);
+      }
+      throw new IllegalStateException(statuses.toString());
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    appender.stop();
+    context.stop();
+    endpoint.close();
+  }
+
+  @Benchmark
+  @Threads(8)
+  public void appendEightThreads() {
+    appender.doAppend(new LoggingEvent(Logger.FQCN, logger, ch.qos.logback.classic.Level.INFO, "benchmark", null, null));
+  }
+}
@@ -0,0 +1,244 @@
+package com.gu.logback.appender.kinesis.benchmarks;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import com.gu.logback.appender.kinesis.BaseKinesisAppender;
+import com.gu.logback.appender.kinesis.FirehoseAppender;
+import com.gu.logback.appender.kinesis.KinesisAppender;
+import com.gu.logback.appender.kinesis.helpers.AppenderMetrics;
+import com.gu.logback.appender.kinesis.stub.FaultSchedule;
+import com.gu.logback.appender.kinesis.stub.StubEndpoint;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import ch.qos.logback.core.joran.util.PropertySetter;
+import ch.qos.logback.core.joran.util.beans.BeanDescriptionCache;
+import ch.qos.logback.core.status.Status;
+
+/**
+ * Soak test of an appender writing to a {@link StubEndpoint} that injects
+ * faults: logs from a number of threads for a given time, periodically
+ * reporting throughput, heap usage and what happened to the events, then
+ * stops the appender and reports how many events were lost without being
+ * accounted for as dropped. Exits with status 1 if any was.
+ *
+ * Options are given as {@code name=value} arguments:
+ * <ul>
+ * <li>{@code service}: {@code KINESIS} (default) or {@code FIREHOSE}</li>
+ * <li>{@code duration}: how long to log for, 5m by default</li>
+ * <li>{@code threads}: number of logging threads, 4 by default</li>
+ * <li>{@code rate}: events per second over all threads, 0 (default) for as
+ * many as the appender takes</li>
+ * <li>{@code messageLength}: length of the messages, 200 by default</li>
+ * <li>{@code shards}: number of shards of the stream, 4 by default</li>
+ * <li>{@code schedule}: {@link FaultSchedule} of the endpoint, none by
+ * default</li>
+ * <li>{@code report}: interval between reports, 10s by default</li>
+ * <li>{@code appender.<property>}: any property of the appender, e.g.
+ * {@code appender.ringBufferEnabled=true}</li>
+ * </ul>
+ * Records are counted by the endpoint, so aggregation has to stay disabled
+ * for the loss to be meaningful.
+ */
+public final class SoakRunner {
+
+  private static final String APPENDER_PREFIX = "appender.";
+
+  private SoakRunner() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new LinkedHashMap<String, String>();
+    options.put("service", "KINESIS");
+    options.put("duration", "5m");
+    options.put("threads", "4");
+    options.put("rate", "0");
+    options.put("messageLength", "200");
+    options.put("shards", "4");
+    options.put("schedule", "");
+    options.put("report", "10s");
+    for(String arg : args) {
+      String[] pair = arg.split("=", 2);
+      if(pair.length != 2 || (!options.containsKey(pair[0]) && !pair[0].startsWith(APPENDER_PREFIX))) {
+        System.err.println("Unknown option " + arg + ", options are " + options.keySet() + " and "
+                           + APPENDER_PREFIX + "<property>");
+        System.exit(2);
+      }
+      options.put(pair[0], pair[1]);
+    }
+    System.exit(run(options) == 0 ? 0 : 1);
+  }
+
+  /**
+   * @return number of events lost without being accounted for
+   */
+  private static long run(Map<String, String> options) throws Exception {
+    long durationMillis = FaultSchedule.parseDurationMillis(options.get("duration"));
+    long reportMillis = FaultSchedule.parseDurationMillis(options.get("report"));
+    int threadCount = Integer.parseInt(options.get("threads"));
+    double rate = Double.parseDouble(options.get("rate"));
+    FaultSchedule schedule = FaultSchedule.parse(options.get("schedule"));
+    System.out.println("Soak test with " + options);
+
+    try(StubEndpoint endpoint = new StubEndpoint(0, Integer.parseInt(options.get("shards")))) {
+      endpoint.setFaultSchedule(schedule);
+      LoggerContext context = new LoggerContext();
+      // as SLF4J would set it, for events prepared for deferred processing
+      context.setMDCAdapter(new LogbackMDCAdapter());
+      BaseKinesisAppender<ILoggingEvent, ?> appender = createAppender(context, options, endpoint);
+      appender.start();
+      printStatuses(context, Status.WARN);
+      if(!appender.isStarted()) {
+        throw new IllegalStateException("Appender failed to start");
+      }
+      Logger logger = context.getLogger("soak");
+      logger.setLevel(Level.INFO);
+      logger.setAdditive(false);
+      logger.addAppender(appender);
+
+      String message = message(Integer.parseInt(options.get("messageLength")));
+      LongAdder appended = new LongAdder();
+      long startNanos = System.nanoTime();
+      long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+      long nanosPerEvent = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * threadCount / rate) : 0;
+      List<Thread> threads = new ArrayList<Thread>();
+      for(int i = 0; i < threadCount; i++) {
+        Thread thread = new Thread(() -> {
+          long next = System.nanoTime();
+          long sequence = 0;
+          while(System.nanoTime() < deadlineNanos) {
+            logger.info("{} {}", sequence++, message);
+            appended.increment();
+            if(nanosPerEvent > 0) {
+              next += nanosPerEvent;
+              LockSupport.parkNanos(next - System.nanoTime());
+            }
+          }
+        }, "soak-" + i);
+        threads.add(thread);
+        thread.start();
+      }
+
+      ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+      Report report = new Report(startNanos, appended, endpoint, appender.getMetrics());
+      reporter.scheduleAtFixedRate(report::print, reportMillis, reportMillis, TimeUnit.MILLISECONDS);
+      for(Thread thread : threads) {
+        thread.join();
+      }
+      reporter.shutdownNow();
+      report.print();
+
+      long stopStartNanos = System.nanoTime();
+      appender.stop();
+      System.out.printf("Appender stopped in %d ms%n", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stopStartNanos));
+      printStatuses(context, Status.ERROR);
+      context.stop();
+
+      AppenderMetrics metrics = appender.getMetrics();
+      // events rather than records, which may each carry several events with aggregation
+      long dropped = metrics.getEventsLost() + metrics.getEventsDropped();
+      long lost = appended.sum() - metrics.getEventsSent() - dropped;
+      System.out.printf("appended=%d sent=%d written=%d dropped=%d spilled=%d lost=%d%n", appended.sum(),
+                        metrics.getEventsSent(), endpoint.getRecordCount(), dropped, metrics.getEventsSpilled(), lost);
+      return lost;
+    }
+  }
+
+  private static BaseKinesisAppender<ILoggingEvent, ?> createAppender(LoggerContext context, Map<String, String> options,
+      StubEndpoint endpoint) {
+    PatternLayout layout = new PatternLayout();
+    layout.setContext(context);
+    layout.setPattern("%d{ISO8601} %-5level [%thread] %logger{36} - %msg%n");
+    layout.start();
+
+    BaseKinesisAppender<ILoggingEvent, ?> appender = "FIREHOSE".equalsIgnoreCase(options.get("service"))
+        ? new FirehoseAppender<ILoggingEvent>() : new KinesisAppender<ILoggingEvent>();
+    appender.setContext(context);
+    appender.setName("soak");
+    appender.setStreamName("soak");
+    appender.setEndpoint(endpoint.getUri().toString());
+    appender.setCredentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("soak", "soak")));
+    appender.setLayout(layout);
+    PropertySetter setter = new PropertySetter(new BeanDescriptionCache(context), appender);
+    setter.setContext(context);
+    for(Map.Entry<String, String> option : options.entrySet()) {
+      if(option.getKey().startsWith(APPENDER_PREFIX)) {
+        setter.setProperty(option.getKey().substring(APPENDER_PREFIX.length()), option.getValue());
+      }
+    }
+    return appender;
+  }
+
+  private static String message(int length) {
+    StringBuilder builder = new StringBuilder(length);
+    for(int i = 0; i < length; i++) {
+      builder.append((char) ('a' + i % 26));
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Prints the statuses of the appender at or above a level, once for each
+   * distinct message.
+   */
+  private static void printStatuses(LoggerContext context, int minimumLevel) {
+    Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+    for(Status status : context.getStatusManager().getCopyOfStatusList()) {
+      if(status.getEffectiveLevel() >= minimumLevel) {
+        counts.merge(status.toString(), 1, Integer::sum);
+      }
+    }
+    for(Map.Entry<String, Integer> status : counts.entrySet()) {
+      System.out.println(status.getValue() > 1 ? status.getKey() + " (x" + status.getValue() + ")" : status.getKey());
+    }
+  }
+
+  private static final class Report {
+    private final long startNanos;
+    private final LongAdder appended;
+    private final StubEndpoint endpoint;
+    private final AppenderMetrics metrics;
+    private long lastNanos;
+    private long lastAppended;
+    private long lastWritten;
+
+    Report(long startNanos, LongAdder appended, StubEndpoint endpoint, AppenderMetrics metrics) {
+      this.startNanos = startNanos;
+      this.lastNanos = startNanos;
+      this.appended = appended;
+      this.endpoint = endpoint;
+      this.metrics = metrics;
+    }
+
+    synchronized void print() {
+      long now = System.nanoTime();
+      double seconds = Math.max(1e-9, (now - lastNanos) / 1e9);
+      long appendedNow = appended.sum();
+      long writtenNow = endpoint.getRecordCount();
+      Runtime runtime = Runtime.getRuntime();
+      System.out.printf("[%5ds] appended=%d (%.0f/s) written=%d (%.0f/s) rejected=%d throttledRequests=%d "
+                        + "failedRequests=%d retried=%d spilled=%d dropped=%d queue=%d p99=%.1fms heap=%dMiB%n",
+                        TimeUnit.NANOSECONDS.toSeconds(now - startNanos), appendedNow,
+                        (appendedNow - lastAppended) / seconds, writtenNow, (writtenNow - lastWritten) / seconds,
+                        endpoint.getRejectedRecordCount(), endpoint.getThrottledRequestCount(),
+                        endpoint.getFailedRequestCount(), metrics.getRecordsRetried(), metrics.getEventsSpilled(),
+                        metrics.getEventsLost() + metrics.getEventsDropped(), metrics.getQueueDepth(),
+                        metrics.getLatencyP99Millis(), (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+      lastNanos = now;
+      lastAppended = appendedNow;
+      lastWritten = writtenNow;
+    }
+  }
+}
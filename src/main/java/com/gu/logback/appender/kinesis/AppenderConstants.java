@@ -30,4 +30,42 @@ public class AppenderConstants {
   public static final int DEFAULT_THREAD_KEEP_ALIVE_SEC = 30;
   public static final String DEFAULT_REGION = Region.US_EAST_1.id();
   public static final String DEFAULT_SERVICE_NAME = "kinesis";
+  public static final long DEFAULT_LINGER_MILLIS = 100;
+  public static final int DEFAULT_AGGREGATED_RECORD_BYTES = 50 * 1024;
+  public static final long RING_BUFFER_IDLE_WAIT_NANOS = 10 * 1000 * 1000;
+  public static final long DEFAULT_OVERFLOW_TIMEOUT_MILLIS = 1000;
+  public static final int DROP_OLDEST_MAX_TRIES = 100;
+  public static final int DEFAULT_SPILL_SEGMENT_BYTES = 16 * 1024 * 1024;
+  public static final long DEFAULT_MAX_SPILL_BYTES = 256L * 1024 * 1024;
+  public static final long SPILL_DRAIN_INTERVAL_MILLIS = 200;
+  public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 50;
+  public static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 16L * 1024 * 1024;
+  public static final long STARTUP_RETRY_INITIAL_DELAY_MILLIS = 250;
+  public static final long STARTUP_RETRY_MAX_DELAY_MILLIS = 30 * 1000;
+  public static final int DEFAULT_MAX_STARTUP_ATTEMPTS = 10;
+  public static final long SHARD_LIST_REFRESH_INTERVAL_MILLIS = 60 * 1000;
+  public static final long SHARD_LIST_MIN_INTERVAL_MILLIS = 1000;
+  public static final long RETRY_INITIAL_DELAY_MILLIS = 100;
+  public static final long RETRY_MAX_DELAY_MILLIS = 5 * 1000;
+  public static final long SHUTDOWN_SPILL_MARGIN_MILLIS = 2000;
+  public static final int DEFERRED_LAYOUT_CHUNK_SIZE = 256;
+  public static final int DEFERRED_LAYOUT_MIN_EVENTS_PER_TASK = 16;
+
+  // Kinesis PutRecords limits
+  public static final int KINESIS_MAX_BATCH_RECORDS = 500;
+  public static final int KINESIS_MAX_BATCH_BYTES = 5 * 1024 * 1024;
+  public static final int KINESIS_MAX_RECORD_BYTES = 1024 * 1024;
+
+  // Kinesis write throughput limits per shard
+  public static final long KINESIS_SHARD_MAX_RECORDS_PER_SEC = 1000;
+  public static final long KINESIS_SHARD_MAX_BYTES_PER_SEC = 1024 * 1024;
+
+  // Firehose PutRecordBatch limits
+  public static final int FIREHOSE_MAX_BATCH_RECORDS = 500;
+  public static final int FIREHOSE_MAX_BATCH_BYTES = 4 * 1024 * 1024;
+  public static final int FIREHOSE_MAX_RECORD_BYTES = 1000 * 1024;
+
+  // Firehose default throughput quotas per delivery stream, in most regions
+  public static final long FIREHOSE_MAX_RECORDS_PER_SEC = 100000;
+  public static final long FIREHOSE_MAX_BYTES_PER_SEC = 1024 * 1024;
 }
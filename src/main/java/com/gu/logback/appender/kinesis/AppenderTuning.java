@@ -0,0 +1,142 @@
+package com.gu.logback.appender.kinesis;
+
+import com.gu.logback.appender.kinesis.helpers.AppenderTuningMXBean;
+
+/**
+ * Applies the changes made through JMX to a running appender with the same
+ * validation as the configuration, and logs them. Changes that wouldn't have
+ * any effect are refused.
+ */
+final class AppenderTuning implements AppenderTuningMXBean {
+
+  private final BaseKinesisAppender<?, ?> appender;
+
+  AppenderTuning(BaseKinesisAppender<?, ?> appender) {
+    this.appender = appender;
+  }
+
+  @Override
+  public int getBufferSize() {
+    return appender.getBufferSize();
+  }
+
+  @Override
+  public void setBufferSize(int bufferSize) {
+    appender.resizeRingBuffer(bufferSize);
+    changed("bufferSize", bufferSize);
+  }
+
+  @Override
+  public int getThreadCount() {
+    return appender.getThreadCount();
+  }
+
+  @Override
+  public void setThreadCount(int threadCount) {
+    appender.resizeThreadPool(threadCount);
+    changed("threadCount", threadCount);
+  }
+
+  @Override
+  public int getMaxRetries() {
+    return appender.getMaxRetries();
+  }
+
+  @Override
+  public void setMaxRetries(int maxRetries) {
+    appender.setMaxRetries(maxRetries);
+    changed("maxRetries", maxRetries);
+  }
+
+  @Override
+  public int getShutdownTimeout() {
+    return appender.getShutdownTimeout();
+  }
+
+  @Override
+  public void setShutdownTimeout(int shutdownTimeout) {
+    appender.setShutdownTimeout(shutdownTimeout);
+    changed("shutdownTimeout", shutdownTimeout);
+  }
+
+  @Override
+  public int getMaxBatchRecords() {
+    return appender.getMaxBatchRecords();
+  }
+
+  @Override
+  public void setMaxBatchRecords(int maxBatchRecords) {
+    appender.setMaxBatchRecords(maxBatchRecords);
+    changed("maxBatchRecords", maxBatchRecords);
+  }
+
+  @Override
+  public int getMaxBatchBytes() {
+    return appender.getMaxBatchBytes();
+  }
+
+  @Override
+  public void setMaxBatchBytes(int maxBatchBytes) {
+    appender.setMaxBatchBytes(maxBatchBytes);
+    changed("maxBatchBytes", maxBatchBytes);
+  }
+
+  @Override
+  public long getLingerMillis() {
+    return appender.getLingerMillis();
+  }
+
+  @Override
+  public void setLingerMillis(long lingerMillis) {
+    appender.setLingerMillis(lingerMillis);
+    changed("lingerMillis", lingerMillis);
+  }
+
+  @Override
+  public long getMaxRecordsPerSecond() {
+    return appender.getMaxRecordsPerSecond();
+  }
+
+  @Override
+  public void setMaxRecordsPerSecond(long maxRecordsPerSecond) {
+    appender.setMaxRecordsPerSecond(maxRecordsPerSecond);
+    changed("maxRecordsPerSecond", maxRecordsPerSecond);
+  }
+
+  @Override
+  public long getMaxBytesPerSecond() {
+    return appender.getMaxBytesPerSecond();
+  }
+
+  @Override
+  public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+    appender.setMaxBytesPerSecond(maxBytesPerSecond);
+    changed("maxBytesPerSecond", maxBytesPerSecond);
+  }
+
+  @Override
+  public int getMaxInFlightRequests() {
+    return appender.getMaxInFlightRequests();
+  }
+
+  @Override
+  public void setMaxInFlightRequests(int maxInFlightRequests) {
+    appender.setMaxInFlightRequests(maxInFlightRequests);
+    changed("maxInFlightRequests", maxInFlightRequests);
+  }
+
+  @Override
+  public long getMaxInFlightBytes() {
+    return appender.getMaxInFlightBytes();
+  }
+
+  @Override
+  public void setMaxInFlightBytes(long maxInFlightBytes) {
+    appender.setMaxInFlightBytes(maxInFlightBytes);
+    changed("maxInFlightBytes", maxInFlightBytes);
+  }
+
+  private void changed(String property, long value) {
+    appender.addInfo("Changed " + property + " of appender " + appender.getName() + " to " + value + " through JMX");
+  }
+}
@@ -4,60 +4,155 @@
  */
 package com.gu.logback.appender.kinesis;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
 import software.amazon.awssdk.core.SdkClient;
 import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
 import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.utils.AttributeMap;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.sts.auth.StsAssumeRoleCredentialsProvider;
-import com.gu.logback.appender.kinesis.helpers.BlockFastProducerPolicy;
+import com.gu.logback.appender.kinesis.helpers.AdaptiveRateLimiter;
+import com.gu.logback.appender.kinesis.helpers.AggregationFormat;
+import com.gu.logback.appender.kinesis.helpers.AppenderMetrics;
+import com.gu.logback.appender.kinesis.helpers.AppenderTransport;
+import com.gu.logback.appender.kinesis.helpers.BatchSender;
+import com.gu.logback.appender.kinesis.helpers.Compression;
+import com.gu.logback.appender.kinesis.helpers.DropCounters;
+import com.gu.logback.appender.kinesis.helpers.HttpClientSettings;
+import com.gu.logback.appender.kinesis.helpers.InFlightWindow;
 import com.gu.logback.appender.kinesis.helpers.NamedThreadFactory;
+import com.gu.logback.appender.kinesis.helpers.OverflowPolicy;
+import com.gu.logback.appender.kinesis.helpers.PayloadCompressor;
+import com.gu.logback.appender.kinesis.helpers.PendingRecord;
+import com.gu.logback.appender.kinesis.helpers.RecordBatcher;
+import com.gu.logback.appender.kinesis.helpers.RecordPacker;
+import com.gu.logback.appender.kinesis.helpers.ReentrantEventFilter;
+import com.gu.logback.appender.kinesis.helpers.RequestDispatcher;
+import com.gu.logback.appender.kinesis.helpers.RingBufferSender;
+import com.gu.logback.appender.kinesis.helpers.SendingThreads;
+import com.gu.logback.appender.kinesis.helpers.SharedTransport;
+import com.gu.logback.appender.kinesis.helpers.ShutdownDrainer;
+import com.gu.logback.appender.kinesis.helpers.SpillDrainer;
+import com.gu.logback.appender.kinesis.helpers.SpillQueue;
+import com.gu.logback.appender.kinesis.helpers.StageTrace;
+import com.gu.logback.appender.kinesis.helpers.StreamStartup;
 import com.gu.logback.appender.kinesis.helpers.Validator;
 
-import ch.qos.logback.core.AppenderBase;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
 import ch.qos.logback.core.LayoutBase;
+import ch.qos.logback.core.encoder.Encoder;
 import ch.qos.logback.core.spi.DeferredProcessingAware;
 
 /**
  * Base class for Kinesis and Kinesis Firehose appenders containing common
  * attributes,
  * 
+ * Appending takes no lock of the appender, so that threads log in parallel:
+ * the layout or encoder must therefore be thread-safe, as Logback's own are.
+ * 
  * @since 1.4
  */
 public abstract class BaseKinesisAppender<Event extends DeferredProcessingAware, Client extends SdkClient>
-    extends AppenderBase<Event> {
+    extends UnsynchronizedAppenderBase<Event> {
 
   private String encoding = AppenderConstants.DEFAULT_ENCODING;
-  private int maxRetries = AppenderConstants.DEFAULT_MAX_RETRY_COUNT;
   private int bufferSize = AppenderConstants.DEFAULT_BUFFER_SIZE;
-  private int threadCount = AppenderConstants.DEFAULT_THREAD_COUNT;
-  private int shutdownTimeout = AppenderConstants.DEFAULT_SHUTDOWN_TIMEOUT_SEC;
+
+  // settings that can be changed while the appender runs
+  private volatile int maxRetries = AppenderConstants.DEFAULT_MAX_RETRY_COUNT;
+  private volatile int threadCount = AppenderConstants.DEFAULT_THREAD_COUNT;
+  private volatile int shutdownTimeout = AppenderConstants.DEFAULT_SHUTDOWN_TIMEOUT_SEC;
+  private volatile int maxBatchRecords;
+  private volatile int maxBatchBytes;
+  private volatile long lingerMillis = AppenderConstants.DEFAULT_LINGER_MILLIS;
+  private volatile long maxRecordsPerSecond;
+  private volatile long maxBytesPerSecond;
+  private volatile int maxInFlightRequests = AppenderConstants.DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+  private volatile long maxInFlightBytes = AppenderConstants.DEFAULT_MAX_IN_FLIGHT_BYTES;
 
   private String endpoint;
   private String region;
   private String streamName;
   private String roleToAssumeArn;
 
-  private boolean initializationFailed = false;
-  private BlockingQueue<Runnable> taskBuffer;
-  private ThreadPoolExecutor threadPoolExecutor;
+  private boolean batchingEnabled = false;
+  private boolean aggregationEnabled = false;
+  private int maxAggregatedRecordBytes = AppenderConstants.DEFAULT_AGGREGATED_RECORD_BYTES;
+  private Compression compression = Compression.NONE;
+  private boolean ringBufferEnabled = false;
+  private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+  private long overflowTimeoutMillis = AppenderConstants.DEFAULT_OVERFLOW_TIMEOUT_MILLIS;
+  private Level overflowLevelThreshold = Level.WARN;
+  private String spillDirectory;
+  private int spillSegmentBytes = AppenderConstants.DEFAULT_SPILL_SEGMENT_BYTES;
+  private long maxSpillBytes = AppenderConstants.DEFAULT_MAX_SPILL_BYTES;
+  private SpillQueue.FsyncPolicy spillFsyncPolicy = SpillQueue.FsyncPolicy.PER_SEGMENT;
+  private boolean adaptiveRateLimitEnabled = false;
+  private boolean jmxEnabled = true;
+  private double traceSampleRate = 0;
+  private SharedTransport transport;
+  private HttpClientSettings httpClient;
+  private boolean virtualThreadsEnabled = false;
+  private boolean asyncStartupEnabled = false;
+  private int maxStartupAttempts = AppenderConstants.DEFAULT_MAX_STARTUP_ATTEMPTS;
+  private boolean deferredLayoutEnabled = false;
+  private boolean includeCallerData = false;
+  private int layoutThreadCount = Runtime.getRuntime().availableProcessors();
+
+  private volatile boolean initializationFailed = false;
+  private AppenderTransport appenderTransport;
   private LayoutBase<Event> layout;
+  private Encoder<Event> encoder;
+  private Charset charset;
   private AwsCredentialsProvider credentials = DefaultCredentialsProvider.create();
-  private Client client;
+  private volatile Client client;
+  private Supplier<Client> clientFactory;
+  private StreamStartup streamStartup;
+  private volatile boolean streamReady;
+  private BatchSender batchSender;
+  private RecordPacker recordPacker;
+  private RingBufferSender<Event> ringBufferSender;
+  private volatile boolean flushDeadlinePassed;
+  private InFlightWindow inFlightWindow;
+  private RequestDispatcher dispatcher;
+  private SpillDrainer spillDrainer;
+  private final DropCounters dropCounters = new DropCounters();
+  private final AppenderMetrics metrics = new AppenderMetrics(dropCounters, this::getTaskBufferSize,
+                                                             this::getInFlightRequests, this::getInFlightBytes);
+
+  private final ReentrantEventFilter reentrantEventFilter = new ReentrantEventFilter(this);
+  private ObjectName metricsObjectName;
+  private ObjectName tuningObjectName;
 
   /**
    * Configures appender instance and makes it ready for use by the consumers.
    * It validates mandatory parameters and confirms if the configured stream is
-   * ready for publishing data yet.
+   * ready for publishing data yet, or, with asynchronous startup, leaves that
+   * to a background thread and buffers log events in the meantime.
    * 
    * Error details are made available through the fallback handler for this
    * appender
@@ -67,9 +162,32 @@ public abstract class BaseKinesisAppender<Event extends DeferredProcessingAware,
    */
   @Override
   public void start() {
-    if(layout == null) {
+    // left over by a previous run
+    initializationFailed = false;
+    streamReady = false;
+    flushDeadlinePassed = false;
+    client = null;
+    appenderTransport = null;
+    streamStartup = null;
+    batchSender = null;
+    recordPacker = null;
+    spillDrainer = null;
+    ringBufferSender = null;
+    if(layout == null && encoder == null) {
+      initializationFailed = true;
+      addError("Invalid configuration - No layout or encoder for appender: " + name);
+      return;
+    }
+    if(layout != null && encoder != null) {
+      addWarn("Both a layout and an encoder are configured, the layout will be ignored for appender: " + name);
+    }
+
+    try {
+      charset = Charset.forName(encoding);
+    }
+    catch(IllegalArgumentException e) {
       initializationFailed = true;
-      addError("Invalid configuration - No layout for appender: " + name);
+      addError("Invalid configuration - Unsupported encoding " + encoding + " for appender: " + name, e);
       return;
     }
 
@@ -79,16 +197,25 @@ public abstract class BaseKinesisAppender<Event extends DeferredProcessingAware,
       return;
     }
 
-    ClientOverrideConfiguration clientConfiguration = ClientOverrideConfiguration.builder()
-      .retryPolicy(RetryPolicy.defaultRetryPolicy().toBuilder().numRetries(maxRetries).build())
-      .putHeader("User-Agent", AppenderConstants.USER_AGENT_STRING)
-      .build();
+    appenderTransport = new AppenderTransport(this, name, threadNamePrefix(""));
+    appenderTransport.setSharedTransport(transport);
+    appenderTransport.setHttpClientSettings(httpClient);
+    appenderTransport.setMaxInFlightRequests(maxInFlightRequests);
+    appenderTransport.setVirtualThreadsEnabled(virtualThreadsEnabled);
+    appenderTransport.setThreadCount(threadCount);
+    appenderTransport.setBufferSize(bufferSize);
+    if(!appenderTransport.start(getHttpClientDefaults())) {
+      initializationFailed = true;
+      return;
+    }
 
-    BlockingQueue<Runnable> taskBuffer = new LinkedBlockingDeque<Runnable>(bufferSize);
-    threadPoolExecutor = new ThreadPoolExecutor(threadCount, threadCount,
-                                                AppenderConstants.DEFAULT_THREAD_KEEP_ALIVE_SEC, TimeUnit.SECONDS,
-                                                taskBuffer, setupThreadFactory(), new BlockFastProducerPolicy());
-    threadPoolExecutor.prestartAllCoreThreads();
+    ClientOverrideConfiguration.Builder clientConfigurationBuilder = ClientOverrideConfiguration.builder()
+      .retryPolicy(RetryPolicy.defaultRetryPolicy().toBuilder().numRetries(maxRetries).build())
+      .putHeader("User-Agent", AppenderConstants.USER_AGENT_STRING);
+    if(appenderTransport.getScheduler() != null) {
+      clientConfigurationBuilder.scheduledExecutorService(appenderTransport.getScheduler());
+    }
+    ClientOverrideConfiguration clientConfiguration = clientConfigurationBuilder.build();
 
     Optional<URI> endpointOverride;
 
@@ -102,49 +229,282 @@ public abstract class BaseKinesisAppender<Event extends DeferredProcessingAware,
       endpointOverride = Optional.empty();
     }
 
-    this.client = createClient(credentials, clientConfiguration, threadPoolExecutor, findRegion(), endpointOverride);
+    inFlightWindow = new InFlightWindow(maxInFlightRequests, maxInFlightBytes);
+    dispatcher = new RequestDispatcher(inFlightWindow, metrics, traceSampleRate > 0,
+                                       () -> flushDeadlinePassed || initializationFailed, this::spillBatch,
+                                       records -> batchSender.requeue(records), this, streamName);
+    Executor completionExecutor = appenderTransport.getCompletionExecutor();
+    Optional<SdkAsyncHttpClient> httpClientOverride = appenderTransport.getHttpClient();
+    clientFactory = () -> createClient(credentials, clientConfiguration, completionExecutor, findRegion(),
+                                       endpointOverride, httpClientOverride);
+
+    streamStartup = new StreamStartup(maxStartupAttempts, new StartupTarget(), this, name, streamName);
+    if(asyncStartupEnabled) {
+      inFlightWindow.suspend();
+      streamStartup.startInBackground(setupThreadFactory("startup-"));
+    } else if(!streamStartup.startNow()) {
+      initializationFailed = true;
+      // nothing will be sent, so none of the stages are set up
+      super.start();
+      return;
+    }
+
+    if(batchingEnabled) {
+      RecordBatcher<PendingRecord> batcher = newBatcher(getMaxBatchRecords(), getMaxBatchBytes(),
+                                                        PendingRecord::getSize, this::sendBatchWithinRate, "linger-");
+      batchSender = appenderTransport.newBatchSender(batcher, getRecordBytesLimit(), this::isStarted, metrics,
+                                                     streamName);
+    }
+
+    PayloadCompressor compressor = null;
+    try {
+      compressor = compression.newCompressor();
+    }
+    catch(LinkageError e) {
+      initializationFailed = true;
+      addError("Compression " + compression + " is not available, check the dependencies of appender: " + name, e);
+    }
+    if(compression != Compression.NONE && !aggregationEnabled) {
+      addWarn("Compression " + compression + " of single log events usually makes them larger, enable aggregation"
+              + " to compress several at once for appender: " + name);
+    }
+
+    AggregationFormat format = getAggregationFormat();
+    Function<Consumer<List<PendingRecord>>, RecordBatcher<PendingRecord>> newAggregator = null;
+    if(aggregationEnabled) {
+      newAggregator = sender -> newBatcher(Integer.MAX_VALUE, maxAggregatedRecordBytes - format.getOverhead(),
+                                           format::sizeOf, sender, "aggregation-");
+    }
+    recordPacker = new RecordPacker(format, newAggregator, compressor, this::forwardRecord);
+
+    if(!Validator.isBlank(spillDirectory)) {
+      try {
+        int maxSpillSegments = (int) Math.max(2, maxSpillBytes / spillSegmentBytes);
+        SpillQueue spillQueue = new SpillQueue(Paths.get(spillDirectory), spillSegmentBytes, maxSpillSegments,
+                                               spillFsyncPolicy);
+        if(!spillQueue.isEmpty()) {
+          addInfo("Replaying " + spillQueue.getPendingBytes() + " bytes of spilled log entries for appender: " + name);
+        }
+        if(spillQueue.getSegmentCount() > maxSpillSegments) {
+          addWarn("Spill directory " + spillDirectory + " holds " + spillQueue.getSegmentCount()
+                  + " segments of a previous run, more than maxSpillBytes allows, nothing more is spilled until"
+                  + " they are sent for appender: " + name);
+        }
+        spillDrainer = new SpillDrainer(spillQueue, AppenderConstants.SPILL_DRAIN_INTERVAL_MILLIS, bufferSize, metrics,
+                                        new SpillTarget(), this, streamName);
+        spillDrainer.start(setupThreadFactory("spill-"));
+      }
+      catch(IOException | RuntimeException e) {
+        addError("Failed to open spill directory " + spillDirectory + ", continuing without it for appender: " + name, e);
+      }
+    } else if(overflowPolicy == OverflowPolicy.SPILL) {
+      addWarn("Overflow policy SPILL without a spillDirectory drops log events for appender: " + name);
+    }
+
+    // the settings needing the ring buffer use it without changing ringBufferEnabled
+    boolean useRingBuffer = ringBufferEnabled;
+    if(!useRingBuffer && asyncStartupEnabled) {
+      addInfo("Asynchronous startup buffers log events in the ring buffer, using it for appender: " + name);
+      useRingBuffer = true;
+    }
+    if(!useRingBuffer && deferredLayoutEnabled) {
+      addInfo("Deferred layout formats log events taken from the ring buffer, using it for appender: " + name);
+      useRingBuffer = true;
+    }
+    if(!useRingBuffer && overflowPolicy != OverflowPolicy.BLOCK) {
+      addInfo("Overflow policy " + overflowPolicy + " applies to the ring buffer, using it for appender: " + name);
+      useRingBuffer = true;
+    }
+    if(useRingBuffer) {
+      ringBufferSender = new RingBufferSender<Event>(bufferSize, new RingBufferTarget(), dropCounters, this, name,
+                                                     streamName);
+      ringBufferSender.setOverflowPolicy(overflowPolicy);
+      ringBufferSender.setOverflowTimeoutMillis(overflowTimeoutMillis);
+      ringBufferSender.setOverflowLevelThreshold(overflowLevelThreshold);
+      ringBufferSender.setSpillEnabled(spillDrainer != null);
+      ringBufferSender.setDeferredLayoutEnabled(deferredLayoutEnabled);
+      ringBufferSender.setIncludeCallerData(includeCallerData);
+      ringBufferSender.setLayoutThreadCount(layoutThreadCount);
+      ringBufferSender.start(setupThreadFactory("sender-"), setupThreadFactory("layout-"));
+    }
 
-    validateStreamName(client, streamName);
+    if(jmxEnabled) {
+      registerMetrics();
+    }
 
     super.start();
   }
 
+  private RecordBatcher<PendingRecord> newBatcher(int maxRecords, long maxBytes, ToIntFunction<PendingRecord> sizer,
+      Consumer<List<PendingRecord>> sender, String purpose) {
+    return appenderTransport.newBatcher(maxRecords, maxBytes, lingerMillis, sizer, sender, purpose);
+  }
+
+  /**
+   * Registers the metrics of this appender as an MBean named after its class
+   * and name, and its tuning MBean next to it.
+   */
+  private void registerMetrics() {
+    String prefix = "com.gu.logback.appender.kinesis:type=" + getClass().getSimpleName() + ",name="
+                    + ObjectName.quote(String.valueOf(name));
+    metricsObjectName = registerMBean(metrics, prefix, "metrics");
+    tuningObjectName = registerMBean(new AppenderTuning(this), prefix + ",component=tuning", "tuning");
+  }
+
+  private ObjectName registerMBean(Object mbean, String objectName, String purpose) {
+    try {
+      ObjectName registered = new ObjectName(objectName);
+      ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, registered);
+      return registered;
+    }
+    catch(JMException | RuntimeException e) {
+      addWarn("Failed to register the " + purpose + " MBean of appender: " + name, e);
+      return null;
+    }
+  }
+
+  private void unregisterMBean(ObjectName objectName, String purpose) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    }
+    catch(JMException e) {
+      addWarn("Failed to unregister the " + purpose + " MBean of appender: " + name, e);
+    }
+  }
+
   /**
    * Closes this appender instance. Before exiting, the implementation tries to
-   * flush out buffered log events within configured shutdownTimeout seconds. If
-   * that doesn't finish within configured shutdownTimeout, it would drop all
-   * the buffered log events.
+   * flush out buffered log events within configured shutdownTimeout seconds,
+   * in batches as large as the service takes and without waiting for the
+   * linger time. When the deadline gets near, what is left is spilled if a
+   * spill directory is configured, and what can't be is counted as lost. The
+   * number of log events delivered, spilled and lost while stopping is
+   * reported on Logback's status, counting each event of aggregated records.
    */
   @Override
   public void stop() {
-    threadPoolExecutor.shutdown();
-    BlockingQueue<Runnable> taskQueue = threadPoolExecutor.getQueue();
-    int bufferSizeBeforeShutdown = threadPoolExecutor.getQueue().size();
-    boolean gracefulShutdown = true;
-    try {
-      gracefulShutdown = threadPoolExecutor.awaitTermination(shutdownTimeout, TimeUnit.SECONDS);
-    }
-    catch(InterruptedException e) {
-      // we are anyways cleaning up
-    }
-    finally {
-      int bufferSizeAfterShutdown = taskQueue.size();
-      if(!gracefulShutdown || bufferSizeAfterShutdown > 0) {
-        String errorMsg = "Kinesis Log4J Appender (" + name + ") waited for " + shutdownTimeout
-                          + " seconds before terminating but could send only "
-                          + (bufferSizeAfterShutdown - bufferSizeBeforeShutdown) + " logevents, it failed to send "
-                          + bufferSizeAfterShutdown + " pending log events from it's processing queue";
-        addError(errorMsg);
+    if(!isStarted()) {
+      return;
+    }
+    super.stop();
+    ShutdownDrainer shutdown = new ShutdownDrainer(shutdownTimeout, metrics, dropCounters, inFlightWindow, dispatcher,
+                                                   ringBufferSender, new ShutdownTarget(), this, name, streamName);
+
+    if(streamStartup != null) {
+      stopStartup(shutdown.nanosUntilDrainDeadline());
+    }
+    if(spillDrainer != null) {
+      spillDrainer.stop(shutdown.nanosUntilDrainDeadline());
+    }
+    dispatcher.closeRateLimit(shutdown.nanosUntilDrainDeadline());
+    if(recordPacker != null) {
+      recordPacker.closeAggregation();
+    }
+    if(batchSender != null) {
+      // the retries waiting out their backoff are sent right away
+      batchSender.close(getBatchRecordsLimit(), getBatchBytesLimit(), lingerMillis);
+    }
+    if(ringBufferSender != null) {
+      ringBufferSender.close();
+    }
+
+    boolean drained = shutdown.drain();
+    flushDeadlinePassed = true;
+    inFlightWindow.close();
+    if(!drained) {
+      shutdown.spillRemaining();
+    }
+
+    if(ringBufferSender != null) {
+      // a sender thread still running past the deadline formats on its own
+      ringBufferSender.shutdownLayout();
+    }
+    if(client != null) {
+      client.close();
+    }
+    appenderTransport.close(shutdown.nanosUntilDeadline());
+    if(recordPacker != null) {
+      recordPacker.close();
+    }
+    shutdown.report();
+
+    if(metricsObjectName != null) {
+      unregisterMBean(metricsObjectName, "metrics");
+      metricsObjectName = null;
+    }
+    if(tuningObjectName != null) {
+      unregisterMBean(tuningObjectName, "tuning");
+      tuningObjectName = null;
+    }
+    if(spillDrainer != null) {
+      try {
+        spillDrainer.close();
+      }
+      catch(IOException e) {
+        addError("Failed to close spill directory " + spillDirectory + " for appender: " + name, e);
+      }
+    }
+  }
+
+  /**
+   * Stops validating the stream in the background. If it wasn't found ready,
+   * the buffered log events are sent anyway, as the stream may well be.
+   */
+  private void stopStartup(long timeoutNanos) {
+    if(streamStartup.stop(timeoutNanos) && !initializationFailed) {
+      addWarn("Stream " + streamName + " wasn't found ready before stopping, sending the buffered log events anyway"
+              + " for appender: " + name);
+      if(client == null) {
+        try {
+          client = clientFactory.get();
+        }
+        catch(RuntimeException e) {
+          addError("Failed to create the client of appender: " + name, e);
+        }
       }
+      inFlightWindow.resume();
     }
-    client.close();
   }
 
   /**
-   * Validate that the stream name exists and is in a valid status.
+   * Validate that the stream name exists and is in a valid status, reporting
+   * why it isn't through {@link #streamNotReady(String, Throwable)}. Called
+   * while starting, by the {@link StreamStartup}.
    */
   protected abstract void validateStreamName(Client client, String streamName);
 
+  /**
+   * Reports that the stream can't be written to, which disables the appender,
+   * or, with asynchronous startup, gets the validation tried again later.
+   *
+   * @param message why the stream isn't ready
+   */
+  protected void streamNotReady(String message) {
+    streamNotReady(message, null);
+  }
+
+  /**
+   * Reports that the stream can't be written to, which disables the appender,
+   * or, with asynchronous startup, gets the validation tried again later.
+   *
+   * @param message why the stream isn't ready
+   * @param cause failure of the validation
+   */
+  protected void streamNotReady(String message, Throwable cause) {
+    streamStartup.notReady(message, cause);
+  }
+
+  /**
+   * Reports that the stream doesn't exist, which disables the appender, with
+   * asynchronous startup too.
+   *
+   * @param message why the stream isn't ready
+   * @param cause failure of the validation
+   */
+  protected void streamNotFound(String message, Throwable cause) {
+    streamStartup.notFound(message, cause);
+  }
+
   /**
    * This method is called whenever a logging happens via logger.log(..) API
    * calls. Implementation for this appender will take in log events instantly
@@ -154,18 +514,35 @@ public abstract class BaseKinesisAppender<Event extends DeferredProcessingAware,
    * 
    * If there is any error in parsing logevents, those logevents would be
    * dropped.
+   * 
+   * Threads append concurrently. Events logged while sending or completing a
+   * request, or on the threads of this appender and of its HTTP client, are
+   * dropped: sending them would log again, and a completing thread waiting
+   * for room in the buffer would wait for itself.
    */
   @Override
   protected void append(Event logEvent) {
+    if(reentrantEventFilter.drops(logEvent, streamName)) {
+      return;
+    }
     if(initializationFailed) {
       addError("Check the configuration and whether the configured stream " + streamName
                + " exists and is active. Failed to initialize kinesis logback appender: " + name);
       return;
     }
+    if(ringBufferSender != null) {
+      ringBufferSender.append(logEvent);
+      return;
+    }
     try {
-      String message = this.layout.doLayout(logEvent);
-
-      putMessage(message);
+      long appendNanos = System.nanoTime();
+      StageTrace trace = newTrace(appendNanos);
+      byte[] payload = encode(logEvent);
+      if(trace != null) {
+        trace.encoded();
+        trace.dequeued();
+      }
+      sendRecord(partitionKeyOf(logEvent), payload, appendNanos, trace);
     }
     catch(Exception e) {
       addError("Failed to schedule log entry for publishing into Kinesis stream: " + streamName, e);
@@ -173,18 +550,284 @@ public abstract class BaseKinesisAppender<Event extends DeferredProcessingAware,
   }
 
   /**
-   * Send message to client
-   * 
-   * @param message formatted message to send
-   * @throws Exception if unable to add message
+   * Decides whether to trace the stages of an event, according to the trace
+   * sample rate.
+   *
+   * @return a new trace for the event, null if it isn't sampled
+   */
+  private StageTrace newTrace(long appendNanos) {
+    if(traceSampleRate > 0 && (traceSampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < traceSampleRate)) {
+      return new StageTrace(appendNanos);
+    }
+    return null;
+  }
+
+  /**
+   * Turns an event into the payload of a record, with the encoder if one is
+   * configured, and with the layout otherwise. Encoders write bytes directly,
+   * while layouts go through an intermediate String.
+   */
+  private byte[] encode(Event logEvent) {
+    if(encoder != null) {
+      return encoder.encode(logEvent);
+    }
+    return layout.doLayout(logEvent).getBytes(charset);
+  }
+
+  /**
+   * Writes an event that doesn't fit in the ring buffer to the spill queue,
+   * and counts it as spilled, or as dropped if it couldn't be.
+   */
+  private void spillEvent(Event logEvent) {
+    try {
+      if(spillDrainer != null && spillDrainer.spillEvent(partitionKeyOf(logEvent), encode(logEvent))) {
+        metrics.recordSpilled(1);
+      } else {
+        dropCounters.fullSpillDropped();
+      }
+    }
+    catch(Exception e) {
+      addError("Failed to spill log entry for publishing into Kinesis stream: " + streamName, e);
+    }
+  }
+
+  /**
+   * Writes a record that couldn't be sent to the spill queue, to be sent again
+   * once the service recovers, and holds back sending spilled records for a
+   * while. Records carrying several log events keep their number.
+   *
+   * @param record the record, as sent
+   * @return true if the record was spilled, false if it was dropped because
+   *         there is no spill queue or it is full
+   */
+  protected boolean spillRecord(PendingRecord record) {
+    if(spillDrainer != null) {
+      return spillDrainer.spillRecord(record);
+    }
+    metrics.recordDropped(record.getEventCount());
+    return false;
+  }
+
+  /**
+   * Writes all the records of a batch that couldn't be sent to the spill
+   * queue.
+   *
+   * @param batch records of the batch
+   * @return number of records spilled, the others have been dropped
+   */
+  protected int spillBatch(List<PendingRecord> batch) {
+    int spilled = 0;
+    for(PendingRecord record : batch) {
+      if(spillRecord(record)) {
+        spilled++;
+      }
+    }
+    return spilled;
+  }
+
+  /**
+   * Returns the partition key of the record carrying a log event. Called on
+   * the logging thread.
+   *
+   * @param logEvent the log event
+   * @return partition key, null if the service doesn't use one
+   */
+  protected abstract String partitionKeyOf(Event logEvent);
+
+  /**
+   * Send a single record to client with a single request
+   *
+   * @param record the record to send
+   * @return the future of the request, whose cancellation must be reported
+   *         as a failure
+   */
+  protected abstract CompletableFuture<?> putRecord(PendingRecord record);
+
+  /**
+   * Send a batch of records to client with a single request
+   *
+   * @param batch records to send
+   * @return the future of the request, whose cancellation must be reported
+   *         as a failure
+   */
+  protected abstract CompletableFuture<?> sendBatch(List<PendingRecord> batch);
+
+  /**
+   * Returns the maximum number of records the service accepts in one batch.
+   */
+  protected abstract int getBatchRecordsLimit();
+
+  /**
+   * Returns the maximum size in bytes the service accepts for one batch.
+   */
+  protected abstract int getBatchBytesLimit();
+
+  /**
+   * Returns the maximum size in bytes the service accepts for one record.
+   */
+  protected abstract int getRecordBytesLimit();
+
+  /**
+   * Returns the format used to pack several log events into one record.
+   */
+  protected abstract AggregationFormat getAggregationFormat();
+
+  /**
+   * Returns the default ceiling of the records sent per second to each rate
+   * limit group.
+   */
+  protected abstract long getRecordsPerSecondLimit();
+
+  /**
+   * Returns the default ceiling of the bytes sent per second to each rate
+   * limit group.
+   */
+  protected abstract long getBytesPerSecondLimit();
+
+  /**
+   * Returns the number of groups of partition keys whose throughput is
+   * limited separately, e.g. the number of shards. Only called once the
+   * stream name has been validated.
+   */
+  protected int getRateLimitGroupCount() {
+    return 1;
+  }
+
+  /**
+   * Returns the rate limit group of a partition key.
+   *
+   * @param partitionKey partition key of a record
+   * @return group of the key, between 0 and the group count - 1
+   */
+  protected int rateLimitGroupOf(String partitionKey) {
+    return 0;
+  }
+
+  /**
+   * Starts the adaptive rate limit afresh once the groups it limits have
+   * changed, e.g. after the stream was resharded. The rates learned so far are
+   * lost, and the records waiting for the previous limit go through.
+   */
+  protected void rateLimitGroupsChanged() {
+    if(dispatcher != null) {
+      dispatcher.replaceRateLimit(() -> new AdaptiveRateLimiter(getRateLimitGroupCount(), this::rateLimitGroupOf,
+                                                                getMaxRecordsPerSecond(), getMaxBytesPerSecond()));
+    }
+  }
+
+  /**
+   * Sends the payload of an encoded event as a record, aggregated with others,
+   * compressed and batched as configured.
+   *
+   * @param partitionKey partition key of the record, null if the service
+   *          doesn't use one
+   * @param data payload of the record, which must not be modified afterwards
+   * @param appendNanos {@link System#nanoTime()} when the event was appended,
+   *          0 if unknown
+   * @param trace stage timestamps of the event, null if it isn't sampled
+   */
+  protected void sendRecord(String partitionKey, byte[] data, long appendNanos, StageTrace trace) {
+    recordPacker.add(partitionKey, data, appendNanos, trace);
+  }
+
+  private void forwardRecord(PendingRecord record) {
+    if(batchSender != null) {
+      batchSender.add(record);
+    } else {
+      dispatcher.send(Collections.singletonList(record), records -> putRecord(record));
+    }
+  }
+
+  private void sendBatchWithinRate(List<PendingRecord> batch) {
+    dispatcher.send(batch, this::sendBatch);
+  }
+
+  /**
+   * Accounts for a request that completed, possibly with some of its records
+   * rejected, which the caller is expected to retry. Each request must be
+   * reported once, as completed or failed, to give its room in the in-flight
+   * window back.
+   *
+   * @param batch records of the request
+   * @param failed indexes of the records the service rejected
+   * @param throttled indexes of the records the service rejected for
+   *          exceeding the throughput limits
+   */
+  protected void reportRequestCompleted(List<PendingRecord> batch, BitSet failed, BitSet throttled) {
+    dispatcher.requestCompleted(batch, failed, throttled);
+  }
+
+  /**
+   * Accounts for a request that failed as a whole, and spills its records.
+   *
+   * @param batch records of the request
+   * @param throttled whether the request failed for exceeding the throughput
+   *          limits
+   */
+  protected void reportRequestFailed(List<PendingRecord> batch, boolean throttled) {
+    dispatcher.requestFailed(batch, throttled);
+  }
+
+  /**
+   * Accounts for a single record request.
+   *
+   * @param record the record sent
+   * @param exception failure of the request, null if it succeeded
+   * @param throttled whether the request failed for exceeding the throughput
+   *          limits
+   */
+  protected void reportRequestCompleted(PendingRecord record, Throwable exception, boolean throttled) {
+    List<PendingRecord> batch = Collections.singletonList(record);
+    if(exception == null) {
+      reportRequestCompleted(batch, new BitSet(), new BitSet());
+    } else {
+      reportRequestFailed(batch, throttled);
+    }
+  }
+
+  /**
+   * Handles a record that the service rejected individually within a batch.
+   * The record is added back to the batch in progress after a backoff, unless
+   * it has already been attempted maxRetries times or the appender is running
+   * out of time to stop, in which case it is spilled if possible.
+   *
+   * @param record the rejected record
+   * @param errorCode error code reported for the record
+   * @param errorMessage error message reported for the record
+   * @return true if the record will be retried, false if it has been dropped
    */
-  protected abstract void putMessage(String message) throws Exception;
+  protected boolean retryFailedRecord(PendingRecord record, String errorCode, String errorMessage) {
+    if(spillDrainer != null) {
+      spillDrainer.sendFailed();
+    }
+    if(record.getAttempts() < maxRetries && !flushDeadlinePassed) {
+      metrics.recordRetried();
+      batchSender.retryLater(record.nextAttempt());
+      return true;
+    }
+    if(spillRecord(record)) {
+      return true;
+    }
+    addError("Failed to publish a log entry to stream " + streamName + " using appender " + name + " after "
+             + (record.getAttempts() + 1) + " attempts: " + errorCode + " " + errorMessage);
+    return false;
+  }
 
   /**
-   * Creates the thread factory to be used by the {@link #threadPoolExecutor}.
+   * Creates a thread factory naming its threads after this appender's stream.
+   * The threads are marked as {@link SendingThreads}, so that the events
+   * logged on them are dropped.
+   *
+   * @param purpose suffix distinguishing these threads from the ones of the
+   *          {@link AppenderTransport} completing the requests, which have
+   *          none
    */
-  private ThreadFactory setupThreadFactory() {
-    return new NamedThreadFactory(getClass().getSimpleName() + "[" + streamName + "]-");
+  protected ThreadFactory setupThreadFactory(String purpose) {
+    return SendingThreads.marking(new NamedThreadFactory(threadNamePrefix(purpose)));
+  }
+
+  private String threadNamePrefix(String purpose) {
+    return getClass().getSimpleName() + "[" + streamName + "]-" + purpose;
   }
 
   /**
@@ -210,6 +853,22 @@ public abstract class BaseKinesisAppender<Event extends DeferredProcessingAware,
     this.layout = layout;
   }
 
+  public Encoder<Event> getEncoder() {
+    return encoder;
+  }
+
+  /**
+   * Sets an encoder to turn log events into record payloads, in place of the
+   * layout. Encoders writing bytes directly skip the intermediate String and
+   * its conversion with the configured encoding. Headers and footers of the
+   * encoder are not used.
+   *
+   * @param encoder encoder for log events
+   */
+  public void setEncoder(Encoder<Event> encoder) {
+    this.encoder = encoder;
+  }
+
   /**
    * Returns configured stream name
    * 
@@ -243,7 +902,7 @@ public abstract class BaseKinesisAppender<Event extends DeferredProcessingAware,
 
   /**
    * Sets encoding for the data to be published. If none specified, default is
-   * UTF-8
+   * UTF-8. Only applies to messages formatted by a layout.
    * 
    * @param charset encoding for expected log messages
    */
@@ -267,7 +926,8 @@ public abstract class BaseKinesisAppender<Event extends DeferredProcessingAware,
   /**
    * Configures maximum number of retries between API failures while
    * communicating with Kinesis. This is used in AWS SDK's default retries for
-   * HTTP exceptions, throttling errors etc.
+   * HTTP exceptions, throttling errors etc. Changing it while the appender
+   * runs only affects the retries of records rejected within a batch.
    * 
    * @param maxRetries the number of retries between API failures
    */
@@ -277,9 +937,11 @@ public abstract class BaseKinesisAppender<Event extends DeferredProcessingAware,
   }
 
   /**
-   * Returns configured buffer size for this appender. This implementation would
-   * buffer these many log events in memory while parallel threads are trying to
-   * publish them to Kinesis.
+   * Returns configured buffer size for this appender. With the ring buffer,
+   * this is the number of log events held in memory waiting to be sent.
+   * Without it, log events are not queued: logging threads send them and wait
+   * for room in the in-flight window, and this only bounds the tasks waiting
+   * for the threads completing the requests.
    * 
    * @return configured buffer size for this appender.
    */
@@ -288,9 +950,13 @@ public abstract class BaseKinesisAppender<Event extends DeferredProcessingAware,
   }
 
   /**
-   * Configures buffer size for this appender. This implementation would buffer
-   * these many log events in memory while parallel threads are trying to
-   * publish them to Kinesis.
+   * Configures buffer size for this appender. With the ring buffer, this is
+   * the number of log events held in memory waiting to be sent, beyond which
+   * the overflow policy applies. Without it, log events are not queued:
+   * logging threads send them and wait for room in the in-flight window (see
+   * {@link #setMaxInFlightRequests(int)} and
+   * {@link #setMaxInFlightBytes(long)}), and this only bounds the tasks
+   * waiting for the threads completing the requests.
    *
    * @param bufferSize buffer size for this appender
    *
@@ -321,6 +987,9 @@ public abstract class BaseKinesisAppender<Event extends DeferredProcessingAware,
   public void setThreadCount(int parallelCount) {
     Validator.validate(parallelCount > 0, "threadCount must be >0");
     this.threadCount = parallelCount;
+    if(appenderTransport != null) {
+      appenderTransport.setThreadCount(parallelCount);
+    }
   }
 
   /**
@@ -352,47 +1021,641 @@ public abstract class BaseKinesisAppender<Event extends DeferredProcessingAware,
   }
 
   /**
-   * Returns count of tasks scheduled to send records to Kinesis. Since
-   * currently each task maps to sending one record, it is equivalent to number
-   * of records in the buffer scheduled to be sent to Kinesis.
+   * Returns count of tasks waiting for the threads completing the requests,
+   * which are SDK completions, retries and batch flushes rather than log
+   * events, since logging threads send their events themselves. When the ring
+   * buffer is enabled, this is the number of log events waiting in it, and in
+   * the buffers it replaced when resized that are still being drained.
    * 
-   * @return count of tasks scheduled to send records to Kinesis.
+   * @return count of tasks, or log events, waiting to be processed.
    */
   public int getTaskBufferSize() {
-    return taskBuffer.size();
+    if(ringBufferSender != null) {
+      return ringBufferSender.getSize();
+    }
+    return getExecutorQueueSize();
   }
 
-  public String getRoleToAssumeArn() {
-    return roleToAssumeArn;
+  private int getExecutorQueueSize() {
+    return appenderTransport != null ? appenderTransport.getQueueSize() : 0;
   }
 
-  public void setRoleToAssumeArn(String roleToAssumeArn) {
-    this.roleToAssumeArn = roleToAssumeArn;
-    if(!Validator.isBlank(roleToAssumeArn)) {
-      String sessionId = "session" + Math.random();
-      StsAssumeRoleCredentialsProvider remoteAccountCredentials = 
-        StsAssumeRoleCredentialsProvider.builder().refreshRequest(builder ->
-          builder.roleArn(roleToAssumeArn).roleSessionName(sessionId).build()).build();
-
-      credentials = remoteAccountCredentials;
-    }
+  public boolean isVirtualThreadsEnabled() {
+    return virtualThreadsEnabled;
   }
 
-  public AwsCredentialsProvider getCredentialsProvider() {
-    return credentials;
+  /**
+   * Runs the completion of requests on virtual threads, one per task, instead
+   * of threadCount platform threads, leaving the in-flight window as the only
+   * limit. Needs Java 21 or later, and is ignored with a warning on older
+   * versions or with a shared transport.
+   *
+   * @param virtualThreadsEnabled whether to use virtual threads
+   */
+  public void setVirtualThreadsEnabled(boolean virtualThreadsEnabled) {
+    this.virtualThreadsEnabled = virtualThreadsEnabled;
   }
 
-  public void setCredentialsProvider(AwsCredentialsProvider credentialsProvider) {
-    this.credentials = credentialsProvider;
+  public boolean isAsyncStartupEnabled() {
+    return asyncStartupEnabled;
   }
 
   /**
-   * Returns configured Kinesis endpoint.
-   * 
-   * @return configured kinesis endpoint
+   * Starts without waiting for the client to be created and the stream to be
+   * validated, which then happen in the background, retried with exponential
+   * backoff while the stream isn't active, for up to maxStartupAttempts
+   * checks. Log events are held in the ring buffer, which this enables, until
+   * then. Logging threads don't wait for room in it meanwhile: with the BLOCK
+   * and BLOCK_WITH_TIMEOUT overflow policies, and above the threshold of
+   * DROP_BELOW_LEVEL, events that don't fit are spilled if a spill directory
+   * is configured and dropped otherwise. A stream that doesn't exist, or
+   * still isn't active after the last check, disables the appender.
+   *
+   * @param asyncStartupEnabled whether to validate the stream in the background
    */
-  public String getEndpoint() {
-    return endpoint;
+  public void setAsyncStartupEnabled(boolean asyncStartupEnabled) {
+    this.asyncStartupEnabled = asyncStartupEnabled;
+  }
+
+  public int getMaxStartupAttempts() {
+    return maxStartupAttempts;
+  }
+
+  /**
+   * Sets how many times asynchronous startup checks whether the stream is
+   * active before giving up. Defaults to 10, which gives the stream up to
+   * about a minute and a half to become active.
+   *
+   * @param maxStartupAttempts maximum number of checks of the stream
+   */
+  public void setMaxStartupAttempts(int maxStartupAttempts) {
+    Validator.validate(maxStartupAttempts > 0, "maxStartupAttempts must be > 0");
+    this.maxStartupAttempts = maxStartupAttempts;
+  }
+
+  public boolean isDeferredLayoutEnabled() {
+    return deferredLayoutEnabled;
+  }
+
+  /**
+   * Formats log events on the appender's threads rather than on the logging
+   * thread, which only prepares them for deferred processing and publishes
+   * them into the ring buffer, which this enables. The sender thread formats
+   * the events in chunks, in parallel on layoutThreadCount threads, and sends
+   * them in order. The layout or encoder must not depend on the logging
+   * thread, e.g. on the MDC other than through the event.
+   *
+   * @param deferredLayoutEnabled whether to format log events on the
+   *          appender's threads
+   */
+  public void setDeferredLayoutEnabled(boolean deferredLayoutEnabled) {
+    this.deferredLayoutEnabled = deferredLayoutEnabled;
+  }
+
+  public boolean isIncludeCallerData() {
+    return includeCallerData;
+  }
+
+  /**
+   * Captures the caller data of log events before deferring their layout, as
+   * Logback's AsyncAppender does, for layouts showing the class, method or
+   * line that logged. It is costly, hence disabled by default.
+   *
+   * @param includeCallerData whether to capture the caller data on the
+   *          logging thread
+   */
+  public void setIncludeCallerData(boolean includeCallerData) {
+    this.includeCallerData = includeCallerData;
+  }
+
+  public int getLayoutThreadCount() {
+    return layoutThreadCount;
+  }
+
+  /**
+   * Sets the number of threads formatting log events with a deferred layout,
+   * the sender thread included, the number of processors by default.
+   *
+   * @param layoutThreadCount number of threads formatting log events
+   */
+  public void setLayoutThreadCount(int layoutThreadCount) {
+    Validator.validate(layoutThreadCount > 0, "layoutThreadCount must be > 0");
+    this.layoutThreadCount = layoutThreadCount;
+  }
+
+  public int getMaxInFlightRequests() {
+    return maxInFlightRequests;
+  }
+
+  /**
+   * Configures the maximum number of requests sent and not completed yet,
+   * beyond which logging threads wait. Defaults to 50, the size of the SDK's
+   * connection pool. Without the ring buffer, this and
+   * {@link #setMaxInFlightBytes(long)} are what hold up logging threads when
+   * the service or the network is slow, not bufferSize.
+   *
+   * @param maxInFlightRequests maximum number of requests in flight
+   */
+  public void setMaxInFlightRequests(int maxInFlightRequests) {
+    Validator.validate(maxInFlightRequests > 0, "maxInFlightRequests must be >0");
+    this.maxInFlightRequests = maxInFlightRequests;
+    applyInFlightLimits();
+  }
+
+  public long getMaxInFlightBytes() {
+    return maxInFlightBytes;
+  }
+
+  /**
+   * Configures the maximum number of bytes of the records sent and not
+   * completed yet, beyond which logging threads wait. Defaults to 16 MiB. A
+   * request larger than that is sent once no other is in flight.
+   *
+   * @param maxInFlightBytes maximum number of bytes in flight
+   */
+  public void setMaxInFlightBytes(long maxInFlightBytes) {
+    Validator.validate(maxInFlightBytes > 0, "maxInFlightBytes must be >0");
+    this.maxInFlightBytes = maxInFlightBytes;
+    applyInFlightLimits();
+  }
+
+  private void applyInFlightLimits() {
+    if(inFlightWindow != null) {
+      inFlightWindow.setLimits(maxInFlightRequests, maxInFlightBytes);
+    }
+  }
+
+  private int getInFlightRequests() {
+    return inFlightWindow != null ? inFlightWindow.getRequestCount() : 0;
+  }
+
+  private long getInFlightBytes() {
+    return inFlightWindow != null ? inFlightWindow.getByteCount() : 0;
+  }
+
+  public SharedTransport getTransport() {
+    return transport;
+  }
+
+  /**
+   * Shares the HTTP client, the threads completing requests and the scheduler
+   * of timers with the other appenders configured with a transport of the
+   * same name. The threadCount of the appender is then ignored in favour of
+   * the transport's.
+   *
+   * @param transport shared transport
+   */
+  public void setTransport(SharedTransport transport) {
+    Validator.validate(transport != null, "transport cannot be null");
+    this.transport = transport;
+  }
+
+  public HttpClientSettings getHttpClient() {
+    return httpClient;
+  }
+
+  /**
+   * Picks the implementation of the HTTP client, Netty or the AWS CRT, and
+   * tunes its connections. The appender then creates and closes the HTTP
+   * client itself. Ignored with a shared transport, which has its own.
+   *
+   * @param httpClient implementation and connection settings of the HTTP
+   *          client
+   */
+  public void setHttpClient(HttpClientSettings httpClient) {
+    Validator.validate(httpClient != null, "httpClient cannot be null");
+    this.httpClient = httpClient;
+  }
+
+  public boolean isAggregationEnabled() {
+    return aggregationEnabled;
+  }
+
+  /**
+   * Enables packing several log events into each record. Kinesis records use
+   * the aggregated record format of the Kinesis Producer Library, which KCL
+   * consumers de-aggregate transparently. Firehose records concatenate the
+   * log events, as Firehose does when delivering them.
+   *
+   * @param aggregationEnabled whether to aggregate log events
+   */
+  public void setAggregationEnabled(boolean aggregationEnabled) {
+    this.aggregationEnabled = aggregationEnabled;
+  }
+
+  public int getMaxAggregatedRecordBytes() {
+    return maxAggregatedRecordBytes;
+  }
+
+  /**
+   * Configures the size up to which aggregated records are filled before
+   * being sent. Aggregated records are also sent once their first event has
+   * waited for lingerMillis.
+   *
+   * @param maxAggregatedRecordBytes maximum size of an aggregated record in
+   *          bytes, at most the service's record size limit
+   */
+  public void setMaxAggregatedRecordBytes(int maxAggregatedRecordBytes) {
+    int overhead = getAggregationFormat().getOverhead();
+    Validator.validate(maxAggregatedRecordBytes > overhead && maxAggregatedRecordBytes <= getRecordBytesLimit(),
+                       "maxAggregatedRecordBytes must be between " + (overhead + 1) + " and " + getRecordBytesLimit());
+    this.maxAggregatedRecordBytes = maxAggregatedRecordBytes;
+  }
+
+  public Compression getCompression() {
+    return compression;
+  }
+
+  /**
+   * Configures the compression applied to the payload of each record sent,
+   * after aggregation when it is enabled. Consumers have to decompress records
+   * before anything else, including de-aggregating them. Without aggregation,
+   * each log event is compressed on its own, which the framing of the
+   * compression usually makes larger, so starting warns about it.
+   *
+   * @param compression compression of record payloads
+   */
+  public void setCompression(Compression compression) {
+    Validator.validate(compression != null, "compression cannot be null");
+    this.compression = compression;
+  }
+
+  public boolean isRingBufferEnabled() {
+    return ringBufferEnabled;
+  }
+
+  /**
+   * Enables handing log events over to a dedicated sender thread through a
+   * lock-free ring buffer of bufferSize (rounded up to a power of two)
+   * preallocated slots, rather than sending them from the logging thread,
+   * which otherwise waits whenever the in-flight window is full.
+   * Asynchronous startup, a deferred layout and overflow policies other than
+   * BLOCK use the ring buffer whatever this setting.
+   *
+   * @param ringBufferEnabled whether to use the ring buffer
+   */
+  public void setRingBufferEnabled(boolean ringBufferEnabled) {
+    this.ringBufferEnabled = ringBufferEnabled;
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  /**
+   * Configures what happens to log events when the ring buffer is full. Any
+   * policy other than {@link OverflowPolicy#BLOCK} enables the ring buffer.
+   *
+   * @param overflowPolicy policy applied when the ring buffer is full
+   */
+  public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+    Validator.validate(overflowPolicy != null, "overflowPolicy cannot be null");
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  public long getOverflowTimeoutMillis() {
+    return overflowTimeoutMillis;
+  }
+
+  /**
+   * Configures how long logging threads wait for room in a full ring buffer
+   * with the {@link OverflowPolicy#BLOCK_WITH_TIMEOUT} and
+   * {@link OverflowPolicy#DROP_BELOW_LEVEL} policies.
+   *
+   * @param overflowTimeoutMillis maximum wait in milliseconds
+   */
+  public void setOverflowTimeoutMillis(long overflowTimeoutMillis) {
+    Validator.validate(overflowTimeoutMillis >= 0, "overflowTimeoutMillis must be >= 0");
+    this.overflowTimeoutMillis = overflowTimeoutMillis;
+  }
+
+  public String getOverflowLevelThreshold() {
+    return overflowLevelThreshold.toString();
+  }
+
+  /**
+   * Configures the level below which events are dropped when the ring buffer
+   * is full with the {@link OverflowPolicy#DROP_BELOW_LEVEL} policy. Defaults
+   * to WARN.
+   *
+   * @param overflowLevelThreshold name of the level
+   */
+  public void setOverflowLevelThreshold(String overflowLevelThreshold) {
+    Validator.validate(!Validator.isBlank(overflowLevelThreshold), "overflowLevelThreshold cannot be blank");
+    this.overflowLevelThreshold = Level.toLevel(overflowLevelThreshold.trim(), Level.WARN);
+  }
+
+  /**
+   * Returns the counts of log events dropped because the ring buffer was full.
+   *
+   * @return counts of dropped log events by reason
+   */
+  public DropCounters getDropCounters() {
+    return dropCounters;
+  }
+
+  /**
+   * Returns the metrics of this appender, also registered as an MBean unless
+   * JMX is disabled.
+   *
+   * @return metrics of this appender
+   */
+  public AppenderMetrics getMetrics() {
+    return metrics;
+  }
+
+  public double getTraceSampleRate() {
+    return traceSampleRate;
+  }
+
+  /**
+   * Configures the fraction of log events whose stages (encoding, waiting for
+   * the sender thread, batching, and the request itself) are timed into the
+   * per-stage histograms of the metrics. Defaults to 0, which disables
+   * tracing.
+   *
+   * @param traceSampleRate fraction of events traced, between 0 and 1
+   */
+  public void setTraceSampleRate(double traceSampleRate) {
+    Validator.validate(traceSampleRate >= 0 && traceSampleRate <= 1, "traceSampleRate must be between 0 and 1");
+    this.traceSampleRate = traceSampleRate;
+  }
+
+  public boolean isJmxEnabled() {
+    return jmxEnabled;
+  }
+
+  /**
+   * Configures whether the metrics of this appender are registered as an
+   * MBean with the platform MBean server. Defaults to true.
+   *
+   * @param jmxEnabled whether to register the metrics MBean
+   */
+  public void setJmxEnabled(boolean jmxEnabled) {
+    this.jmxEnabled = jmxEnabled;
+  }
+
+  public String getSpillDirectory() {
+    return spillDirectory;
+  }
+
+  /**
+   * Enables the spill queue, which keeps log entries that can't be sent or
+   * buffered in memory in segment files in this directory, until they can be
+   * sent. Entries left in the directory are sent on the next start. Each
+   * appender needs its own directory.
+   *
+   * @param spillDirectory directory of the spill queue, created if missing
+   */
+  public void setSpillDirectory(String spillDirectory) {
+    this.spillDirectory = spillDirectory;
+  }
+
+  public int getSpillSegmentBytes() {
+    return spillSegmentBytes;
+  }
+
+  /**
+   * Configures the size of the segment files of the spill queue, which is
+   * also the maximum size of a spilled record.
+   *
+   * @param spillSegmentBytes size of a segment file in bytes
+   */
+  public void setSpillSegmentBytes(int spillSegmentBytes) {
+    Validator.validate(spillSegmentBytes >= 64 * 1024, "spillSegmentBytes must be >= 65536");
+    this.spillSegmentBytes = spillSegmentBytes;
+  }
+
+  public long getMaxSpillBytes() {
+    return maxSpillBytes;
+  }
+
+  /**
+   * Configures the disk space the spill queue may use, rounded down to a
+   * whole number of segments (at least two). Log entries spilled beyond that
+   * are dropped.
+   *
+   * @param maxSpillBytes maximum size of the spill queue in bytes
+   */
+  public void setMaxSpillBytes(long maxSpillBytes) {
+    Validator.validate(maxSpillBytes > 0, "maxSpillBytes must be > 0");
+    this.maxSpillBytes = maxSpillBytes;
+  }
+
+  public SpillQueue.FsyncPolicy getSpillFsyncPolicy() {
+    return spillFsyncPolicy;
+  }
+
+  /**
+   * Configures when the spill queue forces its segment files to disk, which
+   * only matters to survive the OS crashing. Defaults to PER_SEGMENT.
+   *
+   * @param spillFsyncPolicy fsync policy of the spill queue
+   */
+  public void setSpillFsyncPolicy(SpillQueue.FsyncPolicy spillFsyncPolicy) {
+    Validator.validate(spillFsyncPolicy != null, "spillFsyncPolicy cannot be null");
+    this.spillFsyncPolicy = spillFsyncPolicy;
+  }
+
+  public boolean isAdaptiveRateLimitEnabled() {
+    return adaptiveRateLimitEnabled;
+  }
+
+  /**
+   * Enables limiting the records and bytes sent per second, separately for
+   * each shard of a Kinesis stream. Limits are cut back when the service
+   * throttles records and grow back while it doesn't, so that the appender
+   * settles at the throughput the stream actually has room for.
+   *
+   * @param adaptiveRateLimitEnabled whether to limit the rate of sending
+   */
+  public void setAdaptiveRateLimitEnabled(boolean adaptiveRateLimitEnabled) {
+    this.adaptiveRateLimitEnabled = adaptiveRateLimitEnabled;
+  }
+
+  /**
+   * Returns the ceiling of the records sent per second to each shard (or to
+   * the delivery stream for Firehose). Defaults to the service's limit.
+   *
+   * @return maximum records per second
+   */
+  public long getMaxRecordsPerSecond() {
+    return maxRecordsPerSecond > 0 ? maxRecordsPerSecond : getRecordsPerSecondLimit();
+  }
+
+  /**
+   * Configures the ceiling of the records sent per second to each shard (or
+   * to the delivery stream for Firehose) with the adaptive rate limit.
+   *
+   * @param maxRecordsPerSecond maximum records per second
+   */
+  public void setMaxRecordsPerSecond(long maxRecordsPerSecond) {
+    Validator.validate(maxRecordsPerSecond > 0, "maxRecordsPerSecond must be > 0");
+    this.maxRecordsPerSecond = maxRecordsPerSecond;
+    applyRateLimits();
+  }
+
+  /**
+   * Returns the ceiling of the bytes sent per second to each shard (or to the
+   * delivery stream for Firehose). Defaults to the service's limit.
+   *
+   * @return maximum bytes per second
+   */
+  public long getMaxBytesPerSecond() {
+    return maxBytesPerSecond > 0 ? maxBytesPerSecond : getBytesPerSecondLimit();
+  }
+
+  /**
+   * Configures the ceiling of the bytes sent per second to each shard (or to
+   * the delivery stream for Firehose) with the adaptive rate limit.
+   *
+   * @param maxBytesPerSecond maximum bytes per second
+   */
+  public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+    Validator.validate(maxBytesPerSecond > 0, "maxBytesPerSecond must be > 0");
+    this.maxBytesPerSecond = maxBytesPerSecond;
+    applyRateLimits();
+  }
+
+  private void applyRateLimits() {
+    if(dispatcher != null) {
+      dispatcher.setRateCeilings(getMaxRecordsPerSecond(), getMaxBytesPerSecond());
+    }
+  }
+
+  public boolean isTransportEventsDropped() {
+    return reentrantEventFilter.isTransportEventsDropped();
+  }
+
+  /**
+   * Drops the log events of the AWS SDK and Netty loggers wherever they are
+   * logged, e.g. by other SDK clients of the application. Only those logged
+   * while this appender sends records are dropped by default.
+   *
+   * @param transportEventsDropped whether to drop the events of the AWS SDK
+   *          and Netty loggers
+   */
+  public void setTransportEventsDropped(boolean transportEventsDropped) {
+    reentrantEventFilter.setTransportEventsDropped(transportEventsDropped);
+  }
+
+  public boolean isBatchingEnabled() {
+    return batchingEnabled;
+  }
+
+  /**
+   * Enables sending log events in batches, with a single request per batch
+   * instead of one request per event.
+   *
+   * @param batchingEnabled whether to batch log events
+   */
+  public void setBatchingEnabled(boolean batchingEnabled) {
+    this.batchingEnabled = batchingEnabled;
+  }
+
+  /**
+   * Returns the maximum number of records sent in one batch. Defaults to the
+   * service's limit.
+   *
+   * @return maximum number of records in a batch
+   */
+  public int getMaxBatchRecords() {
+    return maxBatchRecords > 0 ? maxBatchRecords : getBatchRecordsLimit();
+  }
+
+  /**
+   * Configures the maximum number of records sent in one batch.
+   *
+   * @param maxBatchRecords maximum number of records in a batch, at most the
+   *          service's limit
+   */
+  public void setMaxBatchRecords(int maxBatchRecords) {
+    Validator.validate(maxBatchRecords > 0 && maxBatchRecords <= getBatchRecordsLimit(),
+                       "maxBatchRecords must be between 1 and " + getBatchRecordsLimit());
+    this.maxBatchRecords = maxBatchRecords;
+    applyBatchLimits();
+  }
+
+  /**
+   * Returns the maximum size in bytes of one batch, partition keys included.
+   * Defaults to the service's limit.
+   *
+   * @return maximum size of a batch in bytes
+   */
+  public int getMaxBatchBytes() {
+    return maxBatchBytes > 0 ? maxBatchBytes : getBatchBytesLimit();
+  }
+
+  /**
+   * Configures the maximum size in bytes of one batch, partition keys
+   * included.
+   *
+   * @param maxBatchBytes maximum size of a batch in bytes, at most the
+   *          service's limit
+   */
+  public void setMaxBatchBytes(int maxBatchBytes) {
+    Validator.validate(maxBatchBytes > 0 && maxBatchBytes <= getBatchBytesLimit(),
+                       "maxBatchBytes must be between 1 and " + getBatchBytesLimit());
+    this.maxBatchBytes = maxBatchBytes;
+    applyBatchLimits();
+  }
+
+  public long getLingerMillis() {
+    return lingerMillis;
+  }
+
+  /**
+   * Configures how long a log event may wait for its batch to fill up before
+   * the batch is sent anyway. Zero sends every event straight away.
+   *
+   * @param lingerMillis maximum time in milliseconds a batch is held back
+   */
+  public void setLingerMillis(long lingerMillis) {
+    Validator.validate(lingerMillis >= 0, "lingerMillis must be >= 0");
+    this.lingerMillis = lingerMillis;
+    applyBatchLimits();
+  }
+
+  private void applyBatchLimits() {
+    if(batchSender != null) {
+      batchSender.setLimits(getMaxBatchRecords(), getMaxBatchBytes(), lingerMillis);
+    }
+    if(recordPacker != null) {
+      recordPacker.setLimits(maxAggregatedRecordBytes - getAggregationFormat().getOverhead(), lingerMillis);
+    }
+  }
+
+  public String getRoleToAssumeArn() {
+    return roleToAssumeArn;
+  }
+
+  public void setRoleToAssumeArn(String roleToAssumeArn) {
+    this.roleToAssumeArn = roleToAssumeArn;
+    if(!Validator.isBlank(roleToAssumeArn)) {
+      String sessionId = "session" + Math.random();
+      StsAssumeRoleCredentialsProvider remoteAccountCredentials = 
+        StsAssumeRoleCredentialsProvider.builder().refreshRequest(builder ->
+          builder.roleArn(roleToAssumeArn).roleSessionName(sessionId).build()).build();
+
+      credentials = remoteAccountCredentials;
+    }
+  }
+
+  public AwsCredentialsProvider getCredentialsProvider() {
+    return credentials;
+  }
+
+  public void setCredentialsProvider(AwsCredentialsProvider credentialsProvider) {
+    this.credentials = credentialsProvider;
+  }
+
+  /**
+   * Returns configured Kinesis endpoint.
+   * 
+   * @return configured kinesis endpoint
+   */
+  public String getEndpoint() {
+    return endpoint;
   }
 
   /**
@@ -430,9 +1693,198 @@ public abstract class BaseKinesisAppender<Event extends DeferredProcessingAware,
     this.initializationFailed = initializationFailed;
   }
 
-  protected abstract Client createClient(AwsCredentialsProvider credentials, ClientOverrideConfiguration configuration, ThreadPoolExecutor executor, Region region, Optional<URI> endpointOverride);
+  /**
+   * Returns the settings the SDK client of the service applies to the HTTP
+   * clients it builds itself, which HTTP clients built from the httpClient
+   * settings keep for the settings left unset.
+   */
+  protected AttributeMap getHttpClientDefaults() {
+    return AttributeMap.empty();
+  }
+
+  protected abstract Client createClient(AwsCredentialsProvider credentials, ClientOverrideConfiguration configuration,
+      Executor executor, Region region, Optional<URI> endpointOverride, Optional<SdkAsyncHttpClient> httpClient);
 
   protected Client getClient() {
     return client;
   }
+
+  /**
+   * Resizes the appender's own thread pool while it runs.
+   *
+   * @param threadCount new number of threads
+   * @throws IllegalStateException if the appender uses threads it doesn't own
+   */
+  void resizeThreadPool(int threadCount) {
+    Validator.validate(threadCount > 0, "threadCount must be >0");
+    if(appenderTransport == null) {
+      throw new IllegalStateException("Appender " + name + " isn't started");
+    }
+    appenderTransport.resizeThreadPool(threadCount);
+    this.threadCount = threadCount;
+  }
+
+  /**
+   * Replaces the ring buffer with one of another size. Logging threads move
+   * on to the new buffer straight away, including those waiting for room in
+   * the old one, while the sender thread sends what the old one holds before
+   * taking from the new one, so that no event is lost or reordered.
+   *
+   * @param bufferSize new size of the ring buffer
+   * @throws IllegalStateException if the appender doesn't use the ring buffer
+   *           or is stopped
+   */
+  void resizeRingBuffer(int bufferSize) {
+    Validator.validate(bufferSize > 0, "bufferSize must be >0");
+    if(ringBufferSender == null) {
+      throw new IllegalStateException("bufferSize sizes the queue of the threads of appender " + name
+                                      + " on start, only the ring buffer can be resized");
+    }
+    if(!ringBufferSender.resize(bufferSize)) {
+      throw new IllegalStateException("Appender " + name + " is stopped");
+    }
+    this.bufferSize = bufferSize;
+  }
+
+
+  /**
+   * Creates the client once the appender is set up, and builds what depends on
+   * the stream, such as the rate limit of each of its shards, once it is
+   * ready.
+   */
+  private final class StartupTarget implements StreamStartup.Target {
+
+    @Override
+    public void createClient() {
+      if(client == null) {
+        client = clientFactory.get();
+      }
+    }
+
+    @Override
+    public void validateStream() {
+      validateStreamName(client, streamName);
+    }
+
+    @Override
+    public void ready() {
+      if(adaptiveRateLimitEnabled) {
+        AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter(getRateLimitGroupCount(),
+                                                                  BaseKinesisAppender.this::rateLimitGroupOf,
+                                                                  getMaxRecordsPerSecond(), getMaxBytesPerSecond());
+        dispatcher.enableRateLimit(rateLimiter, setupThreadFactory("rate-limit-"));
+      }
+      streamReady = true;
+      inFlightWindow.resume();
+    }
+
+    @Override
+    public void failed() {
+      initializationFailed = true;
+      inFlightWindow.resume();
+    }
+  }
+
+  /**
+   * Sends spilled entries again once the stream is ready, aggregating and
+   * compressing the log events spilled before they were.
+   */
+  private final class SpillTarget implements SpillDrainer.Target {
+
+    @Override
+    public boolean isAccepting() {
+      return streamReady && isStarted();
+    }
+
+    @Override
+    public void sendEvent(String partitionKey, byte[] data) {
+      BaseKinesisAppender.this.sendRecord(partitionKey, data, 0L, null);
+    }
+
+    @Override
+    public void sendRecord(PendingRecord record) {
+      forwardRecord(record);
+    }
+  }
+
+  /**
+   * The aggregator and the batcher, which hold records between the ring
+   * buffer and the requests while stopping.
+   */
+  private final class ShutdownTarget implements ShutdownDrainer.Target {
+
+    @Override
+    public void flush() {
+      if(recordPacker != null) {
+        recordPacker.flush();
+      }
+      if(batchSender != null) {
+        batchSender.flush();
+      }
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return (recordPacker == null || recordPacker.isEmpty()) && (batchSender == null || batchSender.isEmpty());
+    }
+
+    /**
+     * Spills the log events that haven't been aggregated yet as events, so
+     * that they are aggregated and compressed when sent again, and the
+     * records of the batch in progress as records.
+     */
+    @Override
+    public void spillPending() {
+      if(recordPacker != null) {
+        for(PendingRecord record : recordPacker.takePending()) {
+          if(spillDrainer != null
+             && spillDrainer.spillEvent(record.getPartitionKey(), record.getData().asByteArrayUnsafe())) {
+            metrics.recordSpilled(record.getEventCount());
+          } else {
+            metrics.recordDropped(record.getEventCount());
+          }
+        }
+      }
+      if(batchSender != null) {
+        spillBatch(batchSender.takePending());
+      }
+    }
+  }
+
+  /**
+   * Formats and sends the log events taken from the ring buffer, which is
+   * held back until the stream is ready.
+   */
+  private final class RingBufferTarget implements RingBufferSender.Target<Event> {
+
+    @Override
+    public String partitionKeyOf(Event logEvent) {
+      return BaseKinesisAppender.this.partitionKeyOf(logEvent);
+    }
+
+    @Override
+    public byte[] encode(Event logEvent) {
+      return BaseKinesisAppender.this.encode(logEvent);
+    }
+
+    @Override
+    public StageTrace newTrace(long appendNanos) {
+      return BaseKinesisAppender.this.newTrace(appendNanos);
+    }
+
+    @Override
+    public boolean isHolding() {
+      return !streamReady && !initializationFailed;
+    }
+
+    @Override
+    public void spill(Event logEvent) {
+      spillEvent(logEvent);
+    }
+
+    @Override
+    public void send(String partitionKey, byte[] payload, long appendNanos, StageTrace trace) {
+      sendRecord(partitionKey, payload, appendNanos, trace);
+    }
+  }
 }
@@ -16,23 +16,36 @@
 package com.gu.logback.appender.kinesis;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Executor;
 
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
-import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
 import software.amazon.awssdk.core.client.config.SdkAdvancedAsyncClientOption;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.firehose.FirehoseAsyncClient;
 import software.amazon.awssdk.services.firehose.FirehoseAsyncClientBuilder;
 import software.amazon.awssdk.services.firehose.model.DeliveryStreamStatus;
 import software.amazon.awssdk.services.firehose.model.DescribeDeliveryStreamRequest;
 import software.amazon.awssdk.services.firehose.model.DescribeDeliveryStreamResponse;
+import software.amazon.awssdk.services.firehose.model.PutRecordBatchResponse;
+import software.amazon.awssdk.services.firehose.model.PutRecordResponse;
+import software.amazon.awssdk.services.firehose.model.PutRecordBatchResponseEntry;
+import software.amazon.awssdk.services.firehose.model.Record;
 import software.amazon.awssdk.services.firehose.model.ResourceNotFoundException;
+import software.amazon.awssdk.services.firehose.model.ServiceUnavailableException;
+import com.gu.logback.appender.kinesis.helpers.AggregationFormat;
+import com.gu.logback.appender.kinesis.helpers.ConcatenationFormat;
 import com.gu.logback.appender.kinesis.helpers.FirehoseStatsReporter;
+import com.gu.logback.appender.kinesis.helpers.PendingRecord;
 
 import ch.qos.logback.core.spi.DeferredProcessingAware;
 
@@ -48,10 +61,14 @@ import ch.qos.logback.core.spi.DeferredProcessingAware;
 public class FirehoseAppender<Event extends DeferredProcessingAware>
     extends BaseKinesisAppender<Event, FirehoseAsyncClient> {
 
+  private static final AggregationFormat AGGREGATION_FORMAT = new ConcatenationFormat();
+  private static final String THROTTLED_ERROR_CODE = "ServiceUnavailableException";
+
   private FirehoseStatsReporter asyncCallHandler = new FirehoseStatsReporter(this);
 
   @Override
-  protected FirehoseAsyncClient createClient(AwsCredentialsProvider credentials, ClientOverrideConfiguration configuration, ThreadPoolExecutor executor, Region region, Optional<URI> endpointOverride) {
+  protected FirehoseAsyncClient createClient(AwsCredentialsProvider credentials, ClientOverrideConfiguration configuration,
+      Executor executor, Region region, Optional<URI> endpointOverride, Optional<SdkAsyncHttpClient> httpClient) {
     FirehoseAsyncClientBuilder builder = FirehoseAsyncClient.builder()
       .credentialsProvider(credentials)
       .asyncConfiguration(b -> b.advancedOption(SdkAdvancedAsyncClientOption.FUTURE_COMPLETION_EXECUTOR, executor))
@@ -59,6 +76,7 @@ public class FirehoseAppender<Event extends DeferredProcessingAware>
       .region(region);
     
     endpointOverride.ifPresent(endpoint -> builder.endpointOverride(endpoint));
+    httpClient.ifPresent(client -> builder.httpClient(client));
     
     return builder.build();
   }
@@ -72,36 +90,147 @@ public class FirehoseAppender<Event extends DeferredProcessingAware>
         .get();
       DeliveryStreamStatus streamStatus = describeResponse.deliveryStreamDescription().deliveryStreamStatus();
       if(!DeliveryStreamStatus.ACTIVE.equals(streamStatus)) {
-        setInitializationFailed(true);
-        addError("Stream " + streamName + " is not ready (in active status) for appender: " + name);
+        streamNotReady("Stream " + streamName + " is not ready (in active status) for appender: " + name);
       }
     }
     catch(InterruptedException ie) {
-      setInitializationFailed(true);
-      addError("Interrupted while attempting to describe " + streamName, ie);
+      Thread.currentThread().interrupt();
+      streamNotReady("Interrupted while attempting to describe " + streamName, ie);
     }
     catch(ExecutionException ee) {
-      setInitializationFailed(true);
-      addError("Error executing the operation", ee);
-    }
-    catch(ResourceNotFoundException rnfe) {
-      setInitializationFailed(true);
-      addError("Stream " + streamName + " doesn't exist for appender: " + name, rnfe);
+      describeFailed(streamName, ee.getCause());
     }
     catch(AwsServiceException ase) {
-      setInitializationFailed(true);
-      addError("Error connecting to AWS to verify stream " + streamName + " for appender: " + name, ase);
+      describeFailed(streamName, ase);
+    }
+  }
+
+  /**
+   * Reports why the stream couldn't be described: a missing stream fails the
+   * startup at once, while other failures may be transient.
+   */
+  private void describeFailed(String streamName, Throwable cause) {
+    if(cause instanceof ResourceNotFoundException) {
+      streamNotFound("Stream " + streamName + " doesn't exist for appender: " + name, cause);
+    } else if(cause instanceof AwsServiceException) {
+      streamNotReady("Error connecting to AWS to verify stream " + streamName + " for appender: " + name, cause);
+    } else {
+      streamNotReady("Error describing stream " + streamName + " for appender: " + name, cause);
     }
   }
 
   @Override
-  protected void putMessage(String message) throws Exception {
-    SdkBytes data = SdkBytes.fromByteArray(message.getBytes(getEncoding()));
-    getClient().putRecord(builder -> 
+  protected String partitionKeyOf(Event logEvent) {
+    return null;
+  }
+
+  @Override
+  protected CompletableFuture<?> putRecord(PendingRecord record) {
+    CompletableFuture<PutRecordResponse> future = getClient().putRecord(builder -> 
       builder
         .deliveryStreamName(getStreamName())
-        .record(b -> b.data(data).build())
-        .build()).whenCompleteAsync(asyncCallHandler);
+        .record(b -> b.data(record.getData()).build())
+        .build());
+    future.whenComplete((response, exception) -> 
+        reportRequestCompleted(record, exception, exception != null && isThrottled(exception)))
+      .whenCompleteAsync(asyncCallHandler);
+    return future;
+  }
+
+  /**
+   * Sends a batch of records with a single PutRecordBatch call.
+   */
+  @Override
+  protected CompletableFuture<?> sendBatch(List<PendingRecord> batch) {
+    List<Record> records = new ArrayList<Record>(batch.size());
+    for(PendingRecord record : batch) {
+      records.add(Record.builder().data(record.getData()).build());
+    }
+    CompletableFuture<PutRecordBatchResponse> future = getClient().putRecordBatch(builder -> 
+      builder
+        .deliveryStreamName(getStreamName())
+        .records(records)
+        .build());
+    future.whenComplete((response, exception) -> onBatchCompleted(batch, response, exception));
+    return future;
+  }
+
+  /**
+   * Handles the outcome of a PutRecordBatch call. When FailedPutCount is
+   * non-zero, only the entries carrying an error code are retried. The whole
+   * batch is spilled if the call failed. The request is accounted for even if
+   * handling it throws, so that its room in the in-flight window is given
+   * back.
+   */
+  private void onBatchCompleted(List<PendingRecord> batch, PutRecordBatchResponse response, Throwable exception) {
+    if(exception != null) {
+      try {
+        asyncCallHandler.acceptBatchFailure(batch.size(), exception);
+      }
+      finally {
+        reportRequestFailed(batch, isThrottled(exception));
+      }
+      return;
+    }
+    BitSet failed = new BitSet();
+    BitSet throttled = new BitSet();
+    try {
+      if(response.failedPutCount() == null || response.failedPutCount() == 0) {
+        return;
+      }
+      List<PutRecordBatchResponseEntry> results = response.requestResponses();
+      for(int i = 0; i < results.size(); i++) {
+        String errorCode = results.get(i).errorCode();
+        if(errorCode != null) {
+          failed.set(i);
+          if(THROTTLED_ERROR_CODE.equals(errorCode)) {
+            throttled.set(i);
+          }
+        }
+      }
+      for(int i = failed.nextSetBit(0); i >= 0; i = failed.nextSetBit(i + 1)) {
+        PutRecordBatchResponseEntry result = results.get(i);
+        retryFailedRecord(batch.get(i), result.errorCode(), result.errorMessage());
+      }
+    }
+    finally {
+      reportRequestCompleted(batch, failed, throttled);
+    }
+  }
+
+  @Override
+  protected int getBatchRecordsLimit() {
+    return AppenderConstants.FIREHOSE_MAX_BATCH_RECORDS;
+  }
+
+  @Override
+  protected int getBatchBytesLimit() {
+    return AppenderConstants.FIREHOSE_MAX_BATCH_BYTES;
+  }
+
+  @Override
+  protected int getRecordBytesLimit() {
+    return AppenderConstants.FIREHOSE_MAX_RECORD_BYTES;
+  }
+
+  @Override
+  protected AggregationFormat getAggregationFormat() {
+    return AGGREGATION_FORMAT;
+  }
+
+  @Override
+  protected long getRecordsPerSecondLimit() {
+    return AppenderConstants.FIREHOSE_MAX_RECORDS_PER_SEC;
+  }
+
+  @Override
+  protected long getBytesPerSecondLimit() {
+    return AppenderConstants.FIREHOSE_MAX_BYTES_PER_SEC;
+  }
+
+  private static boolean isThrottled(Throwable exception) {
+    Throwable cause = exception instanceof CompletionException ? exception.getCause() : exception;
+    return cause instanceof ServiceUnavailableException;
   }
 
 }
@@ -16,25 +16,48 @@
 package com.gu.logback.appender.kinesis;
 
 import java.net.URI;
-import java.nio.ByteBuffer;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
-import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
 import software.amazon.awssdk.core.client.config.SdkAdvancedAsyncClientOption;
+import software.amazon.awssdk.http.Protocol;
+import software.amazon.awssdk.http.SdkHttpConfigurationOption;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
 import software.amazon.awssdk.services.kinesis.KinesisAsyncClientBuilder;
 import software.amazon.awssdk.services.kinesis.model.DescribeStreamResponse;
-import software.amazon.awssdk.services.kinesis.model.PutRecordRequest;
+import software.amazon.awssdk.services.kinesis.model.ListShardsRequest;
+import software.amazon.awssdk.services.kinesis.model.ProvisionedThroughputExceededException;
+import software.amazon.awssdk.services.kinesis.model.PutRecordResponse;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequestEntry;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResponse;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResultEntry;
 import software.amazon.awssdk.services.kinesis.model.ResourceNotFoundException;
+import software.amazon.awssdk.services.kinesis.model.Shard;
 import software.amazon.awssdk.services.kinesis.model.StreamStatus;
+import software.amazon.awssdk.utils.AttributeMap;
+import com.gu.logback.appender.kinesis.helpers.AggregationFormat;
 import com.gu.logback.appender.kinesis.helpers.KinesisStatsReporter;
+import com.gu.logback.appender.kinesis.helpers.KplAggregationFormat;
+import com.gu.logback.appender.kinesis.helpers.PartitionKeyStrategy;
+import com.gu.logback.appender.kinesis.helpers.PendingRecord;
+import com.gu.logback.appender.kinesis.helpers.RandomPartitionKeyStrategy;
+import com.gu.logback.appender.kinesis.helpers.ShardMap;
+import com.gu.logback.appender.kinesis.helpers.Validator;
 
 import ch.qos.logback.core.spi.DeferredProcessingAware;
 
@@ -48,11 +71,25 @@ import ch.qos.logback.core.spi.DeferredProcessingAware;
 public class KinesisAppender<Event extends DeferredProcessingAware>
     extends BaseKinesisAppender<Event, KinesisAsyncClient> {
 
+  private static final AggregationFormat AGGREGATION_FORMAT = new KplAggregationFormat();
+  private static final String THROTTLED_ERROR_CODE = "ProvisionedThroughputExceededException";
+  // the Kinesis client builds its HTTP clients for HTTP/2
+  private static final AttributeMap HTTP_CLIENT_DEFAULTS = AttributeMap.builder()
+    .put(SdkHttpConfigurationOption.PROTOCOL, Protocol.HTTP2)
+    .build();
+
   private KinesisStatsReporter asyncCallHandler = new KinesisStatsReporter(this);
+  private volatile ShardMap shardMap;
+  // identifiers of the shards the shard map was built from
+  private volatile Set<String> openShardIds;
+  private volatile long shardsListedNanos;
+  private final AtomicBoolean listingShards = new AtomicBoolean();
+  private final Object shardsLock = new Object();
+  private PartitionKeyStrategy<? super Event> partitionKeyStrategy = new RandomPartitionKeyStrategy<Event>();
 
   @Override
   protected KinesisAsyncClient createClient(AwsCredentialsProvider credentials, ClientOverrideConfiguration configuration,
-      ThreadPoolExecutor executor, Region region, Optional<URI> endpointOverride) {
+      Executor executor, Region region, Optional<URI> endpointOverride, Optional<SdkAsyncHttpClient> httpClient) {
     KinesisAsyncClientBuilder builder = KinesisAsyncClient.builder()
       .credentialsProvider(credentials)
       .region(region)
@@ -60,10 +97,16 @@ public class KinesisAppender<Event extends DeferredProcessingAware>
       .asyncConfiguration(b -> b.advancedOption(SdkAdvancedAsyncClientOption.FUTURE_COMPLETION_EXECUTOR, executor));
     
     endpointOverride.ifPresent(endpoint -> builder.endpointOverride(endpoint));
+    httpClient.ifPresent(client -> builder.httpClient(client));
     
     return builder.build();
   }
 
+  @Override
+  protected AttributeMap getHttpClientDefaults() {
+    return HTTP_CLIENT_DEFAULTS;
+  }
+
   @Override
   protected void validateStreamName(KinesisAsyncClient client, String streamName) {
     DescribeStreamResponse describeResult;
@@ -71,37 +114,304 @@ public class KinesisAppender<Event extends DeferredProcessingAware>
       describeResult = getClient().describeStream(b -> b.streamName(streamName).build()).get();
       StreamStatus streamStatus = describeResult.streamDescription().streamStatus();
       if(!StreamStatus.ACTIVE.equals(streamStatus) && !StreamStatus.UPDATING.equals(streamStatus)) {
-        setInitializationFailed(true);
-        addError("Stream " + streamName + " is not ready (in active/updating status) for appender: " + name);
+        streamNotReady("Stream " + streamName + " is not ready (in active/updating status) for appender: " + name);
+        return;
       }
+      listShards(client);
     }
     catch(InterruptedException ie) {
-      setInitializationFailed(true);
-      addError("Interrupted while attempting to describe " + streamName, ie);
+      Thread.currentThread().interrupt();
+      streamNotReady("Interrupted while attempting to describe " + streamName, ie);
     }
     catch(ExecutionException ee) {
-      setInitializationFailed(true);
-      addError("Error executing the operation", ee);
-    }
-    catch(ResourceNotFoundException rnfe) {
-      setInitializationFailed(true);
-      addError("Stream " + streamName + " doesn't exist for appender: " + name, rnfe);
+      describeFailed(streamName, ee.getCause());
     }
     catch(AwsServiceException ase) {
-      setInitializationFailed(true);
-      addError("Error connecting to AWS to verify stream " + streamName + " for appender: " + name, ase);
+      describeFailed(streamName, ase);
+    }
+  }
+
+  /**
+   * Reports why the stream couldn't be described: a missing stream fails the
+   * startup at once, while other failures may be transient.
+   */
+  private void describeFailed(String streamName, Throwable cause) {
+    if(cause instanceof ResourceNotFoundException) {
+      streamNotFound("Stream " + streamName + " doesn't exist for appender: " + name, cause);
+    } else if(cause instanceof AwsServiceException) {
+      streamNotReady("Error connecting to AWS to verify stream " + streamName + " for appender: " + name, cause);
+    } else {
+      streamNotReady("Error describing stream " + streamName + " for appender: " + name, cause);
     }
   }
 
+  /**
+   * Reads the hash key ranges of the open shards of the stream, for the
+   * adaptive rate limit and the partition key strategy. The appender works
+   * without them if they can't be listed.
+   */
+  private void listShards(KinesisAsyncClient client) {
+    shardsListedNanos = System.nanoTime();
+    // the partition key strategy may have been replaced since the last start
+    openShardIds = null;
+    try {
+      setShards(listOpenShards(client, firstListShardsRequest(), new ArrayList<Shard>()).get());
+    }
+    catch(InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      addWarn("Interrupted while listing the shards of " + getStreamName() + " for appender: " + name, ie);
+    }
+    catch(ExecutionException | AwsServiceException e) {
+      addWarn("Failed to list the shards of " + getStreamName()
+              + ", check the kinesis:ListShards permission for appender: " + name, e);
+    }
+  }
+
+  /**
+   * Lists the shards of the stream again in the background, every
+   * {@link AppenderConstants#SHARD_LIST_REFRESH_INTERVAL_MILLIS} while records
+   * are being sent, or sooner when a record went to a shard that wasn't open
+   * when they were last listed, which is how a reshard shows.
+   *
+   * @param shardId shard a record was stored in, null if unknown
+   */
+  private void checkShards(String shardId) {
+    long sinceListedNanos = System.nanoTime() - shardsListedNanos;
+    Set<String> listed = openShardIds;
+    boolean unknownShard = shardId != null && listed != null && !listed.contains(shardId);
+    if(sinceListedNanos < TimeUnit.MILLISECONDS.toNanos(AppenderConstants.SHARD_LIST_REFRESH_INTERVAL_MILLIS)
+       && !(unknownShard
+            && sinceListedNanos >= TimeUnit.MILLISECONDS.toNanos(AppenderConstants.SHARD_LIST_MIN_INTERVAL_MILLIS))) {
+      return;
+    }
+    if(!listingShards.compareAndSet(false, true)) {
+      return;
+    }
+    shardsListedNanos = System.nanoTime();
+    listOpenShards(getClient(), firstListShardsRequest(), new ArrayList<Shard>()).whenComplete((shards, exception) -> {
+      listingShards.set(false);
+      if(exception != null) {
+        addWarn("Failed to list the shards of " + getStreamName() + " again for appender: " + name, exception);
+      } else {
+        setShards(shards);
+      }
+    });
+  }
+
+  private ListShardsRequest firstListShardsRequest() {
+    return ListShardsRequest.builder().streamName(getStreamName()).build();
+  }
+
+  /**
+   * Lists the open shards of the stream, page by page, without waiting.
+   */
+  private static CompletableFuture<List<Shard>> listOpenShards(KinesisAsyncClient client, ListShardsRequest request,
+      List<Shard> openShards) {
+    return client.listShards(request).thenCompose(response -> {
+      for(Shard shard : response.shards()) {
+        if(shard.sequenceNumberRange().endingSequenceNumber() == null) {
+          openShards.add(shard);
+        }
+      }
+      if(response.nextToken() == null) {
+        return CompletableFuture.completedFuture(openShards);
+      }
+      return listOpenShards(client, ListShardsRequest.builder().nextToken(response.nextToken()).build(), openShards);
+    });
+  }
+
+  /**
+   * Hands the open shards to the partition key strategy and the adaptive rate
+   * limit, unless they are the ones already known.
+   */
+  private void setShards(List<Shard> openShards) {
+    if(openShards.isEmpty()) {
+      return;
+    }
+    Set<String> shardIds = new HashSet<String>();
+    List<String> startingHashKeys = new ArrayList<String>(openShards.size());
+    for(Shard shard : openShards) {
+      shardIds.add(shard.shardId());
+      startingHashKeys.add(shard.hashKeyRange().startingHashKey());
+    }
+    synchronized(shardsLock) {
+      Set<String> previous = openShardIds;
+      if(shardIds.equals(previous)) {
+        return;
+      }
+      shardMap = new ShardMap(startingHashKeys);
+      openShardIds = shardIds;
+      partitionKeyStrategy.setShards(shardMap);
+      if(previous != null) {
+        addInfo("Stream " + getStreamName() + " now has " + shardIds.size() + " open shards for appender: " + name);
+      }
+      rateLimitGroupsChanged();
+    }
+  }
+
+  @Override
+  protected String partitionKeyOf(Event logEvent) {
+    return partitionKeyStrategy.partitionKey(logEvent);
+  }
+
+  public PartitionKeyStrategy<? super Event> getPartitionKeyStrategy() {
+    return partitionKeyStrategy;
+  }
+
+  /**
+   * Sets the strategy choosing the partition key of each log event, and so
+   * its shard. Defaults to random keys.
+   *
+   * @param partitionKeyStrategy partition key strategy
+   */
+  public void setPartitionKeyStrategy(PartitionKeyStrategy<? super Event> partitionKeyStrategy) {
+    Validator.validate(partitionKeyStrategy != null, "partitionKeyStrategy cannot be null");
+    this.partitionKeyStrategy = partitionKeyStrategy;
+  }
+
   @Override
-  protected void putMessage(String message) throws Exception {
-    SdkBytes data = SdkBytes.fromByteArray(message.getBytes(getEncoding()));
-    getClient().putRecord(builder -> 
+  protected CompletableFuture<?> putRecord(PendingRecord record) {
+    CompletableFuture<PutRecordResponse> future = getClient().putRecord(builder -> 
       builder
-        .partitionKey(UUID.randomUUID().toString())
+        .partitionKey(record.getPartitionKey())
         .streamName(getStreamName())
-        .data(data)
-        .build()).whenCompleteAsync(asyncCallHandler);
+        .data(record.getData())
+        .build());
+    future.whenComplete((response, exception) -> {
+      try {
+        if(exception == null) {
+          checkShards(response.shardId());
+        }
+      }
+      finally {
+        reportRequestCompleted(record, exception, exception != null && isThrottled(exception));
+      }
+    }).whenCompleteAsync(asyncCallHandler);
+    return future;
+  }
+
+  /**
+   * Sends a batch of records with a single PutRecords call.
+   */
+  @Override
+  protected CompletableFuture<?> sendBatch(List<PendingRecord> batch) {
+    List<PutRecordsRequestEntry> entries = new ArrayList<PutRecordsRequestEntry>(batch.size());
+    for(PendingRecord record : batch) {
+      entries.add(PutRecordsRequestEntry.builder().partitionKey(record.getPartitionKey()).data(record.getData()).build());
+    }
+    CompletableFuture<PutRecordsResponse> future = getClient().putRecords(builder -> 
+      builder
+        .streamName(getStreamName())
+        .records(entries)
+        .build());
+    future.whenComplete((response, exception) -> onBatchCompleted(batch, response, exception));
+    return future;
+  }
+
+  /**
+   * Handles the outcome of a PutRecords call. Entries that failed individually
+   * are retried on their own, and the whole batch is spilled if the call
+   * failed. The request is accounted for even if handling it throws, e.g.
+   * when the retry scheduler is shut down while stopping, so that its room in
+   * the in-flight window is given back.
+   */
+  private void onBatchCompleted(List<PendingRecord> batch, PutRecordsResponse response, Throwable exception) {
+    if(exception != null) {
+      try {
+        asyncCallHandler.acceptBatchFailure(batch.size(), exception);
+      }
+      finally {
+        reportRequestFailed(batch, isThrottled(exception));
+      }
+      return;
+    }
+    BitSet failed = new BitSet();
+    BitSet throttled = new BitSet();
+    try {
+      checkShards(lastShardIdOf(response));
+      if(response.failedRecordCount() == null || response.failedRecordCount() == 0) {
+        return;
+      }
+      List<PutRecordsResultEntry> results = response.records();
+      for(int i = 0; i < results.size(); i++) {
+        String errorCode = results.get(i).errorCode();
+        if(errorCode != null) {
+          failed.set(i);
+          if(THROTTLED_ERROR_CODE.equals(errorCode)) {
+            throttled.set(i);
+          }
+        }
+      }
+      for(int i = failed.nextSetBit(0); i >= 0; i = failed.nextSetBit(i + 1)) {
+        PutRecordsResultEntry result = results.get(i);
+        retryFailedRecord(batch.get(i), result.errorCode(), result.errorMessage());
+      }
+    }
+    finally {
+      reportRequestCompleted(batch, failed, throttled);
+    }
+  }
+
+  @Override
+  protected int getBatchRecordsLimit() {
+    return AppenderConstants.KINESIS_MAX_BATCH_RECORDS;
+  }
+
+  @Override
+  protected int getBatchBytesLimit() {
+    return AppenderConstants.KINESIS_MAX_BATCH_BYTES;
+  }
+
+  @Override
+  protected int getRecordBytesLimit() {
+    return AppenderConstants.KINESIS_MAX_RECORD_BYTES;
+  }
+
+  @Override
+  protected AggregationFormat getAggregationFormat() {
+    return AGGREGATION_FORMAT;
+  }
+
+  @Override
+  protected long getRecordsPerSecondLimit() {
+    return AppenderConstants.KINESIS_SHARD_MAX_RECORDS_PER_SEC;
+  }
+
+  @Override
+  protected long getBytesPerSecondLimit() {
+    return AppenderConstants.KINESIS_SHARD_MAX_BYTES_PER_SEC;
+  }
+
+  /**
+   * Limits the rate of each open shard separately, as last listed.
+   */
+  @Override
+  protected int getRateLimitGroupCount() {
+    return shardMap == null ? 1 : shardMap.getShardCount();
+  }
+
+  @Override
+  protected int rateLimitGroupOf(String partitionKey) {
+    return shardMap == null ? 0 : shardMap.shardOf(partitionKey);
+  }
+
+  /**
+   * @return the shard the last record stored by a PutRecords call went to,
+   *         null if none was stored
+   */
+  private static String lastShardIdOf(PutRecordsResponse response) {
+    List<PutRecordsResultEntry> results = response.records();
+    for(int i = results.size() - 1; i >= 0; i--) {
+      if(results.get(i).shardId() != null) {
+        return results.get(i).shardId();
+      }
+    }
+    return null;
+  }
+
+  private static boolean isThrottled(Throwable exception) {
+    Throwable cause = exception instanceof CompletionException ? exception.getCause() : exception;
+    return cause instanceof ProvisionedThroughputExceededException;
   }
 
 }
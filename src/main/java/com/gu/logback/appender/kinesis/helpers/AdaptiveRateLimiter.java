@@ -0,0 +1,346 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+/**
+ * Limits the records and bytes sent per second to each group of partition
+ * keys (e.g. each shard), adapting the limits to what the service actually
+ * accepts: a group's rates are cut by a constant factor when the service
+ * throttles records of that group (at most once per second, the window over
+ * which throughput limits are measured), and grow back linearly while it
+ * doesn't, up to the configured ceilings.
+ *
+ * Rates are enforced with a token bucket per group, holding up to one second
+ * worth of tokens. Senders wait for a group's bucket to be positive and then
+ * take what they need, which may leave it in debt, so that requests larger
+ * than the bucket still go through. A batch spanning several groups takes
+ * from the groups that have room and lets their records through, leaving
+ * the records of the others for a later request, so that one throttled group
+ * doesn't hold back the rest. Threads that mustn't wait, such as the ones
+ * completing requests, can instead try to take what they need, and leave the
+ * waiting to another thread if they can't.
+ */
+public final class AdaptiveRateLimiter {
+
+  private static final double DECREASE_FACTOR = 0.7;
+  private static final double INCREASE_PER_SECOND = 0.05;
+  private static final double MIN_RATE_FRACTION = 0.01;
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final Group[] groups;
+  private final ToIntFunction<String> grouping;
+  private double maxRecordsPerSecond;
+  private double maxBytesPerSecond;
+  private boolean closed;
+
+  /**
+   * @param groupCount number of groups
+   * @param grouping returns the group of a partition key, between 0 and
+   *          groupCount - 1
+   * @param maxRecordsPerSecond ceiling of the records rate of each group
+   * @param maxBytesPerSecond ceiling of the bytes rate of each group
+   */
+  public AdaptiveRateLimiter(int groupCount, ToIntFunction<String> grouping, long maxRecordsPerSecond,
+      long maxBytesPerSecond) {
+    Validator.validate(groupCount > 0, "groupCount must be > 0");
+    Validator.validate(maxRecordsPerSecond > 0, "maxRecordsPerSecond must be > 0");
+    Validator.validate(maxBytesPerSecond > 0, "maxBytesPerSecond must be > 0");
+    this.grouping = grouping;
+    this.maxRecordsPerSecond = maxRecordsPerSecond;
+    this.maxBytesPerSecond = maxBytesPerSecond;
+    this.groups = new Group[groupCount];
+    long now = System.nanoTime();
+    for(int i = 0; i < groupCount; i++) {
+      groups[i] = new Group(now);
+    }
+  }
+
+  /**
+   * Waits until the records of at least one of their groups can be sent
+   * without exceeding its current rates, and takes what the records of every
+   * group that has room need. The records of groups without room are left to
+   * the caller, so that a throttled group doesn't hold back the others.
+   *
+   * @param records records about to be sent
+   * @return the records that can be sent, in their order, at least one of
+   *         them, and all of them once this limiter is closed
+   */
+  public List<PendingRecord> acquireAvailable(List<PendingRecord> records) {
+    int[] recordGroups = new int[records.size()];
+    int[] groupRecords = new int[groups.length];
+    long[] groupBytes = new long[groups.length];
+    countByGroup(records, recordGroups, groupRecords, groupBytes);
+    synchronized(this) {
+      while(!closed) {
+        long now = System.nanoTime();
+        List<PendingRecord> available = takeAvailable(records, recordGroups, groupRecords, groupBytes, now);
+        if(!available.isEmpty()) {
+          return available;
+        }
+        double seconds = Double.MAX_VALUE;
+        for(int index = 0; index < groups.length; index++) {
+          if(groupRecords[index] > 0) {
+            seconds = Math.min(seconds, secondsUntilRoom(groups[index]));
+          }
+        }
+        long waitMillis = Math.max(1, (long) Math.ceil(seconds * 1000));
+        try {
+          wait(waitMillis);
+        }
+        catch(InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      return records;
+    }
+  }
+
+  /**
+   * Takes what the records of the groups that have room need, without
+   * waiting, leaving the records of the other groups to the caller.
+   *
+   * @param records records about to be sent
+   * @return the records that can be sent straight away, in their order,
+   *         possibly none, and all of them once this limiter is closed
+   */
+  public List<PendingRecord> tryAcquireAvailable(List<PendingRecord> records) {
+    int[] recordGroups = new int[records.size()];
+    int[] groupRecords = new int[groups.length];
+    long[] groupBytes = new long[groups.length];
+    countByGroup(records, recordGroups, groupRecords, groupBytes);
+    long now = System.nanoTime();
+    synchronized(this) {
+      if(closed) {
+        return records;
+      }
+      return takeAvailable(records, recordGroups, groupRecords, groupBytes, now);
+    }
+  }
+
+  private void countByGroup(List<PendingRecord> records, int[] recordGroups, int[] groupRecords, long[] groupBytes) {
+    for(int i = 0; i < records.size(); i++) {
+      PendingRecord record = records.get(i);
+      int group = groupOf(record.getPartitionKey());
+      recordGroups[i] = group;
+      groupRecords[group]++;
+      groupBytes[group] += record.getSize();
+    }
+  }
+
+  /**
+   * Takes what the records of the groups that have room need. Called holding
+   * the lock.
+   *
+   * @return the records of the groups that have room, possibly none
+   */
+  private List<PendingRecord> takeAvailable(List<PendingRecord> records, int[] recordGroups, int[] groupRecords,
+      long[] groupBytes, long now) {
+    boolean[] room = new boolean[groups.length];
+    boolean any = false;
+    boolean all = true;
+    for(int index = 0; index < groups.length; index++) {
+      if(groupRecords[index] > 0) {
+        Group group = groups[index];
+        refill(group, now);
+        room[index] = group.recordTokens > 0 && group.byteTokens > 0;
+        any |= room[index];
+        all &= room[index];
+      }
+    }
+    if(!any) {
+      return Collections.emptyList();
+    }
+    for(int index = 0; index < groups.length; index++) {
+      if(room[index]) {
+        groups[index].recordTokens -= groupRecords[index];
+        groups[index].byteTokens -= groupBytes[index];
+      }
+    }
+    if(all) {
+      return records;
+    }
+    List<PendingRecord> available = new ArrayList<PendingRecord>();
+    for(int i = 0; i < records.size(); i++) {
+      if(room[recordGroups[i]]) {
+        available.add(records.get(i));
+      }
+    }
+    return available;
+  }
+
+  /**
+   * Waits until a single record can be sent without exceeding the current
+   * rates of its group.
+   *
+   * @param partitionKey partition key of the record
+   * @param size size of the record
+   */
+  public void acquire(String partitionKey, int size) {
+    acquire(groupOf(partitionKey), 1, size);
+  }
+
+  /**
+   * Adjusts the rates of the groups of records that have been sent.
+   *
+   * @param records records that have been sent
+   * @param throttled indexes of the records that the service throttled
+   */
+  public void completed(List<PendingRecord> records, BitSet throttled) {
+    boolean[] seen = new boolean[groups.length];
+    boolean[] wasThrottled = new boolean[groups.length];
+    for(int i = 0; i < records.size(); i++) {
+      int group = groupOf(records.get(i).getPartitionKey());
+      seen[group] = true;
+      wasThrottled[group] |= throttled.get(i);
+    }
+    long now = System.nanoTime();
+    synchronized(this) {
+      for(int group = 0; group < groups.length; group++) {
+        if(seen[group]) {
+          adjust(groups[group], wasThrottled[group], now);
+        }
+      }
+    }
+  }
+
+  /**
+   * Adjusts the rates of the group of a single record that has been sent.
+   *
+   * @param partitionKey partition key of the record
+   * @param throttled whether the service throttled the record
+   */
+  public void completed(String partitionKey, boolean throttled) {
+    Group group = groups[groupOf(partitionKey)];
+    long now = System.nanoTime();
+    synchronized(this) {
+      adjust(group, throttled, now);
+    }
+  }
+
+  /**
+   * Changes the ceilings of the rates of each group. Rates above the new
+   * ceilings are cut down straight away, while rates below them grow towards
+   * them as usual.
+   *
+   * @param maxRecordsPerSecond ceiling of the records rate of each group
+   * @param maxBytesPerSecond ceiling of the bytes rate of each group
+   */
+  public synchronized void setCeilings(long maxRecordsPerSecond, long maxBytesPerSecond) {
+    Validator.validate(maxRecordsPerSecond > 0, "maxRecordsPerSecond must be > 0");
+    Validator.validate(maxBytesPerSecond > 0, "maxBytesPerSecond must be > 0");
+    this.maxRecordsPerSecond = maxRecordsPerSecond;
+    this.maxBytesPerSecond = maxBytesPerSecond;
+    long now = System.nanoTime();
+    for(Group group : groups) {
+      refill(group, now);
+      group.recordsPerSecond = Math.min(group.recordsPerSecond, maxRecordsPerSecond);
+      group.bytesPerSecond = Math.min(group.bytesPerSecond, maxBytesPerSecond);
+      group.recordTokens = Math.min(group.recordTokens, group.recordsPerSecond);
+      group.byteTokens = Math.min(group.byteTokens, group.bytesPerSecond);
+    }
+    notifyAll();
+  }
+
+  /**
+   * Lets all current and future senders through without waiting.
+   */
+  public synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+  /**
+   * @return current records rate of each group
+   */
+  public synchronized double[] getRecordsPerSecond() {
+    double[] rates = new double[groups.length];
+    for(int i = 0; i < groups.length; i++) {
+      rates[i] = groups[i].recordsPerSecond;
+    }
+    return rates;
+  }
+
+  private int groupOf(String partitionKey) {
+    if(groups.length == 1) {
+      return 0;
+    }
+    // the groups may have changed while this limiter is being replaced
+    int group = grouping.applyAsInt(partitionKey);
+    return group < groups.length ? group : group % groups.length;
+  }
+
+  private synchronized void acquire(int index, int records, long bytes) {
+    Group group = groups[index];
+    while(!closed) {
+      long now = System.nanoTime();
+      refill(group, now);
+      if(group.recordTokens > 0 && group.byteTokens > 0) {
+        group.recordTokens -= records;
+        group.byteTokens -= bytes;
+        return;
+      }
+      double seconds = secondsUntilRoom(group);
+      long waitMillis = Math.max(1, (long) Math.ceil(seconds * 1000));
+      try {
+        wait(waitMillis);
+      }
+      catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private static double secondsUntilRoom(Group group) {
+    return Math.max((1 - group.recordTokens) / group.recordsPerSecond, (1 - group.byteTokens) / group.bytesPerSecond);
+  }
+
+  private void refill(Group group, long now) {
+    double seconds = (double) (now - group.lastRefillNanos) / NANOS_PER_SECOND;
+    group.lastRefillNanos = now;
+    group.recordTokens = Math.min(group.recordsPerSecond, group.recordTokens + seconds * group.recordsPerSecond);
+    group.byteTokens = Math.min(group.bytesPerSecond, group.byteTokens + seconds * group.bytesPerSecond);
+  }
+
+  private void adjust(Group group, boolean throttled, long now) {
+    if(throttled) {
+      if(now - group.lastDecreaseNanos >= NANOS_PER_SECOND) {
+        refill(group, now);
+        group.recordsPerSecond = Math.max(maxRecordsPerSecond * MIN_RATE_FRACTION,
+                                          group.recordsPerSecond * DECREASE_FACTOR);
+        group.bytesPerSecond = Math.max(maxBytesPerSecond * MIN_RATE_FRACTION, group.bytesPerSecond * DECREASE_FACTOR);
+        group.recordTokens = Math.min(group.recordTokens, group.recordsPerSecond);
+        group.byteTokens = Math.min(group.byteTokens, group.bytesPerSecond);
+        group.lastDecreaseNanos = now;
+      }
+      group.lastIncreaseNanos = now;
+      return;
+    }
+    double increase = INCREASE_PER_SECOND * (now - group.lastIncreaseNanos) / NANOS_PER_SECOND;
+    group.recordsPerSecond = Math.min(maxRecordsPerSecond, group.recordsPerSecond + increase * maxRecordsPerSecond);
+    group.bytesPerSecond = Math.min(maxBytesPerSecond, group.bytesPerSecond + increase * maxBytesPerSecond);
+    group.lastIncreaseNanos = now;
+  }
+
+  private final class Group {
+    double recordsPerSecond = maxRecordsPerSecond;
+    double bytesPerSecond = maxBytesPerSecond;
+    double recordTokens = maxRecordsPerSecond;
+    double byteTokens = maxBytesPerSecond;
+    long lastRefillNanos;
+    long lastIncreaseNanos;
+    long lastDecreaseNanos;
+
+    Group(long now) {
+      lastRefillNanos = now;
+      lastIncreaseNanos = now;
+      lastDecreaseNanos = now - NANOS_PER_SECOND;
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.List;
+
+/**
+ * Format used to pack several records into the payload of a single record.
+ */
+public interface AggregationFormat {
+
+  /**
+   * Returns the number of bytes an aggregated record takes up regardless of
+   * the records it holds, partition key included.
+   *
+   * @return fixed size of an aggregated record
+   */
+  int getOverhead();
+
+  /**
+   * Returns the number of bytes a record adds to an aggregated record.
+   *
+   * @param record record to be aggregated
+   * @return size of the record within an aggregate
+   */
+  int sizeOf(PendingRecord record);
+
+  /**
+   * Encodes records into the payload of one aggregated record.
+   *
+   * @param partitionKey partition key of the aggregated record, null if the
+   *          service doesn't use one
+   * @param records records to aggregate
+   * @return the aggregated record's payload
+   */
+  byte[] encode(String partitionKey, List<PendingRecord> records);
+}
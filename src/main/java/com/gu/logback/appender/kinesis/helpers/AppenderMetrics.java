@@ -0,0 +1,349 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics of an appender, updated without locks from logging threads and SDK
+ * completion threads alike. A record is what is sent to the service, which
+ * may carry several log events when aggregation is enabled, while events
+ * dropped before becoming records are counted by {@link DropCounters}. The
+ * log events carried by the records sent, spilled and dropped are counted
+ * too, so that they add up with the events dropped.
+ */
+public final class AppenderMetrics implements AppenderMetricsMXBean {
+
+  private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final LongAdder recordsSent = new LongAdder();
+  private final LongAdder bytesSent = new LongAdder();
+  private final LongAdder recordsFailed = new LongAdder();
+  private final LongAdder recordsThrottled = new LongAdder();
+  private final LongAdder recordsRetried = new LongAdder();
+  private final LongAdder recordsSpilled = new LongAdder();
+  private final LongAdder recordsDropped = new LongAdder();
+  private final LongAdder eventsSent = new LongAdder();
+  private final LongAdder eventsSpilled = new LongAdder();
+  private final LongAdder eventsLost = new LongAdder();
+  private final LongAdder requestsSucceeded = new LongAdder();
+  private final LongAdder requestsFailed = new LongAdder();
+  private final LongAdder inFlightWindowFull = new LongAdder();
+  private final Histogram batchSizes = new Histogram();
+  private final Histogram latencyNanos = new Histogram();
+  private final Histogram encodeNanos = new Histogram();
+  private final Histogram queueNanos = new Histogram();
+  private final Histogram batchingNanos = new Histogram();
+  private final Histogram requestNanos = new Histogram();
+  private final DropCounters dropCounters;
+  private final IntSupplier queueDepth;
+  private final IntSupplier inFlightRequests;
+  private final LongSupplier inFlightBytes;
+
+  /**
+   * @param dropCounters counts of events dropped by the overflow policy
+   * @param queueDepth number of log events waiting to be sent
+   * @param inFlightRequests number of requests sent and not completed yet
+   * @param inFlightBytes number of bytes sent and not completed yet
+   */
+  public AppenderMetrics(DropCounters dropCounters, IntSupplier queueDepth, IntSupplier inFlightRequests,
+      LongSupplier inFlightBytes) {
+    this.dropCounters = dropCounters;
+    this.queueDepth = queueDepth;
+    this.inFlightRequests = inFlightRequests;
+    this.inFlightBytes = inFlightBytes;
+  }
+
+  /**
+   * Records a request about to be sent.
+   *
+   * @param records number of records in the request
+   */
+  public void requestSent(int records) {
+    batchSizes.record(records);
+  }
+
+  private void recordAcknowledged(PendingRecord record, long now) {
+    recordsSent.increment();
+    eventsSent.add(record.getEventCount());
+    bytesSent.add(record.getSize());
+    if(record.getAppendNanos() != 0) {
+      latencyNanos.record(now - record.getAppendNanos());
+    }
+    StageTrace trace = record.getTrace();
+    if(trace != null) {
+      encodeNanos.record(trace.getEncodeNanos());
+      queueNanos.record(trace.getQueueNanos());
+      batchingNanos.record(trace.getBatchingNanos());
+      requestNanos.record(trace.getRequestNanos(now));
+    }
+  }
+
+  /**
+   * Records a request that failed as a whole.
+   *
+   * @param records number of records in the request
+   * @param throttled whether the request was throttled
+   */
+  public void requestFailed(int records, boolean throttled) {
+    requestsFailed.increment();
+    recordsFailed.add(records);
+    if(throttled) {
+      recordsThrottled.add(records);
+    }
+  }
+
+  /**
+   * Records a request that had to wait, or be queued, for room in the
+   * in-flight window.
+   */
+  public void inFlightWindowFull() {
+    inFlightWindowFull.increment();
+  }
+
+  public void recordRetried() {
+    recordsRetried.increment();
+  }
+
+  /**
+   * @param eventCount number of log events the spilled record carries
+   */
+  public void recordSpilled(int eventCount) {
+    recordsSpilled.increment();
+    eventsSpilled.add(eventCount);
+  }
+
+  /**
+   * @param eventCount number of log events the dropped record carries
+   */
+  public void recordDropped(int eventCount) {
+    recordsDropped.increment();
+    eventsLost.add(eventCount);
+  }
+
+  /**
+   * Records a request that completed, acknowledging all its records but the
+   * failed ones.
+   *
+   * @param batch records of the request
+   * @param failed indexes of the records the service rejected
+   * @param throttled indexes of the records rejected for exceeding the
+   *          throughput limits
+   */
+  public void requestSucceeded(List<PendingRecord> batch, BitSet failed, BitSet throttled) {
+    long now = System.nanoTime();
+    for(int i = 0; i < batch.size(); i++) {
+      if(!failed.get(i)) {
+        recordAcknowledged(batch.get(i), now);
+      }
+    }
+    requestsSucceeded.increment();
+    recordsFailed.add(failed.cardinality());
+    recordsThrottled.add(throttled.cardinality());
+  }
+
+  @Override
+  public long getRecordsSent() {
+    return recordsSent.sum();
+  }
+
+  @Override
+  public long getBytesSent() {
+    return bytesSent.sum();
+  }
+
+  @Override
+  public long getRecordsFailed() {
+    return recordsFailed.sum();
+  }
+
+  @Override
+  public long getRecordsThrottled() {
+    return recordsThrottled.sum();
+  }
+
+  @Override
+  public long getRecordsRetried() {
+    return recordsRetried.sum();
+  }
+
+  @Override
+  public long getRecordsSpilled() {
+    return recordsSpilled.sum();
+  }
+
+  @Override
+  public long getRecordsDropped() {
+    return recordsDropped.sum();
+  }
+
+  @Override
+  public long getEventsSent() {
+    return eventsSent.sum();
+  }
+
+  @Override
+  public long getEventsSpilled() {
+    return eventsSpilled.sum();
+  }
+
+  @Override
+  public long getEventsLost() {
+    return eventsLost.sum();
+  }
+
+  @Override
+  public long getEventsDropped() {
+    return dropCounters.getDroppedCount();
+  }
+
+  @Override
+  public long getRequestsSucceeded() {
+    return requestsSucceeded.sum();
+  }
+
+  @Override
+  public long getRequestsFailed() {
+    return requestsFailed.sum();
+  }
+
+  @Override
+  public int getQueueDepth() {
+    return queueDepth.getAsInt();
+  }
+
+  @Override
+  public int getInFlightRequests() {
+    return inFlightRequests.getAsInt();
+  }
+
+  @Override
+  public long getInFlightBytes() {
+    return inFlightBytes.getAsLong();
+  }
+
+  @Override
+  public long getInFlightWindowFull() {
+    return inFlightWindowFull.sum();
+  }
+
+  @Override
+  public double getBatchSizeMean() {
+    return batchSizes.getMean();
+  }
+
+  @Override
+  public long getBatchSizeMax() {
+    return batchSizes.getMax();
+  }
+
+  @Override
+  public long getLatencyCount() {
+    return latencyNanos.getCount();
+  }
+
+  @Override
+  public double getLatencyMeanMillis() {
+    return latencyNanos.getMean() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getLatencyP50Millis() {
+    return latencyNanos.getValueAtPercentile(50) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getLatencyP99Millis() {
+    return latencyNanos.getValueAtPercentile(99) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getLatencyP999Millis() {
+    return latencyNanos.getValueAtPercentile(99.9) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getLatencyMaxMillis() {
+    return latencyNanos.getMax() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public long getTracedCount() {
+    return requestNanos.getCount();
+  }
+
+  @Override
+  public double getEncodeP99Millis() {
+    return encodeNanos.getValueAtPercentile(99) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getQueueP99Millis() {
+    return queueNanos.getValueAtPercentile(99) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getBatchingP99Millis() {
+    return batchingNanos.getValueAtPercentile(99) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getRequestP99Millis() {
+    return requestNanos.getValueAtPercentile(99) / NANOS_PER_MILLI;
+  }
+
+  /**
+   * @return histogram of the number of records per request
+   */
+  public Histogram getBatchSizes() {
+    return batchSizes;
+  }
+
+  /**
+   * @return histogram of the time from append to acknowledgement of records,
+   *         in nanoseconds, measured from the first event of aggregated
+   *         records
+   */
+  public Histogram getLatencyNanos() {
+    return latencyNanos;
+  }
+
+  /**
+   * @return histogram of the time sampled events spent in the layout or
+   *         encoder, in nanoseconds
+   */
+  public Histogram getEncodeNanos() {
+    return encodeNanos;
+  }
+
+  /**
+   * @return histogram of the time sampled events waited for the sender
+   *         thread, in nanoseconds
+   */
+  public Histogram getQueueNanos() {
+    return queueNanos;
+  }
+
+  /**
+   * @return histogram of the time sampled events spent being aggregated,
+   *         compressed, batched and rate limited, in nanoseconds
+   */
+  public Histogram getBatchingNanos() {
+    return batchingNanos;
+  }
+
+  /**
+   * @return histogram of the time the requests carrying sampled events took,
+   *         SDK retries included, in nanoseconds
+   */
+  public Histogram getRequestNanos() {
+    return requestNanos;
+  }
+
+  public DropCounters getDropCounters() {
+    return dropCounters;
+  }
+}
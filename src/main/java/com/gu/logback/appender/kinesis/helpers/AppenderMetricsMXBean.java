@@ -0,0 +1,84 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+/**
+ * JMX view of the metrics of an appender, registered as
+ * {@code com.gu.logback.appender.kinesis:type=<appender class>,name=<appender name>}.
+ * Counts are totals since the appender started, latencies are in
+ * milliseconds. Per-stage latencies only cover the events sampled for
+ * tracing.
+ */
+public interface AppenderMetricsMXBean {
+
+  long getRecordsSent();
+
+  long getBytesSent();
+
+  long getRecordsFailed();
+
+  long getRecordsThrottled();
+
+  long getRecordsRetried();
+
+  long getRecordsSpilled();
+
+  long getRecordsDropped();
+
+  /**
+   * Log events carried by the records sent, as counted by
+   * {@link #getRecordsSent()}.
+   */
+  long getEventsSent();
+
+  /**
+   * Log events carried by the records spilled.
+   */
+  long getEventsSpilled();
+
+  /**
+   * Log events carried by the records dropped.
+   */
+  long getEventsLost();
+
+  /**
+   * Log events dropped by the overflow policy, before becoming records.
+   */
+  long getEventsDropped();
+
+  long getRequestsSucceeded();
+
+  long getRequestsFailed();
+
+  int getQueueDepth();
+
+  int getInFlightRequests();
+
+  long getInFlightBytes();
+
+  long getInFlightWindowFull();
+
+  double getBatchSizeMean();
+
+  long getBatchSizeMax();
+
+  long getLatencyCount();
+
+  double getLatencyMeanMillis();
+
+  double getLatencyP50Millis();
+
+  double getLatencyP99Millis();
+
+  double getLatencyP999Millis();
+
+  double getLatencyMaxMillis();
+
+  long getTracedCount();
+
+  double getEncodeP99Millis();
+
+  double getQueueP99Millis();
+
+  double getBatchingP99Millis();
+
+  double getRequestP99Millis();
+}
@@ -0,0 +1,316 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.utils.AttributeMap;
+import com.gu.logback.appender.kinesis.AppenderConstants;
+
+import ch.qos.logback.core.spi.ContextAware;
+
+/**
+ * The HTTP client and the threads an appender sends its records with: those
+ * of a {@link SharedTransport} it leases, or an HTTP client of its own and
+ * either threadCount threads or virtual threads completing the requests. The
+ * timers of the batchers and the backoffs of the rejected records run on the
+ * scheduler of the shared transport, or on threads of their own.
+ */
+public final class AppenderTransport {
+
+  private final ContextAware owner;
+  private final String appenderName;
+  private final String threadNamePrefix;
+  private SharedTransport sharedTransport;
+  private HttpClientSettings httpClientSettings;
+  private int maxInFlightRequests = AppenderConstants.DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+  private boolean virtualThreadsEnabled;
+  private int threadCount = AppenderConstants.DEFAULT_THREAD_COUNT;
+  private int bufferSize = AppenderConstants.DEFAULT_BUFFER_SIZE;
+  private SharedTransport.Lease lease;
+  private FairExecutor.Lane lane;
+  private SdkAsyncHttpClient ownHttpClient;
+  private BlockingQueue<Runnable> taskBuffer;
+  private ExecutorService executor;
+
+  /**
+   * @param owner appender reporting the choices made and the failures
+   * @param appenderName name of the appender, for the messages
+   * @param threadNamePrefix prefix of the names of the appender's own
+   *          threads, followed by their purpose and a counter
+   */
+  public AppenderTransport(ContextAware owner, String appenderName, String threadNamePrefix) {
+    this.owner = Objects.requireNonNull(owner);
+    this.appenderName = appenderName;
+    this.threadNamePrefix = Objects.requireNonNull(threadNamePrefix);
+  }
+
+  /**
+   * @param sharedTransport transport to lease, null for the appender's own
+   */
+  public void setSharedTransport(SharedTransport sharedTransport) {
+    this.sharedTransport = sharedTransport;
+  }
+
+  /**
+   * @param httpClientSettings settings of the appender's own HTTP client,
+   *          null for the defaults
+   */
+  public void setHttpClientSettings(HttpClientSettings httpClientSettings) {
+    this.httpClientSettings = httpClientSettings;
+  }
+
+  /**
+   * @param maxInFlightRequests maximum number of requests in flight, to warn
+   *          about an HTTP client with fewer connections
+   */
+  public void setMaxInFlightRequests(int maxInFlightRequests) {
+    this.maxInFlightRequests = maxInFlightRequests;
+  }
+
+  /**
+   * @param virtualThreadsEnabled whether requests are completed on virtual
+   *          threads, if available and no shared transport is leased
+   */
+  public void setVirtualThreadsEnabled(boolean virtualThreadsEnabled) {
+    this.virtualThreadsEnabled = virtualThreadsEnabled;
+  }
+
+  /**
+   * @param bufferSize maximum number of tasks waiting for a thread
+   */
+  public void setBufferSize(int bufferSize) {
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Sets the number of the appender's own threads, resizing their pool if it
+   * runs.
+   *
+   * @param threadCount number of threads completing the requests
+   */
+  public void setThreadCount(int threadCount) {
+    this.threadCount = threadCount;
+    if(executor instanceof ThreadPoolExecutor) {
+      ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+      synchronized(pool) {
+        if(threadCount > pool.getMaximumPoolSize()) {
+          pool.setMaximumPoolSize(threadCount);
+          pool.setCorePoolSize(threadCount);
+        } else {
+          pool.setCorePoolSize(threadCount);
+          pool.setMaximumPoolSize(threadCount);
+        }
+        pool.prestartAllCoreThreads();
+      }
+    }
+  }
+
+  /**
+   * Resizes the appender's own thread pool while it runs.
+   *
+   * @param threadCount new number of threads
+   * @throws IllegalStateException if the appender uses threads it doesn't own
+   */
+  public void resizeThreadPool(int threadCount) {
+    if(lease != null) {
+      throw new IllegalStateException("Appender " + appenderName + " uses the threads of shared transport "
+                                      + lease.getName() + ", whose threadCount applies");
+    }
+    if(!(executor instanceof ThreadPoolExecutor)) {
+      throw new IllegalStateException("Appender " + appenderName + " completes requests on virtual threads,"
+                                      + " which threadCount doesn't limit");
+    }
+    setThreadCount(threadCount);
+  }
+
+  /**
+   * Leases the shared transport, or creates the appender's own HTTP client,
+   * and the threads completing the requests.
+   *
+   * @param httpClientDefaults settings the SDK client of the service applies
+   *          to the HTTP clients it builds itself
+   * @return false if the HTTP client couldn't be set up, which is reported
+   */
+  public boolean start(AttributeMap httpClientDefaults) {
+    if(sharedTransport != null) {
+      if(sharedTransport.getContext() == null) {
+        // shared with the appenders of the same context only
+        sharedTransport.setContext(owner.getContext());
+      }
+      try {
+        lease = sharedTransport.acquire(httpClientDefaults);
+      }
+      catch(RuntimeException e) {
+        owner.addError("Failed to start shared transport " + sharedTransport.getName() + " for appender: "
+                       + appenderName, e);
+        return false;
+      }
+      if(httpClientSettings != null) {
+        owner.addWarn("Ignoring httpClient in favour of the HTTP client of shared transport " + lease.getName()
+                      + " for appender: " + appenderName);
+      }
+      if(virtualThreadsEnabled) {
+        owner.addWarn("Virtual threads are ignored in favour of the threads of the shared transport for appender: "
+                      + appenderName);
+      }
+      lane = lease.newLane(bufferSize);
+      executor = lane;
+      owner.addInfo("Using shared transport " + lease.getName() + " for appender: " + appenderName);
+      return true;
+    }
+
+    // built here rather than by the SDK, so that its event loop threads are named after the appender
+    HttpClientSettings settings = httpClientSettings != null ? httpClientSettings : new HttpClientSettings();
+    try {
+      ownHttpClient = settings.createHttpClient(httpClientDefaults, threadFactory("http-"));
+    }
+    catch(RuntimeException e) {
+      owner.addError("Failed to create the HTTP client for appender: " + appenderName, e);
+      return false;
+    }
+    if(settings.getMaxConcurrency() != null && settings.getMaxConcurrency() < maxInFlightRequests) {
+      owner.addWarn("Requests in flight beyond the maxConcurrency " + settings.getMaxConcurrency()
+                    + " of the HTTP client wait for a connection for appender: " + appenderName);
+    }
+
+    boolean useVirtualThreads = virtualThreadsEnabled;
+    if(useVirtualThreads && !VirtualThreads.isAvailable()) {
+      owner.addWarn("Virtual threads need Java 21 or later, using " + threadCount + " threads for appender: "
+                    + appenderName);
+      useVirtualThreads = false;
+    }
+    if(useVirtualThreads) {
+      executor = VirtualThreads.newThreadPerTaskExecutor(threadNamePrefix + "virtual-");
+    } else {
+      taskBuffer = new LinkedBlockingDeque<Runnable>(bufferSize);
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(threadCount, threadCount,
+                                                       AppenderConstants.DEFAULT_THREAD_KEEP_ALIVE_SEC,
+                                                       TimeUnit.SECONDS, taskBuffer, threadFactory(""),
+                                                       new BlockFastProducerPolicy());
+      pool.prestartAllCoreThreads();
+      executor = pool;
+    }
+    return true;
+  }
+
+  /**
+   * @param purpose suffix distinguishing the threads from the ones completing
+   *          the requests, empty for the latter
+   * @return a factory of the appender's own threads, marked as
+   *         {@link SendingThreads}
+   */
+  private ThreadFactory threadFactory(String purpose) {
+    return SendingThreads.marking(new NamedThreadFactory(threadNamePrefix + purpose));
+  }
+
+  /**
+   * @return the HTTP client to build the SDK client with, which the SDK
+   *         client doesn't close
+   */
+  public Optional<SdkAsyncHttpClient> getHttpClient() {
+    return Optional.of(lease != null ? lease.getHttpClient() : ownHttpClient);
+  }
+
+  /**
+   * @return the scheduler of the shared transport for SDK retries and timers,
+   *         null for the SDK's own
+   */
+  public ScheduledExecutorService getScheduler() {
+    return lease != null ? lease.getScheduler() : null;
+  }
+
+  /**
+   * @return executor the SDK client completes the requests on, marking the
+   *         completions for {@link RequestDispatcher}
+   */
+  public Executor getCompletionExecutor() {
+    ExecutorService completionExecutor = executor;
+    return task -> completionExecutor.execute(() -> RequestDispatcher.runCompletion(task));
+  }
+
+  /**
+   * Creates a batcher with a linger thread of its own, or timed by the
+   * scheduler of the shared transport and flushing on the appender's lane,
+   * whose threads mustn't wait for the in-flight window either.
+   *
+   * @see RecordBatcher
+   */
+  public <R> RecordBatcher<R> newBatcher(int maxRecords, long maxBytes, long lingerMillis, ToIntFunction<R> sizer,
+      Consumer<List<R>> sender, String purpose) {
+    if(lease != null) {
+      return new RecordBatcher<R>(maxRecords, maxBytes, lingerMillis, sizer, sender, lease.getScheduler(),
+                                  laneExecutor());
+    }
+    return new RecordBatcher<R>(maxRecords, maxBytes, lingerMillis, sizer, sender, threadFactory(purpose));
+  }
+
+  /**
+   * Creates a batch sender whose rejected records wait out their backoff on a
+   * thread of its own, or on the scheduler of the shared transport and come
+   * back on the appender's lane.
+   *
+   * @see BatchSender
+   */
+  public BatchSender newBatchSender(RecordBatcher<PendingRecord> batcher, int maxRecordBytes,
+      BooleanSupplier backingOff, AppenderMetrics metrics, String streamName) {
+    if(lease != null) {
+      return new BatchSender(batcher, maxRecordBytes, backingOff, metrics, owner, streamName, lease.getScheduler(),
+                             laneExecutor());
+    }
+    return new BatchSender(batcher, maxRecordBytes, backingOff, metrics, owner, streamName,
+                           threadFactory("retry-"));
+  }
+
+  private Executor laneExecutor() {
+    FairExecutor.Lane appenderLane = lane;
+    return task -> appenderLane.enqueue(() -> RequestDispatcher.runCompletion(task));
+  }
+
+  /**
+   * @return number of tasks waiting for a thread
+   */
+  public int getQueueSize() {
+    if(lane != null) {
+      return lane.getQueueSize();
+    }
+    return taskBuffer != null ? taskBuffer.size() : 0;
+  }
+
+  /**
+   * Closes the appender's own HTTP client, lets the tasks waiting for a thread
+   * run until the timeout, and detaches from the shared transport. The SDK
+   * client must have been closed first.
+   *
+   * @param timeoutNanos maximum time to wait for the tasks
+   */
+  public void close(long timeoutNanos) {
+    if(ownHttpClient != null) {
+      ownHttpClient.close();
+      ownHttpClient = null;
+    }
+    executor.shutdown();
+    try {
+      executor.awaitTermination(timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+    catch(InterruptedException e) {
+      // we are anyways cleaning up
+    }
+    if(lease != null) {
+      lease.close();
+      lease = null;
+    }
+  }
+}
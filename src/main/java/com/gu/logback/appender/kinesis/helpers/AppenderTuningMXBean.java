@@ -0,0 +1,70 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+/**
+ * JMX view of the settings of an appender that can be changed while it runs,
+ * registered as
+ * {@code com.gu.logback.appender.kinesis:type=<appender class>,name=<appender name>,component=tuning}.
+ * Changes apply straight away without losing any queued log event, and last
+ * until the appender is restarted, e.g. by a reload of the configuration.
+ * Changes that wouldn't have any effect are refused with an
+ * {@link IllegalStateException}.
+ */
+public interface AppenderTuningMXBean {
+
+  int getBufferSize();
+
+  /**
+   * Replaces the ring buffer with one of the given size, the log events
+   * waiting in the old one being sent first. Refused without the ring buffer,
+   * as the queue of the appender's threads is sized on start.
+   */
+  void setBufferSize(int bufferSize);
+
+  int getThreadCount();
+
+  /**
+   * Resizes the appender's own thread pool. Refused with virtual threads or a
+   * shared transport, whose threads the appender doesn't own.
+   */
+  void setThreadCount(int threadCount);
+
+  int getMaxRetries();
+
+  /**
+   * Changes the number of times records rejected within a batch are retried.
+   * The retries of the SDK are set on start.
+   */
+  void setMaxRetries(int maxRetries);
+
+  int getShutdownTimeout();
+
+  void setShutdownTimeout(int shutdownTimeout);
+
+  int getMaxBatchRecords();
+
+  void setMaxBatchRecords(int maxBatchRecords);
+
+  int getMaxBatchBytes();
+
+  void setMaxBatchBytes(int maxBatchBytes);
+
+  long getLingerMillis();
+
+  void setLingerMillis(long lingerMillis);
+
+  long getMaxRecordsPerSecond();
+
+  void setMaxRecordsPerSecond(long maxRecordsPerSecond);
+
+  long getMaxBytesPerSecond();
+
+  void setMaxBytesPerSecond(long maxBytesPerSecond);
+
+  int getMaxInFlightRequests();
+
+  void setMaxInFlightRequests(int maxInFlightRequests);
+
+  long getMaxInFlightBytes();
+
+  void setMaxInFlightBytes(long maxInFlightBytes);
+}
@@ -0,0 +1,219 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import com.gu.logback.appender.kinesis.AppenderConstants;
+
+import ch.qos.logback.core.spi.ContextAware;
+
+/**
+ * Sends records in batches through a {@link RecordBatcher}, and adds the
+ * records the service rejected within a batch back to it after a backoff
+ * growing exponentially with their attempts, with jitter so that the records
+ * rejected together, mostly for exceeding the throughput of their shard,
+ * don't all come back at once. Once the appender is stopping, rejected
+ * records come back right away.
+ */
+public final class BatchSender {
+
+  private final RecordBatcher<PendingRecord> batcher;
+  private final int maxRecordBytes;
+  private final BooleanSupplier backingOff;
+  private final AppenderMetrics metrics;
+  private final ContextAware owner;
+  private final String streamName;
+  private final ScheduledExecutorService retryScheduler;
+  private final boolean ownsScheduler;
+  private final Executor retryExecutor;
+  // rejected records waiting out their backoff before going back to the batcher
+  private final Set<PendingRecord> delayedRetries = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Creates a sender waiting out the backoffs on a thread of its own.
+   *
+   * @param batcher batcher handing its batches to the request dispatcher
+   * @param maxRecordBytes maximum size of a record the service accepts
+   * @param backingOff tells whether rejected records wait out a backoff,
+   *          false once the appender is stopping
+   * @param metrics metrics counting the records dropped
+   * @param owner appender reporting the dropped records
+   * @param streamName stream the records are sent to, for the failures
+   * @param threadFactory factory for the thread waiting out the backoffs
+   */
+  public BatchSender(RecordBatcher<PendingRecord> batcher, int maxRecordBytes, BooleanSupplier backingOff,
+      AppenderMetrics metrics, ContextAware owner, String streamName, ThreadFactory threadFactory) {
+    this(batcher, maxRecordBytes, backingOff, metrics, owner, streamName,
+         Executors.newSingleThreadScheduledExecutor(threadFactory), true, Runnable::run);
+  }
+
+  /**
+   * Creates a sender waiting out the backoffs with a scheduler it shares with
+   * others, e.g. the one of a shared transport. Rejected records are added
+   * back on the retry executor, so that the scheduler's threads never wait on
+   * the batcher.
+   *
+   * @param batcher batcher handing its batches to the request dispatcher
+   * @param maxRecordBytes maximum size of a record the service accepts
+   * @param backingOff tells whether rejected records wait out a backoff,
+   *          false once the appender is stopping
+   * @param metrics metrics counting the records dropped
+   * @param owner appender reporting the dropped records
+   * @param streamName stream the records are sent to, for the failures
+   * @param scheduler scheduler of the backoffs, left running on close
+   * @param retryExecutor executor adding the records back to the batcher
+   */
+  public BatchSender(RecordBatcher<PendingRecord> batcher, int maxRecordBytes, BooleanSupplier backingOff,
+      AppenderMetrics metrics, ContextAware owner, String streamName, ScheduledExecutorService scheduler,
+      Executor retryExecutor) {
+    this(batcher, maxRecordBytes, backingOff, metrics, owner, streamName, scheduler, false, retryExecutor);
+  }
+
+  private BatchSender(RecordBatcher<PendingRecord> batcher, int maxRecordBytes, BooleanSupplier backingOff,
+      AppenderMetrics metrics, ContextAware owner, String streamName, ScheduledExecutorService scheduler,
+      boolean ownsScheduler, Executor retryExecutor) {
+    this.batcher = Objects.requireNonNull(batcher);
+    this.maxRecordBytes = maxRecordBytes;
+    this.backingOff = Objects.requireNonNull(backingOff);
+    this.metrics = Objects.requireNonNull(metrics);
+    this.owner = Objects.requireNonNull(owner);
+    this.streamName = streamName;
+    this.retryScheduler = Objects.requireNonNull(scheduler);
+    this.ownsScheduler = ownsScheduler;
+    this.retryExecutor = Objects.requireNonNull(retryExecutor);
+  }
+
+  /**
+   * Adds a record to the batch in progress. Records that exceed the service's
+   * record size limit can never be sent, and are dropped.
+   *
+   * @param record the record
+   */
+  public void add(PendingRecord record) {
+    if(record.getSize() > maxRecordBytes) {
+      metrics.recordDropped(record.getEventCount());
+      owner.addError("Dropping log entry of " + record.getSize() + " bytes, which exceeds the record size limit of "
+                     + maxRecordBytes + " bytes, for stream: " + streamName);
+      return;
+    }
+    batcher.add(record);
+  }
+
+  /**
+   * Adds the records of a batch that the rate limit held back, those of
+   * throttled shards, back to the batcher, so that they go out with a later
+   * batch rather than holding back the records of the other shards.
+   *
+   * @param records records held back
+   */
+  public void requeue(List<PendingRecord> records) {
+    for(PendingRecord record : records) {
+      batcher.add(record);
+    }
+  }
+
+  /**
+   * Adds a record rejected within a batch back to the batcher after its
+   * backoff, or right away once the appender is stopping.
+   *
+   * @param retry the record, for its next attempt
+   */
+  public void retryLater(PendingRecord retry) {
+    if(backingOff.getAsBoolean()) {
+      long delayMillis = Math.min(AppenderConstants.RETRY_INITIAL_DELAY_MILLIS << Math.min(retry.getAttempts() - 1, 20),
+                                  AppenderConstants.RETRY_MAX_DELAY_MILLIS);
+      delayMillis = ThreadLocalRandom.current().nextLong(delayMillis / 2, delayMillis + 1);
+      delayedRetries.add(retry);
+      try {
+        retryScheduler.schedule(() -> retryExecutor.execute(() -> resumeRetry(retry)), delayMillis,
+                                TimeUnit.MILLISECONDS);
+        return;
+      }
+      catch(RejectedExecutionException e) {
+        // the appender is stopping
+        resumeRetry(retry);
+        return;
+      }
+    }
+    batcher.add(retry);
+  }
+
+  private void resumeRetry(PendingRecord retry) {
+    // whoever takes the record out of the delayed retries adds it
+    if(delayedRetries.remove(retry)) {
+      batcher.add(retry);
+    }
+  }
+
+  private void resumeDelayedRetries() {
+    for(PendingRecord retry : delayedRetries) {
+      if(delayedRetries.remove(retry)) {
+        batcher.add(retry);
+      }
+    }
+  }
+
+  /**
+   * Sends the batch in progress, along with the rejected records still
+   * waiting out their backoff.
+   */
+  public void flush() {
+    resumeDelayedRetries();
+    batcher.flush();
+  }
+
+  /**
+   * Stops waiting out backoffs, adding the rejected records back right away,
+   * and sends the batch in progress with the given limits, the service's
+   * ones, to send what is left in as few requests as possible.
+   *
+   * @param maxRecords maximum number of records in a batch
+   * @param maxBytes maximum total size of the records in a batch
+   * @param lingerMillis maximum time a record waits for its batch to fill up
+   */
+  public void close(int maxRecords, long maxBytes, long lingerMillis) {
+    if(ownsScheduler) {
+      retryScheduler.shutdownNow();
+      resumeDelayedRetries();
+    }
+    batcher.setLimits(maxRecords, maxBytes, lingerMillis);
+    batcher.close();
+  }
+
+  /**
+   * Changes the limits of the batches.
+   *
+   * @see RecordBatcher#setLimits(int, long, long)
+   */
+  public void setLimits(int maxRecords, long maxBytes, long lingerMillis) {
+    batcher.setLimits(maxRecords, maxBytes, lingerMillis);
+  }
+
+  /**
+   * @return true if neither the batch in progress nor the backoffs hold any
+   *         record
+   */
+  public boolean isEmpty() {
+    return batcher.getPendingRecordCount() == 0 && delayedRetries.isEmpty();
+  }
+
+  /**
+   * Takes the records of the batch in progress without sending them, e.g. to
+   * spill them when there is no time left to send them.
+   *
+   * @return records of the batch in progress, possibly none
+   */
+  public List<PendingRecord> takePending() {
+    return batcher.takePending();
+  }
+}
@@ -0,0 +1,41 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+/**
+ * Compression applied to the payload of each record sent.
+ */
+public enum Compression {
+  /**
+   * Payloads are sent as they are.
+   */
+  NONE {
+    @Override
+    public PayloadCompressor newCompressor() {
+      return null;
+    }
+  },
+  /**
+   * Payloads are compressed into gzip members, which concatenate into valid
+   * gzip files (e.g. in Firehose deliveries to S3).
+   */
+  GZIP {
+    @Override
+    public PayloadCompressor newCompressor() {
+      return new GzipPayloadCompressor();
+    }
+  },
+  /**
+   * Payloads are compressed into LZ4 frames. Much cheaper than gzip, for a
+   * lower compression ratio. Requires org.lz4:lz4-java on the classpath.
+   */
+  LZ4 {
+    @Override
+    public PayloadCompressor newCompressor() {
+      return new Lz4PayloadCompressor();
+    }
+  };
+
+  /**
+   * @return a compressor for this compression, null for {@link #NONE}
+   */
+  public abstract PayloadCompressor newCompressor();
+}
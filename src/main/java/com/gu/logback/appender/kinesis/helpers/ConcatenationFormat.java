@@ -0,0 +1,37 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.List;
+
+/**
+ * Aggregates records by concatenating their payloads. This suits Firehose,
+ * which concatenates the records it delivers anyway, so log events should
+ * carry their own separator (e.g. a layout pattern ending with %n).
+ */
+public final class ConcatenationFormat implements AggregationFormat {
+
+  @Override
+  public int getOverhead() {
+    return 0;
+  }
+
+  @Override
+  public int sizeOf(PendingRecord record) {
+    return record.getData().asByteArrayUnsafe().length;
+  }
+
+  @Override
+  public byte[] encode(String partitionKey, List<PendingRecord> records) {
+    int size = 0;
+    for(PendingRecord record : records) {
+      size += sizeOf(record);
+    }
+    byte[] out = new byte[size];
+    int pos = 0;
+    for(PendingRecord record : records) {
+      byte[] data = record.getData().asByteArrayUnsafe();
+      System.arraycopy(data, 0, out, pos, data.length);
+      pos += data.length;
+    }
+    return out;
+  }
+}
@@ -0,0 +1,81 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts log events dropped because the appender's buffer was full, by the
+ * reason they were dropped for.
+ */
+public final class DropCounters {
+
+  private final LongAdder droppedNewest = new LongAdder();
+  private final LongAdder droppedOldest = new LongAdder();
+  private final LongAdder droppedBelowLevel = new LongAdder();
+  private final LongAdder droppedOnTimeout = new LongAdder();
+  private final LongAdder droppedOnFullSpill = new LongAdder();
+
+  public void newestDropped() {
+    droppedNewest.increment();
+  }
+
+  public void oldestDropped() {
+    droppedOldest.increment();
+  }
+
+  public void belowLevelDropped() {
+    droppedBelowLevel.increment();
+  }
+
+  public void timeoutDropped() {
+    droppedOnTimeout.increment();
+  }
+
+  public void fullSpillDropped() {
+    droppedOnFullSpill.increment();
+  }
+
+  /**
+   * @return number of events dropped because the buffer was full when they
+   *         were logged
+   */
+  public long getDroppedNewestCount() {
+    return droppedNewest.sum();
+  }
+
+  /**
+   * @return number of buffered events dropped to make room for newer ones
+   */
+  public long getDroppedOldestCount() {
+    return droppedOldest.sum();
+  }
+
+  /**
+   * @return number of events dropped for being below the level threshold
+   */
+  public long getDroppedBelowLevelCount() {
+    return droppedBelowLevel.sum();
+  }
+
+  /**
+   * @return number of events dropped after waiting for room for the overflow
+   *         timeout
+   */
+  public long getDroppedOnTimeoutCount() {
+    return droppedOnTimeout.sum();
+  }
+
+  /**
+   * @return number of events dropped because the spill queue was full too
+   */
+  public long getDroppedOnFullSpillCount() {
+    return droppedOnFullSpill.sum();
+  }
+
+  /**
+   * @return total number of events dropped for any reason
+   */
+  public long getDroppedCount() {
+    return getDroppedNewestCount() + getDroppedOldestCount() + getDroppedBelowLevelCount()
+           + getDroppedOnTimeoutCount() + getDroppedOnFullSpillCount();
+  }
+}
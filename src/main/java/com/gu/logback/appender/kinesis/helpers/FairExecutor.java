@@ -0,0 +1,309 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of threads shared by several producers of tasks, each submitting to
+ * its own {@link Lane}. Threads take tasks from the lanes that have some in
+ * turn, so a lane with a long backlog doesn't delay the tasks of the others,
+ * and a lane never has more than a given number of tasks running at once, so
+ * that tasks blocking (e.g. on a rate limit) can't take all the threads.
+ *
+ * Lanes are bounded: submitting to a full lane waits for room, like
+ * {@link BlockFastProducerPolicy} does, which only holds back the producers
+ * of that lane.
+ */
+public final class FairExecutor {
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition workAvailable = lock.newCondition();
+  private final ArrayDeque<Lane> readyLanes = new ArrayDeque<Lane>();
+  private final List<Thread> workers = new ArrayList<Thread>();
+  private final int maxRunningPerLane;
+  private boolean shutdown;
+
+  /**
+   * @param threadCount number of threads
+   * @param maxRunningPerLane maximum number of tasks of the same lane running
+   *          at once
+   * @param threadFactory factory for the threads
+   */
+  public FairExecutor(int threadCount, int maxRunningPerLane, ThreadFactory threadFactory) {
+    Validator.validate(threadCount > 0, "threadCount must be > 0");
+    Validator.validate(maxRunningPerLane > 0, "maxRunningPerLane must be > 0");
+    this.maxRunningPerLane = maxRunningPerLane;
+    for(int i = 0; i < threadCount; i++) {
+      Thread worker = threadFactory.newThread(this::work);
+      workers.add(worker);
+      worker.start();
+    }
+  }
+
+  /**
+   * @param capacity maximum number of tasks waiting in the lane
+   * @return a new lane
+   */
+  public Lane newLane(int capacity) {
+    Validator.validate(capacity > 0, "capacity must be > 0");
+    return new Lane(capacity);
+  }
+
+  /**
+   * Stops the threads once the tasks already submitted have run. Lanes
+   * should be shut down first.
+   */
+  public void shutdown() {
+    lock.lock();
+    try {
+      shutdown = true;
+      workAvailable.signalAll();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param timeout maximum time to wait
+   * @param unit unit of the timeout
+   * @return true if all the threads have stopped
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for(Thread worker : workers) {
+      long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if(remainingMillis <= 0) {
+        return !worker.isAlive();
+      }
+      worker.join(remainingMillis);
+      if(worker.isAlive()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void work() {
+    while(true) {
+      Lane lane;
+      Runnable task;
+      lock.lock();
+      try {
+        while(readyLanes.isEmpty()) {
+          if(shutdown) {
+            return;
+          }
+          workAvailable.awaitUninterruptibly();
+        }
+        lane = readyLanes.poll();
+        lane.ready = false;
+        task = lane.tasks.poll();
+        lane.running++;
+        lane.notFull.signal();
+        offer(lane);
+      }
+      finally {
+        lock.unlock();
+      }
+
+      try {
+        task.run();
+      }
+      catch(RuntimeException e) {
+        // the task is responsible for reporting its own failures
+      }
+      finally {
+        lock.lock();
+        try {
+          lane.running--;
+          offer(lane);
+          if(lane.running == 0 && lane.tasks.isEmpty()) {
+            lane.idle.signalAll();
+          }
+        }
+        finally {
+          lock.unlock();
+        }
+      }
+    }
+  }
+
+  /**
+   * Queues a lane behind the others if it has tasks that may run now. Called
+   * with the lock held.
+   */
+  private void offer(Lane lane) {
+    if(!lane.ready && !lane.tasks.isEmpty() && lane.running < maxRunningPerLane) {
+      lane.ready = true;
+      readyLanes.add(lane);
+      workAvailable.signal();
+    }
+  }
+
+  /**
+   * Bounded queue of tasks run by the threads of the pool, in the order they
+   * were submitted.
+   */
+  public final class Lane extends AbstractExecutorService {
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    private final Condition notFull = lock.newCondition();
+    private final Condition idle = lock.newCondition();
+    private final int capacity;
+    private int running;
+    private boolean ready;
+    private boolean closed;
+
+    private Lane(int capacity) {
+      this.capacity = capacity;
+    }
+
+    /**
+     * Queues a task, waiting for room if the lane is full.
+     *
+     * @throws RejectedExecutionException if the lane is shut down, or the
+     *           caller is interrupted while waiting
+     */
+    @Override
+    public void execute(Runnable task) {
+      lock.lock();
+      try {
+        while(tasks.size() >= capacity && !closed) {
+          notFull.await();
+        }
+        if(closed || shutdown) {
+          throw new RejectedExecutionException("Lane already shutdown");
+        }
+        tasks.add(task);
+        offer(this);
+      }
+      catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RejectedExecutionException("Thread was interrupted while waiting for space to be available in the lane",
+                                             e);
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Queues a task even if the lane is full, for tasks submitted from
+     * threads that mustn't wait, such as timers, and that are few enough not
+     * to need a bound.
+     *
+     * @throws RejectedExecutionException if the lane is shut down
+     */
+    public void enqueue(Runnable task) {
+      lock.lock();
+      try {
+        if(closed || shutdown) {
+          throw new RejectedExecutionException("Lane already shutdown");
+        }
+        tasks.add(task);
+        offer(this);
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * @return number of tasks waiting in the lane
+     */
+    public int getQueueSize() {
+      lock.lock();
+      try {
+        return tasks.size();
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void shutdown() {
+      lock.lock();
+      try {
+        closed = true;
+        notFull.signalAll();
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Shuts the lane down and removes the tasks that haven't started.
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+      lock.lock();
+      try {
+        shutdown();
+        List<Runnable> pending = new ArrayList<Runnable>(tasks);
+        tasks.clear();
+        readyLanes.remove(this);
+        ready = false;
+        if(running == 0) {
+          idle.signalAll();
+        }
+        return pending;
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public boolean isShutdown() {
+      lock.lock();
+      try {
+        return closed;
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public boolean isTerminated() {
+      lock.lock();
+      try {
+        return closed && running == 0 && tasks.isEmpty();
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Waits for the tasks of the lane to have run, once it is shut down.
+     */
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      long remaining = unit.toNanos(timeout);
+      lock.lock();
+      try {
+        while(!(closed && running == 0 && tasks.isEmpty())) {
+          if(remaining <= 0) {
+            return false;
+          }
+          remaining = idle.awaitNanos(remaining);
+        }
+        return true;
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+  }
+}
@@ -20,14 +20,13 @@ import software.amazon.awssdk.services.firehose.model.PutRecordResponse;
 import com.gu.logback.appender.kinesis.FirehoseAppender;
 
 /**
- * Gathers information on how many put requests made by AWS SDK's async client,
- * succeeded or failed since the beginning
+ * Reports failed put requests made by AWS SDK's async client, and exposes how
+ * many records were sent or failed since the beginning from the appender's
+ * {@link AppenderMetrics}.
  */
 public final class FirehoseStatsReporter implements BiConsumer<PutRecordResponse,Throwable> {
 
   private final String appenderName;
-  private long successfulRequestCount;
-  private long failedRequestCount;
   private final FirehoseAppender<?> appender;
 
   public FirehoseStatsReporter(FirehoseAppender<?> appender) {
@@ -43,18 +42,23 @@ public final class FirehoseStatsReporter implements BiConsumer<PutRecordResponse
   @Override
   public final void accept(PutRecordResponse response, Throwable exception) {
     if (exception != null) {
-      failedRequestCount++;
       appender.addError("Failed to publish a log entry to kinesis using appender: " + appenderName, exception);
-    } else {
-      successfulRequestCount++;
     }
   }
 
+  /**
+   * This method is invoked when a PutRecordBatch call has failed as a whole.
+   */
+  public final void acceptBatchFailure(int records, Throwable exception) {
+    appender.addError("Failed to publish a batch of " + records + " log entries to kinesis using appender: "
+                      + appenderName, exception);
+  }
+
   public final long getSuccessfulRequestCount() {
-    return successfulRequestCount;
+    return appender.getMetrics().getRecordsSent();
   }
 
   public final long getFailedRequestCount() {
-    return failedRequestCount;
+    return appender.getMetrics().getRecordsFailed();
   }
 }
@@ -0,0 +1,115 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses payloads into gzip members, reusing deflaters, checksums and
+ * output buffers from a pool, which holds as many of them as threads have
+ * compressed at once. Deflaters hold native memory until ended, which a pool
+ * does on close, whereas one per logging thread would be held for the life of
+ * the thread.
+ */
+public final class GzipPayloadCompressor implements PayloadCompressor {
+
+  private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+  private static final int TRAILER_LENGTH = 8;
+
+  private final ArrayDeque<State> pool = new ArrayDeque<State>();
+  private boolean closed;
+
+  @Override
+  public byte[] compress(byte[] data) {
+    State current = take();
+    try {
+      return compress(current, data);
+    }
+    finally {
+      giveBack(current);
+    }
+  }
+
+  private synchronized State take() {
+    State pooled = pool.pollFirst();
+    return pooled != null ? pooled : new State();
+  }
+
+  private void giveBack(State state) {
+    synchronized(this) {
+      if(!closed) {
+        pool.addFirst(state);
+        return;
+      }
+    }
+    state.deflater.end();
+  }
+
+  /**
+   * Ends the pooled deflaters, and those in use once they are given back.
+   */
+  @Override
+  public void close() {
+    ArrayDeque<State> pooled;
+    synchronized(this) {
+      closed = true;
+      pooled = new ArrayDeque<State>(pool);
+      pool.clear();
+    }
+    for(State state : pooled) {
+      state.deflater.end();
+    }
+  }
+
+  private static byte[] compress(State current, byte[] data) {
+    Deflater deflater = current.deflater;
+    deflater.reset();
+    deflater.setInput(data);
+    deflater.finish();
+
+    byte[] buffer = current.buffer(HEADER.length + data.length + TRAILER_LENGTH + 64);
+    System.arraycopy(HEADER, 0, buffer, 0, HEADER.length);
+    int pos = HEADER.length;
+    while(!deflater.finished()) {
+      if(pos == buffer.length) {
+        buffer = current.buffer(buffer.length * 2);
+      }
+      pos += deflater.deflate(buffer, pos, buffer.length - pos);
+    }
+    if(pos + TRAILER_LENGTH > buffer.length) {
+      buffer = current.buffer(pos + TRAILER_LENGTH);
+    }
+
+    current.crc.reset();
+    current.crc.update(data, 0, data.length);
+    pos = writeIntLE(buffer, pos, (int) current.crc.getValue());
+    pos = writeIntLE(buffer, pos, data.length);
+    return Arrays.copyOf(buffer, pos);
+  }
+
+  private static int writeIntLE(byte[] out, int pos, int value) {
+    out[pos] = (byte) value;
+    out[pos + 1] = (byte) (value >>> 8);
+    out[pos + 2] = (byte) (value >>> 16);
+    out[pos + 3] = (byte) (value >>> 24);
+    return pos + 4;
+  }
+
+  private static final class State {
+    final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    final CRC32 crc = new CRC32();
+    byte[] buffer = new byte[0];
+
+    /**
+     * Returns the output buffer, grown to at least the given size while
+     * keeping its content.
+     */
+    byte[] buffer(int minSize) {
+      if(buffer.length < minSize) {
+        buffer = Arrays.copyOf(buffer, Math.max(minSize, buffer.length * 2));
+      }
+      return buffer;
+    }
+  }
+}
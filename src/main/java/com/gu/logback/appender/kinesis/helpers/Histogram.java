@@ -0,0 +1,94 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values with log-linear buckets, in the
+ * style of HdrHistogram: every power of two is split into 16 linear buckets,
+ * so recorded values are reported within 1/16 (about 6%) of their actual
+ * value. Recording a value is a few shifts and an atomic increment, and the
+ * footprint is fixed at about 8 KiB.
+ */
+public final class Histogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * @param value value to record, negative values are recorded as zero
+   */
+  public void record(long value) {
+    long v = Math.max(0, value);
+    counts.incrementAndGet(bucketOf(v));
+    count.increment();
+    sum.add(v);
+    long currentMax;
+    while(v > (currentMax = max.get()) && !max.compareAndSet(currentMax, v)) {
+      // retry
+    }
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    long n = count.sum();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * @param percentile percentile between 0 and 100
+   * @return highest value of the bucket holding the percentile, 0 if nothing
+   *         has been recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    long total = 0;
+    for(int i = 0; i < BUCKETS; i++) {
+      total += counts.get(i);
+    }
+    if(total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, percentile) / 100));
+    long seen = 0;
+    for(int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if(seen >= rank) {
+        return Math.min(highestValueOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  private static int bucketOf(long value) {
+    if(value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long highestValueOf(int bucket) {
+    if(bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long subBucket = bucket % SUB_BUCKETS;
+    long lowest = (1L << exponent) | (subBucket << (exponent - SUB_BUCKET_BITS));
+    return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+}
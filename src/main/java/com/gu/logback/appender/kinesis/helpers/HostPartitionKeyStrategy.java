@@ -0,0 +1,28 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Uses the name of the host as the partition key of all events, so that the
+ * events of each host go to a single shard, in order.
+ */
+public class HostPartitionKeyStrategy<E> implements PartitionKeyStrategy<E> {
+
+  private final String hostName = findHostName();
+
+  @Override
+  public String partitionKey(E event) {
+    return hostName;
+  }
+
+  private static String findHostName() {
+    try {
+      return InetAddress.getLocalHost().getHostName();
+    }
+    catch(UnknownHostException e) {
+      String hostName = System.getenv("HOSTNAME");
+      return Validator.isBlank(hostName) ? "localhost" : hostName;
+    }
+  }
+}
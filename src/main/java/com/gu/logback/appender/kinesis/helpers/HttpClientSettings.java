@@ -0,0 +1,272 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.time.Duration;
+import java.util.ServiceLoader;
+import java.util.concurrent.ThreadFactory;
+
+import software.amazon.awssdk.http.Protocol;
+import software.amazon.awssdk.http.SdkHttpConfigurationOption;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.async.SdkAsyncHttpService;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.SdkEventLoopGroup;
+import software.amazon.awssdk.utils.AttributeMap;
+
+/**
+ * Settings of the asynchronous HTTP client requests are sent with: which
+ * implementation to use, and how it manages its connections. Settings left
+ * unset keep the defaults of the service, such as HTTP/2 for Kinesis, then
+ * those of the implementation, and settings an implementation doesn't support
+ * are ignored by it.
+ *
+ * The client is built through the SDK's service interface, so the appender
+ * doesn't depend on any implementation.
+ */
+public class HttpClientSettings {
+
+  private HttpClientType type = HttpClientType.DEFAULT;
+  private Integer maxConcurrency;
+  private Integer maxPendingConnectionAcquires;
+  private Long connectionAcquisitionTimeoutMillis;
+  private Long connectionTimeoutMillis;
+  private Long connectionTimeToLiveMillis;
+  private Long connectionMaxIdleMillis;
+  private Boolean tcpKeepAlive;
+  private Protocol protocol;
+
+  /**
+   * @param serviceDefaults settings the SDK client of the service applies to
+   *          the HTTP clients it builds itself, for those left unset here
+   * @return a new HTTP client, which the caller must close
+   * @throws IllegalStateException if the implementation isn't on the
+   *           classpath
+   */
+  public SdkAsyncHttpClient createHttpClient(AttributeMap serviceDefaults) {
+    return createHttpClient(serviceDefaults, null);
+  }
+
+  /**
+   * @param serviceDefaults settings the SDK client of the service applies to
+   *          the HTTP clients it builds itself, for those left unset here
+   * @param threadFactory factory for the event loop threads of a Netty
+   *          client, null for Netty's own, ignored by the other
+   *          implementations
+   * @return a new HTTP client, which the caller must close
+   * @throws IllegalStateException if the implementation isn't on the
+   *           classpath
+   */
+  public SdkAsyncHttpClient createHttpClient(AttributeMap serviceDefaults, ThreadFactory threadFactory) {
+    return createHttpClient(serviceDefaults, threadFactory, HttpClientSettings.class.getClassLoader());
+  }
+
+  /**
+   * @param classLoader class loader the implementations are looked up with
+   * @see #createHttpClient(AttributeMap, ThreadFactory)
+   */
+  SdkAsyncHttpClient createHttpClient(AttributeMap serviceDefaults, ThreadFactory threadFactory,
+      ClassLoader classLoader) {
+    SdkAsyncHttpService service = findService(classLoader);
+    AttributeMap attributes = toAttributeMap().merge(serviceDefaults);
+    if(threadFactory != null && HttpClientType.NETTY.getServiceClassName().equals(service.getClass().getName())) {
+      return NettyClients.create(attributes, threadFactory);
+    }
+    return service.createAsyncHttpClientFactory().buildWithDefaults(attributes);
+  }
+
+  /**
+   * @return a copy of these settings with a maximum number of connections,
+   *         unless they already have one
+   */
+  public HttpClientSettings withDefaultMaxConcurrency(int maxConcurrency) {
+    HttpClientSettings copy = copy();
+    if(copy.maxConcurrency == null) {
+      copy.maxConcurrency = maxConcurrency;
+    }
+    return copy;
+  }
+
+  private HttpClientSettings copy() {
+    HttpClientSettings copy = new HttpClientSettings();
+    copy.type = type;
+    copy.maxConcurrency = maxConcurrency;
+    copy.maxPendingConnectionAcquires = maxPendingConnectionAcquires;
+    copy.connectionAcquisitionTimeoutMillis = connectionAcquisitionTimeoutMillis;
+    copy.connectionTimeoutMillis = connectionTimeoutMillis;
+    copy.connectionTimeToLiveMillis = connectionTimeToLiveMillis;
+    copy.connectionMaxIdleMillis = connectionMaxIdleMillis;
+    copy.tcpKeepAlive = tcpKeepAlive;
+    copy.protocol = protocol;
+    return copy;
+  }
+
+  private SdkAsyncHttpService findService(ClassLoader classLoader) {
+    for(SdkAsyncHttpService service : ServiceLoader.load(SdkAsyncHttpService.class, classLoader)) {
+      if(type.getServiceClassName() == null || type.getServiceClassName().equals(service.getClass().getName())) {
+        return service;
+      }
+    }
+    if(type == HttpClientType.DEFAULT) {
+      throw new IllegalStateException("No asynchronous HTTP client implementation found on the classpath");
+    }
+    throw new IllegalStateException("HTTP client " + type + " not found on the classpath");
+  }
+
+  private AttributeMap toAttributeMap() {
+    AttributeMap.Builder attributes = AttributeMap.builder();
+    if(maxConcurrency != null) {
+      attributes.put(SdkHttpConfigurationOption.MAX_CONNECTIONS, maxConcurrency);
+    }
+    if(maxPendingConnectionAcquires != null) {
+      attributes.put(SdkHttpConfigurationOption.MAX_PENDING_CONNECTION_ACQUIRES, maxPendingConnectionAcquires);
+    }
+    if(connectionAcquisitionTimeoutMillis != null) {
+      attributes.put(SdkHttpConfigurationOption.CONNECTION_ACQUIRE_TIMEOUT,
+                     Duration.ofMillis(connectionAcquisitionTimeoutMillis));
+    }
+    if(connectionTimeoutMillis != null) {
+      attributes.put(SdkHttpConfigurationOption.CONNECTION_TIMEOUT, Duration.ofMillis(connectionTimeoutMillis));
+    }
+    if(connectionTimeToLiveMillis != null) {
+      attributes.put(SdkHttpConfigurationOption.CONNECTION_TIME_TO_LIVE, Duration.ofMillis(connectionTimeToLiveMillis));
+    }
+    if(connectionMaxIdleMillis != null) {
+      attributes.put(SdkHttpConfigurationOption.CONNECTION_MAX_IDLE_TIMEOUT, Duration.ofMillis(connectionMaxIdleMillis));
+    }
+    if(tcpKeepAlive != null) {
+      attributes.put(SdkHttpConfigurationOption.TCP_KEEPALIVE, tcpKeepAlive);
+    }
+    if(protocol != null) {
+      attributes.put(SdkHttpConfigurationOption.PROTOCOL, protocol);
+    }
+    return attributes.build();
+  }
+
+  public HttpClientType getType() {
+    return type;
+  }
+
+  /**
+   * @param type implementation of the client, the one the SDK finds by
+   *          default
+   */
+  public void setType(HttpClientType type) {
+    Validator.validate(type != null, "type cannot be null");
+    this.type = type;
+  }
+
+  public Integer getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  /**
+   * @param maxConcurrency maximum number of connections, 50 by default with
+   *          Netty, and of concurrent streams over them with HTTP/2
+   */
+  public void setMaxConcurrency(int maxConcurrency) {
+    Validator.validate(maxConcurrency > 0, "maxConcurrency must be > 0");
+    this.maxConcurrency = maxConcurrency;
+  }
+
+  public Integer getMaxPendingConnectionAcquires() {
+    return maxPendingConnectionAcquires;
+  }
+
+  /**
+   * @param maxPendingConnectionAcquires maximum number of requests waiting
+   *          for a connection, beyond which they fail, 10000 by default with
+   *          Netty
+   */
+  public void setMaxPendingConnectionAcquires(int maxPendingConnectionAcquires) {
+    Validator.validate(maxPendingConnectionAcquires > 0, "maxPendingConnectionAcquires must be > 0");
+    this.maxPendingConnectionAcquires = maxPendingConnectionAcquires;
+  }
+
+  public Long getConnectionAcquisitionTimeoutMillis() {
+    return connectionAcquisitionTimeoutMillis;
+  }
+
+  /**
+   * @param connectionAcquisitionTimeoutMillis maximum time a request waits
+   *          for a connection, 10 seconds by default with Netty
+   */
+  public void setConnectionAcquisitionTimeoutMillis(long connectionAcquisitionTimeoutMillis) {
+    Validator.validate(connectionAcquisitionTimeoutMillis > 0, "connectionAcquisitionTimeoutMillis must be > 0");
+    this.connectionAcquisitionTimeoutMillis = connectionAcquisitionTimeoutMillis;
+  }
+
+  public Long getConnectionTimeoutMillis() {
+    return connectionTimeoutMillis;
+  }
+
+  /**
+   * @param connectionTimeoutMillis maximum time to establish a connection
+   */
+  public void setConnectionTimeoutMillis(long connectionTimeoutMillis) {
+    Validator.validate(connectionTimeoutMillis > 0, "connectionTimeoutMillis must be > 0");
+    this.connectionTimeoutMillis = connectionTimeoutMillis;
+  }
+
+  public Long getConnectionTimeToLiveMillis() {
+    return connectionTimeToLiveMillis;
+  }
+
+  /**
+   * @param connectionTimeToLiveMillis maximum time a connection is reused,
+   *          so that new ones spread over new hosts of the service, unlimited
+   *          by default
+   */
+  public void setConnectionTimeToLiveMillis(long connectionTimeToLiveMillis) {
+    Validator.validate(connectionTimeToLiveMillis >= 0, "connectionTimeToLiveMillis must be >= 0");
+    this.connectionTimeToLiveMillis = connectionTimeToLiveMillis;
+  }
+
+  public Long getConnectionMaxIdleMillis() {
+    return connectionMaxIdleMillis;
+  }
+
+  /**
+   * @param connectionMaxIdleMillis maximum time a connection stays open
+   *          unused
+   */
+  public void setConnectionMaxIdleMillis(long connectionMaxIdleMillis) {
+    Validator.validate(connectionMaxIdleMillis > 0, "connectionMaxIdleMillis must be > 0");
+    this.connectionMaxIdleMillis = connectionMaxIdleMillis;
+  }
+
+  public Boolean getTcpKeepAlive() {
+    return tcpKeepAlive;
+  }
+
+  /**
+   * @param tcpKeepAlive whether to send TCP keep-alive probes on idle
+   *          connections, false by default
+   */
+  public void setTcpKeepAlive(boolean tcpKeepAlive) {
+    this.tcpKeepAlive = tcpKeepAlive;
+  }
+
+  public Protocol getProtocol() {
+    return protocol;
+  }
+
+  /**
+   * @param protocol HTTP1_1, or HTTP2, which multiplexes requests over fewer
+   *          connections (Netty only). Left unset, the service's default
+   *          applies: HTTP2 for Kinesis, HTTP1_1 for Firehose
+   */
+  public void setProtocol(Protocol protocol) {
+    Validator.validate(protocol != null, "protocol cannot be null");
+    this.protocol = protocol;
+  }
+
+  /**
+   * Builds Netty clients, only loaded once Netty is found on the classpath.
+   */
+  private static final class NettyClients {
+    static SdkAsyncHttpClient create(AttributeMap attributes, ThreadFactory threadFactory) {
+      return NettyNioAsyncHttpClient.builder()
+        .eventLoopGroupBuilder(SdkEventLoopGroup.builder().threadFactory(threadFactory))
+        .buildWithDefaults(attributes);
+    }
+  }
+}
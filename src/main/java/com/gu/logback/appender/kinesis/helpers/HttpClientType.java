@@ -0,0 +1,36 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+/**
+ * Implementation of the SDK's asynchronous HTTP client the appenders send
+ * their requests with.
+ */
+public enum HttpClientType {
+  /**
+   * Whichever implementation is on the classpath, as the SDK would pick it.
+   */
+  DEFAULT(null),
+  /**
+   * The Netty based client, the SDK's default, which speaks HTTP/1.1 and
+   * HTTP/2.
+   */
+  NETTY("software.amazon.awssdk.http.nio.netty.NettySdkAsyncHttpService"),
+  /**
+   * The client based on the AWS Common Runtime, which does its I/O in native
+   * code. Requires software.amazon.awssdk:aws-crt-client on the classpath.
+   */
+  CRT("software.amazon.awssdk.http.crt.AwsCrtSdkHttpService");
+
+  private final String serviceClassName;
+
+  HttpClientType(String serviceClassName) {
+    this.serviceClassName = serviceClassName;
+  }
+
+  /**
+   * @return class name of the SDK's service loading this implementation, null
+   *         for {@link #DEFAULT}
+   */
+  public String getServiceClassName() {
+    return serviceClassName;
+  }
+}
@@ -0,0 +1,285 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caps the number of requests, and of bytes, sent and not yet completed. A
+ * request that doesn't fit in the window is either waited for, holding up the
+ * sender, or queued to be sent by whichever thread completes a request and
+ * makes room for it. Threads completing requests must never wait, since they
+ * are the ones the window is waiting for, so they queue theirs (e.g.
+ * retries), which are few.
+ *
+ * A request larger than the byte limit is sent once nothing else is in
+ * flight. Waiting goes through a {@link ReentrantLock} rather than a monitor,
+ * so that virtual threads waiting for room don't hold on to their carrier
+ * thread.
+ */
+public final class InFlightWindow {
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notFull = lock.newCondition();
+  private final ArrayDeque<QueuedRequest> queued = new ArrayDeque<QueuedRequest>();
+  private int maxRequests;
+  private long maxBytes;
+  private int requests;
+  private long bytes;
+  private boolean suspended;
+  private boolean closed;
+
+  /**
+   * @param maxRequests maximum number of requests in flight
+   * @param maxBytes maximum number of bytes in flight
+   */
+  public InFlightWindow(int maxRequests, long maxBytes) {
+    Validator.validate(maxRequests > 0, "maxRequests must be > 0");
+    Validator.validate(maxBytes > 0, "maxBytes must be > 0");
+    this.maxRequests = maxRequests;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Sends a request as soon as the window has room for it. Waiting returns
+   * early once the window is closed, and when interrupted, in which case the
+   * interrupt status is kept.
+   *
+   * @param size number of bytes of the request
+   * @param request sends the request, on the calling thread or on the thread
+   *          completing an earlier request
+   * @param mayWait whether the caller may wait for room, rather than queuing
+   *          the request
+   * @return true if the window was full
+   */
+  public boolean send(long size, Runnable request, boolean mayWait) {
+    boolean full = false;
+    lock.lock();
+    try {
+      if(!closed && (!queued.isEmpty() || !fits(size))) {
+        full = true;
+        if(!mayWait) {
+          queued.add(new QueuedRequest(size, request));
+          return true;
+        }
+        while(!closed && (!queued.isEmpty() || !fits(size))) {
+          notFull.await();
+        }
+      }
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    finally {
+      if(!full || mayWait) {
+        requests++;
+        bytes += size;
+      }
+      lock.unlock();
+    }
+    request.run();
+    return full;
+  }
+
+  /**
+   * Gives back the room of a completed request, and sends the queued requests
+   * that now fit.
+   *
+   * @param size number of bytes of the request
+   */
+  public void release(long size) {
+    List<Runnable> ready;
+    lock.lock();
+    try {
+      requests--;
+      bytes -= size;
+      ready = takeReady();
+      notFull.signalAll();
+    }
+    finally {
+      lock.unlock();
+    }
+    run(ready);
+  }
+
+  /**
+   * Changes the limits of the window. Requests already in flight aren't
+   * affected by lower limits, but no new one is sent until they fit, and
+   * higher limits let waiting and queued requests through straight away.
+   *
+   * @param maxRequests maximum number of requests in flight
+   * @param maxBytes maximum number of bytes in flight
+   */
+  public void setLimits(int maxRequests, long maxBytes) {
+    Validator.validate(maxRequests > 0, "maxRequests must be > 0");
+    Validator.validate(maxBytes > 0, "maxBytes must be > 0");
+    List<Runnable> ready;
+    lock.lock();
+    try {
+      this.maxRequests = maxRequests;
+      this.maxBytes = maxBytes;
+      ready = takeReady();
+      notFull.signalAll();
+    }
+    finally {
+      lock.unlock();
+    }
+    run(ready);
+  }
+
+  /**
+   * Holds back all requests, as if the window were full, until resumed or
+   * closed, e.g. while the destination isn't known to be ready yet.
+   */
+  public void suspend() {
+    lock.lock();
+    try {
+      suspended = true;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Lets requests through again after {@link #suspend()}, sending the queued
+   * ones that fit.
+   */
+  public void resume() {
+    List<Runnable> ready;
+    lock.lock();
+    try {
+      suspended = false;
+      ready = takeReady();
+      notFull.signalAll();
+    }
+    finally {
+      lock.unlock();
+    }
+    run(ready);
+  }
+
+  /**
+   * Lets all current and future senders through without waiting, and sends
+   * the queued requests.
+   */
+  public void close() {
+    List<Runnable> ready;
+    lock.lock();
+    try {
+      closed = true;
+      ready = takeReady();
+      notFull.signalAll();
+    }
+    finally {
+      lock.unlock();
+    }
+    run(ready);
+  }
+
+  /**
+   * Waits for all the requests sent to complete, and for none to be queued.
+   *
+   * @param timeout maximum time to wait
+   * @param unit unit of the timeout
+   * @return true if nothing is in flight or queued
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+    long remaining = unit.toNanos(timeout);
+    lock.lock();
+    try {
+      while(requests > 0 || !queued.isEmpty()) {
+        if(remaining <= 0) {
+          return false;
+        }
+        remaining = notFull.awaitNanos(remaining);
+      }
+      return true;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Takes the queued requests that now fit in the window, all of them once it
+   * is closed, and counts them in. Called with the lock held.
+   */
+  private List<Runnable> takeReady() {
+    if(queued.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<Runnable> ready = new ArrayList<Runnable>();
+    while(!queued.isEmpty() && (closed || fits(queued.peek().size))) {
+      QueuedRequest next = queued.poll();
+      requests++;
+      bytes += next.size;
+      ready.add(next.request);
+    }
+    return ready;
+  }
+
+  private static void run(List<Runnable> requests) {
+    for(Runnable request : requests) {
+      request.run();
+    }
+  }
+
+  private boolean fits(long size) {
+    return !suspended && requests < maxRequests && (requests == 0 || bytes + size <= maxBytes);
+  }
+
+  /**
+   * @return number of requests in flight
+   */
+  public int getRequestCount() {
+    lock.lock();
+    try {
+      return requests;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return number of bytes in flight
+   */
+  public long getByteCount() {
+    lock.lock();
+    try {
+      return bytes;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return number of requests queued for room in the window
+   */
+  public int getQueuedCount() {
+    lock.lock();
+    try {
+      return queued.size();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  private static final class QueuedRequest {
+    private final long size;
+    private final Runnable request;
+
+    QueuedRequest(long size, Runnable request) {
+      this.size = size;
+      this.request = request;
+    }
+  }
+}
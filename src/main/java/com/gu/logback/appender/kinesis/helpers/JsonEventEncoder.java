@@ -0,0 +1,407 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import ch.qos.logback.core.CoreConstants;
+import ch.qos.logback.core.encoder.EncoderBase;
+
+/**
+ * Encodes each event as one line of JSON, straight into UTF-8 bytes:
+ *
+ * <pre>
+ * {"timestamp":"2024-05-01T12:00:00.123Z","level":"INFO","thread":"main","logger":"com.example.Service","message":"Started","mdc":{"requestId":"42"},"exception":"java.lang.IllegalStateException: ..."}
+ * </pre>
+ *
+ * Field names and levels are encoded once, logger and thread names once each
+ * (up to a bound), and the timestamp, in UTC, reuses the part up to the
+ * seconds for all the events of the same second. The MDC and the stack trace
+ * are written as they are read, into buffers reused from a pool, so the
+ * encoder is thread-safe and allocates little more than the returned bytes.
+ * The pool keeps a buffer per processor at most, rather than one per logging
+ * thread for the life of the thread.
+ */
+public class JsonEventEncoder extends EncoderBase<ILoggingEvent> {
+
+  private static final int MAX_CACHED_NAMES = 4096;
+  private static final int INITIAL_BUFFER_SIZE = 512;
+  private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_POOLED_BUFFERS = Runtime.getRuntime().availableProcessors();
+  private static final DateTimeFormatter SECOND_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.");
+  private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+  private static final byte[] TIMESTAMP = ascii("{\"timestamp\":\"");
+  private static final byte[] LEVEL = ascii("Z\",\"level\":\"");
+  private static final byte[] THREAD = ascii("\",\"thread\":\"");
+  private static final byte[] LOGGER = ascii("\",\"logger\":\"");
+  private static final byte[] MESSAGE = ascii("\",\"message\":\"");
+  private static final byte[] MDC = ascii(",\"mdc\":{");
+  private static final byte[] EXCEPTION = ascii(",\"exception\":\"");
+  private static final byte[] END = ascii("}\n");
+  private static final byte[] CAUSED_BY = ascii(CoreConstants.CAUSED_BY);
+  private static final byte[] SUPPRESSED = ascii(CoreConstants.SUPPRESSED);
+  private static final byte[] NEWLINE = ascii("\\n");
+  private static final byte[] TAB = ascii("\\t");
+  private static final byte[] ELLIPSIS = ascii("... ");
+  private static final byte[] COMMON_FRAMES_OMITTED = ascii(" common frames omitted");
+  private static final byte[][] LEVELS = { ascii("TRACE"), ascii("DEBUG"), ascii("INFO"), ascii("WARN"), ascii("ERROR") };
+
+  private final Map<String, byte[]> names = new ConcurrentHashMap<String, byte[]>();
+  private final ArrayDeque<Output> pool = new ArrayDeque<Output>();
+  private volatile CachedSecond cachedSecond = new CachedSecond(Long.MIN_VALUE, new byte[0]);
+  private boolean includeMdc = true;
+  private boolean includeStackTrace = true;
+
+  @Override
+  public byte[] headerBytes() {
+    return null;
+  }
+
+  @Override
+  public byte[] footerBytes() {
+    return null;
+  }
+
+  @Override
+  public byte[] encode(ILoggingEvent event) {
+    Output out = take();
+    try {
+      return encode(out, event);
+    }
+    finally {
+      giveBack(out);
+    }
+  }
+
+  /**
+   * Lets the pooled buffers be garbage collected.
+   */
+  @Override
+  public void stop() {
+    synchronized(this) {
+      pool.clear();
+    }
+    super.stop();
+  }
+
+  private synchronized Output take() {
+    Output pooled = pool.pollFirst();
+    return pooled != null ? pooled : new Output();
+  }
+
+  private void giveBack(Output out) {
+    out.reset();
+    synchronized(this) {
+      if(pool.size() < MAX_POOLED_BUFFERS) {
+        pool.addFirst(out);
+      }
+    }
+  }
+
+  private byte[] encode(Output out, ILoggingEvent event) {
+    out.write(TIMESTAMP);
+    writeTimestamp(out, event.getTimeStamp());
+    out.write(LEVEL);
+    out.write(levelOf(event.getLevel()));
+    out.write(THREAD);
+    writeName(out, event.getThreadName());
+    out.write(LOGGER);
+    writeName(out, event.getLoggerName());
+    out.write(MESSAGE);
+    out.writeEscaped(event.getFormattedMessage());
+    out.write('"');
+    if(includeMdc) {
+      writeMdc(out, event.getMDCPropertyMap());
+    }
+    IThrowableProxy throwable = event.getThrowableProxy();
+    if(throwable != null && includeStackTrace) {
+      out.write(EXCEPTION);
+      writeThrowable(out, throwable, null, 0);
+      out.write('"');
+    }
+    out.write(END);
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes the timestamp, reusing the date and time up to the seconds while
+   * the events are in the same second, and appending the milliseconds.
+   */
+  private void writeTimestamp(Output out, long timestamp) {
+    long epochSecond = Math.floorDiv(timestamp, 1000L);
+    CachedSecond second = cachedSecond;
+    if(second.epochSecond != epochSecond) {
+      LocalDateTime time = LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC);
+      second = new CachedSecond(epochSecond, ascii(SECOND_FORMAT.format(time)));
+      cachedSecond = second;
+    }
+    out.write(second.prefix);
+    int millis = (int) Math.floorMod(timestamp, 1000L);
+    out.write('0' + millis / 100);
+    out.write('0' + millis / 10 % 10);
+    out.write('0' + millis % 10);
+  }
+
+  private static byte[] levelOf(Level level) {
+    switch(level.toInt()) {
+      case Level.TRACE_INT:
+        return LEVELS[0];
+      case Level.DEBUG_INT:
+        return LEVELS[1];
+      case Level.INFO_INT:
+        return LEVELS[2];
+      case Level.WARN_INT:
+        return LEVELS[3];
+      default:
+        return LEVELS[4];
+    }
+  }
+
+  /**
+   * Writes a logger or thread name, escaped and encoded once. Once the cache
+   * is full, e.g. with a thread per request, other names are encoded for each
+   * event.
+   */
+  private void writeName(Output out, String name) {
+    if(name == null) {
+      return;
+    }
+    byte[] encoded = names.get(name);
+    if(encoded != null) {
+      out.write(encoded);
+      return;
+    }
+    int start = out.pos;
+    out.writeEscaped(name);
+    if(names.size() < MAX_CACHED_NAMES) {
+      names.put(name, Arrays.copyOfRange(out.buffer, start, out.pos));
+    }
+  }
+
+  private static void writeMdc(Output out, Map<String, String> mdc) {
+    if(mdc == null || mdc.isEmpty()) {
+      return;
+    }
+    out.write(MDC);
+    boolean first = true;
+    for(Map.Entry<String, String> entry : mdc.entrySet()) {
+      if(!first) {
+        out.write(',');
+      }
+      first = false;
+      out.write('"');
+      out.writeEscaped(entry.getKey());
+      out.write('"');
+      out.write(':');
+      out.write('"');
+      out.writeEscaped(entry.getValue());
+      out.write('"');
+    }
+    out.write('}');
+  }
+
+  /**
+   * Writes a stack trace the way Logback prints it, causes and suppressed
+   * exceptions included, escaping it as it goes.
+   */
+  private static void writeThrowable(Output out, IThrowableProxy throwable, byte[] prefix, int indent) {
+    writeIndent(out, indent);
+    if(prefix != null) {
+      out.write(prefix);
+    }
+    out.writeEscaped(throwable.getClassName());
+    String message = throwable.getMessage();
+    if(message != null) {
+      out.write(':');
+      out.write(' ');
+      out.writeEscaped(message);
+    }
+    StackTraceElementProxy[] frames = throwable.getStackTraceElementProxyArray();
+    int commonFrames = throwable.getCommonFrames();
+    for(int i = 0; i < frames.length - commonFrames; i++) {
+      out.write(NEWLINE);
+      writeIndent(out, indent + 1);
+      out.writeEscaped(frames[i].getSTEAsString());
+    }
+    if(commonFrames > 0) {
+      out.write(NEWLINE);
+      writeIndent(out, indent + 1);
+      out.write(ELLIPSIS);
+      out.write(ascii(Integer.toString(commonFrames)));
+      out.write(COMMON_FRAMES_OMITTED);
+    }
+    IThrowableProxy[] suppressed = throwable.getSuppressed();
+    if(suppressed != null) {
+      for(IThrowableProxy each : suppressed) {
+        out.write(NEWLINE);
+        writeThrowable(out, each, SUPPRESSED, indent + 1);
+      }
+    }
+    IThrowableProxy cause = throwable.getCause();
+    if(cause != null) {
+      out.write(NEWLINE);
+      writeThrowable(out, cause, CAUSED_BY, indent);
+    }
+  }
+
+  private static void writeIndent(Output out, int indent) {
+    for(int i = 0; i < indent; i++) {
+      out.write(TAB);
+    }
+  }
+
+  private static byte[] ascii(String value) {
+    return value.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  public boolean isIncludeMdc() {
+    return includeMdc;
+  }
+
+  /**
+   * @param includeMdc whether to write the MDC of events as an object, true
+   *          by default
+   */
+  public void setIncludeMdc(boolean includeMdc) {
+    this.includeMdc = includeMdc;
+  }
+
+  public boolean isIncludeStackTrace() {
+    return includeStackTrace;
+  }
+
+  /**
+   * @param includeStackTrace whether to write the stack trace of the
+   *          exception of events, true by default
+   */
+  public void setIncludeStackTrace(boolean includeStackTrace) {
+    this.includeStackTrace = includeStackTrace;
+  }
+
+  private static final class CachedSecond {
+    final long epochSecond;
+    final byte[] prefix;
+
+    CachedSecond(long epochSecond, byte[] prefix) {
+      this.epochSecond = epochSecond;
+      this.prefix = prefix;
+    }
+  }
+
+  /**
+   * Growable output buffer writing strings as escaped JSON in UTF-8.
+   */
+  private static final class Output {
+    byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    int pos;
+
+    void reset() {
+      if(buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+        // don't hold on to the buffer of an event with a huge message
+        buffer = new byte[INITIAL_BUFFER_SIZE];
+      }
+      pos = 0;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(buffer, pos);
+    }
+
+    void write(int b) {
+      ensure(1);
+      buffer[pos++] = (byte) b;
+    }
+
+    void write(byte[] bytes) {
+      write(bytes, 0, bytes.length);
+    }
+
+    void write(byte[] bytes, int offset, int length) {
+      ensure(length);
+      System.arraycopy(bytes, offset, buffer, pos, length);
+      pos += length;
+    }
+
+    void writeEscaped(String value) {
+      if(value == null) {
+        return;
+      }
+      int length = value.length();
+      // each char takes at most 6 bytes, as a \\u escape
+      ensure(length * 6);
+      byte[] buf = buffer;
+      int p = pos;
+      for(int i = 0; i < length; i++) {
+        char c = value.charAt(i);
+        if(c < 0x80) {
+          if(c >= 0x20 && c != '"' && c != '\\') {
+            buf[p++] = (byte) c;
+          } else {
+            p = escape(buf, p, c);
+          }
+        } else if(c < 0x800) {
+          buf[p++] = (byte) (0xc0 | c >> 6);
+          buf[p++] = (byte) (0x80 | c & 0x3f);
+        } else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, value.charAt(++i));
+          buf[p++] = (byte) (0xf0 | codePoint >> 18);
+          buf[p++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+          buf[p++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+          buf[p++] = (byte) (0x80 | codePoint & 0x3f);
+        } else if(Character.isSurrogate(c)) {
+          // unpaired surrogate, as String.getBytes would replace it
+          buf[p++] = '?';
+        } else {
+          buf[p++] = (byte) (0xe0 | c >> 12);
+          buf[p++] = (byte) (0x80 | c >> 6 & 0x3f);
+          buf[p++] = (byte) (0x80 | c & 0x3f);
+        }
+      }
+      pos = p;
+    }
+
+    private static int escape(byte[] buf, int p, char c) {
+      buf[p++] = '\\';
+      switch(c) {
+        case '"':
+          buf[p++] = '"';
+          break;
+        case '\\':
+          buf[p++] = '\\';
+          break;
+        case '\n':
+          buf[p++] = 'n';
+          break;
+        case '\r':
+          buf[p++] = 'r';
+          break;
+        case '\t':
+          buf[p++] = 't';
+          break;
+        default:
+          buf[p++] = 'u';
+          buf[p++] = '0';
+          buf[p++] = '0';
+          buf[p++] = HEX[c >> 4];
+          buf[p++] = HEX[c & 0xf];
+      }
+      return p;
+    }
+
+    private void ensure(int length) {
+      if(pos + length > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(pos + length, buffer.length * 2));
+      }
+    }
+  }
+}
@@ -0,0 +1,170 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregates several records into a single Kinesis record using the aggregated
+ * record format of the Kinesis Producer Library, so that KCL consumers (or the
+ * standalone deaggregation libraries) transparently split them up again.
+ *
+ * An aggregated record is made of the KPL magic bytes, a protobuf encoded
+ * {@code AggregatedRecord} message and the MD5 digest of that message:
+ *
+ * <pre>
+ * message AggregatedRecord {
+ *   repeated string partition_key_table = 1;
+ *   repeated string explicit_hash_key_table = 2;
+ *   repeated Record records = 3;
+ * }
+ * message Record {
+ *   required uint64 partition_key_index = 1;
+ *   optional uint64 explicit_hash_key_index = 2;
+ *   required bytes data = 3;
+ * }
+ * </pre>
+ *
+ * The partition key table starts with the partition key of the aggregate,
+ * followed by the other partition keys of its records, each written once, so
+ * that consumers get every record with its own partition key back. The
+ * aggregate as a whole goes to the shard of its own partition key.
+ */
+public final class KplAggregationFormat implements AggregationFormat {
+
+  private static final byte[] MAGIC = { (byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC2 };
+  private static final int DIGEST_LENGTH = 16;
+  private static final int MAX_PARTITION_KEY_LENGTH = 256;
+  // each record adds at least 5 bytes to an aggregate of at most 1 MiB, so
+  // that indexes in the partition key table stay below 2^21
+  private static final int MAX_INDEX_SIZE = 3;
+
+  // protobuf tags: (field number << 3) | wire type
+  private static final int PARTITION_KEY_TABLE_TAG = (1 << 3) | 2;
+  private static final int RECORDS_TAG = (3 << 3) | 2;
+  private static final int PARTITION_KEY_INDEX_TAG = (1 << 3);
+  private static final int DATA_TAG = (3 << 3) | 2;
+
+  /**
+   * The magic bytes, the digest, and a partition key of the maximum length
+   * both in the key table and in the size accounted for by Kinesis.
+   */
+  private static final int OVERHEAD = MAGIC.length + DIGEST_LENGTH + 1 + varintSize(MAX_PARTITION_KEY_LENGTH)
+                                      + 2 * MAX_PARTITION_KEY_LENGTH;
+
+  @Override
+  public int getOverhead() {
+    return OVERHEAD;
+  }
+
+  /**
+   * The size accounts for the partition key of the record in the partition
+   * key table, as if no other record of the aggregate shared it, and for its
+   * index taking the most bytes it can, so that it is an upper bound.
+   */
+  @Override
+  public int sizeOf(PendingRecord record) {
+    int dataLength = record.getData().asByteArrayUnsafe().length;
+    // the size of a record is its data and its partition key in UTF-8
+    int keyLength = record.getSize() - dataLength;
+    int recordSize = recordMessageSize(MAX_INDEX_SIZE, dataLength);
+    return 1 + varintSize(keyLength) + keyLength + 1 + varintSize(recordSize) + recordSize;
+  }
+
+  @Override
+  public byte[] encode(String partitionKey, List<PendingRecord> records) {
+    Map<String, Integer> indexes = new HashMap<String, Integer>();
+    List<byte[]> keys = new ArrayList<byte[]>();
+    int[] recordIndexes = new int[records.size()];
+    int messageSize = addKey(partitionKey, indexes, keys);
+    for(int i = 0; i < records.size(); i++) {
+      PendingRecord record = records.get(i);
+      String key = record.getPartitionKey() != null ? record.getPartitionKey() : partitionKey;
+      Integer index = indexes.get(key);
+      if(index == null) {
+        index = keys.size();
+        messageSize += addKey(key, indexes, keys);
+      }
+      recordIndexes[i] = index;
+      int recordSize = recordMessageSize(varintSize(index), record.getData().asByteArrayUnsafe().length);
+      messageSize += 1 + varintSize(recordSize) + recordSize;
+    }
+
+    byte[] out = new byte[MAGIC.length + messageSize + DIGEST_LENGTH];
+    System.arraycopy(MAGIC, 0, out, 0, MAGIC.length);
+    int pos = MAGIC.length;
+    for(byte[] key : keys) {
+      pos = writeVarint(out, pos, PARTITION_KEY_TABLE_TAG);
+      pos = writeBytes(out, pos, key);
+    }
+    for(int i = 0; i < records.size(); i++) {
+      byte[] data = records.get(i).getData().asByteArrayUnsafe();
+      int index = recordIndexes[i];
+      pos = writeVarint(out, pos, RECORDS_TAG);
+      pos = writeVarint(out, pos, recordMessageSize(varintSize(index), data.length));
+      pos = writeVarint(out, pos, PARTITION_KEY_INDEX_TAG);
+      pos = writeVarint(out, pos, index);
+      pos = writeVarint(out, pos, DATA_TAG);
+      pos = writeBytes(out, pos, data);
+    }
+
+    MessageDigest md5 = newMd5();
+    md5.update(out, MAGIC.length, messageSize);
+    System.arraycopy(md5.digest(), 0, out, pos, DIGEST_LENGTH);
+    return out;
+  }
+
+  /**
+   * Adds a partition key to the partition key table.
+   *
+   * @return the number of bytes the key takes in the table
+   */
+  private static int addKey(String partitionKey, Map<String, Integer> indexes, List<byte[]> keys) {
+    byte[] key = partitionKey.getBytes(StandardCharsets.UTF_8);
+    indexes.put(partitionKey, keys.size());
+    keys.add(key);
+    return 1 + varintSize(key.length) + key.length;
+  }
+
+  private static int recordMessageSize(int indexSize, int dataLength) {
+    // partition_key_index (tag + varint) and data (tag + length + bytes)
+    return 1 + indexSize + 1 + varintSize(dataLength) + dataLength;
+  }
+
+  private static int varintSize(int value) {
+    int size = 1;
+    while((value & ~0x7F) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  private static int writeVarint(byte[] out, int pos, int value) {
+    while((value & ~0x7F) != 0) {
+      out[pos++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out[pos++] = (byte) value;
+    return pos;
+  }
+
+  private static int writeBytes(byte[] out, int pos, byte[] bytes) {
+    pos = writeVarint(out, pos, bytes.length);
+    System.arraycopy(bytes, 0, out, pos, bytes.length);
+    return pos + bytes.length;
+  }
+
+  private static MessageDigest newMd5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    }
+    catch(NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 is not available on this JVM", e);
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * Compresses payloads into LZ4 frames (as read by the lz4 command line tool
+ * and the LZ4 frame decoders of other languages), reusing output buffers from
+ * a pool, which holds as many of them as threads have compressed at once.
+ */
+public final class Lz4PayloadCompressor implements PayloadCompressor {
+
+  private static final int MAGIC = 0x184D2204;
+  // version 01, independent blocks, no block or content checksums
+  private static final byte FLG = 0x60;
+  // 4 MiB maximum block size
+  private static final byte BD = 0x70;
+  private static final int MAX_BLOCK_SIZE = 4 * 1024 * 1024;
+  private static final int HEADER_LENGTH = 7;
+  private static final int UNCOMPRESSED_BLOCK_FLAG = 0x80000000;
+
+  private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+  private final byte headerChecksum;
+  private final ArrayDeque<byte[]> buffers = new ArrayDeque<byte[]>();
+  private boolean closed;
+
+  public Lz4PayloadCompressor() {
+    byte[] descriptor = { FLG, BD };
+    this.headerChecksum = (byte) (XXHashFactory.fastestInstance().hash32().hash(descriptor, 0, 2, 0) >> 8);
+  }
+
+  @Override
+  public byte[] compress(byte[] data) {
+    int blocks = Math.max(1, (data.length + MAX_BLOCK_SIZE - 1) / MAX_BLOCK_SIZE);
+    int maxSize = HEADER_LENGTH + blocks * (4 + 16) + compressor.maxCompressedLength(data.length) + 4;
+    byte[] buffer = take();
+    if(buffer.length < maxSize) {
+      buffer = new byte[maxSize];
+    }
+    try {
+      return compress(data, buffer);
+    }
+    finally {
+      giveBack(buffer);
+    }
+  }
+
+  private byte[] compress(byte[] data, byte[] buffer) {
+    int pos = writeIntLE(buffer, 0, MAGIC);
+    buffer[pos++] = FLG;
+    buffer[pos++] = BD;
+    buffer[pos++] = headerChecksum;
+    for(int offset = 0; offset < data.length; offset += MAX_BLOCK_SIZE) {
+      int length = Math.min(MAX_BLOCK_SIZE, data.length - offset);
+      int compressed = compressor.compress(data, offset, length, buffer, pos + 4);
+      if(compressed < length) {
+        pos = writeIntLE(buffer, pos, compressed) + compressed;
+      } else {
+        pos = writeIntLE(buffer, pos, length | UNCOMPRESSED_BLOCK_FLAG);
+        System.arraycopy(data, offset, buffer, pos, length);
+        pos += length;
+      }
+    }
+    pos = writeIntLE(buffer, pos, 0);
+    return Arrays.copyOf(buffer, pos);
+  }
+
+  private synchronized byte[] take() {
+    byte[] pooled = buffers.pollFirst();
+    return pooled != null ? pooled : new byte[0];
+  }
+
+  private synchronized void giveBack(byte[] buffer) {
+    if(!closed) {
+      buffers.addFirst(buffer);
+    }
+  }
+
+  /**
+   * Lets the pooled buffers be garbage collected.
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    buffers.clear();
+  }
+
+  private static int writeIntLE(byte[] out, int pos, int value) {
+    out[pos] = (byte) value;
+    out[pos + 1] = (byte) (value >>> 8);
+    out[pos + 2] = (byte) (value >>> 16);
+    out[pos + 3] = (byte) (value >>> 24);
+    return pos + 4;
+  }
+}
@@ -0,0 +1,41 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.Map;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * Uses the value of an MDC entry as the partition key, so that the events
+ * sharing that value (e.g. a request or session id) go to a single shard, in
+ * order. Events without the entry get a random key.
+ */
+public class MdcPartitionKeyStrategy<E> implements PartitionKeyStrategy<E> {
+
+  private static final int MAX_KEY_LENGTH = 256;
+
+  private String mdcKey;
+
+  @Override
+  public String partitionKey(E event) {
+    if(event instanceof ILoggingEvent) {
+      Map<String, String> mdc = ((ILoggingEvent) event).getMDCPropertyMap();
+      String value = mdc == null ? null : mdc.get(mdcKey);
+      if(value != null && !value.isEmpty()) {
+        return value.length() > MAX_KEY_LENGTH ? value.substring(0, MAX_KEY_LENGTH) : value;
+      }
+    }
+    return RandomPartitionKeyStrategy.randomKey();
+  }
+
+  public String getMdcKey() {
+    return mdcKey;
+  }
+
+  /**
+   * @param mdcKey name of the MDC entry holding the partition key
+   */
+  public void setMdcKey(String mdcKey) {
+    Validator.validate(!Validator.isBlank(mdcKey), "mdcKey cannot be blank");
+    this.mdcKey = mdcKey.trim();
+  }
+}
@@ -0,0 +1,93 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Binds the metrics of an appender to a Micrometer registry, under the
+ * {@code kinesis.appender} prefix and tagged with the appender's name.
+ * Requires io.micrometer:micrometer-core on the classpath.
+ *
+ * <pre>
+ * new MicrometerMetricsBinder(appender.getName(), appender.getMetrics()).bindTo(registry);
+ * </pre>
+ */
+public class MicrometerMetricsBinder implements MeterBinder {
+
+  private static final String PREFIX = "kinesis.appender.";
+
+  private final AppenderMetrics metrics;
+  private final Tags tags;
+
+  /**
+   * @param appenderName name of the appender, used as the "appender" tag
+   * @param metrics metrics of the appender
+   */
+  public MicrometerMetricsBinder(String appenderName, AppenderMetrics metrics) {
+    this.metrics = metrics;
+    this.tags = Tags.of("appender", appenderName);
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    counter(registry, "records.sent", AppenderMetrics::getRecordsSent);
+    counter(registry, "bytes.sent", AppenderMetrics::getBytesSent);
+    counter(registry, "records.failed", AppenderMetrics::getRecordsFailed);
+    counter(registry, "records.throttled", AppenderMetrics::getRecordsThrottled);
+    counter(registry, "records.retried", AppenderMetrics::getRecordsRetried);
+    counter(registry, "records.spilled", AppenderMetrics::getRecordsSpilled);
+    counter(registry, "records.dropped", AppenderMetrics::getRecordsDropped);
+    counter(registry, "events.sent", AppenderMetrics::getEventsSent);
+    counter(registry, "events.spilled", AppenderMetrics::getEventsSpilled);
+    counter(registry, "events.lost", AppenderMetrics::getEventsLost);
+    counter(registry, "events.dropped", AppenderMetrics::getEventsDropped);
+    counter(registry, "requests.succeeded", AppenderMetrics::getRequestsSucceeded);
+    counter(registry, "requests.failed", AppenderMetrics::getRequestsFailed);
+    gauge(registry, "queue.depth", AppenderMetrics::getQueueDepth);
+    gauge(registry, "inflight.requests", AppenderMetrics::getInFlightRequests);
+    gauge(registry, "inflight.bytes", AppenderMetrics::getInFlightBytes);
+    counter(registry, "inflight.window.full", AppenderMetrics::getInFlightWindowFull);
+    gauge(registry, "batch.size.mean", AppenderMetrics::getBatchSizeMean);
+    gauge(registry, "batch.size.max", AppenderMetrics::getBatchSizeMax);
+    FunctionTimer.builder(PREFIX + "latency", metrics, m -> m.getLatencyNanos().getCount(),
+                          m -> m.getLatencyNanos().getMean() * m.getLatencyNanos().getCount(), TimeUnit.NANOSECONDS)
+      .tags(tags)
+      .description("Time from append to acknowledgement of records")
+      .register(registry);
+    gauge(registry, "latency.p50.millis", AppenderMetrics::getLatencyP50Millis);
+    gauge(registry, "latency.p99.millis", AppenderMetrics::getLatencyP99Millis);
+    gauge(registry, "latency.max.millis", AppenderMetrics::getLatencyMaxMillis);
+    stage(registry, "encode", AppenderMetrics::getEncodeNanos);
+    stage(registry, "queue", AppenderMetrics::getQueueNanos);
+    stage(registry, "batching", AppenderMetrics::getBatchingNanos);
+    stage(registry, "request", AppenderMetrics::getRequestNanos);
+  }
+
+  private void stage(MeterRegistry registry, String stage, Function<AppenderMetrics, Histogram> histogram) {
+    FunctionTimer.builder(PREFIX + "stage", metrics, m -> histogram.apply(m).getCount(),
+                          m -> histogram.apply(m).getMean() * histogram.apply(m).getCount(), TimeUnit.NANOSECONDS)
+      .tags(tags.and("stage", stage))
+      .description("Time sampled events spent in a stage")
+      .register(registry);
+    Gauge.builder(PREFIX + "stage.p99.millis", metrics, m -> histogram.apply(m).getValueAtPercentile(99) / 1e6)
+      .tags(tags.and("stage", stage))
+      .register(registry);
+  }
+
+  private void counter(MeterRegistry registry, String name, ToLongFunction<AppenderMetrics> count) {
+    FunctionCounter.builder(PREFIX + name, metrics, m -> count.applyAsLong(m)).tags(tags).register(registry);
+  }
+
+  private void gauge(MeterRegistry registry, String name, ToDoubleFunction<AppenderMetrics> value) {
+    Gauge.builder(PREFIX + name, metrics, value).tags(tags).register(registry);
+  }
+}
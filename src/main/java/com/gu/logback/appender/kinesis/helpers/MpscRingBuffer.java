@@ -0,0 +1,365 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Bounded, lock-free ring buffer for many producers and a single consumer, in
+ * the style of the LMAX Disruptor.
+ *
+ * Slots are allocated once, up front, and reused: producers claim a sequence
+ * number with a CAS, fill in the slot for that sequence and publish it, while
+ * the consumer processes published slots in sequence order. Neither side takes
+ * a lock or allocates.
+ *
+ * The consumer also releases slots with a CAS, which lets producers discard
+ * the oldest published slot when the buffer is full.
+ *
+ * Slots may be given a cleaner, which drops what a slot references once the
+ * consumer has taken it, so that a buffer that isn't full doesn't keep old
+ * values reachable. Cleaning and filling in a slot again are kept apart by
+ * marking the slot in the published sequences: the consumer only cleans a
+ * slot no producer has claimed again, and a producer waits for the cleaning
+ * of the slot it claims to be over.
+ *
+ * Producers waiting for room register themselves and park until a slot is
+ * released, by the consumer or by a producer discarding the oldest slot, or
+ * the buffer is closed, which unparks them: they don't poll. Those woken up
+ * that don't get a slot register again.
+ *
+ * Closing the buffer also goes through the CAS on the claimed sequence, so
+ * that no slot can be claimed once it is closed: the consumer knows it has
+ * taken everything when the closed buffer is empty, and can e.g. move on to
+ * a buffer replacing it.
+ *
+ * @param <S> type of the slots
+ */
+public final class MpscRingBuffer<S> {
+
+  // added to the claimed sequence on close, which no sequence ever reaches
+  private static final long CLOSED_OFFSET = 1L << 62;
+  // published sequence of a slot that is claimed and not published yet
+  private static final long UNPUBLISHED = -1;
+  // published sequence of a slot whose references the consumer is dropping
+  private static final long CLEANING = Long.MIN_VALUE;
+
+  private final Object[] slots;
+  private final int mask;
+  private final AtomicLongArray published;
+  private final AtomicLong claimed = new AtomicLong(-1);
+  private final AtomicLong consumed = new AtomicLong(-1);
+  private final Consumer<S> cleaner;
+  private final ConcurrentLinkedQueue<Thread> waitingProducers = new ConcurrentLinkedQueue<Thread>();
+
+  private volatile Thread consumer;
+  private volatile boolean consumerWaiting;
+  private volatile boolean closed;
+
+  /**
+   * @param capacity minimum number of slots, rounded up to a power of two
+   * @param slotFactory creates the slots
+   */
+  public MpscRingBuffer(int capacity, Supplier<S> slotFactory) {
+    this(capacity, slotFactory, null);
+  }
+
+  /**
+   * @param capacity minimum number of slots, rounded up to a power of two
+   * @param slotFactory creates the slots
+   * @param cleaner drops the references of a slot the consumer has taken,
+   *          null to leave them until the slot is filled in again
+   */
+  public MpscRingBuffer(int capacity, Supplier<S> slotFactory, Consumer<S> cleaner) {
+    Validator.validate(capacity > 0 && capacity <= (1 << 30), "capacity must be between 1 and 2^30");
+    int size = Integer.highestOneBit(capacity);
+    if(size < capacity) {
+      size <<= 1;
+    }
+    this.slots = new Object[size];
+    this.mask = size - 1;
+    this.published = new AtomicLongArray(size);
+    this.cleaner = cleaner;
+    for(int i = 0; i < size; i++) {
+      slots[i] = slotFactory.get();
+      published.set(i, UNPUBLISHED);
+    }
+  }
+
+  /**
+   * Claims the next slot, if there is room for it.
+   *
+   * @return sequence of the claimed slot, or -1 if the buffer is full
+   * @throws IllegalStateException if the buffer is closed
+   */
+  public long tryNext() {
+    long current;
+    long next;
+    do {
+      current = claimed.get();
+      if(current >= CLOSED_OFFSET / 2) {
+        throw new IllegalStateException("Ring buffer closed");
+      }
+      next = current + 1;
+      if(next - slots.length > consumed.get()) {
+        return -1;
+      }
+    }
+    while(!claimed.compareAndSet(current, next));
+    if(cleaner != null) {
+      unpublish(next);
+    }
+    return next;
+  }
+
+  /**
+   * Marks a claimed slot as not published, once the consumer is done
+   * cleaning it, which stops the consumer from cleaning it afterwards.
+   */
+  private void unpublish(long sequence) {
+    int index = (int) sequence & mask;
+    while(true) {
+      long state = published.get(index);
+      if(state != CLEANING && published.compareAndSet(index, state, UNPUBLISHED)) {
+        return;
+      }
+      Thread.yield();
+    }
+  }
+
+  /**
+   * Claims the next slot, waiting for the consumer to make room for it if the
+   * buffer is full.
+   *
+   * @return sequence of the claimed slot
+   * @throws InterruptedException if interrupted while waiting
+   * @throws IllegalStateException if the buffer is closed
+   */
+  public long next() throws InterruptedException {
+    return next(Long.MAX_VALUE);
+  }
+
+  /**
+   * Claims the next slot, waiting up to the given timeout for the consumer to
+   * make room for it if the buffer is full.
+   *
+   * @param timeoutNanos maximum time to wait for room
+   * @return sequence of the claimed slot, or -1 if the timeout expired
+   * @throws InterruptedException if interrupted while waiting
+   * @throws IllegalStateException if the buffer is closed
+   */
+  public long next(long timeoutNanos) throws InterruptedException {
+    long sequence = tryNext();
+    if(sequence >= 0) {
+      return sequence;
+    }
+    long deadline = System.nanoTime() + timeoutNanos;
+    Thread producer = Thread.currentThread();
+    try {
+      while(true) {
+        // registered before checking for room again, so that a slot released in between unparks it
+        waitingProducers.add(producer);
+        if((sequence = tryNext()) >= 0) {
+          return sequence;
+        }
+        if(Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+        if(timeoutNanos == Long.MAX_VALUE) {
+          LockSupport.park(this);
+        } else {
+          long left = deadline - System.nanoTime();
+          if(left <= 0) {
+            return -1;
+          }
+          LockSupport.parkNanos(this, left);
+        }
+      }
+    }
+    finally {
+      waitingProducers.remove(producer);
+    }
+  }
+
+  /**
+   * Unparks the producers waiting for room, which register again if they
+   * don't get a slot.
+   */
+  private void wakeProducers() {
+    for(Thread producer = waitingProducers.poll(); producer != null; producer = waitingProducers.poll()) {
+      LockSupport.unpark(producer);
+    }
+  }
+
+  /**
+   * Discards the oldest published slot that the consumer hasn't taken yet,
+   * making room for one more slot.
+   *
+   * @return true if a slot was discarded, false if the oldest slot is not
+   *         published yet or has just been taken by the consumer
+   */
+  public boolean discardOldest() {
+    long current = consumed.get();
+    long sequence = current + 1;
+    if(published.get((int) sequence & mask) == sequence && consumed.compareAndSet(current, sequence)) {
+      wakeProducers();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param sequence a sequence claimed by {@link #tryNext()} or {@link #next()}
+   * @return the slot for that sequence
+   */
+  @SuppressWarnings("unchecked")
+  public S get(long sequence) {
+    return (S) slots[(int) sequence & mask];
+  }
+
+  /**
+   * Makes a filled-in slot visible to the consumer.
+   *
+   * @param sequence sequence of the slot
+   */
+  public void publish(long sequence) {
+    published.set((int) sequence & mask, sequence);
+    if(consumerWaiting) {
+      LockSupport.unpark(consumer);
+    }
+  }
+
+  /**
+   * Takes all published slots, in sequence order, and hands their values to
+   * the handler. Must only be called by the consumer thread.
+   *
+   * A slot is released as soon as its value has been taken, before the
+   * handler runs, so the take function must copy out whatever the handler
+   * needs. It must not write to the slot, not even to clear it: a producer
+   * may discard the slot while it is being taken and fill it in again, in
+   * which case the value taken is ignored. Once released, the slot is
+   * cleaned by the cleaner, if the buffer has one.
+   *
+   * @param take extracts the value of a slot
+   * @param handler processes the value of a slot
+   * @return number of values handed to the handler
+   */
+  public <T> int drain(Function<S, T> take, Consumer<T> handler) {
+    return drain(Integer.MAX_VALUE, take, handler);
+  }
+
+  /**
+   * Hands at most a given number of published values, in order, to the
+   * handler, like {@link #drain(Function, Consumer)}.
+   *
+   * @param limit maximum number of values to hand over
+   * @param take extracts the value of a slot
+   * @param handler processes the value of a slot
+   * @return number of values handed to the handler
+   */
+  public <T> int drain(int limit, Function<S, T> take, Consumer<T> handler) {
+    int count = 0;
+    while(count < limit) {
+      long current = consumed.get();
+      long sequence = current + 1;
+      if(published.get((int) sequence & mask) != sequence) {
+        return count;
+      }
+      S slot = get(sequence);
+      T value = take.apply(slot);
+      if(consumed.compareAndSet(current, sequence)) {
+        wakeProducers();
+        if(cleaner != null) {
+          clean(sequence, slot);
+        }
+        handler.accept(value);
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Cleans a slot the consumer has taken, unless a producer has claimed it
+   * again in the meantime, which it may do as soon as the slot is released.
+   */
+  private void clean(long sequence, S slot) {
+    int index = (int) sequence & mask;
+    if(published.compareAndSet(index, sequence, CLEANING)) {
+      cleaner.accept(slot);
+      published.set(index, UNPUBLISHED);
+    }
+  }
+
+  /**
+   * Parks the consumer thread until a slot is published, the buffer is closed
+   * or the timeout expires.
+   *
+   * @param timeoutNanos maximum time to wait
+   */
+  public void awaitPublished(long timeoutNanos) {
+    consumer = Thread.currentThread();
+    consumerWaiting = true;
+    try {
+      if(isEmpty() && !closed) {
+        LockSupport.parkNanos(this, timeoutNanos);
+      }
+    }
+    finally {
+      consumerWaiting = false;
+    }
+  }
+
+  /**
+   * Stops producers from claiming slots, including those waiting for room,
+   * and wakes up the consumer, which is expected to drain the slots already
+   * claimed and exit. Slots claimed before are still published.
+   */
+  public void close() {
+    long current;
+    do {
+      current = claimed.get();
+      if(current >= CLOSED_OFFSET / 2) {
+        return;
+      }
+    }
+    while(!claimed.compareAndSet(current, current + CLOSED_OFFSET));
+    closed = true;
+    wakeProducers();
+    Thread waiting = consumer;
+    if(waiting != null) {
+      LockSupport.unpark(waiting);
+    }
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * @return true if no published slot is waiting for the consumer
+   */
+  public boolean isEmpty() {
+    long sequence = consumed.get() + 1;
+    return published.get((int) sequence & mask) != sequence;
+  }
+
+  /**
+   * @return number of claimed slots the consumer hasn't processed yet
+   */
+  public int size() {
+    long current = claimed.get();
+    if(current >= CLOSED_OFFSET / 2) {
+      current -= CLOSED_OFFSET;
+    }
+    return (int) (current - consumed.get());
+  }
+
+  public int getCapacity() {
+    return slots.length;
+  }
+}
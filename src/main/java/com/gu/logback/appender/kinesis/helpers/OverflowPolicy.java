@@ -0,0 +1,37 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+/**
+ * What the appender does with a log event when its ring buffer is full.
+ */
+public enum OverflowPolicy {
+  /**
+   * The logging thread waits for room in the buffer, however long it takes.
+   */
+  BLOCK,
+  /**
+   * The logging thread waits for room in the buffer for at most the overflow
+   * timeout, after which the event is dropped.
+   */
+  BLOCK_WITH_TIMEOUT,
+  /**
+   * The event being logged is dropped.
+   */
+  DROP_NEWEST,
+  /**
+   * The oldest event waiting in the buffer is dropped to make room for the
+   * event being logged. If other logging threads keep taking the room made,
+   * the event being logged is dropped after a bounded number of tries.
+   */
+  DROP_OLDEST,
+  /**
+   * Events below the overflow level threshold are dropped, the others are
+   * handled as with {@link #BLOCK_WITH_TIMEOUT}.
+   */
+  DROP_BELOW_LEVEL,
+  /**
+   * The event is written to the spill queue on disk, and sent from there once
+   * the service catches up. It is dropped if the spill queue is full or not
+   * configured.
+   */
+  SPILL
+}
@@ -0,0 +1,30 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+/**
+ * Chooses the partition key of the record carrying a log event, which decides
+ * the shard the event goes to. Events with the same partition key go to the
+ * same shard, in order.
+ *
+ * Implementations are called concurrently by logging threads and must be
+ * thread-safe and cheap.
+ *
+ * @param <E> type of the log events
+ */
+public interface PartitionKeyStrategy<E> {
+
+  /**
+   * @param event the log event
+   * @return partition key for the event, between 1 and 256 characters
+   */
+  String partitionKey(E event);
+
+  /**
+   * Receives the open shards of the stream when the appender starts, and
+   * again whenever they change, concurrently with calls to
+   * {@link #partitionKey(Object)}. Ignored by default.
+   *
+   * @param shards the open shards of the stream
+   */
+  default void setShards(ShardMap shards) {
+  }
+}
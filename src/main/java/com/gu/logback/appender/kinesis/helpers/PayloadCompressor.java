@@ -0,0 +1,22 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+/**
+ * Compresses record payloads before they are sent. Implementations are
+ * thread-safe, and reuse their working state through a pool shared by the
+ * calling threads, rather than pin it to each of them.
+ */
+public interface PayloadCompressor {
+
+  /**
+   * @param data payload to compress
+   * @return the compressed payload
+   */
+  byte[] compress(byte[] data);
+
+  /**
+   * Releases the working state, including any native memory. Payloads can
+   * still be compressed afterwards, without reusing anything.
+   */
+  default void close() {
+  }
+}
@@ -0,0 +1,146 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import software.amazon.awssdk.core.SdkBytes;
+
+/**
+ * A record waiting to be sent, along with the number of log events it
+ * carries, the number of times sending it has already been attempted and when
+ * its (first) log event was appended.
+ */
+public final class PendingRecord {
+
+  private final String partitionKey;
+  private final SdkBytes data;
+  private final int size;
+  private final int eventCount;
+  private final int attempts;
+  private final long appendNanos;
+  private final StageTrace trace;
+
+  /**
+   * @param partitionKey partition key of the record, null for Firehose records
+   * @param data payload of the record
+   */
+  public PendingRecord(String partitionKey, SdkBytes data) {
+    this(partitionKey, data, 0L);
+  }
+
+  /**
+   * @param partitionKey partition key of the record, null for Firehose records
+   * @param data payload of the record
+   * @param appendNanos {@link System#nanoTime()} when the log event was
+   *          appended, 0 if unknown
+   */
+  public PendingRecord(String partitionKey, SdkBytes data, long appendNanos) {
+    this(partitionKey, data, appendNanos, null);
+  }
+
+  /**
+   * @param partitionKey partition key of the record, null for Firehose records
+   * @param data payload of the record
+   * @param appendNanos {@link System#nanoTime()} when the log event was
+   *          appended, 0 if unknown
+   * @param trace stage timestamps of the log event, null if not sampled
+   */
+  public PendingRecord(String partitionKey, SdkBytes data, long appendNanos, StageTrace trace) {
+    this(partitionKey, data, 1, appendNanos, trace);
+  }
+
+  /**
+   * @param partitionKey partition key of the record, null for Firehose records
+   * @param data payload of the record
+   * @param eventCount number of log events the record carries, more than one
+   *          for aggregated records
+   * @param appendNanos {@link System#nanoTime()} when the first log event was
+   *          appended, 0 if unknown
+   * @param trace stage timestamps of the first sampled log event, null if
+   *          none was sampled
+   */
+  public PendingRecord(String partitionKey, SdkBytes data, int eventCount, long appendNanos, StageTrace trace) {
+    this(partitionKey, data, data.asByteArrayUnsafe().length + utf8Length(partitionKey), eventCount, 0, appendNanos,
+         trace);
+  }
+
+  private PendingRecord(String partitionKey, SdkBytes data, int size, int eventCount, int attempts, long appendNanos,
+      StageTrace trace) {
+    this.partitionKey = partitionKey;
+    this.data = data;
+    this.size = size;
+    this.eventCount = eventCount;
+    this.attempts = attempts;
+    this.appendNanos = appendNanos;
+    this.trace = trace;
+  }
+
+  public String getPartitionKey() {
+    return partitionKey;
+  }
+
+  public SdkBytes getData() {
+    return data;
+  }
+
+  /**
+   * @return size the record counts for against the service's limits, payload
+   *         and partition key in UTF-8 included
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * @return number of log events the record carries
+   */
+  public int getEventCount() {
+    return eventCount;
+  }
+
+  public int getAttempts() {
+    return attempts;
+  }
+
+  /**
+   * @return {@link System#nanoTime()} when the (first) log event of the
+   *         record was appended, 0 if unknown
+   */
+  public long getAppendNanos() {
+    return appendNanos;
+  }
+
+  /**
+   * @return stage timestamps of the (first sampled) log event of the record,
+   *         null if none was sampled
+   */
+  public StageTrace getTrace() {
+    return trace;
+  }
+
+  /**
+   * @return a copy of this record with its attempt count incremented
+   */
+  public PendingRecord nextAttempt() {
+    return new PendingRecord(partitionKey, data, size, eventCount, attempts + 1, appendNanos, trace);
+  }
+
+  /**
+   * Returns the number of bytes of a partition key encoded in UTF-8, which is
+   * what the service counts, without encoding it.
+   */
+  private static int utf8Length(String partitionKey) {
+    if(partitionKey == null) {
+      return 0;
+    }
+    int length = partitionKey.length();
+    int bytes = length;
+    for(int i = 0; i < length; i++) {
+      char c = partitionKey.charAt(i);
+      if(c >= 0x800) {
+        // surrogate pairs take 4 bytes, 2 per char
+        bytes += Character.isSurrogate(c) ? 1 : 2;
+      } else if(c >= 0x80) {
+        bytes++;
+      }
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,395 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import ch.qos.logback.core.encoder.EncoderBase;
+
+/**
+ * Encodes each event as a protobuf {@code LoggingEvent} message, defined in
+ * {@code logging_event.proto} at the root of the appender's jar:
+ *
+ * <pre>
+ * message LoggingEvent {
+ *   int64 timestamp = 1;               // milliseconds since the epoch
+ *   Level level = 2;                   // TRACE = 0, DEBUG = 1, INFO = 2, WARN = 3, ERROR = 4
+ *   string logger = 3;
+ *   string thread = 4;
+ *   string message = 5;
+ *   map&lt;string, string&gt; mdc = 6;
+ *   Throwable throwable = 7;
+ * }
+ * message Throwable {
+ *   string class_name = 1;
+ *   string message = 2;
+ *   repeated string stack_trace = 3;   // frames as printed, e.g. "at com.example.Service.run(Service.java:42)"
+ *   int32 common_frames = 4;           // trailing frames shared with the enclosing throwable, left out
+ *   Throwable cause = 5;
+ *   repeated Throwable suppressed = 6;
+ * }
+ * </pre>
+ *
+ * Each message is preceded by the schema identifier, in the wire format of
+ * the Confluent schema registry: a zero byte, the identifier as a 4 byte big
+ * endian integer, and a zero byte for the first message type of the schema.
+ * With lengthDelimited, the whole is in turn preceded by its length as a
+ * varint, so that events concatenated by Firehose can be split up again.
+ *
+ * Messages are written without intermediate objects into buffers reused from
+ * a pool, so the encoder is thread-safe. The pool keeps a buffer per
+ * processor at most, rather than one per logging thread for the life of the
+ * thread.
+ */
+public class ProtobufEventEncoder extends EncoderBase<ILoggingEvent> {
+
+  private static final int INITIAL_BUFFER_SIZE = 256;
+  private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_POOLED_BUFFERS = Runtime.getRuntime().availableProcessors();
+
+  // protobuf wire types
+  private static final int VARINT = 0;
+  private static final int LENGTH_DELIMITED = 2;
+
+  // fields of LoggingEvent
+  private static final int TIMESTAMP = 1;
+  private static final int LEVEL = 2;
+  private static final int LOGGER = 3;
+  private static final int THREAD = 4;
+  private static final int MESSAGE = 5;
+  private static final int MDC = 6;
+  private static final int THROWABLE = 7;
+
+  // fields of the MDC entries
+  private static final int KEY = 1;
+  private static final int VALUE = 2;
+
+  // fields of Throwable
+  private static final int CLASS_NAME = 1;
+  private static final int THROWABLE_MESSAGE = 2;
+  private static final int STACK_TRACE = 3;
+  private static final int COMMON_FRAMES = 4;
+  private static final int CAUSE = 5;
+  private static final int SUPPRESSED = 6;
+
+  private final ArrayDeque<Output> pool = new ArrayDeque<Output>();
+  private int schemaId = 1;
+  private boolean lengthDelimited = false;
+  private boolean includeMdc = true;
+  private boolean includeStackTrace = true;
+
+  @Override
+  public byte[] headerBytes() {
+    return null;
+  }
+
+  @Override
+  public byte[] footerBytes() {
+    return null;
+  }
+
+  @Override
+  public byte[] encode(ILoggingEvent event) {
+    Output out = take();
+    try {
+      return encode(out, event);
+    }
+    finally {
+      giveBack(out);
+    }
+  }
+
+  /**
+   * Lets the pooled buffers be garbage collected.
+   */
+  @Override
+  public void stop() {
+    synchronized(this) {
+      pool.clear();
+    }
+    super.stop();
+  }
+
+  private synchronized Output take() {
+    Output pooled = pool.pollFirst();
+    return pooled != null ? pooled : new Output();
+  }
+
+  private void giveBack(Output out) {
+    out.reset();
+    synchronized(this) {
+      if(pool.size() < MAX_POOLED_BUFFERS) {
+        pool.addFirst(out);
+      }
+    }
+  }
+
+  private byte[] encode(Output out, ILoggingEvent event) {
+    int start = lengthDelimited ? out.beginLength() : 0;
+    out.write(0);
+    out.write(schemaId >>> 24);
+    out.write(schemaId >>> 16);
+    out.write(schemaId >>> 8);
+    out.write(schemaId);
+    out.write(0);
+
+    out.writeVarintField(TIMESTAMP, event.getTimeStamp());
+    out.writeVarintField(LEVEL, levelOf(event.getLevel()));
+    out.writeStringField(LOGGER, event.getLoggerName());
+    out.writeStringField(THREAD, event.getThreadName());
+    out.writeStringField(MESSAGE, event.getFormattedMessage());
+    if(includeMdc) {
+      writeMdc(out, event.getMDCPropertyMap());
+    }
+    IThrowableProxy throwable = event.getThrowableProxy();
+    if(throwable != null && includeStackTrace) {
+      writeThrowable(out, THROWABLE, throwable);
+    }
+
+    if(lengthDelimited) {
+      out.endLength(start);
+    }
+    return out.toByteArray();
+  }
+
+  private static int levelOf(Level level) {
+    switch(level.toInt()) {
+      case Level.TRACE_INT:
+        return 0;
+      case Level.DEBUG_INT:
+        return 1;
+      case Level.INFO_INT:
+        return 2;
+      case Level.WARN_INT:
+        return 3;
+      default:
+        return 4;
+    }
+  }
+
+  private static void writeMdc(Output out, Map<String, String> mdc) {
+    if(mdc == null) {
+      return;
+    }
+    for(Map.Entry<String, String> entry : mdc.entrySet()) {
+      out.writeTag(MDC, LENGTH_DELIMITED);
+      int start = out.beginLength();
+      out.writeStringField(KEY, entry.getKey());
+      out.writeStringField(VALUE, entry.getValue());
+      out.endLength(start);
+    }
+  }
+
+  private static void writeThrowable(Output out, int field, IThrowableProxy throwable) {
+    out.writeTag(field, LENGTH_DELIMITED);
+    int start = out.beginLength();
+    out.writeStringField(CLASS_NAME, throwable.getClassName());
+    out.writeStringField(THROWABLE_MESSAGE, throwable.getMessage());
+    StackTraceElementProxy[] frames = throwable.getStackTraceElementProxyArray();
+    int commonFrames = throwable.getCommonFrames();
+    for(int i = 0; i < frames.length - commonFrames; i++) {
+      out.writeTag(STACK_TRACE, LENGTH_DELIMITED);
+      out.writeString(frames[i].getSTEAsString());
+    }
+    out.writeVarintField(COMMON_FRAMES, commonFrames);
+    IThrowableProxy cause = throwable.getCause();
+    if(cause != null) {
+      writeThrowable(out, CAUSE, cause);
+    }
+    IThrowableProxy[] suppressed = throwable.getSuppressed();
+    if(suppressed != null) {
+      for(IThrowableProxy each : suppressed) {
+        writeThrowable(out, SUPPRESSED, each);
+      }
+    }
+    out.endLength(start);
+  }
+
+  public int getSchemaId() {
+    return schemaId;
+  }
+
+  /**
+   * @param schemaId identifier of the schema written before each event, e.g.
+   *          the one logging_event.proto is registered under in a schema
+   *          registry, 1 by default
+   */
+  public void setSchemaId(int schemaId) {
+    Validator.validate(schemaId >= 0, "schemaId must be >= 0");
+    this.schemaId = schemaId;
+  }
+
+  public boolean isLengthDelimited() {
+    return lengthDelimited;
+  }
+
+  /**
+   * @param lengthDelimited whether to precede each event with its length, as
+   *          needed when Firehose concatenates them, false by default
+   */
+  public void setLengthDelimited(boolean lengthDelimited) {
+    this.lengthDelimited = lengthDelimited;
+  }
+
+  public boolean isIncludeMdc() {
+    return includeMdc;
+  }
+
+  /**
+   * @param includeMdc whether to write the MDC of events, true by default
+   */
+  public void setIncludeMdc(boolean includeMdc) {
+    this.includeMdc = includeMdc;
+  }
+
+  public boolean isIncludeStackTrace() {
+    return includeStackTrace;
+  }
+
+  /**
+   * @param includeStackTrace whether to write the exception of events, true
+   *          by default
+   */
+  public void setIncludeStackTrace(boolean includeStackTrace) {
+    this.includeStackTrace = includeStackTrace;
+  }
+
+  /**
+   * Growable output buffer writing protobuf fields. Lengths are written
+   * after what they measure, in the byte reserved for them, moving what
+   * follows if they take more.
+   */
+  private static final class Output {
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int pos;
+
+    void reset() {
+      if(buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+        // don't hold on to the buffer of an event with a huge message
+        buffer = new byte[INITIAL_BUFFER_SIZE];
+      }
+      pos = 0;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(buffer, pos);
+    }
+
+    void write(int b) {
+      ensure(1);
+      buffer[pos++] = (byte) b;
+    }
+
+    void writeTag(int field, int wireType) {
+      writeVarint(field << 3 | wireType);
+    }
+
+    void writeVarint(long value) {
+      ensure(10);
+      while((value & ~0x7FL) != 0) {
+        buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buffer[pos++] = (byte) value;
+    }
+
+    /**
+     * Writes a varint field, left out when 0 as proto3 does.
+     */
+    void writeVarintField(int field, long value) {
+      if(value != 0) {
+        writeTag(field, VARINT);
+        writeVarint(value);
+      }
+    }
+
+    /**
+     * Writes a string field, left out when null or empty as proto3 does.
+     */
+    void writeStringField(int field, String value) {
+      if(value != null && !value.isEmpty()) {
+        writeTag(field, LENGTH_DELIMITED);
+        writeString(value);
+      }
+    }
+
+    void writeString(String value) {
+      int start = beginLength();
+      int length = value.length();
+      // each char takes at most 3 bytes
+      ensure(length * 3);
+      byte[] buf = buffer;
+      int p = pos;
+      for(int i = 0; i < length; i++) {
+        char c = value.charAt(i);
+        if(c < 0x80) {
+          buf[p++] = (byte) c;
+        } else if(c < 0x800) {
+          buf[p++] = (byte) (0xc0 | c >> 6);
+          buf[p++] = (byte) (0x80 | c & 0x3f);
+        } else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, value.charAt(++i));
+          buf[p++] = (byte) (0xf0 | codePoint >> 18);
+          buf[p++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+          buf[p++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+          buf[p++] = (byte) (0x80 | codePoint & 0x3f);
+        } else if(Character.isSurrogate(c)) {
+          // unpaired surrogate, as String.getBytes would replace it
+          buf[p++] = '?';
+        } else {
+          buf[p++] = (byte) (0xe0 | c >> 12);
+          buf[p++] = (byte) (0x80 | c >> 6 & 0x3f);
+          buf[p++] = (byte) (0x80 | c & 0x3f);
+        }
+      }
+      pos = p;
+      endLength(start);
+    }
+
+    /**
+     * Reserves a byte for the length of what follows.
+     *
+     * @return position of what follows
+     */
+    int beginLength() {
+      write(0);
+      return pos;
+    }
+
+    /**
+     * Writes the length of what was written since {@link #beginLength()}.
+     */
+    void endLength(int start) {
+      int length = pos - start;
+      if(length < 0x80) {
+        buffer[start - 1] = (byte) length;
+        return;
+      }
+      int extra = varintSize(length) - 1;
+      ensure(extra);
+      System.arraycopy(buffer, start, buffer, start + extra, length);
+      pos = start - 1;
+      writeVarint(length);
+      pos += length;
+    }
+
+    private static int varintSize(int value) {
+      int size = 1;
+      while((value & ~0x7F) != 0) {
+        value >>>= 7;
+        size++;
+      }
+      return size;
+    }
+
+    private void ensure(int length) {
+      if(pos + length > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(pos + length, buffer.length * 2));
+      }
+    }
+  }
+}
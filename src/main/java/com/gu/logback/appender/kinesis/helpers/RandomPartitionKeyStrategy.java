@@ -0,0 +1,20 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Gives every event a random partition key, spreading events evenly across
+ * shards without ordering them. Keys come from {@link ThreadLocalRandom}, so
+ * logging threads don't contend for them as they do for random UUIDs.
+ */
+public class RandomPartitionKeyStrategy<E> implements PartitionKeyStrategy<E> {
+
+  @Override
+  public String partitionKey(E event) {
+    return randomKey();
+  }
+
+  static String randomKey() {
+    return Long.toHexString(ThreadLocalRandom.current().nextLong());
+  }
+}
@@ -0,0 +1,209 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Accumulates records into batches. A batch is handed to the sender as soon as
+ * it reaches the configured number of records or bytes, or once the first
+ * record in it has been waiting for the configured linger time.
+ *
+ * The sender is always invoked outside of the batcher's lock, so it is free to
+ * add records back (e.g. for retrying failed entries).
+ *
+ * @param <R> type of the records being batched
+ */
+public final class RecordBatcher<R> {
+
+  private static final int MAX_INITIAL_CAPACITY = 1024;
+
+  private int maxRecords;
+  private long maxBytes;
+  private long lingerMillis;
+  private final ToIntFunction<R> sizer;
+  private final Consumer<List<R>> sender;
+  private final ScheduledExecutorService lingerScheduler;
+  private final boolean ownsScheduler;
+  private final Executor flushExecutor;
+
+  private List<R> batch;
+  private long batchBytes;
+  private long batchGeneration;
+  private boolean closed;
+
+  /**
+   * @param maxRecords maximum number of records in a batch
+   * @param maxBytes maximum total size of the records in a batch
+   * @param lingerMillis maximum time a record waits for its batch to fill up
+   * @param sizer returns the size a record contributes to its batch
+   * @param sender receives full or expired batches
+   * @param threadFactory factory for the thread flushing expired batches
+   */
+  public RecordBatcher(int maxRecords, long maxBytes, long lingerMillis, ToIntFunction<R> sizer,
+      Consumer<List<R>> sender, ThreadFactory threadFactory) {
+    this(maxRecords, maxBytes, lingerMillis, sizer, sender,
+         Executors.newSingleThreadScheduledExecutor(threadFactory), true, Runnable::run);
+  }
+
+  /**
+   * Creates a batcher timing its batches with a scheduler it shares with
+   * others. Expired batches are handed to the sender on the flush executor,
+   * so that the scheduler's threads never wait on the sender.
+   *
+   * @param maxRecords maximum number of records in a batch
+   * @param maxBytes maximum total size of the records in a batch
+   * @param lingerMillis maximum time a record waits for its batch to fill up
+   * @param sizer returns the size a record contributes to its batch
+   * @param sender receives full or expired batches
+   * @param scheduler scheduler of the linger timers, left running on close
+   * @param flushExecutor executor sending the expired batches, which mustn't
+   *          make the scheduler wait
+   */
+  public RecordBatcher(int maxRecords, long maxBytes, long lingerMillis, ToIntFunction<R> sizer,
+      Consumer<List<R>> sender, ScheduledExecutorService scheduler, Executor flushExecutor) {
+    this(maxRecords, maxBytes, lingerMillis, sizer, sender, scheduler, false, flushExecutor);
+  }
+
+  private RecordBatcher(int maxRecords, long maxBytes, long lingerMillis, ToIntFunction<R> sizer,
+      Consumer<List<R>> sender, ScheduledExecutorService scheduler, boolean ownsScheduler, Executor flushExecutor) {
+    Validator.validate(maxRecords > 0, "maxRecords must be > 0");
+    Validator.validate(maxBytes > 0, "maxBytes must be > 0");
+    Validator.validate(lingerMillis >= 0, "lingerMillis must be >= 0");
+    this.maxRecords = maxRecords;
+    this.maxBytes = maxBytes;
+    this.lingerMillis = lingerMillis;
+    this.sizer = Objects.requireNonNull(sizer);
+    this.sender = Objects.requireNonNull(sender);
+    this.lingerScheduler = Objects.requireNonNull(scheduler);
+    this.ownsScheduler = ownsScheduler;
+    this.flushExecutor = Objects.requireNonNull(flushExecutor);
+    this.batch = newBatch();
+  }
+
+  /**
+   * Adds a record to the current batch, sending the batch if it is full.
+   *
+   * @param record record to add
+   */
+  public void add(R record) {
+    int size = sizer.applyAsInt(record);
+    List<R> overflow = null;
+    List<R> full = null;
+    synchronized(this) {
+      if(!batch.isEmpty() && batchBytes + size > maxBytes) {
+        overflow = takeBatch();
+      }
+      if(batch.isEmpty() && lingerMillis > 0 && !closed) {
+        final long generation = batchGeneration;
+        lingerScheduler.schedule(() -> flushExecutor.execute(() -> flushGeneration(generation)), lingerMillis,
+                                 TimeUnit.MILLISECONDS);
+      }
+      batch.add(record);
+      batchBytes += size;
+      if(batch.size() >= maxRecords || batchBytes >= maxBytes || lingerMillis == 0) {
+        full = takeBatch();
+      }
+    }
+    if(overflow != null) {
+      sender.accept(overflow);
+    }
+    if(full != null) {
+      sender.accept(full);
+    }
+  }
+
+  /**
+   * Sends the current batch immediately, regardless of its size.
+   */
+  public void flush() {
+    List<R> pending;
+    synchronized(this) {
+      if(batch.isEmpty()) {
+        return;
+      }
+      pending = takeBatch();
+    }
+    sender.accept(pending);
+  }
+
+  /**
+   * Sends the current batch and stops the linger timer. Records added after
+   * this point are sent as soon as the batch is full or {@link #flush()} is
+   * called.
+   */
+  public void close() {
+    synchronized(this) {
+      closed = true;
+      if(ownsScheduler) {
+        lingerScheduler.shutdownNow();
+      }
+    }
+    flush();
+  }
+
+  /**
+   * Changes the limits of the batches. The current batch is sent on the next
+   * record added if it exceeds the new limits, and a shorter linger time
+   * applies from the next batch.
+   *
+   * @param maxRecords maximum number of records in a batch
+   * @param maxBytes maximum total size of the records in a batch
+   * @param lingerMillis maximum time a record waits for its batch to fill up
+   */
+  public synchronized void setLimits(int maxRecords, long maxBytes, long lingerMillis) {
+    Validator.validate(maxRecords > 0, "maxRecords must be > 0");
+    Validator.validate(maxBytes > 0, "maxBytes must be > 0");
+    Validator.validate(lingerMillis >= 0, "lingerMillis must be >= 0");
+    this.maxRecords = maxRecords;
+    this.maxBytes = maxBytes;
+    this.lingerMillis = lingerMillis;
+  }
+
+  /**
+   * Takes the records of the current batch without sending them, e.g. to
+   * spill them when there is no time left to send them.
+   *
+   * @return records of the current batch, possibly none
+   */
+  public synchronized List<R> takePending() {
+    return takeBatch();
+  }
+
+  /**
+   * @return number of records waiting in the current batch
+   */
+  public synchronized int getPendingRecordCount() {
+    return batch.size();
+  }
+
+  private void flushGeneration(long generation) {
+    List<R> expired;
+    synchronized(this) {
+      if(generation != batchGeneration || batch.isEmpty()) {
+        return;
+      }
+      expired = takeBatch();
+    }
+    sender.accept(expired);
+  }
+
+  private List<R> takeBatch() {
+    List<R> taken = batch;
+    batch = newBatch();
+    batchBytes = 0;
+    batchGeneration++;
+    return taken;
+  }
+
+  private List<R> newBatch() {
+    return new ArrayList<R>(Math.min(maxRecords, MAX_INITIAL_CAPACITY));
+  }
+}
@@ -0,0 +1,141 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import software.amazon.awssdk.core.SdkBytes;
+
+/**
+ * Packs the payloads of encoded log events into the records sent: several
+ * events into one record with an {@link AggregationFormat} if aggregation is
+ * enabled, and the payload of each record compressed if a
+ * {@link PayloadCompressor} is configured. Packed records are handed on to be
+ * batched or sent.
+ */
+public final class RecordPacker {
+
+  private final AggregationFormat format;
+  private final RecordBatcher<PendingRecord> aggregator;
+  private final PayloadCompressor compressor;
+  private final Consumer<PendingRecord> forwarder;
+
+  /**
+   * @param format format packing several events into one record
+   * @param newAggregator creates the batcher of the events aggregated
+   *          together from the sender of its batches, null to send each event
+   *          as a record of its own
+   * @param compressor compressor of the payloads, null to leave them as they
+   *          are
+   * @param forwarder receives the packed records
+   */
+  public RecordPacker(AggregationFormat format,
+      Function<Consumer<List<PendingRecord>>, RecordBatcher<PendingRecord>> newAggregator,
+      PayloadCompressor compressor, Consumer<PendingRecord> forwarder) {
+    this.format = Objects.requireNonNull(format);
+    this.aggregator = newAggregator != null ? newAggregator.apply(this::sendAggregate) : null;
+    this.compressor = compressor;
+    this.forwarder = Objects.requireNonNull(forwarder);
+  }
+
+  /**
+   * Packs the payload of an encoded event.
+   *
+   * @param partitionKey partition key of the record, null if the service
+   *          doesn't use one
+   * @param data payload of the event, which must not be modified afterwards
+   * @param appendNanos {@link System#nanoTime()} when the event was appended,
+   *          0 if unknown
+   * @param trace stage timestamps of the event, null if it isn't sampled
+   */
+  public void add(String partitionKey, byte[] data, long appendNanos, StageTrace trace) {
+    if(aggregator != null) {
+      aggregator.add(new PendingRecord(partitionKey, SdkBytes.fromByteArrayUnsafe(data), appendNanos, trace));
+      return;
+    }
+    forward(partitionKey, data, 1, appendNanos, trace);
+  }
+
+  /**
+   * Packs records into one aggregated record, which takes the partition key
+   * and append time of the first of them, and the trace of the first sampled
+   * one.
+   */
+  private void sendAggregate(List<PendingRecord> records) {
+    PendingRecord first = records.get(0);
+    StageTrace trace = null;
+    for(int i = 0; i < records.size() && trace == null; i++) {
+      trace = records.get(i).getTrace();
+    }
+    forward(first.getPartitionKey(), format.encode(first.getPartitionKey(), records), records.size(),
+            first.getAppendNanos(), trace);
+  }
+
+  private void forward(String partitionKey, byte[] payload, int eventCount, long appendNanos, StageTrace trace) {
+    SdkBytes data = SdkBytes.fromByteArrayUnsafe(compressor != null ? compressor.compress(payload) : payload);
+    forwarder.accept(new PendingRecord(partitionKey, data, eventCount, appendNanos, trace));
+  }
+
+  /**
+   * Sends the aggregated record in progress, if any.
+   */
+  public void flush() {
+    if(aggregator != null) {
+      aggregator.flush();
+    }
+  }
+
+  /**
+   * Sends the aggregated record in progress and stops its linger timer.
+   */
+  public void closeAggregation() {
+    if(aggregator != null) {
+      aggregator.close();
+    }
+  }
+
+  /**
+   * Changes the limits of the aggregated records.
+   *
+   * @param maxBytes maximum size of the events aggregated into one record,
+   *          without the overhead of the format
+   * @param lingerMillis maximum time an event waits for its record to fill up
+   */
+  public void setLimits(long maxBytes, long lingerMillis) {
+    if(aggregator != null) {
+      aggregator.setLimits(Integer.MAX_VALUE, maxBytes, lingerMillis);
+    }
+  }
+
+  /**
+   * @return true if no event waits to be aggregated
+   */
+  public boolean isEmpty() {
+    return aggregator == null || aggregator.getPendingRecordCount() == 0;
+  }
+
+  /**
+   * Takes the events waiting to be aggregated without sending them, e.g. to
+   * spill them when there is no time left to send them.
+   *
+   * @return the events, as they were added, possibly none
+   */
+  public List<PendingRecord> takePending() {
+    if(aggregator == null) {
+      return Collections.emptyList();
+    }
+    return aggregator.takePending();
+  }
+
+  /**
+   * Releases the working state of the compressor, once nothing is packed any
+   * more.
+   */
+  public void close() {
+    if(compressor != null) {
+      compressor.close();
+    }
+  }
+}
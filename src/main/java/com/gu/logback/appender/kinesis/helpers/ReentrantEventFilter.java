@@ -0,0 +1,77 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.spi.ContextAware;
+
+/**
+ * Recognises the log events an appender must drop because they were logged
+ * from within the sending of records: sending them would log again, and a
+ * completing thread waiting for room in the buffer would wait for itself.
+ * Those are the events of the {@link SendingThreads} and of the threads
+ * completing requests, and optionally all the events of the AWS SDK and
+ * Netty, wherever they are logged. The first event dropped is reported.
+ */
+public final class ReentrantEventFilter {
+
+  // loggers of the libraries sending the records, whose events would feed back into the appender
+  private static final String[] TRANSPORT_LOGGER_PREFIXES = { "software.amazon.awssdk.", "io.netty." };
+
+  private final ContextAware owner;
+  private volatile boolean transportEventsDropped;
+  private final AtomicBoolean reported = new AtomicBoolean();
+
+  /**
+   * @param owner appender reporting the events dropped
+   */
+  public ReentrantEventFilter(ContextAware owner) {
+    this.owner = Objects.requireNonNull(owner);
+  }
+
+  public boolean isTransportEventsDropped() {
+    return transportEventsDropped;
+  }
+
+  /**
+   * @param transportEventsDropped whether to drop the events of the AWS SDK
+   *          and Netty logged on any thread
+   */
+  public void setTransportEventsDropped(boolean transportEventsDropped) {
+    this.transportEventsDropped = transportEventsDropped;
+  }
+
+  /**
+   * @param logEvent event appended
+   * @param streamName stream of the appender, for the report
+   * @return true if the event must be dropped
+   */
+  public boolean drops(Object logEvent, String streamName) {
+    if(!isReentrant(logEvent)) {
+      return false;
+    }
+    if(reported.compareAndSet(false, true)) {
+      owner.addWarn("Dropping log events of the threads sending to stream " + streamName
+                    + ", route the loggers of the AWS SDK and Netty to another appender to keep them");
+    }
+    return true;
+  }
+
+  private boolean isReentrant(Object logEvent) {
+    if(RequestDispatcher.isCompleting() || SendingThreads.isSending()) {
+      return true;
+    }
+    if(transportEventsDropped && logEvent instanceof ILoggingEvent) {
+      String loggerName = ((ILoggingEvent) logEvent).getLoggerName();
+      if(loggerName != null) {
+        for(String prefix : TRANSPORT_LOGGER_PREFIXES) {
+          if(loggerName.startsWith(prefix)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+}
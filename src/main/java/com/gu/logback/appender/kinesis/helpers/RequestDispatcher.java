@@ -0,0 +1,343 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import ch.qos.logback.core.spi.ContextAware;
+
+/**
+ * Sends requests once the adaptive rate limit, if enabled, lets their records
+ * through and the {@link InFlightWindow} has room for them, and accounts for
+ * them once completed, giving their room back. The records of a batch whose
+ * rate limit group has no room are requeued for a later batch, while the
+ * others are sent.
+ *
+ * Threads completing requests, which run their completions through
+ * {@link #runCompletion(Runnable)}, must never wait: the requests they send,
+ * e.g. retries or batches flushed on the threads of a shared transport, are
+ * handed to the rate limit waiter thread or queued in the in-flight window
+ * instead.
+ */
+public final class RequestDispatcher {
+
+  // marks the threads running request completions, which must never wait for the in-flight window
+  private static final ThreadLocal<Boolean> COMPLETING = new ThreadLocal<Boolean>();
+
+  private final InFlightWindow window;
+  private final AppenderMetrics metrics;
+  private final boolean tracing;
+  private final BooleanSupplier spilling;
+  private final Consumer<List<PendingRecord>> spiller;
+  private final Consumer<List<PendingRecord>> requeuer;
+  private final ContextAware owner;
+  private final String streamName;
+  // log events carried by the requests in flight
+  private final AtomicLong eventsInFlight = new AtomicLong();
+  private final Set<CompletableFuture<?>> outstandingRequests = ConcurrentHashMap.newKeySet();
+  private volatile AdaptiveRateLimiter rateLimiter;
+  // waits for the rate limit in place of the threads completing requests
+  private volatile ExecutorService rateLimitWaiter;
+  private volatile boolean rateLimitClosed;
+
+  /**
+   * @param window in-flight window the requests are sent within
+   * @param metrics metrics of the requests
+   * @param tracing whether the records may carry a {@link StageTrace}
+   * @param spilling tells whether to spill the records of the requests let
+   *          through rather than send them, e.g. past the flush deadline
+   * @param spiller spills the records of a request that won't be sent
+   * @param requeuer takes back the records of a batch that the rate limit
+   *          holds back, to send them in a later batch
+   * @param owner appender reporting the failures
+   * @param streamName stream the requests are sent to, for the failures
+   */
+  public RequestDispatcher(InFlightWindow window, AppenderMetrics metrics, boolean tracing, BooleanSupplier spilling,
+      Consumer<List<PendingRecord>> spiller, Consumer<List<PendingRecord>> requeuer, ContextAware owner,
+      String streamName) {
+    this.window = Objects.requireNonNull(window);
+    this.metrics = Objects.requireNonNull(metrics);
+    this.tracing = tracing;
+    this.spilling = Objects.requireNonNull(spilling);
+    this.spiller = Objects.requireNonNull(spiller);
+    this.requeuer = Objects.requireNonNull(requeuer);
+    this.owner = Objects.requireNonNull(owner);
+    this.streamName = streamName;
+  }
+
+  /**
+   * Runs a task of the SDK, such as the completion of a request, marking its
+   * thread as one the in-flight window waits for.
+   */
+  public static void runCompletion(Runnable task) {
+    COMPLETING.set(Boolean.TRUE);
+    try {
+      task.run();
+    }
+    finally {
+      COMPLETING.remove();
+    }
+  }
+
+  /**
+   * @return true if the calling thread is completing a request
+   */
+  public static boolean isCompleting() {
+    return COMPLETING.get() != null;
+  }
+
+  /**
+   * Starts limiting the rate of the requests.
+   *
+   * @param limiter the rate limit
+   * @param threadFactory factory for the thread waiting for the rate limit
+   *          in place of the threads completing requests
+   */
+  public void enableRateLimit(AdaptiveRateLimiter limiter, ThreadFactory threadFactory) {
+    rateLimitWaiter = Executors.newSingleThreadExecutor(threadFactory);
+    rateLimiter = limiter;
+  }
+
+  /**
+   * Starts the rate limit afresh once the groups it limits have changed, e.g.
+   * after the stream was resharded. The rates learned so far are lost, and
+   * the records waiting for the previous limit go through.
+   *
+   * @param factory creates the new rate limit
+   */
+  public void replaceRateLimit(Supplier<AdaptiveRateLimiter> factory) {
+    AdaptiveRateLimiter previous = rateLimiter;
+    if(previous == null) {
+      return;
+    }
+    AdaptiveRateLimiter limiter = factory.get();
+    rateLimiter = limiter;
+    previous.close();
+    if(rateLimitClosed) {
+      // closeRateLimit() closed the previous one
+      limiter.close();
+    }
+  }
+
+  /**
+   * Changes the ceilings of the rate limit, if enabled.
+   */
+  public void setRateCeilings(long maxRecordsPerSecond, long maxBytesPerSecond) {
+    AdaptiveRateLimiter limiter = rateLimiter;
+    if(limiter != null) {
+      limiter.setCeilings(maxRecordsPerSecond, maxBytesPerSecond);
+    }
+  }
+
+  /**
+   * Lets every record through the rate limit from now on, and waits for the
+   * requests held by the rate limit waiter to be sent.
+   *
+   * @param timeoutNanos maximum time to wait for the requests held
+   */
+  public void closeRateLimit(long timeoutNanos) {
+    rateLimitClosed = true;
+    AdaptiveRateLimiter limiter = rateLimiter;
+    if(limiter != null) {
+      limiter.close();
+    }
+    ExecutorService waiter = rateLimitWaiter;
+    if(waiter != null) {
+      // what it holds goes through the closed rate limit
+      waiter.shutdown();
+      try {
+        waiter.awaitTermination(timeoutNanos, TimeUnit.NANOSECONDS);
+      }
+      catch(InterruptedException e) {
+        // we are anyways cleaning up
+      }
+    }
+  }
+
+  /**
+   * Sends a request once the rate limit and the in-flight window let it
+   * through. The request may thus be sent from another thread, so failing to
+   * send it is handled here. Once spilling, the records are spilled instead.
+   *
+   * @param batch records of the request
+   * @param request sends a request for the records it is given, the batch or
+   *          those of its records the rate limit lets through, returning its
+   *          future, whose cancellation must be reported as a failure
+   */
+  public void send(List<PendingRecord> batch, Function<List<PendingRecord>, CompletableFuture<?>> request) {
+    AdaptiveRateLimiter limiter = rateLimiter;
+    if(limiter == null) {
+      sendWithinWindow(batch, request);
+      return;
+    }
+    if(!isCompleting()) {
+      if(batch.size() == 1) {
+        limiter.acquire(batch.get(0).getPartitionKey(), batch.get(0).getSize());
+        sendWithinWindow(batch, request);
+      } else {
+        sendAvailable(batch, limiter.acquireAvailable(batch), request);
+      }
+      return;
+    }
+    List<PendingRecord> available = limiter.tryAcquireAvailable(batch);
+    if(!available.isEmpty()) {
+      sendAvailable(batch, available, request);
+      return;
+    }
+    try {
+      rateLimitWaiter.execute(() -> sendAvailable(batch, limiter.acquireAvailable(batch), request));
+    }
+    catch(RejectedExecutionException e) {
+      // the appender is stopping and the rate limit is closed
+      sendWithinWindow(batch, request);
+    }
+  }
+
+  /**
+   * Sends the records of a batch that the rate limit let through, and
+   * requeues the others. Threads completing requests must never wait: if the
+   * rate limit holds all the records back, which is when the stream is
+   * throttled, the send is handed to the rate limit waiter thread instead.
+   */
+  private void sendAvailable(List<PendingRecord> batch, List<PendingRecord> available,
+      Function<List<PendingRecord>, CompletableFuture<?>> request) {
+    if(available.size() < batch.size()) {
+      // the records let through keep the order of the batch
+      List<PendingRecord> held = new ArrayList<PendingRecord>(batch.size() - available.size());
+      int next = 0;
+      for(PendingRecord record : batch) {
+        if(next < available.size() && available.get(next) == record) {
+          next++;
+        } else {
+          held.add(record);
+        }
+      }
+      requeuer.accept(held);
+    }
+    sendWithinWindow(available, request);
+  }
+
+  /**
+   * Logging and sender threads wait for room in the in-flight window, while
+   * threads completing requests queue theirs for the next completion to send.
+   */
+  private void sendWithinWindow(List<PendingRecord> batch,
+      Function<List<PendingRecord>, CompletableFuture<?>> request) {
+    boolean full = window.send(bytesOf(batch), () -> {
+      if(spilling.getAsBoolean()) {
+        spiller.accept(batch);
+        window.release(bytesOf(batch));
+        return;
+      }
+      if(tracing) {
+        long now = System.nanoTime();
+        for(PendingRecord record : batch) {
+          if(record.getTrace() != null) {
+            record.getTrace().sent(now);
+          }
+        }
+      }
+      metrics.requestSent(batch.size());
+      eventsInFlight.addAndGet(eventsOf(batch));
+      try {
+        CompletableFuture<?> future = SendingThreads.send(() -> request.apply(batch));
+        outstandingRequests.add(future);
+        future.whenComplete((response, exception) -> outstandingRequests.remove(future));
+      }
+      catch(RuntimeException e) {
+        owner.addError("Failed to send " + batch.size() + " log entries to stream: " + streamName, e);
+        requestFailed(batch, false);
+      }
+    }, !isCompleting());
+    if(full) {
+      metrics.inFlightWindowFull();
+    }
+  }
+
+  /**
+   * Accounts for a request that completed, possibly with some of its records
+   * rejected, which the caller is expected to retry. Each request must be
+   * reported once, as completed or failed, to give its room in the in-flight
+   * window back.
+   *
+   * @param batch records of the request
+   * @param failed indexes of the records the service rejected
+   * @param throttled indexes of the records the service rejected for
+   *          exceeding the throughput limits
+   */
+  public void requestCompleted(List<PendingRecord> batch, BitSet failed, BitSet throttled) {
+    metrics.requestSucceeded(batch, failed, throttled);
+    AdaptiveRateLimiter limiter = rateLimiter;
+    if(limiter != null) {
+      limiter.completed(batch, throttled);
+    }
+    eventsInFlight.addAndGet(-eventsOf(batch));
+    window.release(bytesOf(batch));
+  }
+
+  /**
+   * Accounts for a request that failed as a whole, and spills its records.
+   *
+   * @param batch records of the request
+   * @param throttled whether the request failed for exceeding the throughput
+   *          limits
+   */
+  public void requestFailed(List<PendingRecord> batch, boolean throttled) {
+    metrics.requestFailed(batch.size(), throttled);
+    AdaptiveRateLimiter limiter = rateLimiter;
+    if(limiter != null && throttled) {
+      BitSet all = new BitSet(batch.size());
+      all.set(0, batch.size());
+      limiter.completed(batch, all);
+    }
+    spiller.accept(batch);
+    eventsInFlight.addAndGet(-eventsOf(batch));
+    window.release(bytesOf(batch));
+  }
+
+  /**
+   * Cancels the requests still in flight, which fails them.
+   */
+  public void cancelOutstandingRequests() {
+    for(CompletableFuture<?> request : outstandingRequests) {
+      request.cancel(true);
+    }
+  }
+
+  /**
+   * @return number of log events carried by the requests in flight
+   */
+  public long getEventsInFlight() {
+    return eventsInFlight.get();
+  }
+
+  private static long eventsOf(List<PendingRecord> batch) {
+    long events = 0;
+    for(PendingRecord record : batch) {
+      events += record.getEventCount();
+    }
+    return events;
+  }
+
+  private static long bytesOf(List<PendingRecord> batch) {
+    long bytes = 0;
+    for(PendingRecord record : batch) {
+      bytes += record.getSize();
+    }
+    return bytes;
+  }
+}
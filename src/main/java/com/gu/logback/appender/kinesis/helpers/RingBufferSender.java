@@ -0,0 +1,623 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.gu.logback.appender.kinesis.AppenderConstants;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.spi.ContextAware;
+import ch.qos.logback.core.spi.DeferredProcessingAware;
+
+/**
+ * Hands the log events appended by the logging threads over to a single
+ * sender thread through an {@link MpscRingBuffer}. Logging threads claim a
+ * slot according to the {@link OverflowPolicy} and only then format the event
+ * into it, so that dropped events are never formatted. With a deferred
+ * layout, they only capture what the event takes from the logging thread,
+ * and the sender thread formats chunks of events in parallel on the layout
+ * threads.
+ *
+ * The ring buffer can be resized while running: logging threads move on to
+ * the new buffer straight away, while the sender thread sends what the old
+ * one holds before taking from the new one, so that no event is lost or
+ * reordered.
+ *
+ * @param <E> type of the log events
+ */
+public final class RingBufferSender<E extends DeferredProcessingAware> {
+
+  /**
+   * What the sender needs from its appender.
+   *
+   * @param <E> type of the log events
+   */
+  public interface Target<E> {
+
+    /**
+     * @return partition key of the record carrying the event, called on the
+     *         logging thread
+     */
+    String partitionKeyOf(E event);
+
+    /**
+     * @return payload of the record carrying the event
+     */
+    byte[] encode(E event);
+
+    /**
+     * @return a new trace for the event, null if it isn't sampled
+     */
+    StageTrace newTrace(long appendNanos);
+
+    /**
+     * @return true while the startup holds back the events in the ring
+     *         buffer, which only empties once it completes
+     */
+    boolean isHolding();
+
+    /**
+     * Writes an event that doesn't fit in the ring buffer to the spill queue,
+     * or drops it if there is none.
+     */
+    void spill(E event);
+
+    /**
+     * Sends the payload of an event taken from the ring buffer.
+     */
+    void send(String partitionKey, byte[] payload, long appendNanos, StageTrace trace);
+  }
+
+  private final Target<E> target;
+  private final DropCounters dropCounters;
+  private final ContextAware owner;
+  private final String appenderName;
+  private final String streamName;
+  private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+  private long overflowTimeoutMillis = AppenderConstants.DEFAULT_OVERFLOW_TIMEOUT_MILLIS;
+  private Level overflowLevelThreshold = Level.WARN;
+  private boolean spillEnabled;
+  private boolean deferredLayoutEnabled;
+  private boolean includeCallerData;
+  private int layoutThreadCount = 1;
+
+  // replaced when resized, under resizeLock
+  private volatile MpscRingBuffer<PayloadSlot> ringBuffer;
+  private final Object resizeLock = new Object();
+  private boolean closed;
+  // the buffer the sender thread drains, behind the current one after a resize
+  private volatile MpscRingBuffer<PayloadSlot> drainedRingBuffer;
+  // buffers that replaced the one the sender thread drains, in order
+  private final Queue<MpscRingBuffer<PayloadSlot>> resizedRingBuffers
+    = new ConcurrentLinkedQueue<MpscRingBuffer<PayloadSlot>>();
+  private Thread senderThread;
+  private ExecutorService layoutExecutor;
+  // events the sender thread has taken from the ring buffer and not sent yet, with a deferred layout
+  private volatile int takenEvents;
+
+  /**
+   * @param bufferSize number of slots of the ring buffer
+   * @param target the appender the events are sent for
+   * @param dropCounters counters of the events dropped by the overflow policy
+   * @param owner appender reporting the failures
+   * @param appenderName name of the appender, for the failures
+   * @param streamName stream the events are sent to, for the failures
+   */
+  public RingBufferSender(int bufferSize, Target<E> target, DropCounters dropCounters, ContextAware owner,
+      String appenderName, String streamName) {
+    Validator.validate(bufferSize > 0, "bufferSize must be > 0");
+    this.target = Objects.requireNonNull(target);
+    this.dropCounters = Objects.requireNonNull(dropCounters);
+    this.owner = Objects.requireNonNull(owner);
+    this.appenderName = appenderName;
+    this.streamName = streamName;
+    this.ringBuffer = new MpscRingBuffer<PayloadSlot>(bufferSize, PayloadSlot::new, PayloadSlot::clear);
+    this.drainedRingBuffer = ringBuffer;
+  }
+
+  public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+    Validator.validate(overflowPolicy != null, "overflowPolicy cannot be null");
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  public void setOverflowTimeoutMillis(long overflowTimeoutMillis) {
+    Validator.validate(overflowTimeoutMillis >= 0, "overflowTimeoutMillis must be >= 0");
+    this.overflowTimeoutMillis = overflowTimeoutMillis;
+  }
+
+  public void setOverflowLevelThreshold(Level overflowLevelThreshold) {
+    Validator.validate(overflowLevelThreshold != null, "overflowLevelThreshold cannot be null");
+    this.overflowLevelThreshold = overflowLevelThreshold;
+  }
+
+  /**
+   * Sets whether events that can't wait for room, while the startup holds
+   * the buffer back, are spilled rather than dropped.
+   */
+  public void setSpillEnabled(boolean spillEnabled) {
+    this.spillEnabled = spillEnabled;
+  }
+
+  /**
+   * Sets whether events are formatted on the sender and layout threads
+   * rather than on the logging thread.
+   */
+  public void setDeferredLayoutEnabled(boolean deferredLayoutEnabled) {
+    this.deferredLayoutEnabled = deferredLayoutEnabled;
+  }
+
+  /**
+   * Sets whether the caller data of events is captured on the logging thread
+   * for a deferred layout.
+   */
+  public void setIncludeCallerData(boolean includeCallerData) {
+    this.includeCallerData = includeCallerData;
+  }
+
+  /**
+   * Sets the number of threads formatting events with a deferred layout, the
+   * sender thread included.
+   */
+  public void setLayoutThreadCount(int layoutThreadCount) {
+    Validator.validate(layoutThreadCount > 0, "layoutThreadCount must be > 0");
+    this.layoutThreadCount = layoutThreadCount;
+  }
+
+  /**
+   * Starts the sender thread, and the layout threads with a deferred layout.
+   *
+   * @param threadFactory factory for the sender thread
+   * @param layoutThreadFactory factory for the layout threads
+   */
+  public void start(ThreadFactory threadFactory, ThreadFactory layoutThreadFactory) {
+    if(deferredLayoutEnabled && layoutThreadCount > 1) {
+      layoutExecutor = Executors.newFixedThreadPool(layoutThreadCount - 1, layoutThreadFactory);
+    }
+    senderThread = threadFactory.newThread(this::drainRingBuffer);
+    senderThread.start();
+  }
+
+  /**
+   * Closes the ring buffer: the sender thread exits once it has sent what the
+   * buffer holds, and logging threads waiting for room give up.
+   */
+  public void close() {
+    synchronized(resizeLock) {
+      closed = true;
+      ringBuffer.close();
+    }
+  }
+
+  /**
+   * Waits for the sender thread to exit, until a deadline.
+   *
+   * @param deadlineNanos {@link System#nanoTime()} to stop waiting at
+   */
+  public void join(long deadlineNanos) {
+    long millis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+    if(millis <= 0) {
+      return;
+    }
+    try {
+      senderThread.join(millis);
+    }
+    catch(InterruptedException e) {
+      // we are anyways cleaning up
+    }
+  }
+
+  /**
+   * @return true while the sender thread runs
+   */
+  public boolean isSending() {
+    return senderThread.isAlive();
+  }
+
+  /**
+   * Stops the layout threads. A sender thread still running formats on its
+   * own.
+   */
+  public void shutdownLayout() {
+    if(layoutExecutor != null) {
+      layoutExecutor.shutdown();
+    }
+  }
+
+  /**
+   * Replaces the ring buffer with one of another size. Logging threads move
+   * on to the new buffer straight away, including those waiting for room in
+   * the old one.
+   *
+   * @param bufferSize new size of the ring buffer
+   * @return false if the sender is closed
+   */
+  public boolean resize(int bufferSize) {
+    Validator.validate(bufferSize > 0, "bufferSize must be >0");
+    MpscRingBuffer<PayloadSlot> resized
+      = new MpscRingBuffer<PayloadSlot>(bufferSize, PayloadSlot::new, PayloadSlot::clear);
+    synchronized(resizeLock) {
+      if(closed) {
+        return false;
+      }
+      MpscRingBuffer<PayloadSlot> previous = ringBuffer;
+      resizedRingBuffers.add(resized);
+      ringBuffer = resized;
+      previous.close();
+      return true;
+    }
+  }
+
+  /**
+   * Returns the number of events waiting in the ring buffer, and in the
+   * buffers it replaced when resized that are still being drained.
+   */
+  public int getSize() {
+    MpscRingBuffer<PayloadSlot> drained = drainedRingBuffer;
+    int size = drained != null ? drained.size() : 0;
+    for(MpscRingBuffer<PayloadSlot> resized : resizedRingBuffers) {
+      if(resized != drained) {
+        size += resized.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Returns the number of events not sent yet, those waiting in the ring
+   * buffers and those the sender thread has taken.
+   */
+  public int getUnsentCount() {
+    return getSize() + takenEvents;
+  }
+
+  /**
+   * Claims a slot in the ring buffer according to the overflow policy, and
+   * only then formats the event into it.
+   */
+  public void append(E logEvent) {
+    long appendNanos = System.nanoTime();
+    MpscRingBuffer<PayloadSlot> buffer;
+    long sequence;
+    while(true) {
+      buffer = ringBuffer;
+      try {
+        sequence = claimSlot(buffer, logEvent);
+        break;
+      }
+      catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        owner.addError("Interrupted while waiting for room in the buffer of appender: " + appenderName, e);
+        return;
+      }
+      catch(IllegalStateException e) {
+        if(buffer == ringBuffer) {
+          owner.addError("Failed to schedule log entry as appender " + appenderName + " is shutting down", e);
+          return;
+        }
+        // the buffer has been resized, the event goes to the new one
+      }
+    }
+    if(sequence < 0) {
+      return;
+    }
+    PayloadSlot slot = buffer.get(sequence);
+    try {
+      slot.appendNanos = appendNanos;
+      slot.trace = target.newTrace(appendNanos);
+      slot.partitionKey = target.partitionKeyOf(logEvent);
+      // the slot still holds what it was last filled in with
+      if(deferredLayoutEnabled) {
+        prepareForDeferredLayout(logEvent);
+        slot.payload = null;
+        slot.event = logEvent;
+      } else {
+        slot.event = null;
+        slot.payload = target.encode(logEvent);
+      }
+      if(slot.trace != null) {
+        slot.trace.encoded();
+      }
+    }
+    catch(Exception e) {
+      slot.payload = null;
+      slot.event = null;
+      owner.addError("Failed to schedule log entry for publishing into Kinesis stream: " + streamName, e);
+    }
+    finally {
+      buffer.publish(sequence);
+    }
+  }
+
+  /**
+   * Captures what a log event takes from the logging thread, such as its
+   * formatted message and MDC, so that it can be formatted on another thread.
+   */
+  private void prepareForDeferredLayout(E logEvent) {
+    logEvent.prepareForDeferredProcessing();
+    if(includeCallerData && logEvent instanceof ILoggingEvent) {
+      ((ILoggingEvent) logEvent).getCallerData();
+    }
+  }
+
+  /**
+   * Claims a slot for the event, applying the overflow policy if the ring
+   * buffer is full.
+   *
+   * @return sequence of the claimed slot, or -1 if the event is dropped
+   */
+  private long claimSlot(MpscRingBuffer<PayloadSlot> buffer, E logEvent) throws InterruptedException {
+    long sequence = buffer.tryNext();
+    if(sequence >= 0) {
+      return sequence;
+    }
+    switch(overflowPolicy) {
+      case DROP_NEWEST:
+        dropCounters.newestDropped();
+        return -1;
+      case DROP_OLDEST:
+        return claimSlotDroppingOldest(buffer);
+      case DROP_BELOW_LEVEL:
+        if(logEvent instanceof ILoggingEvent
+           && !((ILoggingEvent) logEvent).getLevel().isGreaterOrEqual(overflowLevelThreshold)) {
+          dropCounters.belowLevelDropped();
+          return -1;
+        }
+        return claimSlotWaiting(buffer, logEvent, true);
+      case BLOCK_WITH_TIMEOUT:
+        return claimSlotWaiting(buffer, logEvent, true);
+      case SPILL:
+        target.spill(logEvent);
+        return -1;
+      default:
+        return claimSlotWaiting(buffer, logEvent, false);
+    }
+  }
+
+  /**
+   * Discards the oldest events to make room for the event being logged. The
+   * oldest event can't be discarded while it is being published or taken, and
+   * other logging threads may take the room made, so the logging thread only
+   * tries so many times before dropping its own event instead.
+   *
+   * @return sequence of the claimed slot, or -1 if the event is dropped
+   */
+  private long claimSlotDroppingOldest(MpscRingBuffer<PayloadSlot> buffer) {
+    for(int tries = 0; tries < AppenderConstants.DROP_OLDEST_MAX_TRIES; tries++) {
+      if(buffer.discardOldest()) {
+        dropCounters.oldestDropped();
+      } else {
+        Thread.yield();
+      }
+      long sequence = buffer.tryNext();
+      if(sequence >= 0) {
+        return sequence;
+      }
+    }
+    dropCounters.newestDropped();
+    return -1;
+  }
+
+  /**
+   * Waits for room in the ring buffer, for at most the overflow timeout if
+   * timed. While the startup holds the buffer back, which may take minutes,
+   * logging threads don't wait for it: the event is spilled if spilling is
+   * enabled, and dropped otherwise.
+   */
+  private long claimSlotWaiting(MpscRingBuffer<PayloadSlot> buffer, E logEvent, boolean timed)
+      throws InterruptedException {
+    if(target.isHolding()) {
+      if(spillEnabled) {
+        target.spill(logEvent);
+      } else {
+        dropCounters.newestDropped();
+      }
+      return -1;
+    }
+    if(!timed) {
+      return buffer.next();
+    }
+    long sequence = buffer.next(TimeUnit.MILLISECONDS.toNanos(overflowTimeoutMillis));
+    if(sequence < 0) {
+      dropCounters.timeoutDropped();
+    }
+    return sequence;
+  }
+
+  /**
+   * Body of the sender thread: hands published payloads over to the target
+   * until the ring buffer is closed and empty.
+   */
+  private void drainRingBuffer() {
+    if(deferredLayoutEnabled) {
+      drainRingBufferDeferred();
+      return;
+    }
+    PayloadSlot taken = new PayloadSlot();
+    MpscRingBuffer<PayloadSlot> buffer = drainedRingBuffer;
+    while(buffer != null) {
+      if(buffer.drain(slot -> slot.copyTo(taken), this::sendAndClear) == 0) {
+        buffer = awaitPublished(buffer);
+      }
+    }
+  }
+
+  /**
+   * Waits for events to be published when the sender thread has taken all
+   * those of a ring buffer. Once a closed buffer is empty, the sender thread
+   * moves on to the buffer that replaced it on a resize, having sent all the
+   * events of the former, so that events are sent in the order they were
+   * appended however many resizes it lags behind. Otherwise it exits.
+   *
+   * @return the buffer to drain next, null if the sender is closed
+   */
+  private MpscRingBuffer<PayloadSlot> awaitPublished(MpscRingBuffer<PayloadSlot> buffer) {
+    if(buffer.isClosed() && buffer.size() == 0) {
+      MpscRingBuffer<PayloadSlot> next = resizedRingBuffers.poll();
+      drainedRingBuffer = next;
+      return next;
+    }
+    buffer.awaitPublished(AppenderConstants.RING_BUFFER_IDLE_WAIT_NANOS);
+    return buffer;
+  }
+
+  /**
+   * Body of the sender thread with a deferred layout: takes chunks of events
+   * from the ring buffer, formats each chunk in parallel on the layout
+   * threads and on the sender thread itself, and sends the payloads in the
+   * order the events were appended.
+   */
+  private void drainRingBufferDeferred() {
+    PayloadSlot[] chunk = new PayloadSlot[AppenderConstants.DEFERRED_LAYOUT_CHUNK_SIZE];
+    for(int i = 0; i < chunk.length; i++) {
+      chunk[i] = new PayloadSlot();
+    }
+    int[] count = new int[1];
+    MpscRingBuffer<PayloadSlot> buffer = drainedRingBuffer;
+    while(buffer != null) {
+      count[0] = 0;
+      if(buffer.drain(chunk.length, slot -> slot.copyTo(chunk[count[0]]), taken -> count[0]++) == 0) {
+        buffer = awaitPublished(buffer);
+        continue;
+      }
+      takenEvents = count[0];
+      layoutInParallel(chunk, count[0]);
+      for(int i = 0; i < count[0]; i++) {
+        sendPayload(chunk[i]);
+        chunk[i].clear();
+        takenEvents = count[0] - i - 1;
+      }
+    }
+  }
+
+  /**
+   * Formats the events of a chunk, splitting it between the layout threads
+   * and the calling thread unless it is too small to be worth it.
+   */
+  private void layoutInParallel(PayloadSlot[] chunk, int count) {
+    int tasks = 1;
+    if(layoutExecutor != null) {
+      tasks = Math.max(1, Math.min(layoutThreadCount, count / AppenderConstants.DEFERRED_LAYOUT_MIN_EVENTS_PER_TASK));
+    }
+    int perTask = (count + tasks - 1) / tasks;
+    List<Future<?>> futures = new ArrayList<Future<?>>(tasks - 1);
+    for(int from = perTask; from < count; from += perTask) {
+      int start = from;
+      int end = Math.min(count, from + perTask);
+      try {
+        futures.add(layoutExecutor.submit(() -> layout(chunk, start, end)));
+      }
+      catch(RejectedExecutionException e) {
+        layout(chunk, start, end);
+      }
+    }
+    layout(chunk, 0, Math.min(count, perTask));
+
+    boolean interrupted = false;
+    for(Future<?> future : futures) {
+      while(true) {
+        try {
+          future.get();
+          break;
+        }
+        catch(InterruptedException e) {
+          interrupted = true;
+        }
+        catch(ExecutionException e) {
+          owner.addError("Failed to format log entries for publishing into Kinesis stream: " + streamName,
+                         e.getCause());
+          break;
+        }
+      }
+    }
+    if(interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void layout(PayloadSlot[] chunk, int from, int to) {
+    for(int i = from; i < to; i++) {
+      PayloadSlot slot = chunk[i];
+      if(slot.event == null) {
+        continue;
+      }
+      try {
+        @SuppressWarnings("unchecked")
+        E logEvent = (E) slot.event;
+        slot.payload = target.encode(logEvent);
+      }
+      catch(Exception e) {
+        slot.payload = null;
+        owner.addError("Failed to format log entry for publishing into Kinesis stream: " + streamName, e);
+      }
+      finally {
+        slot.event = null;
+      }
+    }
+  }
+
+  private void sendAndClear(PayloadSlot taken) {
+    sendPayload(taken);
+    taken.clear();
+  }
+
+  private void sendPayload(PayloadSlot taken) {
+    if(taken.payload == null) {
+      // the event failed to be encoded, which has been reported already
+      return;
+    }
+    if(taken.trace != null) {
+      taken.trace.dequeued();
+    }
+    try {
+      target.send(taken.partitionKey, taken.payload, taken.appendNanos, taken.trace);
+    }
+    catch(Exception e) {
+      owner.addError("Failed to schedule log entry for publishing into Kinesis stream: " + streamName, e);
+    }
+  }
+
+  /**
+   * Ring buffer slot holding the partition key and payload of an encoded
+   * event, or the event itself until it is formatted with a deferred layout.
+   */
+  private static final class PayloadSlot {
+    String partitionKey;
+    byte[] payload;
+    Object event;
+    long appendNanos;
+    StageTrace trace;
+
+    /**
+     * Copies the contents of this slot to another one, owned by the sender
+     * thread, so that this slot can be released. This slot is left as it is,
+     * since a producer may already be filling it in again: the ring buffer
+     * clears it once released, unless a producer has claimed it by then.
+     */
+    PayloadSlot copyTo(PayloadSlot target) {
+      target.partitionKey = partitionKey;
+      target.payload = payload;
+      target.event = event;
+      target.appendNanos = appendNanos;
+      target.trace = trace;
+      return target;
+    }
+
+    void clear() {
+      partitionKey = null;
+      payload = null;
+      event = null;
+      trace = null;
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+
+/**
+ * Marks the threads sending records, so that the log events logged on them,
+ * by the SDK, the HTTP client or the appender itself, can be recognised and
+ * dropped: sending them would log again. The appenders' own threads, and the
+ * event loop threads of the HTTP clients they build, are marked for their
+ * whole life, while other threads are marked as long as they are sending a
+ * request. The threads completing requests are marked by
+ * {@link RequestDispatcher#runCompletion(Runnable)}.
+ */
+public final class SendingThreads {
+
+  private static final ThreadLocal<Boolean> SENDING = new ThreadLocal<Boolean>();
+
+  private SendingThreads() {
+  }
+
+  /**
+   * @param threadFactory factory naming the threads
+   * @return a factory creating the threads of the given one, marked for as
+   *         long as they run
+   */
+  public static ThreadFactory marking(ThreadFactory threadFactory) {
+    return task -> threadFactory.newThread(() -> {
+      SENDING.set(Boolean.TRUE);
+      task.run();
+    });
+  }
+
+  /**
+   * Sends a request, marking the calling thread until the request is handed
+   * to the HTTP client.
+   *
+   * @param request sends the request and returns its future
+   * @return the future of the request
+   */
+  public static <T> T send(Supplier<T> request) {
+    if(isSending()) {
+      return request.get();
+    }
+    SENDING.set(Boolean.TRUE);
+    try {
+      return request.get();
+    }
+    finally {
+      SENDING.remove();
+    }
+  }
+
+  /**
+   * @return true if the calling thread is sending records
+   */
+  public static boolean isSending() {
+    return SENDING.get() != null;
+  }
+}
@@ -0,0 +1,63 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cycles through a set of precomputed partition keys, one falling in the hash
+ * key range of each open shard, so that events are spread exactly evenly
+ * across shards. Each logging thread cycles on its own, starting from a
+ * different shard, so that threads don't contend on a shared counter.
+ *
+ * Until the shards are known, or if they can't be listed, events get random
+ * keys.
+ */
+public class ShardBalancedPartitionKeyStrategy<E> implements PartitionKeyStrategy<E> {
+
+  private static final int ATTEMPTS_PER_SHARD = 1000;
+
+  private final ThreadLocal<int[]> nextIndex = ThreadLocal.withInitial(() -> new int[] { -1 });
+  private volatile String[] keys;
+
+  @Override
+  public String partitionKey(E event) {
+    String[] current = keys;
+    if(current == null) {
+      return RandomPartitionKeyStrategy.randomKey();
+    }
+    int[] index = nextIndex.get();
+    if(index[0] < 0) {
+      index[0] = (int) (Thread.currentThread().getId() % current.length);
+    }
+    int i = index[0] % current.length;
+    index[0] = i + 1;
+    return current[i];
+  }
+
+  /**
+   * Finds a key for each shard, trying candidate keys in order. Shards whose
+   * hash key range is too narrow to be hit by a reasonable number of
+   * candidates are left out.
+   */
+  @Override
+  public void setShards(ShardMap shards) {
+    String[] found = new String[shards.getShardCount()];
+    int missing = found.length;
+    long maxAttempts = (long) ATTEMPTS_PER_SHARD * found.length;
+    for(long candidate = 0; candidate < maxAttempts && missing > 0; candidate++) {
+      String key = Long.toString(candidate, Character.MAX_RADIX);
+      int shard = shards.shardOf(key);
+      if(found[shard] == null) {
+        found[shard] = key;
+        missing--;
+      }
+    }
+    List<String> balanced = new ArrayList<String>(found.length);
+    for(String key : found) {
+      if(key != null) {
+        balanced.add(key);
+      }
+    }
+    keys = balanced.toArray(new String[balanced.size()]);
+  }
+}
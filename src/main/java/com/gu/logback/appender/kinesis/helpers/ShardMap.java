@@ -0,0 +1,98 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps partition keys to the open shard of a Kinesis stream they are routed
+ * to: Kinesis hashes partition keys with MD5 into a 128-bit hash key, which
+ * falls in the hash key range of exactly one open shard.
+ *
+ * Hash keys are compared on their 64 most significant bits, which only
+ * misplaces keys within 2^64 of a shard boundary.
+ */
+public final class ShardMap {
+
+  private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("MD5");
+    }
+    catch(NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 is not available", e);
+    }
+  });
+
+  private final long[] startingHashKeys;
+
+  /**
+   * @param startingHashKeys starting hash keys of the open shards, as decimal
+   *          strings
+   */
+  public ShardMap(List<String> startingHashKeys) {
+    Validator.validate(!startingHashKeys.isEmpty(), "startingHashKeys cannot be empty");
+    long[] keys = new long[startingHashKeys.size()];
+    for(int i = 0; i < keys.length; i++) {
+      keys[i] = new BigInteger(startingHashKeys.get(i)).shiftRight(64).longValue();
+    }
+    // sorted as unsigned values
+    for(int i = 0; i < keys.length; i++) {
+      keys[i] ^= Long.MIN_VALUE;
+    }
+    Arrays.sort(keys);
+    for(int i = 0; i < keys.length; i++) {
+      keys[i] ^= Long.MIN_VALUE;
+    }
+    this.startingHashKeys = keys;
+  }
+
+  /**
+   * @return number of open shards
+   */
+  public int getShardCount() {
+    return startingHashKeys.length;
+  }
+
+  /**
+   * @param partitionKey a partition key
+   * @return index of the shard the key is routed to, between 0 and the
+   *         number of shards - 1, in hash key order
+   */
+  public int shardOf(String partitionKey) {
+    return shardOfHashKey(hashKey(partitionKey));
+  }
+
+  /**
+   * @param hashKey 64 most significant bits of a hash key
+   * @return index of the shard owning the hash key
+   */
+  public int shardOfHashKey(long hashKey) {
+    int low = 0;
+    int high = startingHashKeys.length - 1;
+    while(low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if(Long.compareUnsigned(startingHashKeys[mid], hashKey) <= 0) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @param partitionKey a partition key
+   * @return 64 most significant bits of the key's MD5 hash
+   */
+  public static long hashKey(String partitionKey) {
+    byte[] digest = MD5.get().digest(partitionKey.getBytes(StandardCharsets.UTF_8));
+    long hash = 0;
+    for(int i = 0; i < 8; i++) {
+      hash = (hash << 8) | (digest[i] & 0xFF);
+    }
+    return hash;
+  }
+}
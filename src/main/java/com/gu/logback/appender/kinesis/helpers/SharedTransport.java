@@ -0,0 +1,313 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import software.amazon.awssdk.http.Protocol;
+import software.amazon.awssdk.http.SdkHttpConfigurationOption;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.utils.AttributeMap;
+
+import ch.qos.logback.core.Context;
+import ch.qos.logback.core.spi.ContextAwareBase;
+
+/**
+ * Transport shared by the appenders of a Logback context configured with the
+ * same name: one HTTP client and connection pool, one pool of threads
+ * completing requests and one scheduler for SDK retries and batch linger
+ * timers, instead of one of each per appender. Transports are registered in
+ * their context, so that appenders of other contexts in the same JVM, e.g. of
+ * other web applications, never share them.
+ *
+ * Threads serve the appenders in turn, each appender queuing its tasks in a
+ * lane of {@link FairExecutor} bounded by its own bufferSize, so that a busy
+ * or throttled stream can't hold up the others. The transport is created by
+ * the first appender to start, with that appender's settings and the HTTP
+ * defaults of its service, and closed when the last one using it stops.
+ * Unless its httpClient sets the protocol, appenders of services defaulting
+ * to another protocol, such as Kinesis (HTTP/2) and Firehose (HTTP/1.1),
+ * can't share it.
+ */
+public class SharedTransport extends ContextAwareBase {
+
+  private static final int DEFAULT_THREAD_COUNT = 8;
+  private static final int DEFAULT_MAX_CONNECTIONS = 50;
+  private static final int SCHEDULER_THREAD_COUNT = 2;
+  private static final long CLOSE_TIMEOUT_SEC = 5;
+
+  private static final String REGISTRY_KEY = SharedTransport.class.getName();
+
+  private String name;
+  private Integer threadCount;
+  private Integer maxConnections;
+  private Integer maxThreadsPerAppender;
+  private HttpClientSettings httpClient;
+
+  /**
+   * Attaches to the transport of this name, creating it if no other appender
+   * uses it yet.
+   *
+   * @param httpClientDefaults settings the SDK client of the appender's
+   *          service applies to the HTTP clients it builds, used if the
+   *          transport is created
+   * @return lease on the transport, to close once done with it
+   * @throws IllegalStateException if the transport has no name or context,
+   *           if it was started with the default protocol of another service,
+   *           or if the implementation of the SDK's asynchronous HTTP client
+   *           isn't on the classpath
+   */
+  public Lease acquire(AttributeMap httpClientDefaults) {
+    if(Validator.isBlank(name)) {
+      throw new IllegalStateException("Shared transport needs a name");
+    }
+    if(getContext() == null) {
+      throw new IllegalStateException("Shared transport " + name + " needs a context");
+    }
+    Registry registry = registryOf(getContext());
+    synchronized(registry) {
+      Shared shared = registry.transports.get(name);
+      Protocol defaultProtocol = httpClientDefaults.get(SdkHttpConfigurationOption.PROTOCOL);
+      if(shared == null) {
+        HttpClientSettings settings = (httpClient != null ? httpClient : new HttpClientSettings())
+          .withDefaultMaxConcurrency(getMaxConnections());
+        shared = new Shared(registry, name, getThreadCount(), settings.getMaxConcurrency(),
+                            getMaxThreadsPerAppender(),
+                            settings.createHttpClient(httpClientDefaults, threadFactory(name, "http-")),
+                            settings.getProtocol() == null, defaultProtocol);
+        registry.transports.put(name, shared);
+        addInfo("Started shared transport " + name + " with " + shared.threadCount + " threads and "
+                + shared.maxConnections + " connections");
+      } else if(shared.protocolDefaulted && !Objects.equals(shared.defaultProtocol, defaultProtocol)) {
+        throw new IllegalStateException("Shared transport " + name + " uses " + describe(shared.defaultProtocol)
+                                        + ", the default of the service of the appender that started it, rather than "
+                                        + describe(defaultProtocol)
+                                        + ", set the protocol of its httpClient to share it between services");
+      } else {
+        warnIfIgnored("threadCount", threadCount, shared.threadCount);
+        warnIfIgnored("maxConnections", maxConnections, shared.maxConnections);
+        warnIfIgnored("maxThreadsPerAppender", maxThreadsPerAppender, shared.maxThreadsPerAppender);
+        if(httpClient != null) {
+          addWarn("Ignoring httpClient of shared transport " + name + ", it was already started");
+        }
+      }
+      shared.references++;
+      return new Lease(shared);
+    }
+  }
+
+  private void warnIfIgnored(String property, Integer configured, int actual) {
+    if(configured != null && configured != actual) {
+      addWarn("Ignoring " + property + " " + configured + " of shared transport " + name
+              + ", it was already started with " + actual);
+    }
+  }
+
+  /**
+   * Creates a factory for the threads of a transport, named after it and
+   * marked as {@link SendingThreads}.
+   */
+  private static ThreadFactory threadFactory(String name, String purpose) {
+    return SendingThreads.marking(new NamedThreadFactory("SharedTransport[" + name + "]-" + purpose));
+  }
+
+  private static String describe(Protocol protocol) {
+    return protocol != null ? "protocol " + protocol : "the protocol of the HTTP client";
+  }
+
+  /**
+   * Returns the transports of a context, registering them in it on first use.
+   */
+  private static Registry registryOf(Context context) {
+    synchronized(context) {
+      Registry registry = (Registry) context.getObject(REGISTRY_KEY);
+      if(registry == null) {
+        registry = new Registry();
+        context.putObject(REGISTRY_KEY, registry);
+      }
+      return registry;
+    }
+  }
+
+  private static void release(Shared shared) {
+    synchronized(shared.registry) {
+      if(--shared.references > 0) {
+        return;
+      }
+      shared.registry.transports.remove(shared.name);
+    }
+    shared.close();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @param name name the appenders sharing this transport refer to it by
+   */
+  public void setName(String name) {
+    Validator.validate(!Validator.isBlank(name), "name cannot be blank");
+    this.name = name.trim();
+  }
+
+  public int getThreadCount() {
+    return threadCount != null ? threadCount : DEFAULT_THREAD_COUNT;
+  }
+
+  /**
+   * @param threadCount number of threads completing the requests of all the
+   *          appenders, 8 by default
+   */
+  public void setThreadCount(int threadCount) {
+    Validator.validate(threadCount > 0, "threadCount must be >0");
+    this.threadCount = threadCount;
+  }
+
+  public int getMaxConnections() {
+    return maxConnections != null ? maxConnections : DEFAULT_MAX_CONNECTIONS;
+  }
+
+  /**
+   * @param maxConnections maximum number of connections of the HTTP client,
+   *          50 by default
+   */
+  public void setMaxConnections(int maxConnections) {
+    Validator.validate(maxConnections > 0, "maxConnections must be >0");
+    this.maxConnections = maxConnections;
+  }
+
+  public int getMaxThreadsPerAppender() {
+    return maxThreadsPerAppender != null ? maxThreadsPerAppender : Math.max(1, getThreadCount() / 2);
+  }
+
+  /**
+   * @param maxThreadsPerAppender maximum number of threads working for the
+   *          same appender at once, half of threadCount by default, so that
+   *          an appender waiting on its rate limit leaves threads to the
+   *          others
+   */
+  public void setMaxThreadsPerAppender(int maxThreadsPerAppender) {
+    Validator.validate(maxThreadsPerAppender > 0, "maxThreadsPerAppender must be >0");
+    this.maxThreadsPerAppender = maxThreadsPerAppender;
+  }
+
+  public HttpClientSettings getHttpClient() {
+    return httpClient;
+  }
+
+  /**
+   * @param httpClient implementation and connection settings of the HTTP
+   *          client, whose maxConcurrency takes precedence over maxConnections
+   */
+  public void setHttpClient(HttpClientSettings httpClient) {
+    Validator.validate(httpClient != null, "httpClient cannot be null");
+    this.httpClient = httpClient;
+  }
+
+  /**
+   * An appender's use of a shared transport.
+   */
+  public static final class Lease implements Closeable {
+    private final Shared shared;
+    private boolean closed;
+
+    private Lease(Shared shared) {
+      this.shared = shared;
+    }
+
+    public String getName() {
+      return shared.name;
+    }
+
+    /**
+     * @return the HTTP client to build the SDK client with, which the SDK
+     *         client doesn't close
+     */
+    public SdkAsyncHttpClient getHttpClient() {
+      return shared.httpClient;
+    }
+
+    /**
+     * @return the scheduler for SDK retries and timers, which must only run
+     *         short tasks
+     */
+    public ScheduledExecutorService getScheduler() {
+      return shared.scheduler;
+    }
+
+    /**
+     * @param capacity maximum number of tasks waiting for a thread
+     * @return a new lane of the transport's threads
+     */
+    public FairExecutor.Lane newLane(int capacity) {
+      return shared.executor.newLane(capacity);
+    }
+
+    /**
+     * Detaches from the transport, closing it if no other appender uses it.
+     * Lanes must have been shut down and clients closed first.
+     */
+    @Override
+    public synchronized void close() {
+      if(!closed) {
+        closed = true;
+        release(shared);
+      }
+    }
+  }
+
+  /**
+   * Transports of a context, by name.
+   */
+  private static final class Registry {
+    private final Map<String, Shared> transports = new HashMap<String, Shared>();
+  }
+
+  private static final class Shared {
+    private final Registry registry;
+    private final String name;
+    private final int threadCount;
+    private final int maxConnections;
+    private final int maxThreadsPerAppender;
+    private final SdkAsyncHttpClient httpClient;
+    // whether the protocol is the default of the service of the first appender, rather than set
+    private final boolean protocolDefaulted;
+    private final Protocol defaultProtocol;
+    private final FairExecutor executor;
+    private final ScheduledExecutorService scheduler;
+    private int references;
+
+    Shared(Registry registry, String name, int threadCount, int maxConnections, int maxThreadsPerAppender,
+        SdkAsyncHttpClient httpClient, boolean protocolDefaulted, Protocol defaultProtocol) {
+      this.registry = registry;
+      this.name = name;
+      this.threadCount = threadCount;
+      this.maxConnections = maxConnections;
+      this.maxThreadsPerAppender = maxThreadsPerAppender;
+      this.httpClient = httpClient;
+      this.protocolDefaulted = protocolDefaulted;
+      this.defaultProtocol = defaultProtocol;
+      this.executor = new FairExecutor(threadCount, Math.min(threadCount, maxThreadsPerAppender),
+                                       threadFactory(name, ""));
+      this.scheduler = Executors.newScheduledThreadPool(SCHEDULER_THREAD_COUNT, threadFactory(name, "scheduler-"));
+    }
+
+    void close() {
+      executor.shutdown();
+      try {
+        executor.awaitTermination(CLOSE_TIMEOUT_SEC, TimeUnit.SECONDS);
+      }
+      catch(InterruptedException e) {
+        // we are anyways cleaning up
+      }
+      scheduler.shutdownNow();
+      httpClient.close();
+    }
+  }
+}
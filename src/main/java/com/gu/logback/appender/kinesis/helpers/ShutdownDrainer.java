@@ -0,0 +1,189 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import com.gu.logback.appender.kinesis.AppenderConstants;
+
+import ch.qos.logback.core.spi.ContextAware;
+
+/**
+ * Flushes out what an appender holds when it is stopped, within its shutdown
+ * timeout: the records are sent in as few requests as possible until a drain
+ * deadline, a little before the timeout, after which what is left is spilled
+ * or counted as lost. The number of log events delivered, spilled and lost
+ * while stopping is then reported on Logback's status.
+ */
+public final class ShutdownDrainer {
+
+  /**
+   * The stages holding records between the ring buffer and the requests.
+   */
+  public interface Target {
+
+    /**
+     * Sends what the stages hold, without waiting for the linger time.
+     */
+    void flush();
+
+    /**
+     * @return true if no stage holds any record
+     */
+    boolean isEmpty();
+
+    /**
+     * Takes what the stages hold without sending it, spilling it or counting
+     * it as lost.
+     */
+    void spillPending();
+  }
+
+  private final int shutdownTimeout;
+  private final long deadlineNanos;
+  private final long drainDeadlineNanos;
+  private final AppenderMetrics metrics;
+  private final DropCounters dropCounters;
+  private final InFlightWindow window;
+  private final RequestDispatcher dispatcher;
+  private final RingBufferSender<?> ringBufferSender;
+  private final Target target;
+  private final ContextAware owner;
+  private final String appenderName;
+  private final String streamName;
+  private final long sentBefore;
+  private final long spilledBefore;
+  private final long lostBefore;
+
+  /**
+   * Starts the shutdown timeout, and takes a snapshot of the metrics to
+   * report what happened while stopping.
+   *
+   * @param shutdownTimeout time to flush out what the appender holds, in
+   *          seconds
+   * @param metrics metrics of the appender
+   * @param dropCounters counters of the log events dropped before the ring
+   *          buffer
+   * @param window window of the requests in flight
+   * @param dispatcher dispatcher of the requests
+   * @param ringBufferSender sender of the ring buffer, already closed by the
+   *          time the records are drained, null if there is none
+   * @param target the stages holding records
+   * @param owner appender reporting what happened
+   * @param appenderName name of the appender, for the report
+   * @param streamName stream the records are sent to, for the report
+   */
+  public ShutdownDrainer(int shutdownTimeout, AppenderMetrics metrics, DropCounters dropCounters,
+      InFlightWindow window, RequestDispatcher dispatcher, RingBufferSender<?> ringBufferSender, Target target,
+      ContextAware owner, String appenderName, String streamName) {
+    this.shutdownTimeout = shutdownTimeout;
+    long timeoutNanos = TimeUnit.SECONDS.toNanos(shutdownTimeout);
+    this.deadlineNanos = System.nanoTime() + timeoutNanos;
+    this.drainDeadlineNanos = deadlineNanos
+                              - Math.min(timeoutNanos / 4,
+                                         TimeUnit.MILLISECONDS.toNanos(AppenderConstants.SHUTDOWN_SPILL_MARGIN_MILLIS));
+    this.metrics = Objects.requireNonNull(metrics);
+    this.dropCounters = Objects.requireNonNull(dropCounters);
+    this.window = Objects.requireNonNull(window);
+    this.dispatcher = Objects.requireNonNull(dispatcher);
+    this.ringBufferSender = ringBufferSender;
+    this.target = Objects.requireNonNull(target);
+    this.owner = Objects.requireNonNull(owner);
+    this.appenderName = appenderName;
+    this.streamName = streamName;
+    this.sentBefore = metrics.getEventsSent();
+    this.spilledBefore = metrics.getEventsSpilled();
+    this.lostBefore = metrics.getEventsLost() + dropCounters.getDroppedCount();
+  }
+
+  /**
+   * @return time left until the records stop being sent
+   */
+  public long nanosUntilDrainDeadline() {
+    return nanosUntil(drainDeadlineNanos);
+  }
+
+  /**
+   * @return time left until the shutdown timeout
+   */
+  public long nanosUntilDeadline() {
+    return nanosUntil(deadlineNanos);
+  }
+
+  private static long nanosUntil(long deadlineNanos) {
+    return Math.max(0, deadlineNanos - System.nanoTime());
+  }
+
+  /**
+   * Waits for the ring buffer to be emptied, then sends what the stages hold
+   * and waits for the requests in flight, over and over since records
+   * rejected within a batch come back to the batcher, until nothing is left.
+   * Rejected records come back without waiting out their backoff once the
+   * appender is stopping.
+   *
+   * @return true if everything was sent before the drain deadline
+   */
+  public boolean drain() {
+    if(ringBufferSender != null) {
+      ringBufferSender.join(drainDeadlineNanos);
+      if(ringBufferSender.isSending()) {
+        return false;
+      }
+    }
+    try {
+      while(true) {
+        target.flush();
+        if(!window.awaitIdle(nanosUntil(drainDeadlineNanos), TimeUnit.NANOSECONDS)) {
+          return false;
+        }
+        if(target.isEmpty()) {
+          return true;
+        }
+      }
+    }
+    catch(InterruptedException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Spills what wasn't sent before the drain deadline, once the ring buffer
+   * has been emptied, and fails the requests still in flight at the shutdown
+   * timeout, which spills their records. Called once the window of the
+   * requests in flight has been closed.
+   */
+  public void spillRemaining() {
+    if(ringBufferSender != null) {
+      ringBufferSender.join(deadlineNanos);
+    }
+    target.spillPending();
+    try {
+      window.awaitIdle(nanosUntil(deadlineNanos), TimeUnit.NANOSECONDS);
+    }
+    catch(InterruptedException e) {
+      // we are anyways cleaning up
+    }
+    dispatcher.cancelOutstandingRequests();
+  }
+
+  /**
+   * Reports what happened to the log events the appender held when it was
+   * stopped. Events still in the ring buffer or in flight at this point are
+   * lost along with those dropped while stopping.
+   */
+  public void report() {
+    long delivered = metrics.getEventsSent() - sentBefore;
+    long spilled = metrics.getEventsSpilled() - spilledBefore;
+    long lost = metrics.getEventsLost() + dropCounters.getDroppedCount() - lostBefore
+                + dispatcher.getEventsInFlight();
+    if(ringBufferSender != null && ringBufferSender.isSending()) {
+      lost += ringBufferSender.getUnsentCount();
+    }
+    String summary = "Appender " + appenderName + " delivered " + delivered + " log events to stream " + streamName
+                     + " while stopping, spilled " + spilled + " and lost " + lost;
+    if(lost > 0) {
+      owner.addError(summary + " within its shutdownTimeout of " + shutdownTimeout + " seconds");
+    } else {
+      owner.addInfo(summary);
+    }
+  }
+}
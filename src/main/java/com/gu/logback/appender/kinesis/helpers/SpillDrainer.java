@@ -0,0 +1,211 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import software.amazon.awssdk.core.SdkBytes;
+
+import ch.qos.logback.core.spi.ContextAware;
+
+/**
+ * Writes what couldn't be sent to a {@link SpillQueue}, and sends it again
+ * once the service has recovered: every drain interval, provided no send has
+ * failed for that long, up to a set number of spilled entries are sent again.
+ * Log events spilled before being aggregated go through aggregation and
+ * compression again, while records are sent as they were, keeping the number
+ * of log events they carry.
+ */
+public final class SpillDrainer {
+
+  // types of the entries of the spill queue
+  private static final byte SPILLED_EVENT = 0;
+  private static final byte SPILLED_RECORD = 1;
+  // a record carrying several log events, whose data is preceded by their number as 4 bytes
+  private static final byte SPILLED_AGGREGATE = 2;
+
+  /**
+   * Where spilled entries are sent again.
+   */
+  public interface Target {
+
+    /**
+     * @return whether spilled entries may be sent, false until the stream is
+     *         ready and once the appender is stopping
+     */
+    boolean isAccepting();
+
+    /**
+     * Sends a log event spilled before it was aggregated or compressed.
+     */
+    void sendEvent(String partitionKey, byte[] data);
+
+    /**
+     * Sends a record as it was spilled.
+     */
+    void sendRecord(PendingRecord record);
+  }
+
+  private final SpillQueue queue;
+  private final long drainIntervalMillis;
+  private final int maxDrainedEntries;
+  private final AppenderMetrics metrics;
+  private final Target target;
+  private final ContextAware owner;
+  private final String streamName;
+  private volatile long lastSendFailureNanos;
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * @param queue spill queue, closed along with this drainer
+   * @param drainIntervalMillis time between drains, and without any failed
+   *          send before a drain
+   * @param maxDrainedEntries maximum number of entries sent again per drain
+   * @param metrics metrics counting the records spilled and dropped
+   * @param target where spilled entries are sent again
+   * @param owner appender reporting the failures
+   * @param streamName stream the entries are sent to, for the failures
+   */
+  public SpillDrainer(SpillQueue queue, long drainIntervalMillis, int maxDrainedEntries, AppenderMetrics metrics,
+      Target target, ContextAware owner, String streamName) {
+    Validator.validate(drainIntervalMillis > 0, "drainIntervalMillis must be > 0");
+    Validator.validate(maxDrainedEntries > 0, "maxDrainedEntries must be > 0");
+    this.queue = Objects.requireNonNull(queue);
+    this.drainIntervalMillis = drainIntervalMillis;
+    this.maxDrainedEntries = maxDrainedEntries;
+    this.metrics = Objects.requireNonNull(metrics);
+    this.target = Objects.requireNonNull(target);
+    this.owner = Objects.requireNonNull(owner);
+    this.streamName = streamName;
+    // the first drain needn't wait for a quiet interval
+    this.lastSendFailureNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(drainIntervalMillis);
+  }
+
+  /**
+   * Starts draining the spill queue periodically.
+   *
+   * @param threadFactory factory for the thread draining the queue
+   */
+  public synchronized void start(ThreadFactory threadFactory) {
+    scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    scheduler.scheduleWithFixedDelay(this::drain, drainIntervalMillis, drainIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops draining, waiting for a drain in progress to finish.
+   *
+   * @param timeoutNanos maximum time to wait for the drain in progress
+   */
+  public void stop(long timeoutNanos) {
+    ScheduledExecutorService stopped;
+    synchronized(this) {
+      stopped = scheduler;
+    }
+    if(stopped == null) {
+      return;
+    }
+    stopped.shutdown();
+    try {
+      stopped.awaitTermination(timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+    catch(InterruptedException e) {
+      // we are anyways cleaning up
+    }
+  }
+
+  /**
+   * Closes the spill queue, keeping what it holds for the next start.
+   */
+  public void close() throws IOException {
+    queue.close();
+  }
+
+  /**
+   * Holds back sending spilled entries for a drain interval, as a send has
+   * just failed.
+   */
+  public void sendFailed() {
+    lastSendFailureNanos = System.nanoTime();
+  }
+
+  /**
+   * Writes a log event that couldn't be aggregated or sent to the spill queue.
+   *
+   * @param partitionKey partition key of the event
+   * @param data payload of the event
+   * @return true if the event was spilled, false if the queue is full
+   */
+  public boolean spillEvent(String partitionKey, byte[] data) {
+    sendFailed();
+    return queue.offer(SPILLED_EVENT, partitionKey, data);
+  }
+
+  /**
+   * Writes a record that couldn't be sent to the spill queue, and counts it
+   * as spilled, or as dropped if the queue is full.
+   *
+   * @param record the record, as sent
+   * @return true if the record was spilled
+   */
+  public boolean spillRecord(PendingRecord record) {
+    sendFailed();
+    if(offer(record)) {
+      metrics.recordSpilled(record.getEventCount());
+      return true;
+    }
+    metrics.recordDropped(record.getEventCount());
+    return false;
+  }
+
+  private boolean offer(PendingRecord record) {
+    byte[] data = record.getData().asByteArrayUnsafe();
+    int eventCount = record.getEventCount();
+    if(eventCount == 1) {
+      return queue.offer(SPILLED_RECORD, record.getPartitionKey(), data);
+    }
+    byte[] counted = new byte[4 + data.length];
+    counted[0] = (byte) (eventCount >>> 24);
+    counted[1] = (byte) (eventCount >>> 16);
+    counted[2] = (byte) (eventCount >>> 8);
+    counted[3] = (byte) eventCount;
+    System.arraycopy(data, 0, counted, 4, data.length);
+    return queue.offer(SPILLED_AGGREGATE, record.getPartitionKey(), counted);
+  }
+
+  /**
+   * Sends up to maxDrainedEntries spilled entries again, unless a send has
+   * failed within the last drain interval.
+   */
+  private void drain() {
+    long quietNanos = TimeUnit.MILLISECONDS.toNanos(drainIntervalMillis);
+    for(int i = 0; i < maxDrainedEntries && target.isAccepting(); i++) {
+      if(System.nanoTime() - lastSendFailureNanos < quietNanos) {
+        return;
+      }
+      SpillQueue.Entry entry = queue.poll();
+      if(entry == null) {
+        return;
+      }
+      try {
+        byte[] data = entry.getData();
+        if(entry.getType() == SPILLED_EVENT) {
+          target.sendEvent(entry.getPartitionKey(), data);
+        } else if(entry.getType() == SPILLED_AGGREGATE) {
+          int eventCount = (data[0] & 0xff) << 24 | (data[1] & 0xff) << 16 | (data[2] & 0xff) << 8 | data[3] & 0xff;
+          target.sendRecord(new PendingRecord(entry.getPartitionKey(),
+                                              SdkBytes.fromByteArrayUnsafe(Arrays.copyOfRange(data, 4, data.length)),
+                                              eventCount, 0L, null));
+        } else {
+          target.sendRecord(new PendingRecord(entry.getPartitionKey(), SdkBytes.fromByteArrayUnsafe(data)));
+        }
+      }
+      catch(Exception e) {
+        owner.addError("Failed to send spilled log entry to stream: " + streamName, e);
+      }
+    }
+  }
+}
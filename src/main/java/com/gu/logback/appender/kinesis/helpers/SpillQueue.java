@@ -0,0 +1,452 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent FIFO queue of records, made of fixed-size, memory-mapped segment
+ * files that are only ever appended to. It holds records that couldn't be sent
+ * (or even buffered in memory) while the service was unavailable, until they
+ * can be sent again, including after a restart.
+ *
+ * Each segment starts with a magic number and the offset up to which its
+ * records have been read, followed by records of the form
+ * {@code [length][crc32][type][key length][key][data]}. A zero length marks
+ * the end of the written records. Segments that have been read entirely are
+ * recycled for new writes, and the queue never grows beyond its maximum
+ * number of segments: records offered to a full queue are rejected.
+ *
+ * Segments left by a previous run with another segment size, or beyond the
+ * maximum number of segments, are reopened as they are, so that changing
+ * the settings loses no record: they are deleted rather than recycled once
+ * read, and the queue takes no new segment while it holds too many.
+ *
+ * Records are removed from the queue as they are polled, so a record being
+ * sent when the JVM dies is lost.
+ *
+ * Java has no way of unmapping a segment: its mapping goes away once its
+ * buffer is garbage collected. Where mapped files can't be deleted (Windows),
+ * recycled segments that can't be deleted on close are left in the directory
+ * as segments read entirely, to be recycled once the queue is reopened, and
+ * segments found unusable when reopening are checked before being mapped.
+ */
+public final class SpillQueue implements Closeable {
+
+  /**
+   * When segments are forced to disk. Whatever the policy, written records
+   * survive the JVM crashing, forcing them only matters for the OS crashing.
+   */
+  public enum FsyncPolicy {
+    /**
+     * Segments are written to disk whenever the OS decides to.
+     */
+    NEVER,
+    /**
+     * Segments are forced to disk once they are full, and on close.
+     */
+    PER_SEGMENT,
+    /**
+     * Segments are forced to disk after every record written or read.
+     */
+    PER_WRITE
+  }
+
+  /**
+   * A record read back from the queue.
+   */
+  public static final class Entry {
+    private final byte type;
+    private final String partitionKey;
+    private final byte[] data;
+
+    Entry(byte type, String partitionKey, byte[] data) {
+      this.type = type;
+      this.partitionKey = partitionKey;
+      this.data = data;
+    }
+
+    public byte getType() {
+      return type;
+    }
+
+    public String getPartitionKey() {
+      return partitionKey;
+    }
+
+    public byte[] getData() {
+      return data;
+    }
+  }
+
+  private static final String SEGMENT_PREFIX = "spill-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final int MAGIC = 0x4B4C5350;
+  private static final int READ_OFFSET_POSITION = 4;
+  private static final int HEADER_LENGTH = 8;
+  // length, crc, type and key length
+  private static final int RECORD_OVERHEAD = 4 + 4 + 1 + 2;
+
+  private final Path directory;
+  private final int segmentBytes;
+  private final int maxSegments;
+  private final FsyncPolicy fsyncPolicy;
+  private final Deque<Segment> segments = new ArrayDeque<Segment>();
+  private final Deque<Segment> recycled = new ArrayDeque<Segment>();
+  private final CRC32 crc = new CRC32();
+  private long nextSegmentId;
+  private long pendingBytes;
+  private boolean closed;
+
+  /**
+   * Opens the queue, picking up the segments left in the directory by a
+   * previous run.
+   *
+   * @param directory directory holding the segment files, created if missing
+   * @param segmentBytes size of each segment file
+   * @param maxSegments maximum number of segment files
+   * @param fsyncPolicy when segments are forced to disk
+   * @throws IOException if the directory or its segments can't be opened
+   */
+  public SpillQueue(Path directory, int segmentBytes, int maxSegments, FsyncPolicy fsyncPolicy)
+      throws IOException {
+    Validator.validate(segmentBytes > HEADER_LENGTH + RECORD_OVERHEAD, "segmentBytes is too small");
+    Validator.validate(maxSegments > 1, "maxSegments must be > 1");
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = maxSegments;
+    this.fsyncPolicy = fsyncPolicy;
+    Files.createDirectories(directory);
+    openExistingSegments();
+  }
+
+  /**
+   * Appends a record to the queue.
+   *
+   * @param type type of the record, for the caller to interpret
+   * @param partitionKey partition key of the record, may be null
+   * @param data payload of the record
+   * @return false if the record was rejected because the queue is full,
+   *         closed, or the record is larger than a segment
+   */
+  public synchronized boolean offer(byte type, String partitionKey, byte[] data) {
+    if(closed) {
+      return false;
+    }
+    byte[] key = partitionKey == null ? null : partitionKey.getBytes(StandardCharsets.UTF_8);
+    int bodyLength = 1 + 2 + (key == null ? 0 : key.length) + data.length;
+    int recordLength = 8 + bodyLength;
+    if(HEADER_LENGTH + recordLength > segmentBytes) {
+      return false;
+    }
+    try {
+      Segment tail = segments.peekLast();
+      if(tail == null || tail.writePos + recordLength > tail.buffer.capacity()) {
+        if(tail != null && fsyncPolicy != FsyncPolicy.NEVER) {
+          tail.buffer.force();
+        }
+        tail = newSegment();
+        if(tail == null) {
+          return false;
+        }
+      }
+
+      MappedByteBuffer buffer = tail.buffer;
+      int start = tail.writePos;
+      buffer.position(start + 8);
+      buffer.put(type);
+      buffer.putShort((short) (key == null ? -1 : key.length));
+      if(key != null) {
+        buffer.put(key);
+      }
+      buffer.put(data);
+      buffer.putInt(start + 4, checksum(buffer, start + 8, bodyLength));
+      tail.writePos = start + recordLength;
+      if(tail.writePos + 4 <= tail.buffer.capacity()) {
+        buffer.putInt(tail.writePos, 0);
+      }
+      // the length goes last, so that a partially written record is never read
+      buffer.putInt(start, bodyLength);
+      if(fsyncPolicy == FsyncPolicy.PER_WRITE) {
+        buffer.force();
+      }
+      pendingBytes += recordLength;
+      return true;
+    }
+    catch(IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Removes the oldest record from the queue.
+   *
+   * @return the oldest record, or null if the queue is empty
+   */
+  public synchronized Entry poll() {
+    while(!closed) {
+      Segment head = segments.peekFirst();
+      if(head == null) {
+        return null;
+      }
+      if(head.readPos < head.writePos) {
+        MappedByteBuffer buffer = head.buffer;
+        int bodyLength = buffer.getInt(head.readPos);
+        buffer.position(head.readPos + 8);
+        byte type = buffer.get();
+        short keyLength = buffer.getShort();
+        String partitionKey = null;
+        if(keyLength >= 0) {
+          byte[] key = new byte[keyLength];
+          buffer.get(key);
+          partitionKey = new String(key, StandardCharsets.UTF_8);
+        }
+        byte[] data = new byte[bodyLength - 3 - Math.max(keyLength, 0)];
+        buffer.get(data);
+        head.readPos += 8 + bodyLength;
+        pendingBytes -= 8 + bodyLength;
+        buffer.putInt(READ_OFFSET_POSITION, head.readPos);
+        if(fsyncPolicy == FsyncPolicy.PER_WRITE) {
+          buffer.force();
+        }
+        return new Entry(type, partitionKey, data);
+      }
+      if(head == segments.peekLast()) {
+        return null;
+      }
+      segments.pollFirst();
+      if(head.buffer.capacity() == segmentBytes) {
+        recycled.addLast(head);
+      } else {
+        discard(head);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return true if there is no record in the queue
+   */
+  public synchronized boolean isEmpty() {
+    return pendingBytes == 0;
+  }
+
+  /**
+   * @return number of segments holding records, which may exceed the maximum
+   *         number of segments after reopening the segments of a previous run
+   */
+  public synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * @return total size of the records in the queue
+   */
+  public synchronized long getPendingBytes() {
+    return pendingBytes;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if(closed) {
+      return;
+    }
+    closed = true;
+    IOException failure = null;
+    List<Segment> all = new ArrayList<Segment>(segments);
+    all.addAll(recycled);
+    for(Segment segment : all) {
+      try {
+        if(fsyncPolicy != FsyncPolicy.NEVER) {
+          segment.buffer.force();
+        }
+        segment.channel.close();
+      }
+      catch(IOException e) {
+        failure = e;
+      }
+    }
+    for(Segment segment : recycled) {
+      try {
+        Files.deleteIfExists(segment.path);
+      }
+      catch(IOException e) {
+        // still mapped, it is recycled when the queue is reopened
+      }
+    }
+    if(failure != null) {
+      throw failure;
+    }
+  }
+
+  private void openExistingSegments() throws IOException {
+    List<Long> ids = new ArrayList<Long>();
+    try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      for(Path file : files) {
+        String name = file.getFileName().toString();
+        try {
+          ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+        }
+        catch(NumberFormatException e) {
+          // not one of ours
+        }
+      }
+    }
+    Collections.sort(ids);
+    for(long id : ids) {
+      Path path = segmentPath(id);
+      nextSegmentId = id + 1;
+      long size = Files.size(path);
+      if(size < HEADER_LENGTH + RECORD_OVERHEAD || size > Integer.MAX_VALUE || !hasMagic(path)) {
+        // not a segment holding records, e.g. one whose creation was interrupted
+        Files.delete(path);
+        continue;
+      }
+      // segments of another size, or beyond maxSegments, keep the records of a previous run
+      Segment segment = new Segment(path, openChannel(path), (int) size);
+      segment.readPos = segment.buffer.getInt(READ_OFFSET_POSITION);
+      segment.writePos = scanWrittenRecords(segment.buffer);
+      if(segment.readPos < HEADER_LENGTH || segment.readPos > segment.writePos) {
+        segment.readPos = segment.writePos;
+      }
+      pendingBytes += segment.writePos - segment.readPos;
+      segments.addLast(segment);
+    }
+  }
+
+  /**
+   * Reads the magic number of a segment without mapping it, so that a segment
+   * that isn't ours can be deleted.
+   */
+  private static boolean hasMagic(Path path) throws IOException {
+    try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer magic = ByteBuffer.allocate(4);
+      int read = 0;
+      while(magic.hasRemaining() && read >= 0) {
+        read = channel.read(magic);
+      }
+      return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+    }
+  }
+
+  /**
+   * Finds the end of the valid records in a segment, stopping at the end
+   * marker or at the first record that fails its checksum.
+   */
+  private int scanWrittenRecords(MappedByteBuffer buffer) {
+    int pos = HEADER_LENGTH;
+    while(pos + RECORD_OVERHEAD <= buffer.capacity()) {
+      int bodyLength = buffer.getInt(pos);
+      if(bodyLength < 3 || pos + 8 + bodyLength > buffer.capacity()) {
+        break;
+      }
+      if(checksum(buffer, pos + 8, bodyLength) != buffer.getInt(pos + 4)) {
+        break;
+      }
+      pos += 8 + bodyLength;
+    }
+    return pos;
+  }
+
+  /**
+   * Computes the CRC32 of a range of a segment, a buffer at a time rather than
+   * a byte at a time.
+   */
+  private int checksum(MappedByteBuffer buffer, int from, int length) {
+    ByteBuffer range = buffer.duplicate();
+    range.limit(from + length);
+    range.position(from);
+    crc.reset();
+    crc.update(range);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Adds a segment at the tail of the queue, recycling a segment that has
+   * been read entirely if there is one, the current tail included.
+   *
+   * @return the new tail, or null if the queue has reached its maximum number
+   *         of segments
+   */
+  private Segment newSegment() throws IOException {
+    Path path = segmentPath(nextSegmentId++);
+    Segment segment;
+    Segment reusable = recycled.pollFirst();
+    Segment head = segments.peekFirst();
+    if(reusable == null && head != null && head.readPos >= head.writePos
+       && head.buffer.capacity() == segmentBytes) {
+      reusable = segments.pollFirst();
+    }
+    if(reusable != null) {
+      Files.move(reusable.path, path, StandardCopyOption.ATOMIC_MOVE);
+      segment = new Segment(path, reusable.channel, reusable.buffer);
+    } else if(segments.size() + recycled.size() < maxSegments) {
+      segment = new Segment(path, openChannel(path), segmentBytes);
+    } else {
+      nextSegmentId--;
+      return null;
+    }
+    segment.buffer.putInt(0, MAGIC);
+    segment.buffer.putInt(READ_OFFSET_POSITION, HEADER_LENGTH);
+    segment.buffer.putInt(HEADER_LENGTH, 0);
+    segment.readPos = HEADER_LENGTH;
+    segment.writePos = HEADER_LENGTH;
+    segments.addLast(segment);
+    return segment;
+  }
+
+  private static FileChannel openChannel(Path path) throws IOException {
+    return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Deletes a segment of a previous run, read entirely, that can't be
+   * recycled. Where it is still mapped, it is left as a segment read entirely,
+   * and deleted once the queue is reopened and it has been unmapped.
+   */
+  private void discard(Segment segment) {
+    try {
+      segment.channel.close();
+      Files.deleteIfExists(segment.path);
+    }
+    catch(IOException e) {
+      // still mapped
+    }
+  }
+
+  private Path segmentPath(long id) {
+    return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+  }
+
+  private final class Segment {
+    final Path path;
+    final FileChannel channel;
+    final MappedByteBuffer buffer;
+    int readPos;
+    int writePos;
+
+    Segment(Path path, FileChannel channel, int size) throws IOException {
+      this(path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+
+    Segment(Path path, FileChannel channel, MappedByteBuffer buffer) {
+      this.path = path;
+      this.channel = channel;
+      this.buffer = buffer;
+    }
+  }
+}
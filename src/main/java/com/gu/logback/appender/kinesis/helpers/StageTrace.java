@@ -0,0 +1,83 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+/**
+ * Timestamps of the stages a sampled log event goes through, from append to
+ * acknowledgement by the service. Stages are marked one after the other, by
+ * whichever thread handles the event at that point.
+ */
+public final class StageTrace {
+
+  private final long appendNanos;
+  private long encodedNanos;
+  private long dequeuedNanos;
+  private long sentNanos;
+
+  /**
+   * @param appendNanos {@link System#nanoTime()} when the event was appended
+   */
+  public StageTrace(long appendNanos) {
+    this.appendNanos = appendNanos;
+  }
+
+  /**
+   * Marks the event as formatted by the layout or encoder, or only prepared
+   * for it when the layout is deferred to the appender's threads.
+   */
+  public void encoded() {
+    encodedNanos = System.nanoTime();
+  }
+
+  /**
+   * Marks the event as taken from the buffer between logging threads and the
+   * sender thread.
+   */
+  public void dequeued() {
+    dequeuedNanos = System.nanoTime();
+  }
+
+  /**
+   * Marks the request carrying the event as sent, possibly after aggregation,
+   * batching and waiting for the rate limit. Marked again on every attempt.
+   *
+   * @param now current {@link System#nanoTime()}
+   */
+  public void sent(long now) {
+    sentNanos = now;
+  }
+
+  public long getAppendNanos() {
+    return appendNanos;
+  }
+
+  /**
+   * @return time spent formatting the event
+   */
+  public long getEncodeNanos() {
+    return encodedNanos - appendNanos;
+  }
+
+  /**
+   * @return time spent waiting for the sender thread, and being formatted by
+   *         it when the layout is deferred
+   */
+  public long getQueueNanos() {
+    return dequeuedNanos - encodedNanos;
+  }
+
+  /**
+   * @return time spent between the sender thread taking the event and the
+   *         request carrying it being sent
+   */
+  public long getBatchingNanos() {
+    return sentNanos - dequeuedNanos;
+  }
+
+  /**
+   * @param ackNanos {@link System#nanoTime()} when the request was
+   *          acknowledged
+   * @return time the request took, SDK retries included
+   */
+  public long getRequestNanos(long ackNanos) {
+    return ackNanos - sentNanos;
+  }
+}
@@ -0,0 +1,216 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.gu.logback.appender.kinesis.AppenderConstants;
+
+import ch.qos.logback.core.spi.ContextAware;
+
+/**
+ * Checks that the stream of an appender can be written to before records are
+ * sent to it, either once while the appender starts, or in the background,
+ * trying again with exponential backoff while the stream isn't ready. A
+ * stream that doesn't exist, and one still not ready after the maximum number
+ * of attempts, fail the startup.
+ */
+public final class StreamStartup {
+
+  /**
+   * The appender being started.
+   */
+  public interface Target {
+
+    /**
+     * Creates the client of the service, if it hasn't been created yet.
+     *
+     * @throws RuntimeException if the client can't be created
+     */
+    void createClient();
+
+    /**
+     * Validates the stream, reporting why it can't be written to through
+     * {@link StreamStartup#notReady(String, Throwable)} or
+     * {@link StreamStartup#notFound(String, Throwable)}.
+     */
+    void validateStream();
+
+    /**
+     * Builds what depends on the stream, and lets requests through.
+     */
+    void ready();
+
+    /**
+     * Disables the appender once the background startup gives up. The events
+     * held meanwhile are let through to be spilled, or counted as lost.
+     */
+    void failed();
+  }
+
+  private final int maxAttempts;
+  private final Target target;
+  private final ContextAware owner;
+  private final String appenderName;
+  private final String streamName;
+  private String notReadyMessage;
+  private Throwable notReadyCause;
+  private boolean notFound;
+  private ScheduledExecutorService executor;
+  // the stream was found ready, or the startup gave up
+  private volatile boolean settled;
+
+  /**
+   * @param maxAttempts maximum number of checks of the stream in the
+   *          background
+   * @param target the appender being started
+   * @param owner appender reporting the progress of the startup
+   * @param appenderName name of the appender, for the messages
+   * @param streamName stream checked
+   */
+  public StreamStartup(int maxAttempts, Target target, ContextAware owner, String appenderName, String streamName) {
+    Validator.validate(maxAttempts > 0, "maxAttempts must be > 0");
+    this.maxAttempts = maxAttempts;
+    this.target = Objects.requireNonNull(target);
+    this.owner = Objects.requireNonNull(owner);
+    this.appenderName = appenderName;
+    this.streamName = streamName;
+  }
+
+  /**
+   * Reports that the stream can't be written to yet.
+   *
+   * @param message why the stream isn't ready
+   * @param cause failure of the validation, null if none
+   */
+  public void notReady(String message, Throwable cause) {
+    notReadyMessage = message;
+    notReadyCause = cause;
+  }
+
+  /**
+   * Reports that the stream doesn't exist, which no later attempt can change.
+   *
+   * @param message why the stream isn't ready
+   * @param cause failure of the validation, null if none
+   */
+  public void notFound(String message, Throwable cause) {
+    notReady(message, cause);
+    notFound = true;
+  }
+
+  /**
+   * Creates the client and checks the stream on the calling thread, once.
+   *
+   * @return true if the stream is ready, otherwise the failure is reported
+   */
+  public boolean startNow() {
+    target.createClient();
+    if(check()) {
+      settled = true;
+      target.ready();
+      return true;
+    }
+    settled = true;
+    owner.addError(notReadyMessage, notReadyCause);
+    return false;
+  }
+
+  /**
+   * Creates the client and checks the stream in the background.
+   *
+   * @param threadFactory factory for the thread checking the stream
+   */
+  public synchronized void startInBackground(ThreadFactory threadFactory) {
+    executor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    executor.execute(() -> attempt(1, AppenderConstants.STARTUP_RETRY_INITIAL_DELAY_MILLIS));
+  }
+
+  /**
+   * @param attempt number of this attempt, from 1
+   * @param retryDelayMillis delay before the next attempt if this one fails
+   */
+  private void attempt(int attempt, long retryDelayMillis) {
+    try {
+      target.createClient();
+    }
+    catch(RuntimeException e) {
+      fail("Failed to create the client of appender: " + appenderName, e);
+      return;
+    }
+    if(check()) {
+      settled = true;
+      target.ready();
+      executor.shutdown();
+      owner.addInfo("Stream " + streamName + " is ready, sending buffered log events for appender: " + appenderName);
+      return;
+    }
+    if(executor.isShutdown()) {
+      return;
+    }
+    if(notFound) {
+      fail(notReadyMessage, notReadyCause);
+      return;
+    }
+    if(attempt >= maxAttempts) {
+      fail(notReadyMessage + ", giving up after " + attempt + " attempts", notReadyCause);
+      return;
+    }
+    owner.addWarn(notReadyMessage + ", trying again in " + retryDelayMillis + " ms", notReadyCause);
+    long nextDelayMillis = Math.min(2 * retryDelayMillis, AppenderConstants.STARTUP_RETRY_MAX_DELAY_MILLIS);
+    try {
+      executor.schedule(() -> attempt(attempt + 1, nextDelayMillis),
+                        ThreadLocalRandom.current().nextLong(retryDelayMillis / 2, retryDelayMillis + 1),
+                        TimeUnit.MILLISECONDS);
+    }
+    catch(RejectedExecutionException e) {
+      // the appender is stopping
+    }
+  }
+
+  private void fail(String message, Throwable cause) {
+    settled = true;
+    owner.addError(message, cause);
+    executor.shutdown();
+    target.failed();
+  }
+
+  /**
+   * @return true if the stream is ready
+   */
+  private boolean check() {
+    notReadyMessage = null;
+    notReadyCause = null;
+    notFound = false;
+    target.validateStream();
+    return notReadyMessage == null;
+  }
+
+  /**
+   * Stops checking the stream in the background, waiting for a check in
+   * progress.
+   *
+   * @param timeoutNanos maximum time to wait for the check in progress
+   * @return true if the stream was neither found ready nor given up on
+   */
+  public boolean stop(long timeoutNanos) {
+    ScheduledExecutorService stopped;
+    synchronized(this) {
+      stopped = executor;
+    }
+    if(stopped != null) {
+      stopped.shutdownNow();
+      try {
+        stopped.awaitTermination(timeoutNanos, TimeUnit.NANOSECONDS);
+      }
+      catch(InterruptedException e) {
+        // we are anyways cleaning up
+      }
+    }
+    return !settled;
+  }
+}
@@ -0,0 +1,71 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates executors running each task in a virtual thread of its own, on Java
+ * 21 or later. The appender is built for Java 8, so the virtual thread API is
+ * looked up by reflection, once.
+ */
+public final class VirtualThreads {
+
+  private static final Method OF_VIRTUAL;
+  private static final Method NAME;
+  private static final Method FACTORY;
+  private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+  static {
+    Method ofVirtual = null;
+    Method name = null;
+    Method factory = null;
+    Method newThreadPerTaskExecutor = null;
+    try {
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      name = builder.getMethod("name", String.class, long.class);
+      factory = builder.getMethod("factory");
+      newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+    }
+    catch(ClassNotFoundException | NoSuchMethodException e) {
+      ofVirtual = null;
+    }
+    OF_VIRTUAL = ofVirtual;
+    NAME = name;
+    FACTORY = factory;
+    NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+  }
+
+  private VirtualThreads() {
+  }
+
+  /**
+   * @return true if the running JVM supports virtual threads
+   */
+  public static boolean isAvailable() {
+    return OF_VIRTUAL != null;
+  }
+
+  /**
+   * @param namePrefix prefix of the names of the threads, followed by a
+   *          counter
+   * @return an executor starting a new virtual thread for each task
+   * @throws UnsupportedOperationException if virtual threads aren't available
+   */
+  public static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+    if(!isAvailable()) {
+      throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+    }
+    try {
+      Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), namePrefix, 1L);
+      ThreadFactory factory = (ThreadFactory) FACTORY.invoke(builder);
+      return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+    }
+    catch(IllegalAccessException | InvocationTargetException e) {
+      throw new UnsupportedOperationException("Failed to create a virtual thread executor", e);
+    }
+  }
+}
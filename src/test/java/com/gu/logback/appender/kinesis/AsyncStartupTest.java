@@ -0,0 +1,224 @@
+package com.gu.logback.appender.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.firehose.FirehoseAsyncClient;
+import software.amazon.awssdk.services.firehose.model.DescribeDeliveryStreamRequest;
+import software.amazon.awssdk.services.firehose.model.DescribeDeliveryStreamResponse;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamRequest;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamResponse;
+import com.gu.logback.appender.kinesis.helpers.OverflowPolicy;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.status.Status;
+
+public class AsyncStartupTest {
+
+  @Test
+  public void givesUpAfterMaxStartupAttempts() throws InterruptedException {
+    LoggerContext context = new LoggerContext();
+    RecordingAppender appender = RecordingAppender.create(context);
+    appender.setAsyncStartupEnabled(true);
+    appender.setMaxStartupAttempts(2);
+    appender.setStreamActive(false);
+    appender.start();
+    append(context, appender, 5);
+
+    assertTrue(awaitStatus(context, "giving up after 2 attempts"));
+    assertTrue(awaitEventsLost(appender, 5), "held events weren't let go");
+    assertTrue(appender.getRecords().isEmpty());
+    appender.stop();
+  }
+
+  @Test
+  public void missingKinesisStreamFailsTheStartupAtOnce() throws InterruptedException {
+    LoggerContext context = new LoggerContext();
+    KinesisAsyncClient client = new KinesisAsyncClient() {
+      @Override
+      public CompletableFuture<DescribeStreamResponse> describeStream(DescribeStreamRequest request) {
+        CompletableFuture<DescribeStreamResponse> missing = new CompletableFuture<DescribeStreamResponse>();
+        missing.completeExceptionally(software.amazon.awssdk.services.kinesis.model.ResourceNotFoundException
+          .builder().message("Stream test not found").build());
+        return missing;
+      }
+
+      @Override
+      public String serviceName() {
+        return "kinesis";
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    KinesisAppender<ILoggingEvent> appender = new KinesisAppender<ILoggingEvent>() {
+      @Override
+      protected KinesisAsyncClient createClient(AwsCredentialsProvider credentials,
+          ClientOverrideConfiguration configuration, Executor executor, Region region, Optional<URI> endpointOverride,
+          Optional<SdkAsyncHttpClient> httpClient) {
+        return client;
+      }
+    };
+    startAsynchronously(context, appender);
+
+    assertTrue(awaitStatus(context, "Stream test doesn't exist"));
+    assertFalse(hasStatus(context, "trying again"));
+    appender.stop();
+  }
+
+  @Test
+  public void missingDeliveryStreamFailsTheStartupAtOnce() throws InterruptedException {
+    LoggerContext context = new LoggerContext();
+    FirehoseAsyncClient client = new FirehoseAsyncClient() {
+      @Override
+      public CompletableFuture<DescribeDeliveryStreamResponse> describeDeliveryStream(
+          DescribeDeliveryStreamRequest request) {
+        CompletableFuture<DescribeDeliveryStreamResponse> missing
+          = new CompletableFuture<DescribeDeliveryStreamResponse>();
+        missing.completeExceptionally(software.amazon.awssdk.services.firehose.model.ResourceNotFoundException
+          .builder().message("Delivery stream test not found").build());
+        return missing;
+      }
+
+      @Override
+      public String serviceName() {
+        return "firehose";
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    FirehoseAppender<ILoggingEvent> appender = new FirehoseAppender<ILoggingEvent>() {
+      @Override
+      protected FirehoseAsyncClient createClient(AwsCredentialsProvider credentials,
+          ClientOverrideConfiguration configuration, Executor executor, Region region, Optional<URI> endpointOverride,
+          Optional<SdkAsyncHttpClient> httpClient) {
+        return client;
+      }
+    };
+    startAsynchronously(context, appender);
+
+    assertTrue(awaitStatus(context, "Stream test doesn't exist"));
+    assertFalse(hasStatus(context, "trying again"));
+    appender.stop();
+  }
+
+  private static void startAsynchronously(LoggerContext context, BaseKinesisAppender<ILoggingEvent, ?> appender) {
+    PatternLayout layout = new PatternLayout();
+    layout.setContext(context);
+    layout.setPattern("%msg");
+    layout.start();
+    appender.setContext(context);
+    appender.setName("test");
+    appender.setStreamName("test");
+    appender.setLayout(layout);
+    appender.setJmxEnabled(false);
+    appender.setAsyncStartupEnabled(true);
+    appender.start();
+  }
+
+  @Test
+  public void failedSynchronousStartupSetsNothingUp() {
+    LoggerContext context = new LoggerContext();
+    RecordingAppender appender = RecordingAppender.create(context);
+    appender.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+    appender.setBatchingEnabled(true);
+    appender.setAggregationEnabled(true);
+    appender.setStreamName("failed-startup");
+    appender.setStreamActive(false);
+    appender.start();
+
+    assertTrue(appender.isStarted());
+    assertTrue(hasStatus(context, "Stream failed-startup is not active"));
+    for(Thread thread : Thread.getAllStackTraces().keySet()) {
+      String name = thread.getName();
+      assertFalse(name.startsWith("RecordingAppender[failed-startup]-") && !name.matches(".*\\]-\\d+"),
+                  "thread " + name + " was started");
+    }
+    append(context, appender, 5);
+    appender.stop();
+    assertTrue(appender.getRecords().isEmpty());
+    assertEquals(0, appender.getTaskBufferSize());
+  }
+
+  @Test
+  public void loggingThreadsDontWaitForTheStream() throws InterruptedException {
+    LoggerContext context = new LoggerContext();
+    RecordingAppender appender = RecordingAppender.create(context);
+    appender.setAsyncStartupEnabled(true);
+    appender.setOverflowPolicy(OverflowPolicy.BLOCK);
+    appender.setBufferSize(4);
+    appender.setStreamActive(false);
+    appender.start();
+
+    long start = System.nanoTime();
+    append(context, appender, 100);
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1), "logging waited for the stream");
+    long dropped = appender.getDropCounters().getDroppedNewestCount();
+    assertTrue(dropped > 0, "the buffer never overflowed");
+
+    appender.setStreamActive(true);
+    assertTrue(awaitStatus(context, "Stream test is ready"));
+    appender.stop();
+    assertEquals(100, appender.getRecords().size() + dropped, "sent + dropped");
+  }
+
+  private static void append(LoggerContext context, RecordingAppender appender, int count) {
+    Logger logger = context.getLogger(AsyncStartupTest.class);
+    for(int i = 0; i < count; i++) {
+      appender.doAppend(new LoggingEvent(Logger.FQCN, logger, Level.INFO, "event " + i, null, null));
+    }
+  }
+
+  private static boolean awaitEventsLost(RecordingAppender appender, long count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while(appender.getMetrics().getEventsLost() < count) {
+      if(System.nanoTime() > deadline) {
+        return false;
+      }
+      Thread.sleep(10);
+    }
+    return true;
+  }
+
+  private static boolean awaitStatus(LoggerContext context, String message) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while(!hasStatus(context, message)) {
+      if(System.nanoTime() > deadline) {
+        return false;
+      }
+      Thread.sleep(10);
+    }
+    return true;
+  }
+
+  private static boolean hasStatus(LoggerContext context, String message) {
+    for(Status status : context.getStatusManager().getCopyOfStatusList()) {
+      if(status.getMessage().contains(message)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,61 @@
+package com.gu.logback.appender.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class BackpressureTest {
+
+  /**
+   * Without the ring buffer, a logging thread sends its event itself, and waits
+   * while the in-flight window is full, however large bufferSize is. It
+   * resumes once a request completes and makes room.
+   */
+  @Test
+  public void loggingThreadWaitsForRoomInTheInFlightWindow() throws InterruptedException {
+    LoggerContext context = new LoggerContext();
+    RecordingAppender appender = RecordingAppender.create(context);
+    appender.setMaxInFlightRequests(1);
+    appender.setBufferSize(1000);
+    appender.setRequestsHeld(true);
+    appender.start();
+    assertTrue(appender.isStarted());
+
+    Logger logger = context.getLogger(BackpressureTest.class);
+    appender.doAppend(new LoggingEvent(Logger.FQCN, logger, Level.INFO, "first", null, null));
+    assertEquals(Arrays.asList("first"), appender.getPayloads());
+
+    Thread second = new Thread(() -> appender
+      .doAppend(new LoggingEvent(Logger.FQCN, logger, Level.INFO, "second", null, null)));
+    second.start();
+    awaitWaiting(second);
+    assertEquals(Arrays.asList("first"), appender.getPayloads());
+
+    assertEquals(1, appender.completeHeldRequests());
+    second.join(TimeUnit.SECONDS.toMillis(10));
+    assertFalse(second.isAlive(), "logging thread resumed");
+    assertEquals(Arrays.asList("first", "second"), appender.getPayloads());
+
+    assertEquals(1, appender.completeHeldRequests());
+    appender.stop();
+  }
+
+  private static void awaitWaiting(Thread thread) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while(thread.getState() != Thread.State.WAITING) {
+      assertTrue(thread.isAlive(), "logging thread returned without waiting");
+      assertTrue(System.nanoTime() < deadline, "logging thread didn't wait in time");
+      Thread.sleep(1);
+    }
+  }
+}
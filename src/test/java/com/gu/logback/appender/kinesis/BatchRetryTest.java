@@ -0,0 +1,83 @@
+package com.gu.logback.appender.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.gu.logback.appender.kinesis.helpers.PendingRecord;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class BatchRetryTest {
+
+  private final LoggerContext context = new LoggerContext();
+  private final Logger logger = context.getLogger(BatchRetryTest.class);
+
+  private RecordingAppender newAppender(int rejectedAttempts) {
+    RecordingAppender appender = RecordingAppender.create(context);
+    appender.setBatchingEnabled(true);
+    appender.setLingerMillis(10);
+    appender.setRejectedAttempts(rejectedAttempts);
+    return appender;
+  }
+
+  private void append(RecordingAppender appender, String message) {
+    appender.doAppend(new LoggingEvent(Logger.FQCN, logger, Level.INFO, message, null, null));
+  }
+
+  private static void awaitRejections(RecordingAppender appender, int rejections) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while(appender.getRejections() < rejections) {
+      assertTrue(System.nanoTime() < deadline, "records weren't rejected in time");
+      Thread.sleep(1);
+    }
+  }
+
+  @Test
+  public void rejectedRecordsBackOffBeforeEachRetry() throws InterruptedException {
+    RecordingAppender appender = newAppender(3);
+    appender.start();
+    long startNanos = System.nanoTime();
+    append(appender, "throttled");
+    long deadline = startNanos + TimeUnit.SECONDS.toNanos(10);
+    while(appender.getRecords().isEmpty()) {
+      assertTrue(System.nanoTime() < deadline, "record wasn't sent in time");
+      Thread.sleep(1);
+    }
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    appender.stop();
+
+    // at least half of each of the backoffs of 100, 200 and 400 ms
+    assertTrue(elapsedMillis >= 350, "retried after " + elapsedMillis + " ms");
+    List<PendingRecord> records = appender.getRecords();
+    assertEquals(1, records.size());
+    assertEquals(3, records.get(0).getAttempts());
+    assertEquals(3, appender.getMetrics().getRecordsRetried());
+  }
+
+  @Test
+  public void stoppingRetriesWithoutBackingOff() throws InterruptedException {
+    RecordingAppender appender = newAppender(8);
+    appender.setMaxRetries(10);
+    appender.start();
+    append(appender, "first");
+    append(appender, "second");
+    awaitRejections(appender, 2);
+    long startNanos = System.nanoTime();
+    appender.stop();
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+    // the backoffs left add up to several seconds
+    assertTrue(elapsedMillis < 1000, "stopped after " + elapsedMillis + " ms");
+    assertEquals(2, appender.getRecords().size());
+    assertEquals(2 * 8, appender.getRejections());
+    assertEquals(0, appender.getMetrics().getEventsLost());
+  }
+}
@@ -0,0 +1,93 @@
+package com.gu.logback.appender.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.jupiter.api.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+
+public class DeferredLayoutTest {
+
+  /**
+   * Layout taking a while over each event, and remembering the threads it
+   * formatted them on.
+   */
+  private static final class SlowLayout extends PatternLayout {
+    private final Set<String> threads = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public String doLayout(ILoggingEvent event) {
+      threads.add(Thread.currentThread().getName());
+      LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+      return super.doLayout(event);
+    }
+  }
+
+  private final LoggerContext context = new LoggerContext();
+  private final Logger logger = context.getLogger(DeferredLayoutTest.class);
+
+  private RecordingAppender newAppender(PatternLayout layout, String pattern) {
+    RecordingAppender appender = RecordingAppender.create(context);
+    layout.setContext(context);
+    layout.setPattern(pattern);
+    layout.start();
+    appender.setLayout(layout);
+    appender.setDeferredLayoutEnabled(true);
+    return appender;
+  }
+
+  @Test
+  public void formatsEventsOnTheAppendersThreadsInOrder() {
+    SlowLayout layout = new SlowLayout();
+    RecordingAppender appender = newAppender(layout, "%msg %X{request} %thread");
+    appender.setLayoutThreadCount(4);
+    appender.start();
+    assertFalse(appender.isRingBufferEnabled());
+    for(int i = 0; i < 2000; i++) {
+      LoggingEvent event = new LoggingEvent(Logger.FQCN, logger, Level.INFO, "event {}", null, new Object[] { i });
+      event.setMDCPropertyMap(new HashMap<String, String>());
+      event.getMDCPropertyMap().put("request", "r" + i);
+      appender.doAppend(event);
+    }
+    appender.stop();
+
+    // the MDC and thread name are the logging thread's
+    List<String> payloads = appender.getPayloads();
+    assertEquals(2000, payloads.size());
+    for(int i = 0; i < payloads.size(); i++) {
+      assertEquals("event " + i + " r" + i + " " + Thread.currentThread().getName(), payloads.get(i));
+    }
+    assertFalse(layout.threads.contains(Thread.currentThread().getName()), layout.threads.toString());
+    assertTrue(layout.threads.stream().anyMatch(thread -> thread.contains("layout-")),
+               "events weren't formatted in parallel: " + layout.threads);
+  }
+
+  @Test
+  public void capturesTheCallerDataIfIncluded() {
+    RecordingAppender appender = newAppender(new PatternLayout(), "%msg %method");
+    appender.setIncludeCallerData(true);
+    appender.start();
+    // the logger's frames tell which is the caller's
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    logger.addAppender(appender);
+    logger.info("called from");
+    logger.detachAppender(appender);
+    appender.stop();
+    assertEquals("called from capturesTheCallerDataIfIncluded", appender.getPayloads().get(0));
+  }
+}
@@ -0,0 +1,80 @@
+package com.gu.logback.appender.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import com.gu.logback.appender.kinesis.stub.FaultSchedule;
+import com.gu.logback.appender.kinesis.stub.StubEndpoint;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+/**
+ * Runs the appenders through the SDK and its Netty client against a
+ * {@link StubEndpoint}, rather than stubbing the calls of the appender.
+ */
+public class EndToEndTest {
+
+  private static final int EVENTS = 500;
+
+  /**
+   * Records a batch partly rejects are retried until every event is written.
+   */
+  @Test
+  public void kinesisAppenderWritesEveryEventDespitePartialFailures() throws InterruptedException {
+    try(StubEndpoint endpoint = new StubEndpoint(0, 2)) {
+      endpoint.setFaultSchedule(FaultSchedule.parse("1h:partial=0.2"));
+      KinesisAppender<ILoggingEvent> appender = new KinesisAppender<ILoggingEvent>();
+      appender.setBatchingEnabled(true);
+      appendEvents(appender, endpoint);
+
+      assertEquals(EVENTS, appender.getMetrics().getEventsSent());
+      assertEquals(EVENTS, endpoint.getRecordCount());
+      assertTrue(endpoint.getRejectedRecordCount() > 0, "records rejected");
+    }
+  }
+
+  @Test
+  public void firehoseAppenderWritesEveryEvent() throws InterruptedException {
+    try(StubEndpoint endpoint = new StubEndpoint()) {
+      FirehoseAppender<ILoggingEvent> appender = new FirehoseAppender<ILoggingEvent>();
+      appendEvents(appender, endpoint);
+
+      assertEquals(EVENTS, appender.getMetrics().getEventsSent());
+      assertEquals(EVENTS, endpoint.getRecordCount());
+    }
+  }
+
+  private static void appendEvents(BaseKinesisAppender<ILoggingEvent, ?> appender, StubEndpoint endpoint) {
+    LoggerContext context = new LoggerContext();
+    PatternLayout layout = new PatternLayout();
+    layout.setContext(context);
+    layout.setPattern("%msg");
+    layout.start();
+
+    appender.setContext(context);
+    appender.setName("test");
+    appender.setStreamName("test");
+    appender.setEndpoint(endpoint.getUri().toString());
+    appender.setCredentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("test", "test")));
+    appender.setLayout(layout);
+    appender.setJmxEnabled(false);
+    appender.start();
+    assertTrue(appender.isStarted(), "appender started");
+
+    Logger logger = context.getLogger(EndToEndTest.class);
+    for(int i = 0; i < EVENTS; i++) {
+      appender.doAppend(new LoggingEvent(Logger.FQCN, logger, Level.INFO, Integer.toString(i), null, null));
+    }
+    // waits for the requests in flight
+    appender.stop();
+  }
+}
@@ -0,0 +1,199 @@
+package com.gu.logback.appender.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.firehose.FirehoseAsyncClient;
+import software.amazon.awssdk.services.firehose.model.DeliveryStreamStatus;
+import software.amazon.awssdk.services.firehose.model.DescribeDeliveryStreamRequest;
+import software.amazon.awssdk.services.firehose.model.DescribeDeliveryStreamResponse;
+import software.amazon.awssdk.services.firehose.model.PutRecordBatchRequest;
+import software.amazon.awssdk.services.firehose.model.PutRecordBatchResponse;
+import software.amazon.awssdk.services.firehose.model.PutRecordBatchResponseEntry;
+import software.amazon.awssdk.services.firehose.model.Record;
+import software.amazon.awssdk.services.firehose.model.ServiceUnavailableException;
+import com.gu.logback.appender.kinesis.helpers.FirehoseStatsReporter;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.status.Status;
+
+public class FirehoseBatchTest {
+
+  private static final String THROTTLED = "ServiceUnavailableException";
+
+  /**
+   * Client of an active delivery stream, recording the payloads of each
+   * PutRecordBatch call. It rejects a record carrying the rejected payload
+   * the first time it sees it, and fails every call once unavailable.
+   */
+  private static final class StubClient implements FirehoseAsyncClient {
+    private final ConcurrentLinkedQueue<List<String>> requests = new ConcurrentLinkedQueue<List<String>>();
+    private volatile String rejected;
+    private volatile boolean unavailable;
+
+    @Override
+    public CompletableFuture<DescribeDeliveryStreamResponse> describeDeliveryStream(
+        DescribeDeliveryStreamRequest request) {
+      return CompletableFuture.completedFuture(DescribeDeliveryStreamResponse.builder()
+        .deliveryStreamDescription(b -> b.deliveryStreamStatus(DeliveryStreamStatus.ACTIVE))
+        .build());
+    }
+
+    @Override
+    public CompletableFuture<PutRecordBatchResponse> putRecordBatch(PutRecordBatchRequest request) {
+      List<String> payloads = new ArrayList<String>();
+      for(Record record : request.records()) {
+        payloads.add(record.data().asUtf8String());
+      }
+      requests.add(payloads);
+      if(unavailable) {
+        CompletableFuture<PutRecordBatchResponse> failed = new CompletableFuture<PutRecordBatchResponse>();
+        failed.completeExceptionally(ServiceUnavailableException.builder().message("Slow down.").build());
+        return failed;
+      }
+      List<PutRecordBatchResponseEntry> entries = new ArrayList<PutRecordBatchResponseEntry>();
+      int failedPutCount = 0;
+      for(String payload : payloads) {
+        if(payload.equals(rejected)) {
+          rejected = null;
+          failedPutCount++;
+          entries.add(PutRecordBatchResponseEntry.builder().errorCode(THROTTLED).errorMessage("Slow down.").build());
+        } else {
+          entries.add(PutRecordBatchResponseEntry.builder().recordId(payload).build());
+        }
+      }
+      return CompletableFuture.completedFuture(PutRecordBatchResponse.builder()
+        .failedPutCount(failedPutCount)
+        .requestResponses(entries)
+        .build());
+    }
+
+    @Override
+    public String serviceName() {
+      return "firehose";
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private final StubClient client = new StubClient();
+  private final LoggerContext context = new LoggerContext();
+  private final Logger logger = context.getLogger(FirehoseBatchTest.class);
+
+  private FirehoseAppender<ILoggingEvent> newAppender(int maxBatchRecords) {
+    PatternLayout layout = new PatternLayout();
+    layout.setContext(context);
+    layout.setPattern("%msg");
+    layout.start();
+
+    FirehoseAppender<ILoggingEvent> appender = new FirehoseAppender<ILoggingEvent>() {
+      @Override
+      protected FirehoseAsyncClient createClient(AwsCredentialsProvider credentials,
+          ClientOverrideConfiguration configuration, Executor executor, Region region, Optional<URI> endpointOverride,
+          Optional<SdkAsyncHttpClient> httpClient) {
+        return client;
+      }
+    };
+    appender.setContext(context);
+    appender.setName("test");
+    appender.setStreamName("test");
+    appender.setLayout(layout);
+    appender.setJmxEnabled(false);
+    appender.setBatchingEnabled(true);
+    // batches go out once full, or when stopping
+    appender.setMaxBatchRecords(maxBatchRecords);
+    appender.setLingerMillis(TimeUnit.MINUTES.toMillis(1));
+    return appender;
+  }
+
+  private void append(FirehoseAppender<ILoggingEvent> appender, String message) {
+    appender.doAppend(new LoggingEvent(Logger.FQCN, logger, Level.INFO, message, null, null));
+  }
+
+  private void awaitRequests(int count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while(client.requests.size() < count) {
+      assertTrue(System.nanoTime() < deadline, "batches weren't sent in time");
+      Thread.sleep(1);
+    }
+  }
+
+  private static List<String> sorted(List<String> payloads) {
+    List<String> sorted = new ArrayList<String>(payloads);
+    Collections.sort(sorted);
+    return sorted;
+  }
+
+  @Test
+  public void onlyTheRejectedEntriesOfABatchAreRetried() throws InterruptedException {
+    client.rejected = "second";
+    FirehoseAppender<ILoggingEvent> appender = newAppender(3);
+    appender.start();
+    append(appender, "first");
+    append(appender, "second");
+    append(appender, "third");
+    awaitRequests(1);
+    // stopping sends the retry without waiting out its backoff
+    appender.stop();
+
+    List<List<String>> requests = new ArrayList<List<String>>(client.requests);
+    assertEquals(2, requests.size());
+    assertEquals(Arrays.asList("first", "second", "third"), sorted(requests.get(0)));
+    assertEquals(Collections.singletonList("second"), requests.get(1));
+
+    FirehoseStatsReporter reporter = new FirehoseStatsReporter(appender);
+    assertEquals(3, reporter.getSuccessfulRequestCount());
+    assertEquals(1, reporter.getFailedRequestCount());
+    assertEquals(1, appender.getMetrics().getRecordsThrottled());
+    assertEquals(1, appender.getMetrics().getRecordsRetried());
+    assertEquals(3, appender.getMetrics().getEventsSent());
+    assertEquals(0, appender.getMetrics().getEventsLost());
+  }
+
+  @Test
+  public void failedBatchesAreReported() throws InterruptedException {
+    client.unavailable = true;
+    FirehoseAppender<ILoggingEvent> appender = newAppender(2);
+    appender.start();
+    append(appender, "first");
+    append(appender, "second");
+    awaitRequests(1);
+    appender.stop();
+
+    FirehoseStatsReporter reporter = new FirehoseStatsReporter(appender);
+    assertEquals(0, reporter.getSuccessfulRequestCount());
+    assertEquals(2, reporter.getFailedRequestCount());
+    assertEquals(2, appender.getMetrics().getRecordsThrottled());
+    assertEquals(1, appender.getMetrics().getRequestsFailed());
+    boolean reported = false;
+    for(Status status : context.getStatusManager().getCopyOfStatusList()) {
+      reported |= status.getLevel() == Status.ERROR
+                  && status.getMessage().startsWith("Failed to publish a batch of 2 log entries to kinesis");
+    }
+    assertTrue(reported, "the failed batch wasn't reported");
+  }
+}
@@ -0,0 +1,156 @@
+package com.gu.logback.appender.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.gu.logback.appender.kinesis.helpers.OverflowPolicy;
+import com.gu.logback.appender.kinesis.helpers.PendingRecord;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class OverflowPolicyTest {
+
+  /**
+   * Logging threads overflow a small ring buffer, which discards its oldest
+   * events to make room. Every event must either be sent intact, exactly once
+   * and with its own partition key, or be counted as dropped.
+   */
+  @Test
+  public void dropOldestSendsOrCountsEveryEvent() throws InterruptedException {
+    int threads = 4;
+    int perThread = 20000;
+    LoggerContext context = new LoggerContext();
+    RecordingAppender appender = RecordingAppender.create(context);
+    appender.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+    appender.setBufferSize(16);
+    appender.setRequestDelayNanos(TimeUnit.MICROSECONDS.toNanos(20));
+    appender.start();
+    assertTrue(appender.isStarted());
+
+    Logger logger = context.getLogger(OverflowPolicyTest.class);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> loggers = new ArrayList<Thread>();
+    for(int t = 0; t < threads; t++) {
+      int base = t * perThread;
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        }
+        catch(InterruptedException e) {
+          return;
+        }
+        for(int i = base; i < base + perThread; i++) {
+          appender.doAppend(new LoggingEvent(Logger.FQCN, logger, Level.INFO, Integer.toString(i), null, null));
+        }
+      });
+      loggers.add(thread);
+      thread.start();
+    }
+    start.countDown();
+    for(Thread thread : loggers) {
+      thread.join();
+    }
+    appender.stop();
+
+    BitSet sent = new BitSet(threads * perThread);
+    List<PendingRecord> records = appender.getRecords();
+    List<String> payloads = appender.getPayloads();
+    for(int i = 0; i < records.size(); i++) {
+      String payload = payloads.get(i);
+      assertEquals(payload, records.get(i).getPartitionKey(), "partition key of event " + payload);
+      int event = Integer.parseInt(payload);
+      assertTrue(!sent.get(event), "event " + event + " sent twice");
+      sent.set(event);
+    }
+    long droppedOldest = appender.getDropCounters().getDroppedOldestCount();
+    assertTrue(droppedOldest > 0, "the buffer never overflowed");
+    // dropped when the oldest kept being taken from under the logging thread
+    long dropped = droppedOldest + appender.getDropCounters().getDroppedNewestCount();
+    assertEquals((long) threads * perThread, records.size() + dropped, "sent + dropped");
+  }
+
+  /**
+   * The only event of the buffer is still being formatted, so it can't be
+   * discarded: the event being logged is dropped instead of waiting for it.
+   */
+  @Test
+  public void dropOldestGivesUpOnAnEventBeingPublished() throws InterruptedException {
+    LoggerContext context = new LoggerContext();
+    CountDownLatch formatting = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    PatternLayout layout = new PatternLayout() {
+      @Override
+      public String doLayout(ILoggingEvent event) {
+        if(event.getFormattedMessage().equals("slow")) {
+          formatting.countDown();
+          try {
+            release.await();
+          }
+          catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return super.doLayout(event);
+      }
+    };
+    RecordingAppender appender = RecordingAppender.create(context, layout);
+    appender.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+    appender.setBufferSize(1);
+    appender.start();
+
+    Logger logger = context.getLogger(OverflowPolicyTest.class);
+    Thread slow = new Thread(() -> appender.doAppend(new LoggingEvent(Logger.FQCN, logger, Level.INFO, "slow", null,
+                                                                      null)));
+    slow.start();
+    assertTrue(formatting.await(10, TimeUnit.SECONDS));
+    appender.doAppend(new LoggingEvent(Logger.FQCN, logger, Level.INFO, "fast", null, null));
+    assertEquals(1, appender.getDropCounters().getDroppedNewestCount());
+    assertEquals(0, appender.getDropCounters().getDroppedOldestCount());
+
+    release.countDown();
+    slow.join();
+    appender.stop();
+    assertEquals(1, appender.getRecords().size());
+    assertEquals("slow", appender.getPayloads().get(0));
+  }
+
+  /**
+   * The stream isn't ready yet, so the ring buffer is held back and the
+   * events that don't fit in it go to the spill queue, each counted as
+   * spilled.
+   */
+  @Test
+  public void spillCountsEachSpilledEvent(@TempDir Path spillDirectory) {
+    LoggerContext context = new LoggerContext();
+    RecordingAppender appender = RecordingAppender.create(context);
+    appender.setOverflowPolicy(OverflowPolicy.SPILL);
+    appender.setSpillDirectory(spillDirectory.toString());
+    appender.setAsyncStartupEnabled(true);
+    appender.setStreamActive(false);
+    appender.setBufferSize(4);
+    appender.start();
+
+    Logger logger = context.getLogger(OverflowPolicyTest.class);
+    for(int i = 0; i < 20; i++) {
+      appender.doAppend(new LoggingEvent(Logger.FQCN, logger, Level.INFO, Integer.toString(i), null, null));
+    }
+    assertEquals(16, appender.getMetrics().getEventsSpilled());
+    assertEquals(0, appender.getDropCounters().getDroppedCount());
+    appender.stop();
+  }
+}
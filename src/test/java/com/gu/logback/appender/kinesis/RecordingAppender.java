@@ -0,0 +1,260 @@
+package com.gu.logback.appender.kinesis;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.core.SdkClient;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import com.gu.logback.appender.kinesis.helpers.AggregationFormat;
+import com.gu.logback.appender.kinesis.helpers.KplAggregationFormat;
+import com.gu.logback.appender.kinesis.helpers.PendingRecord;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * Appender whose requests complete straight away, on the sending thread,
+ * after an optional delay, or when the test completes them if they are held,
+ * and which records what it was sent instead of calling a service. The
+ * partition key of each event is its message.
+ */
+class RecordingAppender extends BaseKinesisAppender<ILoggingEvent, RecordingAppender.Client> {
+
+  static final class Client implements SdkClient {
+    @Override
+    public String serviceName() {
+      return "recording";
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private final ConcurrentLinkedQueue<PendingRecord> records = new ConcurrentLinkedQueue<PendingRecord>();
+  private final ConcurrentLinkedQueue<String> sendingThreads = new ConcurrentLinkedQueue<String>();
+  private volatile long requestDelayNanos;
+  private volatile boolean streamActive = true;
+  private volatile int rejectedAttempts;
+  private volatile Runnable onSend;
+  private volatile boolean requestsHeld;
+  private final ConcurrentLinkedQueue<Runnable> heldRequests = new ConcurrentLinkedQueue<Runnable>();
+  private final AtomicInteger rejections = new AtomicInteger();
+
+  /**
+   * Creates an appender named test, sending the message of each event, with
+   * JMX disabled.
+   */
+  static RecordingAppender create(LoggerContext context) {
+    return create(context, new PatternLayout());
+  }
+
+  /**
+   * Creates an appender named test, sending the message of each event as
+   * formatted by the given layout, with JMX disabled.
+   */
+  static RecordingAppender create(LoggerContext context, PatternLayout layout) {
+    layout.setContext(context);
+    layout.setPattern("%msg");
+    layout.start();
+
+    RecordingAppender appender = new RecordingAppender();
+    appender.setContext(context);
+    appender.setName("test");
+    appender.setStreamName("test");
+    appender.setLayout(layout);
+    appender.setJmxEnabled(false);
+    return appender;
+  }
+
+  /**
+   * @param requestDelayNanos time each request takes
+   */
+  void setRequestDelayNanos(long requestDelayNanos) {
+    this.requestDelayNanos = requestDelayNanos;
+  }
+
+  /**
+   * @param streamActive whether the stream is found active
+   */
+  void setStreamActive(boolean streamActive) {
+    this.streamActive = streamActive;
+  }
+
+  /**
+   * @param rejectedAttempts number of attempts of each record within a batch
+   *          that the service rejects as throttled
+   */
+  void setRejectedAttempts(int rejectedAttempts) {
+    this.rejectedAttempts = rejectedAttempts;
+  }
+
+  /**
+   * @param onSend run by each request before it completes, e.g. to log
+   */
+  void setOnSend(Runnable onSend) {
+    this.onSend = onSend;
+  }
+
+  /**
+   * @param requestsHeld whether single record requests stay in flight until
+   *          {@link #completeHeldRequests()}
+   */
+  void setRequestsHeld(boolean requestsHeld) {
+    this.requestsHeld = requestsHeld;
+  }
+
+  /**
+   * Completes the requests held so far, on the calling thread.
+   *
+   * @return number of requests completed
+   */
+  int completeHeldRequests() {
+    int completed = 0;
+    for(Runnable request = heldRequests.poll(); request != null; request = heldRequests.poll()) {
+      request.run();
+      completed++;
+    }
+    return completed;
+  }
+
+  /**
+   * @return number of records rejected within a batch
+   */
+  int getRejections() {
+    return rejections.get();
+  }
+
+  /**
+   * @return records sent, in the order they were sent
+   */
+  List<PendingRecord> getRecords() {
+    return new ArrayList<PendingRecord>(records);
+  }
+
+  /**
+   * @return payloads of the records sent, as strings
+   */
+  List<String> getPayloads() {
+    List<String> payloads = new ArrayList<String>();
+    for(PendingRecord record : records) {
+      payloads.add(new String(record.getData().asByteArrayUnsafe(), StandardCharsets.UTF_8));
+    }
+    return payloads;
+  }
+
+  /**
+   * @return names of the threads that sent each request, in order
+   */
+  List<String> getSendingThreads() {
+    return new ArrayList<String>(sendingThreads);
+  }
+
+  @Override
+  protected Client createClient(AwsCredentialsProvider credentials, ClientOverrideConfiguration configuration,
+      Executor executor, Region region, Optional<URI> endpointOverride, Optional<SdkAsyncHttpClient> httpClient) {
+    return new Client();
+  }
+
+  @Override
+  protected void validateStreamName(Client client, String streamName) {
+    if(!streamActive) {
+      streamNotReady("Stream " + streamName + " is not active");
+    }
+  }
+
+  @Override
+  protected String partitionKeyOf(ILoggingEvent logEvent) {
+    return logEvent.getFormattedMessage();
+  }
+
+  @Override
+  protected CompletableFuture<?> putRecord(PendingRecord record) {
+    delay();
+    records.add(record);
+    if(requestsHeld) {
+      CompletableFuture<Void> future = new CompletableFuture<Void>();
+      heldRequests.add(() -> {
+        reportRequestCompleted(record, null, false);
+        future.complete(null);
+      });
+      return future;
+    }
+    reportRequestCompleted(record, null, false);
+    return CompletableFuture.completedFuture(null);
+  }
+
+  @Override
+  protected CompletableFuture<?> sendBatch(List<PendingRecord> batch) {
+    delay();
+    BitSet failed = new BitSet();
+    for(int i = 0; i < batch.size(); i++) {
+      if(batch.get(i).getAttempts() < rejectedAttempts) {
+        failed.set(i);
+      } else {
+        records.add(batch.get(i));
+      }
+    }
+    for(int i = failed.nextSetBit(0); i >= 0; i = failed.nextSetBit(i + 1)) {
+      rejections.incrementAndGet();
+      retryFailedRecord(batch.get(i), "ProvisionedThroughputExceededException", "Rate exceeded for shard");
+    }
+    reportRequestCompleted(batch, failed, failed);
+    return CompletableFuture.completedFuture(null);
+  }
+
+  private void delay() {
+    sendingThreads.add(Thread.currentThread().getName());
+    if(onSend != null) {
+      onSend.run();
+    }
+    // parking returns early when the ring buffer wakes the sender thread up
+    long deadline = System.nanoTime() + requestDelayNanos;
+    for(long left = requestDelayNanos; left > 0; left = deadline - System.nanoTime()) {
+      LockSupport.parkNanos(left);
+    }
+  }
+
+  @Override
+  protected int getBatchRecordsLimit() {
+    return AppenderConstants.KINESIS_MAX_BATCH_RECORDS;
+  }
+
+  @Override
+  protected int getBatchBytesLimit() {
+    return AppenderConstants.KINESIS_MAX_BATCH_BYTES;
+  }
+
+  @Override
+  protected int getRecordBytesLimit() {
+    return AppenderConstants.KINESIS_MAX_RECORD_BYTES;
+  }
+
+  @Override
+  protected AggregationFormat getAggregationFormat() {
+    return new KplAggregationFormat();
+  }
+
+  @Override
+  protected long getRecordsPerSecondLimit() {
+    return AppenderConstants.KINESIS_SHARD_MAX_RECORDS_PER_SEC;
+  }
+
+  @Override
+  protected long getBytesPerSecondLimit() {
+    return AppenderConstants.KINESIS_SHARD_MAX_BYTES_PER_SEC;
+  }
+}
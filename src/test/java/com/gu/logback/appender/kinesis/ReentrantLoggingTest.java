@@ -0,0 +1,88 @@
+package com.gu.logback.appender.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.core.status.Status;
+
+public class ReentrantLoggingTest {
+
+  private final LoggerContext context = new LoggerContext();
+  private final Logger logger = context.getLogger(ReentrantLoggingTest.class);
+
+  private boolean warned() {
+    for(Status status : context.getStatusManager().getCopyOfStatusList()) {
+      if(status.getLevel() == Status.WARN && status.getMessage().startsWith("Dropping log events")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Test
+  public void eventsLoggedOnTheAppenderThreadsAreDropped() throws InterruptedException {
+    RecordingAppender appender = RecordingAppender.create(context);
+    // batches are sent from the linger thread of the appender
+    appender.setBatchingEnabled(true);
+    appender.setLingerMillis(10);
+    appender.setOnSend(() -> logger.info("sending"));
+    appender.start();
+    logger.addAppender(appender);
+    logger.info("first");
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while(appender.getRecords().isEmpty()) {
+      assertTrue(System.nanoTime() < deadline, "record wasn't sent in time");
+      Thread.sleep(1);
+    }
+    // what the send logged would have gone out in the next batch
+    Thread.sleep(50);
+    appender.stop();
+
+    assertEquals(Collections.singletonList("first"), appender.getPayloads());
+    assertTrue(warned());
+  }
+
+  @Test
+  public void eventsLoggedWhileSendingAreDroppedByEveryAppender() {
+    RecordingAppender sending = RecordingAppender.create(context);
+    sending.setOnSend(() -> logger.info("sending"));
+    sending.start();
+    RecordingAppender other = RecordingAppender.create(context);
+    other.setName("other");
+    other.start();
+    logger.addAppender(sending);
+    logger.addAppender(other);
+
+    // both send on the logging thread
+    logger.info("first");
+    sending.stop();
+    other.stop();
+
+    assertEquals(Collections.singletonList("first"), sending.getPayloads());
+    assertEquals(Collections.singletonList("first"), other.getPayloads());
+  }
+
+  @Test
+  public void transportEventsLoggedElsewhereAreOnlyDroppedOnRequest() {
+    Logger sdkLogger = context.getLogger("software.amazon.awssdk.core");
+    RecordingAppender appender = RecordingAppender.create(context);
+    appender.start();
+    sdkLogger.addAppender(appender);
+
+    sdkLogger.info("kept");
+    assertFalse(warned());
+    appender.setTransportEventsDropped(true);
+    sdkLogger.info("dropped");
+    appender.stop();
+
+    assertEquals(Collections.singletonList("kept"), appender.getPayloads());
+  }
+}
@@ -0,0 +1,47 @@
+package com.gu.logback.appender.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.gu.logback.appender.kinesis.helpers.OverflowPolicy;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class RingBufferModeTest {
+
+  private static String lastSendingThread(RecordingAppender appender) {
+    List<String> threads = appender.getSendingThreads();
+    return threads.get(threads.size() - 1);
+  }
+
+  @Test
+  public void startingLeavesTheConfigurationAsItIs() {
+    LoggerContext context = new LoggerContext();
+    RecordingAppender appender = RecordingAppender.create(context);
+    Logger logger = context.getLogger(RingBufferModeTest.class);
+    appender.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+    appender.start();
+    assertFalse(appender.isRingBufferEnabled());
+    appender.doAppend(new LoggingEvent(Logger.FQCN, logger, Level.INFO, "first", null, null));
+    appender.stop();
+    assertTrue(lastSendingThread(appender).contains("sender-"), lastSendingThread(appender));
+
+    // back to the default policy, which doesn't need the ring buffer
+    appender.setOverflowPolicy(OverflowPolicy.BLOCK);
+    appender.start();
+    assertFalse(appender.isRingBufferEnabled());
+    appender.doAppend(new LoggingEvent(Logger.FQCN, logger, Level.INFO, "second", null, null));
+    assertEquals(Thread.currentThread().getName(), lastSendingThread(appender));
+    assertEquals(0, appender.getTaskBufferSize());
+    appender.stop();
+    assertEquals(2, appender.getRecords().size());
+  }
+}
@@ -0,0 +1,161 @@
+package com.gu.logback.appender.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigInteger;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamRequest;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamResponse;
+import software.amazon.awssdk.services.kinesis.model.ListShardsRequest;
+import software.amazon.awssdk.services.kinesis.model.ListShardsResponse;
+import software.amazon.awssdk.services.kinesis.model.PutRecordRequest;
+import software.amazon.awssdk.services.kinesis.model.PutRecordResponse;
+import software.amazon.awssdk.services.kinesis.model.Shard;
+import software.amazon.awssdk.services.kinesis.model.StreamStatus;
+import com.gu.logback.appender.kinesis.helpers.ShardBalancedPartitionKeyStrategy;
+import com.gu.logback.appender.kinesis.helpers.ShardMap;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class ShardRefreshTest {
+
+  private static final String HALF = BigInteger.ONE.shiftLeft(127).toString();
+
+  /**
+   * Client of a stream whose open shards can be changed, storing every record
+   * in the shard given to it.
+   */
+  private static final class StubClient implements KinesisAsyncClient {
+    private volatile List<Shard> shards;
+    private volatile String storedInShard;
+    private final AtomicInteger listings = new AtomicInteger();
+
+    void setShards(String storedInShard, Shard... shards) {
+      this.shards = Arrays.asList(shards);
+      this.storedInShard = storedInShard;
+    }
+
+    @Override
+    public CompletableFuture<DescribeStreamResponse> describeStream(DescribeStreamRequest request) {
+      return CompletableFuture.completedFuture(DescribeStreamResponse.builder()
+        .streamDescription(b -> b.streamStatus(StreamStatus.ACTIVE))
+        .build());
+    }
+
+    @Override
+    public CompletableFuture<ListShardsResponse> listShards(ListShardsRequest request) {
+      listings.incrementAndGet();
+      return CompletableFuture.completedFuture(ListShardsResponse.builder().shards(new ArrayList<Shard>(shards)).build());
+    }
+
+    @Override
+    public CompletableFuture<PutRecordResponse> putRecord(PutRecordRequest request) {
+      return CompletableFuture.completedFuture(PutRecordResponse.builder().shardId(storedInShard).build());
+    }
+
+    @Override
+    public String serviceName() {
+      return "kinesis";
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private static Shard shard(String shardId, String startingHashKey) {
+    return Shard.builder()
+      .shardId(shardId)
+      .hashKeyRange(b -> b.startingHashKey(startingHashKey).endingHashKey("0"))
+      .sequenceNumberRange(b -> b.startingSequenceNumber("0"))
+      .build();
+  }
+
+  private final StubClient client = new StubClient();
+  private final LoggerContext context = new LoggerContext();
+  private final Logger logger = context.getLogger(ShardRefreshTest.class);
+
+  private KinesisAppender<ILoggingEvent> newAppender() {
+    PatternLayout layout = new PatternLayout();
+    layout.setContext(context);
+    layout.setPattern("%msg");
+    layout.start();
+
+    KinesisAppender<ILoggingEvent> appender = new KinesisAppender<ILoggingEvent>() {
+      @Override
+      protected KinesisAsyncClient createClient(AwsCredentialsProvider credentials,
+          ClientOverrideConfiguration configuration, Executor executor, Region region, Optional<URI> endpointOverride,
+          Optional<SdkAsyncHttpClient> httpClient) {
+        return client;
+      }
+    };
+    appender.setContext(context);
+    appender.setName("test");
+    appender.setStreamName("test");
+    appender.setLayout(layout);
+    appender.setJmxEnabled(false);
+    appender.setPartitionKeyStrategy(new ShardBalancedPartitionKeyStrategy<ILoggingEvent>());
+    return appender;
+  }
+
+  private void append(KinesisAppender<ILoggingEvent> appender) {
+    appender.doAppend(new LoggingEvent(Logger.FQCN, logger, Level.INFO, "message", null, null));
+  }
+
+  @Test
+  public void recordsInAnUnknownShardRefreshTheShards() throws InterruptedException {
+    client.setShards("shardId-0", shard("shardId-0", "0"));
+    KinesisAppender<ILoggingEvent> appender = newAppender();
+    appender.start();
+    assertTrue(appender.isStarted());
+    assertEquals(1, appender.getRateLimitGroupCount());
+    assertEquals(1, client.listings.get());
+
+    // a known shard, and too soon after the listing for an unknown one
+    append(appender);
+    client.setShards("shardId-1", shard("shardId-1", "0"), shard("shardId-2", HALF));
+    append(appender);
+    assertEquals(1, client.listings.get());
+
+    Thread.sleep(AppenderConstants.SHARD_LIST_MIN_INTERVAL_MILLIS);
+    append(appender);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while(appender.getRateLimitGroupCount() < 2) {
+      assertTrue(System.nanoTime() < deadline, "shards weren't listed again in time");
+      Thread.sleep(1);
+    }
+    assertEquals(2, client.listings.get());
+    ShardMap shards = new ShardMap(Arrays.asList("0", HALF));
+    ILoggingEvent event = new LoggingEvent(Logger.FQCN, logger, Level.INFO, "message", null, null);
+    assertTrue(shards.shardOf(appender.partitionKeyOf(event)) != shards.shardOf(appender.partitionKeyOf(event)),
+               "keys aren't balanced over the new shards");
+
+    // known shards don't refresh them again
+    Thread.sleep(AppenderConstants.SHARD_LIST_MIN_INTERVAL_MILLIS);
+    append(appender);
+    appender.stop();
+    assertEquals(2, client.listings.get());
+  }
+}
@@ -0,0 +1,45 @@
+package com.gu.logback.appender.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.status.Status;
+
+public class ShutdownReportTest {
+
+  @Test
+  public void countsEachEventOfAggregatedRecords() {
+    LoggerContext context = new LoggerContext();
+    RecordingAppender appender = RecordingAppender.create(context);
+    appender.setAggregationEnabled(true);
+    appender.setBatchingEnabled(true);
+    appender.setLingerMillis(60000);
+    appender.start();
+
+    Logger logger = context.getLogger(ShutdownReportTest.class);
+    for(int i = 0; i < 1000; i++) {
+      appender.doAppend(new LoggingEvent(Logger.FQCN, logger, Level.INFO, "event " + i, null, null));
+    }
+    appender.stop();
+
+    assertTrue(appender.getMetrics().getRecordsSent() < 1000, "events weren't aggregated");
+    assertEquals(1000, appender.getMetrics().getEventsSent());
+    assertEquals(0, appender.getMetrics().getEventsLost());
+    assertTrue(hasStatus(context, "delivered 1000 log events to stream test while stopping, spilled 0 and lost 0"));
+  }
+
+  private static boolean hasStatus(LoggerContext context, String message) {
+    for(Status status : context.getStatusManager().getCopyOfStatusList()) {
+      if(status.getMessage().contains(message)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,58 @@
+package com.gu.logback.appender.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.gu.logback.appender.kinesis.helpers.AppenderMetrics;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class StageTracingTest {
+
+  private final LoggerContext context = new LoggerContext();
+  private final Logger logger = context.getLogger(StageTracingTest.class);
+
+  private AppenderMetrics send(RecordingAppender appender, double traceSampleRate, int events) {
+    appender.setTraceSampleRate(traceSampleRate);
+    appender.setRequestDelayNanos(TimeUnit.MILLISECONDS.toNanos(20));
+    appender.start();
+    for(int i = 0; i < events; i++) {
+      appender.doAppend(new LoggingEvent(Logger.FQCN, logger, Level.INFO, Integer.toString(i), null, null));
+    }
+    appender.stop();
+    assertEquals(events, appender.getRecords().size());
+    return appender.getMetrics();
+  }
+
+  @Test
+  public void tracesEverySampledEventThroughItsStages() {
+    RecordingAppender appender = RecordingAppender.create(context);
+    appender.setRingBufferEnabled(true);
+    AppenderMetrics metrics = send(appender, 1, 10);
+
+    assertEquals(10, metrics.getTracedCount());
+    assertEquals(10, metrics.getEncodeNanos().getCount());
+    assertEquals(10, metrics.getQueueNanos().getCount());
+    assertEquals(10, metrics.getBatchingNanos().getCount());
+    // each request takes 20 ms, and histograms are within 1/16
+    assertTrue(metrics.getRequestNanos().getValueAtPercentile(0) >= TimeUnit.MILLISECONDS.toNanos(20) * 15 / 16,
+               "requests took " + metrics.getRequestP99Millis() + " ms");
+    // events wait for the requests of the ones before them
+    assertTrue(metrics.getQueueP99Millis() >= 100, "events queued for " + metrics.getQueueP99Millis() + " ms");
+    assertTrue(metrics.getLatencyMaxMillis() >= metrics.getQueueP99Millis());
+  }
+
+  @Test
+  public void tracesNothingUnlessSampled() {
+    AppenderMetrics metrics = send(RecordingAppender.create(context), 0, 10);
+    assertEquals(0, metrics.getTracedCount());
+    assertEquals(10, metrics.getLatencyCount());
+  }
+}
@@ -0,0 +1,164 @@
+package com.gu.logback.appender.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMX;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+
+import com.gu.logback.appender.kinesis.helpers.AppenderTuningMXBean;
+import com.gu.logback.appender.kinesis.helpers.SharedTransport;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class TuningTest {
+
+  /**
+   * Logging threads wait for room in a small ring buffer while it is resized
+   * over and over. Every event must be sent exactly once, and the events of
+   * each thread in the order they were logged.
+   */
+  @Test
+  public void resizingTheRingBufferLosesNothing() throws Exception {
+    int threads = 4;
+    int perThread = 10000;
+    LoggerContext context = new LoggerContext();
+    RecordingAppender appender = newAppender(context, "resize");
+    appender.setRingBufferEnabled(true);
+    appender.setBufferSize(16);
+    appender.setRequestDelayNanos(TimeUnit.MICROSECONDS.toNanos(10));
+    appender.start();
+    AppenderTuningMXBean tuning = tuningOf("resize");
+
+    Logger logger = context.getLogger(TuningTest.class);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> loggers = new ArrayList<Thread>();
+    for(int t = 0; t < threads; t++) {
+      int base = t * perThread;
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        }
+        catch(InterruptedException e) {
+          return;
+        }
+        for(int i = base; i < base + perThread; i++) {
+          appender.doAppend(new LoggingEvent(Logger.FQCN, logger, Level.INFO, Integer.toString(i), null, null));
+        }
+      });
+      loggers.add(thread);
+      thread.start();
+    }
+    start.countDown();
+    int resizes = 0;
+    while(loggers.get(0).isAlive() || resizes < 2) {
+      tuning.setBufferSize(resizes % 2 == 0 ? 4 : 64);
+      resizes++;
+      Thread.sleep(5);
+    }
+    for(Thread thread : loggers) {
+      thread.join();
+    }
+    appender.stop();
+
+    assertEquals(resizes % 2 == 0 ? 64 : 4, appender.getBufferSize());
+    List<String> payloads = appender.getPayloads();
+    assertEquals(threads * perThread, payloads.size(), "events sent");
+    BitSet sent = new BitSet(threads * perThread);
+    int[] last = new int[threads];
+    for(int t = 0; t < threads; t++) {
+      last[t] = -1;
+    }
+    for(String payload : payloads) {
+      int event = Integer.parseInt(payload);
+      assertTrue(!sent.get(event), "event " + event + " sent twice");
+      sent.set(event);
+      int thread = event / perThread;
+      assertTrue(event > last[thread], "event " + event + " sent out of order");
+      last[thread] = event;
+    }
+  }
+
+  @Test
+  public void taskBufferSizeCountsTheBuffersBeingDrained() throws Exception {
+    LoggerContext context = new LoggerContext();
+    RecordingAppender appender = newAppender(context, "resized-size");
+    appender.setRingBufferEnabled(true);
+    appender.setBufferSize(16);
+    appender.setRequestDelayNanos(TimeUnit.MILLISECONDS.toNanos(500));
+    appender.start();
+    AppenderTuningMXBean tuning = tuningOf("resized-size");
+
+    Logger logger = context.getLogger(TuningTest.class);
+    for(int i = 0; i < 10; i++) {
+      appender.doAppend(new LoggingEvent(Logger.FQCN, logger, Level.INFO, Integer.toString(i), null, null));
+    }
+    // the sender thread is held up sending the first event
+    while(appender.getSendingThreads().isEmpty()) {
+      Thread.sleep(1);
+    }
+    tuning.setBufferSize(64);
+    for(int i = 10; i < 13; i++) {
+      appender.doAppend(new LoggingEvent(Logger.FQCN, logger, Level.INFO, Integer.toString(i), null, null));
+    }
+    assertEquals(12, appender.getTaskBufferSize());
+    appender.setRequestDelayNanos(0);
+    appender.stop();
+    assertEquals(13, appender.getPayloads().size());
+    assertEquals(0, appender.getTaskBufferSize());
+  }
+
+  @Test
+  public void bufferSizeIsRefusedWithoutTheRingBuffer() throws Exception {
+    LoggerContext context = new LoggerContext();
+    RecordingAppender appender = newAppender(context, "no-ring-buffer");
+    appender.start();
+    AppenderTuningMXBean tuning = tuningOf("no-ring-buffer");
+    assertThrows(IllegalStateException.class, () -> tuning.setBufferSize(16));
+    assertEquals(AppenderConstants.DEFAULT_BUFFER_SIZE, tuning.getBufferSize());
+    appender.stop();
+  }
+
+  @Test
+  public void threadCountIsRefusedWithASharedTransport() throws Exception {
+    LoggerContext context = new LoggerContext();
+    SharedTransport transport = new SharedTransport();
+    transport.setContext(context);
+    transport.setName("tuning");
+    RecordingAppender appender = newAppender(context, "shared");
+    appender.setTransport(transport);
+    appender.start();
+    AppenderTuningMXBean tuning = tuningOf("shared");
+    int threadCount = tuning.getThreadCount();
+    assertThrows(IllegalStateException.class, () -> tuning.setThreadCount(threadCount + 1));
+    assertEquals(threadCount, tuning.getThreadCount());
+    appender.stop();
+  }
+
+  private static RecordingAppender newAppender(LoggerContext context, String name) {
+    RecordingAppender appender = RecordingAppender.create(context);
+    appender.setName(name);
+    appender.setJmxEnabled(true);
+    return appender;
+  }
+
+  private static AppenderTuningMXBean tuningOf(String name) throws MalformedObjectNameException {
+    ObjectName objectName = new ObjectName("com.gu.logback.appender.kinesis:type=RecordingAppender,name="
+                                           + ObjectName.quote(name) + ",component=tuning");
+    return JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), objectName, AppenderTuningMXBean.class);
+  }
+}
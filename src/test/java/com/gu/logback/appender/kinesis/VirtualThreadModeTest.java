@@ -0,0 +1,46 @@
+package com.gu.logback.appender.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import com.gu.logback.appender.kinesis.helpers.VirtualThreads;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.status.Status;
+
+public class VirtualThreadModeTest {
+
+  @Test
+  public void sendsEverythingWithOrWithoutVirtualThreads() {
+    LoggerContext context = new LoggerContext();
+    RecordingAppender appender = RecordingAppender.create(context);
+    Logger logger = context.getLogger(VirtualThreadModeTest.class);
+    appender.setVirtualThreadsEnabled(true);
+    appender.setRingBufferEnabled(true);
+    appender.start();
+    assertTrue(appender.isStarted());
+    for(int i = 0; i < 100; i++) {
+      appender.doAppend(new LoggingEvent(Logger.FQCN, logger, Level.INFO, Integer.toString(i), null, null));
+    }
+    appender.stop();
+
+    assertEquals(100, appender.getRecords().size());
+    // falls back to platform threads before Java 21
+    assertEquals(!VirtualThreads.isAvailable(), hasStatus(context, "Virtual threads need Java 21 or later"));
+    assertTrue(appender.isVirtualThreadsEnabled());
+  }
+
+  private static boolean hasStatus(LoggerContext context, String message) {
+    for(Status status : context.getStatusManager().getCopyOfStatusList()) {
+      if(status.getMessage().contains(message)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,99 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.core.SdkBytes;
+
+public class AdaptiveRateLimiterTest {
+
+  private static List<PendingRecord> records(int count) {
+    List<PendingRecord> records = new ArrayList<PendingRecord>();
+    for(int i = 0; i < count; i++) {
+      records.add(new PendingRecord("key", SdkBytes.fromUtf8String("data")));
+    }
+    return records;
+  }
+
+  private static List<PendingRecord> keyed(String partitionKey, int count) {
+    List<PendingRecord> records = new ArrayList<PendingRecord>();
+    for(int i = 0; i < count; i++) {
+      records.add(new PendingRecord(partitionKey, SdkBytes.fromUtf8String("data")));
+    }
+    return records;
+  }
+
+  @Test
+  public void tryAcquireTakesNothingWhenItWouldWait() {
+    AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(1, key -> 0, 10, 1024 * 1024);
+    assertEquals(20, limiter.tryAcquireAvailable(records(20)).size());
+    long start = System.nanoTime();
+    assertTrue(limiter.tryAcquireAvailable(records(1)).isEmpty());
+    assertTrue(limiter.tryAcquireAvailable(records(1)).isEmpty());
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500), "tryAcquire waited");
+    limiter.close();
+    assertEquals(1, limiter.tryAcquireAvailable(records(1)).size());
+  }
+
+  @Test
+  public void tryAcquireLetsThroughTheGroupsWithRoom() {
+    AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(2, key -> key.equals("a") ? 0 : 1, 10, 1024 * 1024);
+    assertEquals(20, limiter.tryAcquireAvailable(keyed("a", 20)).size());
+    List<PendingRecord> mixed = new ArrayList<PendingRecord>();
+    mixed.addAll(keyed("a", 1));
+    mixed.addAll(keyed("b", 1));
+    assertEquals(Collections.singletonList(mixed.get(1)), limiter.tryAcquireAvailable(mixed));
+    // group a was left untouched
+    assertEquals(10, limiter.tryAcquireAvailable(keyed("b", 10)).size());
+    assertTrue(limiter.tryAcquireAvailable(keyed("a", 1)).isEmpty());
+  }
+
+  @Test
+  public void acquireDoesNotWaitForAThrottledGroup() {
+    AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(2, key -> key.equals("a") ? 0 : 1, 10, 1024 * 1024);
+    limiter.acquireAvailable(keyed("a", 30));
+    List<PendingRecord> mixed = new ArrayList<PendingRecord>();
+    mixed.addAll(keyed("a", 2));
+    mixed.addAll(keyed("b", 2));
+    long start = System.nanoTime();
+    assertEquals(mixed.subList(2, 4), limiter.acquireAvailable(mixed));
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500), "acquire waited for group a");
+  }
+
+  @Test
+  public void acquireWaitsForTheDebtToBeRepaid() {
+    AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(1, key -> 0, 100, 1024 * 1024);
+    limiter.acquireAvailable(records(150));
+    long start = System.nanoTime();
+    limiter.acquire("key", 4);
+    long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    assertTrue(waitedMillis >= 300, "waited " + waitedMillis + " ms");
+  }
+
+  @Test
+  public void throttlingCutsTheRateAtMostOncePerSecond() {
+    AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(1, key -> 0, 1000, 1024 * 1024);
+    List<PendingRecord> batch = records(10);
+    BitSet throttled = new BitSet();
+    throttled.set(0);
+    limiter.completed(batch, throttled);
+    assertEquals(700, limiter.getRecordsPerSecond()[0], 1e-6);
+    limiter.completed(batch, throttled);
+    assertEquals(700, limiter.getRecordsPerSecond()[0], 1e-6);
+  }
+
+  @Test
+  public void lowerCeilingsApplyStraightAway() {
+    AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(1, key -> 0, 1000, 1024 * 1024);
+    limiter.setCeilings(100, 1024);
+    assertEquals(100, limiter.getRecordsPerSecond()[0], 1e-6);
+  }
+}
@@ -0,0 +1,123 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.core.SdkBytes;
+
+public class AppenderMetricsTest {
+
+  private final DropCounters dropCounters = new DropCounters();
+  private final AppenderMetrics metrics = new AppenderMetrics(dropCounters, () -> 7, () -> 2, () -> 300);
+
+  private static PendingRecord record(int eventCount, long appendNanos) {
+    return new PendingRecord("key", SdkBytes.fromUtf8String("data"), eventCount, appendNanos, null);
+  }
+
+  private static BitSet bits(int... indexes) {
+    BitSet bits = new BitSet();
+    for(int index : indexes) {
+      bits.set(index);
+    }
+    return bits;
+  }
+
+  @Test
+  public void countsTheRecordsAndEventsOfEachOutcome() {
+    long now = System.nanoTime();
+    List<PendingRecord> batch = Arrays.asList(record(1, now), record(3, now), record(2, now), record(1, now));
+    metrics.requestSent(batch.size());
+    metrics.requestSucceeded(batch, bits(1, 3), bits(3));
+    metrics.requestSent(5);
+    metrics.requestFailed(5, true);
+    metrics.requestFailed(2, false);
+    metrics.recordRetried();
+    metrics.recordSpilled(4);
+    metrics.recordDropped(6);
+    metrics.inFlightWindowFull();
+    dropCounters.newestDropped();
+    dropCounters.belowLevelDropped();
+
+    assertEquals(2, metrics.getRecordsSent());
+    assertEquals(2 * batch.get(0).getSize(), metrics.getBytesSent());
+    assertEquals(3, metrics.getEventsSent());
+    assertEquals(2 + 5 + 2, metrics.getRecordsFailed());
+    assertEquals(1 + 5, metrics.getRecordsThrottled());
+    assertEquals(1, metrics.getRecordsRetried());
+    assertEquals(1, metrics.getRecordsSpilled());
+    assertEquals(4, metrics.getEventsSpilled());
+    assertEquals(1, metrics.getRecordsDropped());
+    assertEquals(6, metrics.getEventsLost());
+    assertEquals(2, metrics.getEventsDropped());
+    assertEquals(1, metrics.getRequestsSucceeded());
+    assertEquals(2, metrics.getRequestsFailed());
+    assertEquals(1, metrics.getInFlightWindowFull());
+    assertEquals(4.5, metrics.getBatchSizeMean());
+    assertEquals(5, metrics.getBatchSizeMax());
+    assertEquals(7, metrics.getQueueDepth());
+    assertEquals(2, metrics.getInFlightRequests());
+    assertEquals(300, metrics.getInFlightBytes());
+  }
+
+  @Test
+  public void measuresTheLatencyOfAcknowledgedRecords() {
+    long appendNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(100);
+    // records without an append time aren't measured
+    List<PendingRecord> batch = Arrays.asList(record(1, appendNanos), record(1, 0), record(1, appendNanos));
+    metrics.requestSucceeded(batch, bits(2), bits());
+
+    assertEquals(1, metrics.getLatencyCount());
+    assertTrue(metrics.getLatencyMaxMillis() >= 100, "latency of " + metrics.getLatencyMaxMillis() + " ms");
+    assertTrue(metrics.getLatencyP50Millis() >= 100 && metrics.getLatencyP50Millis() <= metrics.getLatencyMaxMillis());
+    assertEquals(0, metrics.getTracedCount());
+  }
+
+  @Test
+  public void breaksTheLatencyOfTracedRecordsDownByStage() {
+    long millis = TimeUnit.MILLISECONDS.toNanos(1);
+    long appendNanos = System.nanoTime() - 100 * millis;
+    StageTrace trace = new StageTrace(appendNanos);
+    trace.encoded();
+    trace.dequeued();
+    trace.sent(System.nanoTime() - 40 * millis);
+    PendingRecord record = new PendingRecord("key", SdkBytes.fromUtf8String("data"), 1, appendNanos, trace);
+    metrics.requestSucceeded(Collections.singletonList(record), bits(), bits());
+
+    assertEquals(1, metrics.getTracedCount());
+    assertTrue(metrics.getRequestP99Millis() >= 40, "request took " + metrics.getRequestP99Millis() + " ms");
+    assertTrue(metrics.getEncodeP99Millis() >= 100 * 15 / 16, "encoding took " + metrics.getEncodeP99Millis() + " ms");
+    assertEquals(0, metrics.getBatchingNanos().getMax());
+  }
+
+  @Test
+  public void countsEveryRequestCompletedConcurrently() throws InterruptedException {
+    List<Thread> threads = new ArrayList<Thread>();
+    for(int t = 0; t < 4; t++) {
+      Thread thread = new Thread(() -> {
+        for(int i = 0; i < 10000; i++) {
+          metrics.requestSent(2);
+          metrics.requestSucceeded(Arrays.asList(record(1, 0), record(2, 0)), bits(1), bits(1));
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for(Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(40000, metrics.getRequestsSucceeded());
+    assertEquals(40000, metrics.getRecordsSent());
+    assertEquals(40000, metrics.getEventsSent());
+    assertEquals(40000, metrics.getRecordsThrottled());
+    assertEquals(40000, metrics.getBatchSizes().getCount());
+  }
+}
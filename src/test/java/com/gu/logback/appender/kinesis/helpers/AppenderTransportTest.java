@@ -0,0 +1,79 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.utils.AttributeMap;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.core.spi.ContextAwareBase;
+
+public class AppenderTransportTest {
+
+  private final LoggerContext context = new LoggerContext();
+  private final ContextAwareBase owner = new ContextAwareBase();
+
+  private AppenderTransport newTransport() {
+    owner.setContext(context);
+    AppenderTransport transport = new AppenderTransport(owner, "appender", "Appender[test]-");
+    transport.setThreadCount(1);
+    transport.setBufferSize(4);
+    return transport;
+  }
+
+  @Test
+  public void ownThreadsCompleteTheRequestsAndCanBeResized() throws InterruptedException {
+    AppenderTransport transport = newTransport();
+    assertTrue(transport.start(AttributeMap.empty()));
+    try {
+      assertNotNull(transport.getHttpClient().orElse(null));
+      assertNull(transport.getScheduler());
+      CountDownLatch completed = new CountDownLatch(1);
+      transport.getCompletionExecutor().execute(() -> {
+        assertTrue(RequestDispatcher.isCompleting());
+        assertTrue(Thread.currentThread().getName().startsWith("Appender[test]-"));
+        completed.countDown();
+      });
+      assertTrue(completed.await(10, TimeUnit.SECONDS));
+      transport.resizeThreadPool(2);
+      assertEquals(0, transport.getQueueSize());
+    }
+    finally {
+      transport.close(TimeUnit.SECONDS.toNanos(1));
+    }
+  }
+
+  @Test
+  public void sharedTransportThreadsAreNotResized() {
+    SharedTransport shared = new SharedTransport();
+    shared.setName("shared");
+    shared.setThreadCount(1);
+    AppenderTransport transport = newTransport();
+    transport.setSharedTransport(shared);
+    transport.setHttpClientSettings(new HttpClientSettings());
+    assertTrue(transport.start(AttributeMap.empty()));
+    try {
+      assertSame(context, shared.getContext());
+      assertNotNull(transport.getScheduler());
+      assertThrows(IllegalStateException.class, () -> transport.resizeThreadPool(2));
+      assertTrue(hasWarning("Ignoring httpClient"));
+    }
+    finally {
+      transport.close(TimeUnit.SECONDS.toNanos(1));
+    }
+  }
+
+  private boolean hasWarning(String message) {
+    return context.getStatusManager().getCopyOfStatusList().stream()
+      .anyMatch(status -> status.getMessage().startsWith(message));
+  }
+}
@@ -0,0 +1,90 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.core.SdkBytes;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.core.spi.ContextAwareBase;
+
+public class BatchSenderTest {
+
+  private final List<List<PendingRecord>> sent = new CopyOnWriteArrayList<List<PendingRecord>>();
+  private final AppenderMetrics metrics = new AppenderMetrics(new DropCounters(), () -> 0, () -> 0, () -> 0);
+  private final ContextAwareBase owner = new ContextAwareBase();
+  private volatile boolean backingOff = true;
+
+  private BatchSender newSender() {
+    owner.setContext(new LoggerContext());
+    RecordBatcher<PendingRecord> batcher = new RecordBatcher<PendingRecord>(10, 1024, 0, PendingRecord::getSize,
+                                                                            sent::add,
+                                                                            Executors.defaultThreadFactory());
+    return new BatchSender(batcher, 16, () -> backingOff, metrics, owner, "stream",
+                           Executors.defaultThreadFactory());
+  }
+
+  private static PendingRecord record(String data) {
+    return new PendingRecord("key", SdkBytes.fromUtf8String(data));
+  }
+
+  @Test
+  public void dropsRecordsLargerThanTheServiceAccepts() {
+    BatchSender sender = newSender();
+    sender.add(record("a record larger than the limit"));
+    PendingRecord small = record("small");
+    sender.add(small);
+
+    assertEquals(Collections.singletonList(Collections.singletonList(small)), sent);
+    assertEquals(1, metrics.getEventsLost());
+  }
+
+  @Test
+  public void rejectedRecordsComeBackAfterTheirBackoff() throws InterruptedException {
+    BatchSender sender = newSender();
+    PendingRecord retry = record("retry").nextAttempt();
+    long startNanos = System.nanoTime();
+    sender.retryLater(retry);
+    assertFalse(sender.isEmpty());
+    long deadline = startNanos + TimeUnit.SECONDS.toNanos(10);
+    while(sent.isEmpty()) {
+      assertTrue(System.nanoTime() < deadline, "record didn't come back in time");
+      Thread.sleep(1);
+    }
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+    // at least half of the first backoff of 100 ms
+    assertTrue(elapsedMillis >= 50, "came back after " + elapsedMillis + " ms");
+    assertEquals(Collections.singletonList(Collections.singletonList(retry)), sent);
+    assertTrue(sender.isEmpty());
+  }
+
+  @Test
+  public void closingSendsTheRetriesWaitingOutTheirBackoff() {
+    BatchSender sender = newSender();
+    PendingRecord waiting = record("waiting").nextAttempt();
+    sender.retryLater(waiting);
+    sender.close(10, 1024, 0);
+    backingOff = false;
+    PendingRecord late = record("late").nextAttempt();
+    sender.retryLater(late);
+
+    List<PendingRecord> records = new ArrayList<PendingRecord>();
+    for(List<PendingRecord> batch : sent) {
+      records.addAll(batch);
+    }
+    assertEquals(2, records.size());
+    assertTrue(records.contains(waiting) && records.contains(late));
+    assertTrue(sender.isEmpty());
+  }
+}
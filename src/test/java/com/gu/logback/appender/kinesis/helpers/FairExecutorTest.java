@@ -0,0 +1,170 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class FairExecutorTest {
+
+  private static FairExecutor newExecutor(int threadCount, int maxRunningPerLane) {
+    return new FairExecutor(threadCount, maxRunningPerLane, new NamedThreadFactory("FairExecutorTest-"));
+  }
+
+  private static void shutdown(FairExecutor executor) throws InterruptedException {
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Test
+  public void runsTheTasksOfALaneInOrder() throws InterruptedException {
+    FairExecutor executor = newExecutor(4, 1);
+    FairExecutor.Lane lane = executor.newLane(1000);
+    List<Integer> ran = new ArrayList<Integer>();
+    for(int i = 0; i < 1000; i++) {
+      int task = i;
+      lane.execute(() -> ran.add(task));
+    }
+    lane.shutdown();
+    assertTrue(lane.awaitTermination(10, TimeUnit.SECONDS));
+    assertTrue(lane.isTerminated());
+    assertEquals(1000, ran.size());
+    for(int i = 0; i < 1000; i++) {
+      assertEquals(i, ran.get(i).intValue());
+    }
+    shutdown(executor);
+  }
+
+  @Test
+  public void backlogOfALaneDoesntHoldUpTheOthers() throws InterruptedException {
+    FairExecutor executor = newExecutor(1, 1);
+    FairExecutor.Lane busy = executor.newLane(1000);
+    FairExecutor.Lane quiet = executor.newLane(10);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger busyRan = new AtomicInteger();
+    busy.execute(() -> await(release));
+    for(int i = 0; i < 100; i++) {
+      busy.execute(busyRan::incrementAndGet);
+    }
+    int[] busyRanBefore = new int[1];
+    CountDownLatch quietRan = new CountDownLatch(1);
+    quiet.execute(() -> {
+      busyRanBefore[0] = busyRan.get();
+      quietRan.countDown();
+    });
+    release.countDown();
+    assertTrue(quietRan.await(10, TimeUnit.SECONDS));
+    // lanes take turns, so at most one task of the busy lane went first
+    assertTrue(busyRanBefore[0] <= 1, busyRanBefore[0] + " tasks of the busy lane ran first");
+    busy.shutdown();
+    quiet.shutdown();
+    shutdown(executor);
+  }
+
+  @Test
+  public void capsTheTasksOfALaneRunningAtOnce() throws InterruptedException {
+    FairExecutor executor = newExecutor(4, 2);
+    FairExecutor.Lane blocking = executor.newLane(100);
+    FairExecutor.Lane other = executor.newLane(10);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    for(int i = 0; i < 10; i++) {
+      blocking.execute(() -> {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        await(release);
+        running.decrementAndGet();
+      });
+    }
+    // threads are left for the other lanes while the first one blocks
+    CountDownLatch otherRan = new CountDownLatch(1);
+    other.execute(otherRan::countDown);
+    assertTrue(otherRan.await(10, TimeUnit.SECONDS));
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while(running.get() < 2) {
+      assertTrue(System.nanoTime() < deadline, "blocking tasks didn't start");
+      Thread.sleep(1);
+    }
+    Thread.sleep(50);
+    assertEquals(2, running.get());
+    release.countDown();
+    blocking.shutdown();
+    assertTrue(blocking.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(2, maxRunning.get());
+    other.shutdown();
+    shutdown(executor);
+  }
+
+  @Test
+  public void fullLanesHoldBackTheirProducers() throws InterruptedException {
+    FairExecutor executor = newExecutor(1, 1);
+    FairExecutor.Lane lane = executor.newLane(1);
+    CountDownLatch release = new CountDownLatch(1);
+    lane.execute(() -> await(release));
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while(lane.getQueueSize() > 0) {
+      assertTrue(System.nanoTime() < deadline, "first task didn't start");
+      Thread.sleep(1);
+    }
+    lane.execute(() -> {});
+
+    Thread producer = new Thread(() -> lane.execute(() -> {}), "FairExecutorTest-producer");
+    producer.start();
+    while(producer.getState() != Thread.State.WAITING) {
+      assertTrue(System.nanoTime() < deadline, "producer isn't waiting");
+      Thread.sleep(1);
+    }
+    // tasks that mustn't wait go over the capacity
+    lane.enqueue(() -> {});
+    assertEquals(2, lane.getQueueSize());
+
+    release.countDown();
+    producer.join(TimeUnit.SECONDS.toMillis(10));
+    assertFalse(producer.isAlive());
+    lane.shutdown();
+    assertTrue(lane.awaitTermination(10, TimeUnit.SECONDS));
+    shutdown(executor);
+  }
+
+  @Test
+  public void shutdownNowReturnsTheTasksNotStarted() throws InterruptedException {
+    FairExecutor executor = newExecutor(1, 1);
+    FairExecutor.Lane lane = executor.newLane(10);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    lane.execute(() -> {
+      started.countDown();
+      await(release);
+    });
+    started.await();
+    lane.execute(() -> {});
+    lane.execute(() -> {});
+    assertEquals(2, lane.shutdownNow().size());
+    assertTrue(lane.isShutdown());
+    assertFalse(lane.awaitTermination(10, TimeUnit.MILLISECONDS));
+    assertThrows(RejectedExecutionException.class, () -> lane.execute(() -> {}));
+    assertThrows(RejectedExecutionException.class, () -> lane.enqueue(() -> {}));
+
+    release.countDown();
+    assertTrue(lane.awaitTermination(10, TimeUnit.SECONDS));
+    shutdown(executor);
+  }
+}
@@ -0,0 +1,117 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+
+public class GzipPayloadCompressorTest {
+
+  static byte[] gunzip(byte[] compressed) throws IOException {
+    try(GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int read;
+      while((read = in.read(buffer)) > 0) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    }
+  }
+
+  private static byte[] payload(int thread, int i) {
+    StringBuilder text = new StringBuilder();
+    for(int j = 0; j <= i % 50; j++) {
+      text.append("thread ").append(thread).append(" event ").append(i).append(' ');
+    }
+    return text.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static int readIntLE(byte[] bytes, int pos) {
+    return (bytes[pos] & 0xFF) | (bytes[pos + 1] & 0xFF) << 8 | (bytes[pos + 2] & 0xFF) << 16
+           | (bytes[pos + 3] & 0xFF) << 24;
+  }
+
+  @Test
+  public void compressesIntoAGzipMember() throws IOException {
+    GzipPayloadCompressor compressor = new GzipPayloadCompressor();
+    byte[] data = payload(0, 49);
+    byte[] member = compressor.compress(data);
+
+    // deflate, no flags, no modification time, no extra flags, unknown OS
+    byte[] header = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+    assertArrayEquals(header, Arrays.copyOf(member, header.length));
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    assertEquals((int) crc.getValue(), readIntLE(member, member.length - 8), "CRC32");
+    assertEquals(data.length, readIntLE(member, member.length - 4), "ISIZE");
+    assertArrayEquals(data, gunzip(member));
+    compressor.close();
+  }
+
+  @Test
+  public void concatenatedMembersDecodeToConcatenatedPayloads() throws IOException {
+    GzipPayloadCompressor compressor = new GzipPayloadCompressor();
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+    for(int i = 0; i < 10; i++) {
+      byte[] data = i == 5 ? new byte[0] : payload(0, i * 7);
+      expected.write(data);
+      concatenated.write(compressor.compress(data));
+    }
+    assertArrayEquals(expected.toByteArray(), gunzip(concatenated.toByteArray()));
+    compressor.close();
+  }
+
+  @Test
+  public void threadsShareThePooledDeflaters() throws Exception {
+    GzipPayloadCompressor compressor = new GzipPayloadCompressor();
+    AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for(int t = 0; t < 4; t++) {
+      int thread = t;
+      threads.add(new Thread(() -> {
+        try {
+          for(int i = 0; i < 2000; i++) {
+            byte[] data = payload(thread, i);
+            assertArrayEquals(data, gunzip(compressor.compress(data)));
+          }
+        }
+        catch(Throwable e) {
+          failure.compareAndSet(null, e);
+        }
+      }));
+    }
+    for(Thread thread : threads) {
+      thread.start();
+    }
+    for(Thread thread : threads) {
+      thread.join();
+    }
+    compressor.close();
+    if(failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+  }
+
+  @Test
+  public void compressesAfterClose() throws IOException {
+    GzipPayloadCompressor compressor = new GzipPayloadCompressor();
+    byte[] data = payload(0, 10);
+    compressor.compress(data);
+    compressor.close();
+    assertArrayEquals(data, gunzip(compressor.compress(data)));
+    compressor.close();
+  }
+}
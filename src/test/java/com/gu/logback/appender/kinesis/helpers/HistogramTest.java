@@ -0,0 +1,83 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class HistogramTest {
+
+  @Test
+  public void emptyHistogramReportsZeros() {
+    Histogram histogram = new Histogram();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+    assertEquals(0.0, histogram.getMean());
+    assertEquals(0, histogram.getValueAtPercentile(99));
+  }
+
+  @Test
+  public void reportsValuesWithinASixteenth() {
+    Random random = new Random(42);
+    for(int i = 0; i < 100000; i++) {
+      long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+      Histogram histogram = new Histogram();
+      histogram.record(value);
+      histogram.record(Long.MAX_VALUE);
+      long reported = histogram.getValueAtPercentile(50);
+      assertTrue(reported >= value && reported - value <= value / 16, value + " reported as " + reported);
+    }
+    // small values have a bucket each
+    for(long value = 0; value < 32; value++) {
+      Histogram histogram = new Histogram();
+      histogram.record(value);
+      histogram.record(Long.MAX_VALUE);
+      assertEquals(value, histogram.getValueAtPercentile(50));
+    }
+  }
+
+  @Test
+  public void reportsPercentilesOfTheValuesRecorded() {
+    Histogram histogram = new Histogram();
+    for(int value = 1; value <= 1000; value++) {
+      histogram.record(value);
+    }
+    histogram.record(-5);
+    assertEquals(1001, histogram.getCount());
+    assertEquals(1000, histogram.getMax());
+    assertEquals(500500 / 1001.0, histogram.getMean(), 1e-9);
+    assertEquals(0, histogram.getValueAtPercentile(0));
+    // the median, 500, is in the bucket from 496 to 511
+    assertEquals(511, histogram.getValueAtPercentile(50));
+    assertEquals(991, histogram.getValueAtPercentile(99));
+    // never above the highest value recorded
+    assertEquals(1000, histogram.getValueAtPercentile(100));
+    assertEquals(1000, histogram.getValueAtPercentile(200));
+  }
+
+  @Test
+  public void countsEveryValueRecordedConcurrently() throws InterruptedException {
+    Histogram histogram = new Histogram();
+    List<Thread> threads = new ArrayList<Thread>();
+    for(int t = 0; t < 4; t++) {
+      long base = t * 100000;
+      Thread thread = new Thread(() -> {
+        for(long value = base; value < base + 100000; value++) {
+          histogram.record(value);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for(Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(400000, histogram.getCount());
+    assertEquals(399999, histogram.getMax());
+    assertEquals(199999.5, histogram.getMean(), 1e-9);
+  }
+}
@@ -0,0 +1,173 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.http.Protocol;
+import software.amazon.awssdk.http.SdkHttpConfigurationOption;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.utils.AttributeMap;
+
+public class HttpClientSettingsTest {
+
+  /**
+   * @return setting of a Netty client, read through its configuration since
+   *         the client doesn't expose it
+   */
+  private static <T> T settingOf(SdkAsyncHttpClient client, AttributeMap.Key<T> key)
+      throws ReflectiveOperationException {
+    Method configuration = client.getClass().getDeclaredMethod("configuration");
+    configuration.setAccessible(true);
+    Object nettyConfiguration = configuration.invoke(client);
+    Method attribute = nettyConfiguration.getClass().getMethod("attribute", AttributeMap.Key.class);
+    return key.convertValue(attribute.invoke(nettyConfiguration, key));
+  }
+
+  private static boolean isOnClasspath(String className) {
+    try {
+      Class.forName(className, false, HttpClientSettingsTest.class.getClassLoader());
+      return true;
+    }
+    catch(ClassNotFoundException e) {
+      return false;
+    }
+  }
+
+  @Test
+  public void configuresTheNettyClient() throws ReflectiveOperationException {
+    HttpClientSettings settings = new HttpClientSettings();
+    settings.setType(HttpClientType.NETTY);
+    settings.setMaxConcurrency(12);
+    settings.setMaxPendingConnectionAcquires(34);
+    settings.setConnectionAcquisitionTimeoutMillis(5600);
+    settings.setConnectionTimeoutMillis(7800);
+    settings.setConnectionTimeToLiveMillis(90000);
+    settings.setConnectionMaxIdleMillis(12000);
+    settings.setTcpKeepAlive(true);
+    settings.setProtocol(Protocol.HTTP2);
+
+    // settings left unset fall back to those of the service
+    AttributeMap serviceDefaults = AttributeMap.builder()
+      .put(SdkHttpConfigurationOption.MAX_CONNECTIONS, 99)
+      .put(SdkHttpConfigurationOption.READ_TIMEOUT, Duration.ofSeconds(3))
+      .build();
+    try(SdkAsyncHttpClient client = settings.createHttpClient(serviceDefaults)) {
+      assertEquals("NettyNioAsyncHttpClient", client.getClass().getSimpleName());
+      assertEquals(Integer.valueOf(12), settingOf(client, SdkHttpConfigurationOption.MAX_CONNECTIONS));
+      assertEquals(Integer.valueOf(34), settingOf(client, SdkHttpConfigurationOption.MAX_PENDING_CONNECTION_ACQUIRES));
+      assertEquals(Duration.ofMillis(5600), settingOf(client, SdkHttpConfigurationOption.CONNECTION_ACQUIRE_TIMEOUT));
+      assertEquals(Duration.ofMillis(7800), settingOf(client, SdkHttpConfigurationOption.CONNECTION_TIMEOUT));
+      assertEquals(Duration.ofMillis(90000), settingOf(client, SdkHttpConfigurationOption.CONNECTION_TIME_TO_LIVE));
+      assertEquals(Duration.ofMillis(12000), settingOf(client, SdkHttpConfigurationOption.CONNECTION_MAX_IDLE_TIMEOUT));
+      assertEquals(Boolean.TRUE, settingOf(client, SdkHttpConfigurationOption.TCP_KEEPALIVE));
+      assertEquals(Protocol.HTTP2, settingOf(client, SdkHttpConfigurationOption.PROTOCOL));
+      assertEquals(Duration.ofSeconds(3), settingOf(client, SdkHttpConfigurationOption.READ_TIMEOUT));
+    }
+  }
+
+  @Test
+  public void crtClientNeedsItsDependency() {
+    HttpClientSettings settings = new HttpClientSettings();
+    settings.setType(HttpClientType.CRT);
+    ClassLoader withoutCrt = new HidingClassLoader(HttpClientSettingsTest.class.getClassLoader(),
+                                                   "software.amazon.awssdk.http.crt.");
+    IllegalStateException e = assertThrows(IllegalStateException.class,
+                                           () -> settings.createHttpClient(AttributeMap.empty(), null, withoutCrt));
+    assertEquals("HTTP client CRT not found on the classpath", e.getMessage());
+
+    // the dependency is optional, and the client isn't tested beyond being created
+    if(isOnClasspath(HttpClientType.CRT.getServiceClassName())) {
+      settings.createHttpClient(AttributeMap.empty()).close();
+    }
+  }
+
+  @Test
+  public void defaultMaxConcurrencyOnlyAppliesIfUnset() {
+    HttpClientSettings settings = new HttpClientSettings();
+    assertNull(settings.getMaxConcurrency());
+    assertEquals(Integer.valueOf(50), settings.withDefaultMaxConcurrency(50).getMaxConcurrency());
+    // the settings themselves are left as they are
+    assertNull(settings.getMaxConcurrency());
+
+    settings.setMaxConcurrency(10);
+    settings.setType(HttpClientType.NETTY);
+    HttpClientSettings copy = settings.withDefaultMaxConcurrency(50);
+    assertEquals(Integer.valueOf(10), copy.getMaxConcurrency());
+    assertEquals(HttpClientType.NETTY, copy.getType());
+  }
+
+  @Test
+  public void rejectsInvalidSettings() {
+    HttpClientSettings settings = new HttpClientSettings();
+    assertThrows(IllegalArgumentException.class, () -> settings.setType(null));
+    assertThrows(IllegalArgumentException.class, () -> settings.setMaxConcurrency(0));
+    assertThrows(IllegalArgumentException.class, () -> settings.setConnectionTimeoutMillis(0));
+    assertThrows(IllegalArgumentException.class, () -> settings.setConnectionTimeToLiveMillis(-1));
+    assertThrows(IllegalArgumentException.class, () -> settings.setProtocol(null));
+    assertEquals(HttpClientType.DEFAULT, settings.getType());
+  }
+
+  /**
+   * Class loader hiding the classes of a package, and the service files that
+   * name them, as if their jar wasn't on the classpath.
+   */
+  private static final class HidingClassLoader extends ClassLoader {
+
+    private final String hiddenPackage;
+
+    HidingClassLoader(ClassLoader parent, String hiddenPackage) {
+      super(parent);
+      this.hiddenPackage = hiddenPackage;
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+      if(name.startsWith(hiddenPackage)) {
+        throw new ClassNotFoundException(name);
+      }
+      return super.loadClass(name, resolve);
+    }
+
+    @Override
+    public URL getResource(String name) {
+      return name.startsWith(hiddenPackage.replace('.', '/')) ? null : super.getResource(name);
+    }
+
+    @Override
+    public Enumeration<URL> getResources(String name) throws IOException {
+      List<URL> visible = new ArrayList<URL>();
+      for(URL url : Collections.list(super.getResources(name))) {
+        if(!name.startsWith("META-INF/services/") || !names(url, hiddenPackage)) {
+          visible.add(url);
+        }
+      }
+      return Collections.enumeration(visible);
+    }
+
+    private static boolean names(URL serviceFile, String hiddenPackage) throws IOException {
+      try(InputStream in = serviceFile.openStream()) {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        for(int read = in.read(chunk); read >= 0; read = in.read(chunk)) {
+          content.write(chunk, 0, read);
+        }
+        return new String(content.toByteArray(), StandardCharsets.UTF_8).contains(hiddenPackage);
+      }
+    }
+  }
+}
@@ -0,0 +1,174 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class InFlightWindowTest {
+
+  private final List<String> sent = new ArrayList<String>();
+
+  private Runnable request(String name) {
+    return () -> {
+      synchronized(sent) {
+        sent.add(name);
+      }
+    };
+  }
+
+  private static Thread start(Runnable runnable) {
+    Thread thread = new Thread(runnable, "InFlightWindowTest-sender");
+    thread.start();
+    return thread;
+  }
+
+  private static void awaitState(Thread thread, Thread.State state) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while(thread.getState() != state) {
+      assertTrue(System.nanoTime() < deadline, "sender isn't " + state);
+      Thread.sleep(1);
+    }
+  }
+
+  @Test
+  public void queuesRequestsUntilThereIsRoom() {
+    InFlightWindow window = new InFlightWindow(2, 1000);
+    assertFalse(window.send(10, request("a"), false));
+    assertFalse(window.send(10, request("b"), false));
+    assertTrue(window.send(10, request("c"), false));
+    assertEquals(Arrays.asList("a", "b"), sent);
+    assertEquals(2, window.getRequestCount());
+    assertEquals(20, window.getByteCount());
+    assertEquals(1, window.getQueuedCount());
+
+    // the thread completing a request sends the queued one
+    window.release(10);
+    assertEquals(Arrays.asList("a", "b", "c"), sent);
+    assertEquals(2, window.getRequestCount());
+    assertEquals(0, window.getQueuedCount());
+  }
+
+  @Test
+  public void capsTheBytesInFlightButLetsLargeRequestsThroughAlone() {
+    InFlightWindow window = new InFlightWindow(10, 100);
+    assertFalse(window.send(60, request("a"), false));
+    assertTrue(window.send(60, request("b"), false));
+    // queued requests keep their order, even those that would fit
+    assertTrue(window.send(10, request("c"), false));
+    window.release(60);
+    assertEquals(Arrays.asList("a", "b", "c"), sent);
+    window.release(60);
+    window.release(10);
+
+    assertFalse(window.send(500, request("large"), false));
+    assertEquals(500, window.getByteCount());
+    assertTrue(window.send(1, request("small"), false));
+    window.release(500);
+    assertEquals(Arrays.asList("a", "b", "c", "large", "small"), sent);
+  }
+
+  @Test
+  public void sendersMayWaitForRoom() throws InterruptedException {
+    InFlightWindow window = new InFlightWindow(1, 1000);
+    window.send(10, request("a"), true);
+    boolean[] full = new boolean[1];
+    Thread sender = start(() -> full[0] = window.send(10, request("b"), true));
+    awaitState(sender, Thread.State.WAITING);
+    synchronized(sent) {
+      assertEquals(Arrays.asList("a"), sent);
+    }
+
+    window.release(10);
+    sender.join(TimeUnit.SECONDS.toMillis(10));
+    assertFalse(sender.isAlive());
+    assertTrue(full[0]);
+    assertEquals(Arrays.asList("a", "b"), sent);
+    assertEquals(1, window.getRequestCount());
+  }
+
+  @Test
+  public void higherLimitsLetRequestsThrough() {
+    InFlightWindow window = new InFlightWindow(1, 1000);
+    window.send(10, request("a"), false);
+    window.send(10, request("b"), false);
+    window.send(10, request("c"), false);
+    assertEquals(2, window.getQueuedCount());
+    window.setLimits(2, 1000);
+    assertEquals(Arrays.asList("a", "b"), sent);
+    window.setLimits(3, 1000);
+    assertEquals(Arrays.asList("a", "b", "c"), sent);
+
+    // lower limits don't affect the requests in flight
+    window.setLimits(1, 1000);
+    assertEquals(3, window.getRequestCount());
+    assertTrue(window.send(10, request("d"), false));
+    window.release(10);
+    window.release(10);
+    assertEquals(3, sent.size());
+    window.release(10);
+    assertEquals(Arrays.asList("a", "b", "c", "d"), sent);
+  }
+
+  @Test
+  public void suspendingHoldsBackEveryRequest() {
+    InFlightWindow window = new InFlightWindow(10, 1000);
+    window.suspend();
+    assertTrue(window.send(10, request("a"), false));
+    assertTrue(sent.isEmpty());
+    window.resume();
+    assertEquals(Arrays.asList("a"), sent);
+  }
+
+  @Test
+  public void closingLetsEveryoneThrough() throws InterruptedException {
+    InFlightWindow window = new InFlightWindow(1, 1000);
+    window.send(10, request("a"), false);
+    window.send(10, request("b"), false);
+    CountDownLatch waiting = new CountDownLatch(1);
+    Thread sender = start(() -> {
+      waiting.countDown();
+      window.send(10, request("c"), true);
+    });
+    waiting.await();
+    awaitState(sender, Thread.State.WAITING);
+    assertFalse(window.awaitIdle(10, TimeUnit.MILLISECONDS));
+
+    window.close();
+    sender.join(TimeUnit.SECONDS.toMillis(10));
+    assertFalse(sender.isAlive());
+    // the waiting sender and the queued request go in either order
+    assertEquals(new HashSet<String>(Arrays.asList("a", "b", "c")), new HashSet<String>(sent));
+    assertFalse(window.send(10, request("d"), false));
+    assertEquals(4, window.getRequestCount());
+    for(int i = 0; i < 4; i++) {
+      window.release(10);
+    }
+    assertTrue(window.awaitIdle(0, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void interruptedSendersStopWaiting() throws InterruptedException {
+    InFlightWindow window = new InFlightWindow(1, 1000);
+    window.send(10, request("a"), true);
+    boolean[] interrupted = new boolean[1];
+    Thread sender = start(() -> {
+      window.send(10, request("b"), true);
+      interrupted[0] = Thread.currentThread().isInterrupted();
+    });
+    awaitState(sender, Thread.State.WAITING);
+    sender.interrupt();
+    sender.join(TimeUnit.SECONDS.toMillis(10));
+    assertFalse(sender.isAlive());
+    assertTrue(interrupted[0]);
+    assertEquals(Arrays.asList("a", "b"), sent);
+  }
+}
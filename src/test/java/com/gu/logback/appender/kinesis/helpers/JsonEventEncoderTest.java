@@ -0,0 +1,141 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class JsonEventEncoderTest {
+
+  private static String text(int length) {
+    StringBuilder text = new StringBuilder(length);
+    for(int i = 0; i < length; i++) {
+      text.append((char) ('a' + i % 26));
+    }
+    return text.toString();
+  }
+
+  private final LoggerContext context = new LoggerContext();
+  private final Logger logger = context.getLogger(JsonEventEncoderTest.class);
+
+  private JsonEventEncoder newEncoder() {
+    JsonEventEncoder encoder = new JsonEventEncoder();
+    encoder.setContext(context);
+    encoder.start();
+    return encoder;
+  }
+
+  private LoggingEvent event(Level level, String message, Throwable throwable) {
+    LoggingEvent event = new LoggingEvent(Logger.FQCN, logger, level, message, throwable, null);
+    event.setMDCPropertyMap(new HashMap<String, String>());
+    event.setTimeStamp(1234567890123L);
+    return event;
+  }
+
+  private static String encode(JsonEventEncoder encoder, LoggingEvent event) {
+    return new String(encoder.encode(event), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return the JSON line of an event, up to its optional fields
+   */
+  private String line(String level, String message) {
+    return "{\"timestamp\":\"2009-02-13T23:31:30.123Z\",\"level\":\"" + level + "\",\"thread\":\""
+           + Thread.currentThread().getName() + "\",\"logger\":\"" + logger.getName() + "\",\"message\":\"" + message
+           + "\"";
+  }
+
+  @Test
+  public void encodesAnEventPerLine() {
+    JsonEventEncoder encoder = newEncoder();
+    assertEquals(line("WARN", "message") + "}\n", encode(encoder, event(Level.WARN, "message", null)));
+
+    // events in the same second reuse its formatted part
+    LoggingEvent event = event(Level.DEBUG, "next", null);
+    event.setTimeStamp(1234567890007L);
+    assertEquals(line("DEBUG", "next").replace(".123Z", ".007Z") + "}\n", encode(encoder, event));
+    event.setTimeStamp(-1L);
+    assertTrue(encode(encoder, event).startsWith("{\"timestamp\":\"1969-12-31T23:59:59.999Z\""));
+  }
+
+  @Test
+  public void escapesStringsAndEncodesMultibyteCharacters() {
+    JsonEventEncoder encoder = newEncoder();
+    String message = "\"quoted\" back\\slash\nnew\rline\ttab \u0001 é€😀 \ud800";
+    String escaped = "\\\"quoted\\\" back\\\\slash\\nnew\\rline\\ttab \\u0001 é€😀 ?";
+    assertEquals(line("INFO", escaped) + "}\n", encode(encoder, event(Level.INFO, message, null)));
+
+    String longMessage = text(100000) + "€";
+    assertEquals(line("INFO", longMessage) + "}\n", encode(encoder, event(Level.INFO, longMessage, null)));
+  }
+
+  @Test
+  public void includesTheMdcUnlessTurnedOff() {
+    JsonEventEncoder encoder = newEncoder();
+    LoggingEvent event = event(Level.INFO, "message", null);
+    event.getMDCPropertyMap().put("request", "a\"b");
+    assertEquals(line("INFO", "message") + ",\"mdc\":{\"request\":\"a\\\"b\"}}\n", encode(encoder, event));
+
+    encoder.setIncludeMdc(false);
+    assertEquals(line("INFO", "message") + "}\n", encode(encoder, event));
+  }
+
+  @Test
+  public void writesStackTracesWithTheirCauses() {
+    JsonEventEncoder encoder = newEncoder();
+    IllegalStateException cause = new IllegalStateException("cause");
+    RuntimeException thrown = new RuntimeException("failed", cause);
+    thrown.addSuppressed(new IllegalArgumentException("suppressed"));
+    LoggingEvent event = event(Level.ERROR, "message", thrown);
+
+    String encoded = encode(encoder, event);
+    String prefix = line("ERROR", "message") + ",\"exception\":\"java.lang.RuntimeException: failed\\n\\tat ";
+    assertTrue(encoded.startsWith(prefix), encoded);
+    assertTrue(encoded.endsWith(" common frames omitted\"}\n"), encoded);
+    assertTrue(encoded.contains("\\n\\tSuppressed: java.lang.IllegalArgumentException: suppressed\\n\\t\\tat "), encoded);
+    assertTrue(encoded.contains("\\nCaused by: java.lang.IllegalStateException: cause\\n\\tat "), encoded);
+    assertEquals(1, encoded.split("\n", -1).length - 1, "raw newlines");
+
+    encoder.setIncludeStackTrace(false);
+    assertEquals(line("ERROR", "message") + "}\n", encode(encoder, event));
+  }
+
+  @Test
+  public void encodesFromManyThreadsThroughThePool() throws Exception {
+    JsonEventEncoder encoder = newEncoder();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> encodes = new ArrayList<Future<?>>();
+      for(int thread = 0; thread < 8; thread++) {
+        int length = 1 + thread * 10000;
+        encodes.add(executor.submit(() -> {
+          for(int i = 0; i < 200; i++) {
+            String message = text(length + i);
+            assertEquals(line("INFO", message) + "}\n", encode(encoder, event(Level.INFO, message, null)));
+          }
+          return null;
+        }));
+      }
+      for(Future<?> encode : encodes) {
+        encode.get();
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+    encoder.stop();
+  }
+}
@@ -0,0 +1,182 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.core.SdkBytes;
+
+public class KplAggregationFormatTest {
+
+  private static final byte[] MAGIC = { (byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC2 };
+
+  /**
+   * Reads the protobuf messages of an aggregated record.
+   */
+  private static final class Reader {
+    private final byte[] bytes;
+    private int pos;
+    private final int end;
+
+    Reader(byte[] bytes, int pos, int end) {
+      this.bytes = bytes;
+      this.pos = pos;
+      this.end = end;
+    }
+
+    boolean hasMore() {
+      return pos < end;
+    }
+
+    int readVarint() {
+      int value = 0;
+      for(int shift = 0;; shift += 7) {
+        byte b = bytes[pos++];
+        value |= (b & 0x7F) << shift;
+        if(b >= 0) {
+          return value;
+        }
+      }
+    }
+
+    Reader readMessage() {
+      int length = readVarint();
+      Reader message = new Reader(bytes, pos, pos + length);
+      pos += length;
+      assertTrue(pos <= end, "message overruns its parent");
+      return message;
+    }
+
+    String readString() {
+      return new String(readBytes(), StandardCharsets.UTF_8);
+    }
+
+    byte[] readBytes() {
+      int length = readVarint();
+      pos += length;
+      assertTrue(pos <= end, "bytes overrun their message");
+      return Arrays.copyOfRange(bytes, pos - length, pos);
+    }
+  }
+
+  private static byte[] data(int length) {
+    byte[] data = new byte[length];
+    for(int i = 0; i < length; i++) {
+      data[i] = (byte) ('a' + i % 26);
+    }
+    return data;
+  }
+
+  private static List<PendingRecord> records(int... lengths) {
+    List<PendingRecord> records = new ArrayList<PendingRecord>();
+    for(int length : lengths) {
+      records.add(new PendingRecord("key", SdkBytes.fromByteArray(data(length))));
+    }
+    return records;
+  }
+
+  /**
+   * @return the message of an aggregated record, after checking its magic
+   *         bytes and digest
+   */
+  private static Reader message(byte[] aggregate) throws Exception {
+    assertArrayEquals(MAGIC, Arrays.copyOf(aggregate, MAGIC.length));
+    int digestStart = aggregate.length - 16;
+    byte[] digest = MessageDigest.getInstance("MD5").digest(Arrays.copyOfRange(aggregate, MAGIC.length, digestStart));
+    assertArrayEquals(digest, Arrays.copyOfRange(aggregate, digestStart, aggregate.length));
+    return new Reader(aggregate, MAGIC.length, digestStart);
+  }
+
+  private static int sizeOf(KplAggregationFormat format, String partitionKey, List<PendingRecord> records) {
+    int size = MAGIC.length + 1 + 1 + partitionKey.getBytes(StandardCharsets.UTF_8).length + 16;
+    for(PendingRecord record : records) {
+      size += format.sizeOf(record);
+    }
+    return size;
+  }
+
+  @Test
+  public void encodesAnAggregatedRecord() throws Exception {
+    KplAggregationFormat format = new KplAggregationFormat();
+    // data lengths around the sizes where varints grow a byte
+    int[] lengths = { 0, 3, 127, 128, 200, 16383, 16384 };
+    Reader message = message(format.encode("key", records(lengths)));
+    assertEquals((1 << 3) | 2, message.readVarint());
+    assertEquals("key", message.readString());
+    for(int length : lengths) {
+      assertEquals((3 << 3) | 2, message.readVarint());
+      Reader record = message.readMessage();
+      assertEquals(1 << 3, record.readVarint());
+      assertEquals(0, record.readVarint());
+      assertEquals((3 << 3) | 2, record.readVarint());
+      assertArrayEquals(data(length), record.readBytes());
+      assertTrue(!record.hasMore(), "record of " + length + " bytes has trailing fields");
+    }
+    assertTrue(!message.hasMore(), "aggregate has trailing records");
+  }
+
+  @Test
+  public void keepsThePartitionKeyOfEachRecord() throws Exception {
+    KplAggregationFormat format = new KplAggregationFormat();
+    String[] keys = { "first", "second", "first", "é€😀", "second", "third" };
+    List<PendingRecord> records = new ArrayList<PendingRecord>();
+    for(int i = 0; i < keys.length; i++) {
+      records.add(new PendingRecord(keys[i], SdkBytes.fromByteArray(data(i + 1))));
+    }
+    Reader message = message(format.encode("first", records));
+
+    List<String> table = new ArrayList<String>();
+    List<Integer> indexes = new ArrayList<Integer>();
+    while(message.hasMore()) {
+      int tag = message.readVarint();
+      if(tag == ((1 << 3) | 2)) {
+        table.add(message.readString());
+      } else {
+        assertEquals((3 << 3) | 2, tag);
+        Reader record = message.readMessage();
+        assertEquals(1 << 3, record.readVarint());
+        indexes.add(record.readVarint());
+        assertEquals((3 << 3) | 2, record.readVarint());
+        assertArrayEquals(data(indexes.size()), record.readBytes());
+      }
+    }
+    // each key written once, the one of the aggregate first
+    assertEquals(Arrays.asList("first", "second", "é€😀", "third"), table);
+    assertEquals(keys.length, indexes.size());
+    for(int i = 0; i < keys.length; i++) {
+      assertEquals(keys[i], table.get(indexes.get(i)), "partition key of record " + i);
+    }
+  }
+
+  @Test
+  public void recordSizesAddUpToTheEncodedSize() {
+    KplAggregationFormat format = new KplAggregationFormat();
+    List<PendingRecord> records = records(1, 127, 128, 300, 20000);
+    assertTrue(format.encode("key", records).length <= sizeOf(format, "key", records));
+
+    // a key of its own for each record, with indexes taking up to 3 bytes
+    List<PendingRecord> distinctKeys = new ArrayList<PendingRecord>();
+    for(int i = 0; i < 20000; i++) {
+      distinctKeys.add(new PendingRecord("key " + i, SdkBytes.fromByteArray(data(i % 10))));
+    }
+    assertTrue(format.encode("key 0", distinctKeys).length <= sizeOf(format, "key 0", distinctKeys));
+  }
+
+  @Test
+  public void overheadCoversTheLongestPartitionKey() {
+    KplAggregationFormat format = new KplAggregationFormat();
+    String longestKey = String.join("", Collections.nCopies(256, "k"));
+    // Kinesis counts the partition key of the aggregate against the record size
+    int size = format.encode(longestKey, Collections.<PendingRecord> emptyList()).length + longestKey.length();
+    assertTrue(size <= format.getOverhead(), size + " > " + format.getOverhead());
+  }
+}
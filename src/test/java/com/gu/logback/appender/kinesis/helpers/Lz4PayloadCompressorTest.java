@@ -0,0 +1,142 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import net.jpountz.xxhash.XXHashFactory;
+
+public class Lz4PayloadCompressorTest {
+
+  private static final int MAX_BLOCK_SIZE = 4 * 1024 * 1024;
+
+  private static int readIntLE(byte[] bytes, int pos) {
+    return (bytes[pos] & 0xFF) | (bytes[pos + 1] & 0xFF) << 8 | (bytes[pos + 2] & 0xFF) << 16
+           | (bytes[pos + 3] & 0xFF) << 24;
+  }
+
+  private static byte[] text(int length) {
+    StringBuilder text = new StringBuilder(length);
+    for(int i = 0; text.length() < length; i++) {
+      text.append("event ").append(i % 100).append(' ');
+    }
+    return text.substring(0, length).getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static byte[] random(int length) {
+    byte[] data = new byte[length];
+    new Random(42).nextBytes(data);
+    return data;
+  }
+
+  private static byte[] unlz4(byte[] compressed) throws IOException {
+    try(LZ4FrameInputStream in = new LZ4FrameInputStream(new ByteArrayInputStream(compressed))) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[65536];
+      int read;
+      while((read = in.read(buffer)) > 0) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    }
+  }
+
+  /**
+   * Decodes a frame block by block, checking its layout.
+   *
+   * @param compressedBlocks whether each block is expected to be compressed
+   */
+  private static byte[] decodeFrame(byte[] frame, boolean... compressedBlocks) {
+    assertEquals(0x184D2204, readIntLE(frame, 0), "magic");
+    assertEquals(0x60, frame[4], "FLG");
+    assertEquals(0x70, frame[5], "BD");
+    int checksum = XXHashFactory.safeInstance().hash32().hash(frame, 4, 2, 0) >> 8 & 0xFF;
+    assertEquals(checksum, frame[6] & 0xFF, "header checksum");
+
+    LZ4SafeDecompressor decompressor = LZ4Factory.safeInstance().safeDecompressor();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] block = new byte[MAX_BLOCK_SIZE];
+    int pos = 7;
+    for(boolean compressed : compressedBlocks) {
+      int size = readIntLE(frame, pos);
+      pos += 4;
+      assertEquals(compressed, size > 0, "block compressed");
+      size &= 0x7FFFFFFF;
+      if(compressed) {
+        int length = decompressor.decompress(frame, pos, size, block, 0);
+        out.write(block, 0, length);
+      } else {
+        out.write(frame, pos, size);
+      }
+      pos += size;
+    }
+    assertEquals(0, readIntLE(frame, pos), "end mark");
+    assertEquals(frame.length, pos + 4, "bytes after the end mark");
+    return out.toByteArray();
+  }
+
+  @Test
+  public void compressesIntoAFrame() throws IOException {
+    Lz4PayloadCompressor compressor = new Lz4PayloadCompressor();
+    byte[] data = text(10000);
+    byte[] frame = compressor.compress(data);
+    assertTrue(frame.length < data.length, "not compressed");
+    assertArrayEquals(data, decodeFrame(frame, true));
+    assertArrayEquals(data, unlz4(frame));
+    compressor.close();
+  }
+
+  @Test
+  public void storesIncompressibleBlocksAsTheyAre() throws IOException {
+    Lz4PayloadCompressor compressor = new Lz4PayloadCompressor();
+    byte[] data = random(1000);
+    byte[] frame = compressor.compress(data);
+    assertArrayEquals(data, decodeFrame(frame, false));
+    assertArrayEquals(data, Arrays.copyOfRange(frame, 11, 11 + data.length));
+    assertArrayEquals(data, unlz4(frame));
+  }
+
+  @Test
+  public void splitsLargePayloadsIntoBlocks() throws IOException {
+    Lz4PayloadCompressor compressor = new Lz4PayloadCompressor();
+    byte[] data = new byte[2 * MAX_BLOCK_SIZE + 100];
+    byte[] compressible = text(MAX_BLOCK_SIZE);
+    System.arraycopy(compressible, 0, data, 0, MAX_BLOCK_SIZE);
+    System.arraycopy(random(MAX_BLOCK_SIZE + 100), 0, data, MAX_BLOCK_SIZE, MAX_BLOCK_SIZE + 100);
+    byte[] frame = compressor.compress(data);
+    assertArrayEquals(data, decodeFrame(frame, true, false, false));
+    assertArrayEquals(data, unlz4(frame));
+  }
+
+  @Test
+  public void emptyPayloadIsAnEmptyFrame() throws IOException {
+    Lz4PayloadCompressor compressor = new Lz4PayloadCompressor();
+    byte[] frame = compressor.compress(new byte[0]);
+    assertEquals(11, frame.length);
+    assertArrayEquals(new byte[0], decodeFrame(frame));
+    assertArrayEquals(new byte[0], unlz4(frame));
+  }
+
+  @Test
+  public void reusesBuffersOfAnySize() throws IOException {
+    Lz4PayloadCompressor compressor = new Lz4PayloadCompressor();
+    for(int length : new int[] { 100000, 10, 5000, 0, 100000 }) {
+      byte[] data = text(length);
+      assertArrayEquals(data, unlz4(compressor.compress(data)), length + " bytes");
+    }
+    compressor.close();
+    assertArrayEquals(text(100), unlz4(compressor.compress(text(100))));
+  }
+}
@@ -0,0 +1,64 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.jupiter.api.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class MdcPartitionKeyStrategyTest {
+
+  private final LoggerContext context = new LoggerContext();
+  private final Logger logger = context.getLogger(MdcPartitionKeyStrategyTest.class);
+
+  private LoggingEvent event(String requestId) {
+    LoggingEvent event = new LoggingEvent(Logger.FQCN, logger, Level.INFO, "message", null, null);
+    event.setMDCPropertyMap(new HashMap<String, String>());
+    if(requestId != null) {
+      event.getMDCPropertyMap().put("requestId", requestId);
+    }
+    return event;
+  }
+
+  private static MdcPartitionKeyStrategy<Object> newStrategy() {
+    MdcPartitionKeyStrategy<Object> strategy = new MdcPartitionKeyStrategy<Object>();
+    strategy.setMdcKey(" requestId ");
+    return strategy;
+  }
+
+  @Test
+  public void usesTheValueOfTheMdcEntry() {
+    MdcPartitionKeyStrategy<Object> strategy = newStrategy();
+    assertEquals("requestId", strategy.getMdcKey());
+    assertEquals("request 1", strategy.partitionKey(event("request 1")));
+    assertEquals("request 1", strategy.partitionKey(event("request 1")));
+    assertEquals("request 2", strategy.partitionKey(event("request 2")));
+  }
+
+  @Test
+  public void truncatesValuesToTheLongestPartitionKey() {
+    String value = String.join("", Collections.nCopies(300, "v"));
+    assertEquals(value.substring(0, 256), newStrategy().partitionKey(event(value)));
+  }
+
+  @Test
+  public void givesRandomKeysToEventsWithoutTheEntry() {
+    MdcPartitionKeyStrategy<Object> strategy = newStrategy();
+    assertNotEquals(strategy.partitionKey(event(null)), strategy.partitionKey(event(null)));
+    assertNotEquals(strategy.partitionKey(event("")), strategy.partitionKey(event("")));
+    assertNotEquals(strategy.partitionKey("not a logging event"), strategy.partitionKey("not a logging event"));
+  }
+
+  @Test
+  public void refusesABlankMdcKey() {
+    assertThrows(IllegalArgumentException.class, () -> new MdcPartitionKeyStrategy<Object>().setMdcKey(" "));
+  }
+}
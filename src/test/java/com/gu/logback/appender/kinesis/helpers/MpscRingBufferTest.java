@@ -0,0 +1,319 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.jupiter.api.Test;
+
+public class MpscRingBufferTest {
+
+  private static final class Slot {
+    Long value;
+  }
+
+  private static void publish(MpscRingBuffer<Slot> buffer, long value) {
+    long sequence = buffer.tryNext();
+    buffer.get(sequence).value = value;
+    buffer.publish(sequence);
+  }
+
+  @Test
+  public void roundsCapacityUpToAPowerOfTwo() {
+    assertEquals(1, new MpscRingBuffer<Slot>(1, Slot::new).getCapacity());
+    assertEquals(8, new MpscRingBuffer<Slot>(5, Slot::new).getCapacity());
+    assertEquals(8, new MpscRingBuffer<Slot>(8, Slot::new).getCapacity());
+  }
+
+  @Test
+  public void drainsPublishedSlotsInOrder() {
+    MpscRingBuffer<Slot> buffer = new MpscRingBuffer<Slot>(8, Slot::new);
+    for(long i = 0; i < 5; i++) {
+      publish(buffer, i);
+    }
+    List<Long> taken = new ArrayList<Long>();
+    assertEquals(5, buffer.drain(slot -> slot.value, taken::add));
+    assertEquals(5, taken.size());
+    for(int i = 0; i < 5; i++) {
+      assertEquals(Long.valueOf(i), taken.get(i));
+    }
+    assertTrue(buffer.isEmpty());
+    assertEquals(0, buffer.size());
+  }
+
+  @Test
+  public void drainStopsAtTheFirstUnpublishedSlot() {
+    MpscRingBuffer<Slot> buffer = new MpscRingBuffer<Slot>(8, Slot::new);
+    long first = buffer.tryNext();
+    long second = buffer.tryNext();
+    buffer.get(second).value = 2L;
+    buffer.publish(second);
+    List<Long> taken = new ArrayList<Long>();
+    assertEquals(0, buffer.drain(slot -> slot.value, taken::add));
+    buffer.get(first).value = 1L;
+    buffer.publish(first);
+    assertEquals(2, buffer.drain(slot -> slot.value, taken::add));
+    assertEquals(Long.valueOf(1), taken.get(0));
+    assertEquals(Long.valueOf(2), taken.get(1));
+  }
+
+  @Test
+  public void drainHonoursItsLimit() {
+    MpscRingBuffer<Slot> buffer = new MpscRingBuffer<Slot>(8, Slot::new);
+    for(long i = 0; i < 6; i++) {
+      publish(buffer, i);
+    }
+    List<Long> taken = new ArrayList<Long>();
+    assertEquals(4, buffer.drain(4, slot -> slot.value, taken::add));
+    assertEquals(2, buffer.size());
+    assertEquals(2, buffer.drain(4, slot -> slot.value, taken::add));
+    assertEquals(6, taken.size());
+  }
+
+  @Test
+  public void tryNextFailsWhenFullUntilTheConsumerMakesRoom() {
+    MpscRingBuffer<Slot> buffer = new MpscRingBuffer<Slot>(2, Slot::new);
+    buffer.publish(buffer.tryNext());
+    buffer.publish(buffer.tryNext());
+    assertEquals(-1, buffer.tryNext());
+    assertEquals(1, buffer.drain(1, slot -> slot, slot -> {}));
+    assertEquals(2, buffer.tryNext());
+  }
+
+  @Test
+  public void discardOldestOnlyDiscardsPublishedSlots() {
+    MpscRingBuffer<Slot> buffer = new MpscRingBuffer<Slot>(2, Slot::new);
+    long first = buffer.tryNext();
+    buffer.tryNext();
+    assertFalse(buffer.discardOldest());
+    buffer.publish(first);
+    assertTrue(buffer.discardOldest());
+    assertEquals(1, buffer.size());
+  }
+
+  @Test
+  public void nextWithTimeoutGivesUpWhenFull() throws InterruptedException {
+    MpscRingBuffer<Slot> buffer = new MpscRingBuffer<Slot>(1, Slot::new);
+    buffer.publish(buffer.tryNext());
+    assertEquals(-1, buffer.next(TimeUnit.MILLISECONDS.toNanos(10)));
+  }
+
+  /**
+   * A producer waiting for room parks without a timeout, rather than polling,
+   * and the consumer unparks it once it releases a slot.
+   */
+  @Test
+  public void consumerWakesUpTheParkedProducers() throws InterruptedException {
+    MpscRingBuffer<Slot> buffer = new MpscRingBuffer<Slot>(1, Slot::new);
+    publish(buffer, 0);
+    AtomicLong claimed = new AtomicLong(-1);
+    Thread producer = new Thread(() -> {
+      try {
+        claimed.set(buffer.next());
+      }
+      catch(InterruptedException e) {
+        // left at -1
+      }
+    });
+    producer.start();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while(producer.getState() != Thread.State.WAITING || LockSupport.getBlocker(producer) != buffer) {
+      assertTrue(System.nanoTime() < deadline, "producer didn't park in time");
+      Thread.sleep(1);
+    }
+
+    assertEquals(1, buffer.drain(slot -> slot.value, value -> {}));
+    producer.join(TimeUnit.SECONDS.toMillis(10));
+    assertFalse(producer.isAlive());
+    assertEquals(1, claimed.get());
+  }
+
+  @Test
+  public void closeReleasesWaitingProducers() throws InterruptedException {
+    MpscRingBuffer<Slot> buffer = new MpscRingBuffer<Slot>(1, Slot::new);
+    buffer.publish(buffer.tryNext());
+    Thread closer = new Thread(() -> {
+      try {
+        Thread.sleep(20);
+      }
+      catch(InterruptedException e) {
+        // closing anyway
+      }
+      buffer.close();
+    });
+    closer.start();
+    assertThrows(IllegalStateException.class, buffer::next);
+    closer.join();
+    assertTrue(buffer.isClosed());
+  }
+
+  @Test
+  public void closingStopsClaimsButKeepsClaimedSlots() {
+    MpscRingBuffer<Slot> buffer = new MpscRingBuffer<Slot>(4, Slot::new);
+    long claimed = buffer.tryNext();
+    buffer.close();
+    assertThrows(IllegalStateException.class, buffer::tryNext);
+    assertEquals(1, buffer.size());
+    buffer.get(claimed).value = 1L;
+    buffer.publish(claimed);
+    List<Long> taken = new ArrayList<Long>();
+    assertEquals(1, buffer.drain(slot -> slot.value, taken::add));
+    assertEquals(0, buffer.size());
+    assertEquals(Long.valueOf(1), taken.get(0));
+  }
+
+  /**
+   * A producer discards the slot the consumer is taking and fills it in
+   * again, between the consumer reading the slot and releasing it.
+   */
+  @Test
+  public void valueDiscardedWhileBeingTakenIsIgnored() throws InterruptedException {
+    MpscRingBuffer<Slot> buffer = new MpscRingBuffer<Slot>(1, Slot::new);
+    publish(buffer, 1L);
+    boolean[] interleaved = new boolean[1];
+    List<Long> taken = new ArrayList<Long>();
+    buffer.drain(slot -> {
+      Long value = slot.value;
+      if(!interleaved[0]) {
+        interleaved[0] = true;
+        assertTrue(buffer.discardOldest());
+        long sequence = buffer.tryNext();
+        assertEquals(slot, buffer.get(sequence));
+        slot.value = 2L;
+        buffer.publish(sequence);
+      }
+      return value;
+    }, taken::add);
+    assertEquals(1, taken.size());
+    assertEquals(Long.valueOf(2), taken.get(0));
+    assertTrue(buffer.isEmpty());
+  }
+
+  /**
+   * Producers keep a small buffer full and discard the oldest slot to make
+   * room, as the DROP_OLDEST overflow policy does, while the consumer drains
+   * it. Every value must either reach the consumer intact, exactly once, or be
+   * counted as discarded.
+   */
+  @Test
+  public void dropOldestLosesNothingUncounted() throws InterruptedException {
+    dropOldestLosesNothingUncounted(new MpscRingBuffer<Slot>(16, Slot::new));
+  }
+
+  /**
+   * As above, with the consumer cleaning the slots it takes, which must never
+   * wipe out a value a producer has filled in again.
+   */
+  @Test
+  public void cleaningNeverWipesOutAValueFilledInAgain() throws InterruptedException {
+    dropOldestLosesNothingUncounted(new MpscRingBuffer<Slot>(16, Slot::new, slot -> slot.value = null));
+  }
+
+  @Test
+  public void cleanerDropsTheValuesTaken() {
+    MpscRingBuffer<Slot> buffer = new MpscRingBuffer<Slot>(4, Slot::new, slot -> slot.value = null);
+    long[] sequences = new long[3];
+    for(int i = 0; i < 3; i++) {
+      sequences[i] = buffer.tryNext();
+      buffer.get(sequences[i]).value = (long) i;
+      buffer.publish(sequences[i]);
+    }
+    List<Long> taken = new ArrayList<Long>();
+    assertEquals(2, buffer.drain(2, slot -> slot.value, taken::add));
+    assertNull(buffer.get(sequences[0]).value);
+    assertNull(buffer.get(sequences[1]).value);
+    assertEquals(Long.valueOf(2), buffer.get(sequences[2]).value);
+    // the slot of the first value, filled in again
+    long reused = buffer.tryNext();
+    long again = buffer.tryNext();
+    assertEquals(buffer.get(sequences[0]), buffer.get(again));
+    buffer.get(reused).value = 3L;
+    buffer.publish(reused);
+    buffer.get(again).value = 4L;
+    buffer.publish(again);
+    assertEquals(3, buffer.drain(slot -> slot.value, taken::add));
+    for(int i = 0; i < 5; i++) {
+      assertEquals(Long.valueOf(i), taken.get(i));
+    }
+  }
+
+  private static void dropOldestLosesNothingUncounted(MpscRingBuffer<Slot> buffer) throws InterruptedException {
+    int producers = 4;
+    int perProducer = 50000;
+    AtomicLong discarded = new AtomicLong();
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<Thread>();
+    for(int p = 0; p < producers; p++) {
+      long base = (long) p * perProducer;
+      Thread producer = new Thread(() -> {
+        try {
+          start.await();
+        }
+        catch(InterruptedException e) {
+          return;
+        }
+        for(long i = base; i < base + perProducer; i++) {
+          long sequence;
+          while((sequence = buffer.tryNext()) < 0) {
+            if(buffer.discardOldest()) {
+              discarded.incrementAndGet();
+            } else {
+              Thread.yield();
+            }
+          }
+          buffer.get(sequence).value = i;
+          buffer.publish(sequence);
+        }
+      });
+      threads.add(producer);
+      producer.start();
+    }
+
+    BitSet delivered = new BitSet(producers * perProducer);
+    long[] nulls = new long[1];
+    long[] duplicates = new long[1];
+    long[] count = new long[1];
+    Thread consumer = new Thread(() -> {
+      while(true) {
+        int drained = buffer.drain(slot -> slot.value, value -> {
+          count[0]++;
+          if(value == null) {
+            nulls[0]++;
+          } else if(delivered.get(value.intValue())) {
+            duplicates[0]++;
+          } else {
+            delivered.set(value.intValue());
+          }
+        });
+        if(drained == 0) {
+          if(buffer.isClosed() && buffer.size() == 0) {
+            return;
+          }
+          buffer.awaitPublished(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+      }
+    });
+    consumer.start();
+    start.countDown();
+    for(Thread producer : threads) {
+      producer.join();
+    }
+    buffer.close();
+    consumer.join();
+
+    assertEquals(0, nulls[0], "values wiped out before delivery");
+    assertEquals(0, duplicates[0], "values delivered twice");
+    assertEquals(delivered.cardinality(), count[0]);
+    assertEquals((long) producers * perProducer, count[0] + discarded.get(), "delivered + discarded");
+  }
+}
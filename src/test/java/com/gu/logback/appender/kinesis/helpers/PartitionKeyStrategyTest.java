@@ -0,0 +1,40 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class PartitionKeyStrategyTest {
+
+  @Test
+  public void hostStrategyGivesEveryEventTheSameKey() {
+    HostPartitionKeyStrategy<Object> strategy = new HostPartitionKeyStrategy<Object>();
+    String key = strategy.partitionKey("first");
+    assertFalse(key.isEmpty());
+    assertTrue(key.length() <= 256, key);
+    assertEquals(key, strategy.partitionKey("second"));
+    assertEquals(key, new HostPartitionKeyStrategy<Object>().partitionKey(null));
+  }
+
+  @Test
+  public void randomStrategySpreadsEventsOverTheShards() {
+    RandomPartitionKeyStrategy<Object> strategy = new RandomPartitionKeyStrategy<Object>();
+    ShardMap shards = new ShardMap(Arrays.asList("0", BigInteger.ONE.shiftLeft(127).toString()));
+    Set<String> keys = new HashSet<String>();
+    int[] perShard = new int[2];
+    for(int i = 0; i < 1000; i++) {
+      String key = strategy.partitionKey(null);
+      keys.add(key);
+      perShard[shards.shardOf(key)]++;
+    }
+    assertEquals(1000, keys.size());
+    assertTrue(perShard[0] > 400 && perShard[1] > 400, perShard[0] + " and " + perShard[1] + " keys");
+  }
+}
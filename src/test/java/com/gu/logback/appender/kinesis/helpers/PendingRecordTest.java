@@ -0,0 +1,23 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.core.SdkBytes;
+
+public class PendingRecordTest {
+
+  @Test
+  public void sizeCountsThePartitionKeyInUtf8() {
+    SdkBytes data = SdkBytes.fromUtf8String("0123456789");
+    for(String key : new String[] { "host-1", "café", "€100", "😀 smile", "" }) {
+      PendingRecord record = new PendingRecord(key, data);
+      assertEquals(10 + key.getBytes(StandardCharsets.UTF_8).length, record.getSize(), key);
+      assertEquals(record.getSize(), record.nextAttempt().getSize(), key);
+    }
+    assertEquals(10, new PendingRecord(null, data).getSize());
+  }
+}
@@ -0,0 +1,218 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class ProtobufEventEncoderTest {
+
+  /**
+   * Fields of a decoded protobuf message, each field number mapped to its
+   * values: Long for varints, byte[] for length delimited fields.
+   */
+  private static final class Message {
+    final Map<Integer, List<Object>> fields = new HashMap<Integer, List<Object>>();
+
+    static Message parse(byte[] bytes, int pos, int end) {
+      Message message = new Message();
+      int[] cursor = { pos };
+      while(cursor[0] < end) {
+        long tag = readVarint(bytes, cursor);
+        Object value;
+        if((tag & 7) == 0) {
+          value = readVarint(bytes, cursor);
+        } else {
+          assertEquals(2, tag & 7, "wire type");
+          int length = (int) readVarint(bytes, cursor);
+          value = Arrays.copyOfRange(bytes, cursor[0], cursor[0] + length);
+          cursor[0] += length;
+        }
+        message.fields.computeIfAbsent((int) (tag >>> 3), field -> new ArrayList<Object>()).add(value);
+      }
+      assertEquals(end, cursor[0], "fields overrun the message");
+      return message;
+    }
+
+    List<Object> all(int field) {
+      List<Object> values = fields.get(field);
+      return values == null ? Collections.emptyList() : values;
+    }
+
+    long varint(int field) {
+      List<Object> values = all(field);
+      return values.isEmpty() ? 0 : (Long) values.get(0);
+    }
+
+    String string(int field) {
+      List<Object> values = all(field);
+      return values.isEmpty() ? null : new String((byte[]) values.get(0), StandardCharsets.UTF_8);
+    }
+
+    Message message(int field) {
+      List<Object> values = all(field);
+      return values.isEmpty() ? null : message((byte[]) values.get(0));
+    }
+
+    static Message message(byte[] bytes) {
+      return parse(bytes, 0, bytes.length);
+    }
+  }
+
+  private static long readVarint(byte[] bytes, int[] cursor) {
+    long value = 0;
+    for(int shift = 0;; shift += 7) {
+      byte b = bytes[cursor[0]++];
+      value |= (long) (b & 0x7F) << shift;
+      if(b >= 0) {
+        return value;
+      }
+    }
+  }
+
+  private static String text(int length) {
+    StringBuilder text = new StringBuilder(length);
+    for(int i = 0; i < length; i++) {
+      text.append((char) ('a' + i % 26));
+    }
+    return text.toString();
+  }
+
+  private final LoggerContext context = new LoggerContext();
+  private final Logger logger = context.getLogger(ProtobufEventEncoderTest.class);
+
+  private ProtobufEventEncoder newEncoder(boolean lengthDelimited) {
+    ProtobufEventEncoder encoder = new ProtobufEventEncoder();
+    encoder.setContext(context);
+    encoder.setSchemaId(0x01020304);
+    encoder.setLengthDelimited(lengthDelimited);
+    encoder.start();
+    return encoder;
+  }
+
+  private LoggingEvent event(Level level, String message, Throwable throwable) {
+    LoggingEvent event = new LoggingEvent(Logger.FQCN, logger, level, message, throwable, null);
+    event.setMDCPropertyMap(new HashMap<String, String>());
+    return event;
+  }
+
+  /**
+   * @return the LoggingEvent message of an encoded event, after checking the
+   *         schema identifier preceding it
+   */
+  private static Message decode(byte[] encoded, int start) {
+    assertArrayEquals(new byte[] { 0, 1, 2, 3, 4, 0 }, Arrays.copyOfRange(encoded, start, start + 6));
+    return Message.parse(encoded, start + 6, encoded.length);
+  }
+
+  @Test
+  public void backfillsLengthsOfEveryVarintSize() {
+    ProtobufEventEncoder encoder = newEncoder(false);
+    // lengths around the sizes where varints grow a byte
+    for(int length : new int[] { 1, 127, 128, 16383, 16384, 2097152 }) {
+      String message = text(length);
+      LoggingEvent event = event(Level.WARN, message, null);
+      event.setTimeStamp(1234567890123L);
+      Message decoded = decode(encoder.encode(event), 0);
+      assertEquals(1234567890123L, decoded.varint(1));
+      assertEquals(3, decoded.varint(2));
+      assertEquals(logger.getName(), decoded.string(3));
+      assertEquals(Thread.currentThread().getName(), decoded.string(4));
+      assertEquals(message, decoded.string(5), "message of " + length + " chars");
+    }
+  }
+
+  @Test
+  public void lengthDelimitedEventsCanBeSplitUp() {
+    ProtobufEventEncoder encoder = newEncoder(true);
+    for(int length : new int[] { 10, 200, 20000 }) {
+      byte[] encoded = encoder.encode(event(Level.INFO, text(length), null));
+      int[] cursor = { 0 };
+      long prefix = readVarint(encoded, cursor);
+      assertEquals(encoded.length - cursor[0], prefix, "length prefix");
+      assertEquals(text(length), decode(encoded, cursor[0]).string(5));
+    }
+  }
+
+  @Test
+  public void encodesMultibyteCharacters() {
+    ProtobufEventEncoder encoder = newEncoder(false);
+    // 2, 3 and 4 byte sequences, pushing the message length past 127 bytes
+    String message = text(100) + "é€😀" + text(100);
+    byte[] encoded = encoder.encode(event(Level.INFO, message, null));
+    assertEquals(message, decode(encoded, 0).string(5));
+  }
+
+  @Test
+  public void nestsTheMdcAndThrowables() {
+    ProtobufEventEncoder encoder = newEncoder(false);
+    IllegalStateException cause = new IllegalStateException(text(300));
+    RuntimeException thrown = new RuntimeException("failed", cause);
+    thrown.addSuppressed(new IllegalArgumentException(text(20000)));
+    LoggingEvent event = event(Level.ERROR, "message", thrown);
+    event.getMDCPropertyMap().put("request", text(150));
+
+    Message decoded = decode(encoder.encode(event), 0);
+    assertEquals(4, decoded.varint(2));
+    Message entry = Message.message((byte[]) decoded.all(6).get(0));
+    assertEquals("request", entry.string(1));
+    assertEquals(text(150), entry.string(2));
+
+    Message throwable = decoded.message(7);
+    assertEquals(RuntimeException.class.getName(), throwable.string(1));
+    assertEquals("failed", throwable.string(2));
+    assertTrue(throwable.all(3).size() > 0, "no stack trace");
+    assertEquals(thrown.getStackTrace().length, throwable.all(3).size() + throwable.varint(4));
+    Message nestedCause = throwable.message(5);
+    assertEquals(IllegalStateException.class.getName(), nestedCause.string(1));
+    assertEquals(text(300), nestedCause.string(2));
+    assertNull(nestedCause.message(5));
+    Message suppressed = Message.message((byte[]) throwable.all(6).get(0));
+    assertEquals(IllegalArgumentException.class.getName(), suppressed.string(1));
+    assertEquals(text(20000), suppressed.string(2));
+  }
+
+  @Test
+  public void encodesFromManyThreadsThroughThePool() throws Exception {
+    ProtobufEventEncoder encoder = newEncoder(false);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> encodes = new ArrayList<Future<?>>();
+      for(int thread = 0; thread < 8; thread++) {
+        int length = 1 + thread * 10000;
+        encodes.add(executor.submit(() -> {
+          for(int i = 0; i < 200; i++) {
+            String message = text(length + i);
+            assertEquals(message, decode(encoder.encode(event(Level.INFO, message, null)), 0).string(5));
+          }
+          return null;
+        }));
+      }
+      for(Future<?> encode : encodes) {
+        encode.get();
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+    encoder.stop();
+  }
+}
@@ -0,0 +1,123 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+public class RecordBatcherTest {
+
+  private final BlockingQueue<List<String>> sent = new LinkedBlockingQueue<List<String>>();
+
+  private RecordBatcher<String> newBatcher(int maxRecords, long maxBytes, long lingerMillis) {
+    return new RecordBatcher<String>(maxRecords, maxBytes, lingerMillis, String::length, sent::add,
+                                     new NamedThreadFactory("RecordBatcherTest-"));
+  }
+
+  @Test
+  public void sendsBatchesOnceTheyHaveEnoughRecords() {
+    RecordBatcher<String> batcher = newBatcher(3, 1000, 60000);
+    batcher.add("a");
+    batcher.add("b");
+    assertNull(sent.poll());
+    assertEquals(2, batcher.getPendingRecordCount());
+    batcher.add("c");
+    assertEquals(Arrays.asList("a", "b", "c"), sent.poll());
+    assertEquals(0, batcher.getPendingRecordCount());
+    batcher.close();
+  }
+
+  @Test
+  public void sendsBatchesBeforeTheyExceedTheBytes() {
+    RecordBatcher<String> batcher = newBatcher(100, 10, 60000);
+    batcher.add("aaaa");
+    batcher.add("bbbb");
+    // would be 12 bytes, so the first two go on their own
+    batcher.add("cccc");
+    assertEquals(Arrays.asList("aaaa", "bbbb"), sent.poll());
+    batcher.add("dddddd");
+    assertEquals(Arrays.asList("cccc", "dddddd"), sent.poll());
+
+    // a record bigger than a batch goes on its own
+    batcher.add("eeeeeeeeeeee");
+    assertEquals(Collections.singletonList("eeeeeeeeeeee"), sent.poll());
+    assertNull(sent.poll());
+    batcher.close();
+  }
+
+  @Test
+  public void sendsBatchesOnceTheFirstRecordLingeredEnough() throws InterruptedException {
+    RecordBatcher<String> batcher = newBatcher(100, 1000, 50);
+    long startNanos = System.nanoTime();
+    batcher.add("a");
+    batcher.add("b");
+    List<String> batch = sent.poll(10, TimeUnit.SECONDS);
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    assertEquals(Arrays.asList("a", "b"), batch);
+    assertTrue(elapsedMillis >= 50, "sent after " + elapsedMillis + " ms");
+
+    // the timer of a batch sent when full doesn't cut the next one short
+    batcher.setLimits(2, 1000, 200);
+    batcher.add("c");
+    batcher.add("d");
+    assertEquals(Arrays.asList("c", "d"), sent.poll());
+    batcher.add("e");
+    assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+    assertEquals(Collections.singletonList("e"), sent.poll(10, TimeUnit.SECONDS));
+    batcher.close();
+  }
+
+  @Test
+  public void lingerOfZeroSendsEachRecord() {
+    RecordBatcher<String> batcher = newBatcher(100, 1000, 0);
+    batcher.add("a");
+    batcher.add("b");
+    assertEquals(Collections.singletonList("a"), sent.poll());
+    assertEquals(Collections.singletonList("b"), sent.poll());
+    batcher.close();
+  }
+
+  @Test
+  public void senderCanAddRecordsBack() {
+    AtomicReference<RecordBatcher<String>> batcher = new AtomicReference<RecordBatcher<String>>();
+    batcher.set(new RecordBatcher<String>(2, 1000, 60000, String::length, batch -> {
+      sent.add(batch);
+      if(batch.contains("retry")) {
+        batcher.get().add("retried");
+      }
+    }, new NamedThreadFactory("RecordBatcherTest-")));
+    batcher.get().add("retry");
+    batcher.get().add("b");
+    assertEquals(Arrays.asList("retry", "b"), sent.poll());
+    assertEquals(1, batcher.get().getPendingRecordCount());
+    batcher.get().close();
+    assertEquals(Collections.singletonList("retried"), sent.poll());
+  }
+
+  @Test
+  public void closeSendsThePendingBatch() {
+    RecordBatcher<String> batcher = newBatcher(100, 1000, 60000);
+    batcher.add("a");
+    batcher.close();
+    assertEquals(Collections.singletonList("a"), sent.poll());
+
+    // records added once closed wait for a full batch or a flush
+    batcher.add("b");
+    assertNull(sent.poll());
+    batcher.flush();
+    assertEquals(Collections.singletonList("b"), sent.poll());
+    batcher.add("c");
+    assertEquals(Collections.singletonList("c"), batcher.takePending());
+    batcher.flush();
+    assertNull(sent.poll());
+  }
+}
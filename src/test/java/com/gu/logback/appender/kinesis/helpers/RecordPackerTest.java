@@ -0,0 +1,99 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+
+public class RecordPackerTest {
+
+  private final List<PendingRecord> forwarded = new ArrayList<PendingRecord>();
+
+  // joins the payloads of the records with commas
+  private static final AggregationFormat JOINED = new AggregationFormat() {
+    @Override
+    public int getOverhead() {
+      return 0;
+    }
+
+    @Override
+    public int sizeOf(PendingRecord record) {
+      return record.getSize() + 1;
+    }
+
+    @Override
+    public byte[] encode(String partitionKey, List<PendingRecord> records) {
+      StringBuilder joined = new StringBuilder();
+      for(PendingRecord record : records) {
+        joined.append(joined.length() > 0 ? "," : "").append(record.getData().asUtf8String());
+      }
+      return joined.toString().getBytes(StandardCharsets.UTF_8);
+    }
+  };
+
+  // upper-cases the payloads
+  private static final PayloadCompressor UPPER_CASE = data -> new String(data, StandardCharsets.UTF_8)
+      .toUpperCase().getBytes(StandardCharsets.UTF_8);
+
+  private RecordPacker newPacker(boolean aggregating, PayloadCompressor compressor) {
+    return new RecordPacker(JOINED, !aggregating ? null
+        : sender -> new RecordBatcher<PendingRecord>(3, 1024, 0, JOINED::sizeOf, sender,
+                                                     Executors.defaultThreadFactory()),
+                            compressor, forwarded::add);
+  }
+
+  private static byte[] bytes(String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void sendsEachEventAsARecordWithoutAggregation() {
+    RecordPacker packer = newPacker(false, UPPER_CASE);
+    packer.add("key", bytes("a"), 1, null);
+
+    assertEquals(1, forwarded.size());
+    assertEquals("A", forwarded.get(0).getData().asUtf8String());
+    assertEquals(1, forwarded.get(0).getEventCount());
+    assertTrue(packer.isEmpty());
+    assertTrue(packer.takePending().isEmpty());
+  }
+
+  @Test
+  public void compressesAggregatedRecordsOnceTheyAreFull() {
+    RecordPacker packer = newPacker(true, UPPER_CASE);
+    packer.add("first", bytes("a"), 5, null);
+    packer.add("second", bytes("b"), 6, null);
+    assertTrue(forwarded.isEmpty());
+    assertFalse(packer.isEmpty());
+    packer.add("third", bytes("c"), 7, null);
+
+    assertEquals(1, forwarded.size());
+    PendingRecord record = forwarded.get(0);
+    assertEquals("A,B,C", record.getData().asUtf8String());
+    assertEquals(3, record.getEventCount());
+    assertEquals("first", record.getPartitionKey());
+    assertEquals(5, record.getAppendNanos());
+    assertTrue(packer.isEmpty());
+  }
+
+  @Test
+  public void pendingEventsAreFlushedOrTaken() {
+    RecordPacker packer = newPacker(true, null);
+    packer.add("key", bytes("a"), 1, null);
+    packer.flush();
+    packer.add("key", bytes("b"), 2, null);
+    List<PendingRecord> pending = packer.takePending();
+    packer.closeAggregation();
+
+    assertEquals(1, forwarded.size());
+    assertEquals("a", forwarded.get(0).getData().asUtf8String());
+    assertEquals(1, pending.size());
+    assertEquals("b", pending.get(0).getData().asUtf8String());
+  }
+}
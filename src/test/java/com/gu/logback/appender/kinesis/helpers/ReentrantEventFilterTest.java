@@ -0,0 +1,48 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.spi.ContextAwareBase;
+
+public class ReentrantEventFilterTest {
+
+  private final LoggerContext context = new LoggerContext();
+  private final ContextAwareBase owner = new ContextAwareBase();
+  private final ReentrantEventFilter filter = new ReentrantEventFilter(owner);
+
+  private LoggingEvent event(String loggerName) {
+    owner.setContext(context);
+    return new LoggingEvent(Logger.FQCN, context.getLogger(loggerName), Level.INFO, "message", null, null);
+  }
+
+  @Test
+  public void dropsTheEventsOfTheSendingThreads() {
+    LoggingEvent event = event("application");
+    assertFalse(filter.drops(event, "stream"));
+    assertTrue(SendingThreads.send(() -> filter.drops(event, "stream")));
+    boolean[] dropped = new boolean[1];
+    RequestDispatcher.runCompletion(() -> dropped[0] = filter.drops(event, "stream"));
+    assertTrue(dropped[0]);
+
+    // reported once
+    assertEquals(1, context.getStatusManager().getCopyOfStatusList().stream()
+      .filter(status -> status.getMessage().startsWith("Dropping log events")).count());
+  }
+
+  @Test
+  public void dropsTheTransportEventsOnRequest() {
+    LoggingEvent event = event("software.amazon.awssdk.request");
+    assertFalse(filter.drops(event, "stream"));
+    filter.setTransportEventsDropped(true);
+    assertTrue(filter.drops(event, "stream"));
+    assertFalse(filter.drops(event("application"), "stream"));
+  }
+}
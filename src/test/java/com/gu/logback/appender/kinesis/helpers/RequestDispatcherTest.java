@@ -0,0 +1,142 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.core.SdkBytes;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.core.spi.ContextAwareBase;
+import ch.qos.logback.core.status.Status;
+
+public class RequestDispatcherTest {
+
+  private final InFlightWindow window = new InFlightWindow(1, 1024);
+  private final AppenderMetrics metrics = new AppenderMetrics(new DropCounters(), () -> 0, window::getRequestCount,
+                                                             window::getByteCount);
+  private final List<List<PendingRecord>> spilled = new ArrayList<List<PendingRecord>>();
+  private final List<List<PendingRecord>> requeued = new ArrayList<List<PendingRecord>>();
+  private final ContextAwareBase owner = new ContextAwareBase();
+  private volatile boolean spilling;
+
+  private RequestDispatcher newDispatcher() {
+    owner.setContext(new LoggerContext());
+    return new RequestDispatcher(window, metrics, false, () -> spilling, spilled::add, requeued::add, owner,
+                                 "stream");
+  }
+
+  private static List<PendingRecord> batch(int... eventCounts) {
+    List<PendingRecord> batch = new ArrayList<PendingRecord>();
+    for(int eventCount : eventCounts) {
+      batch.add(new PendingRecord("key", SdkBytes.fromUtf8String("data"), eventCount, 0L, null));
+    }
+    return batch;
+  }
+
+  private static List<PendingRecord> keyed(String... partitionKeys) {
+    List<PendingRecord> batch = new ArrayList<PendingRecord>();
+    for(String partitionKey : partitionKeys) {
+      batch.add(new PendingRecord(partitionKey, SdkBytes.fromUtf8String("data")));
+    }
+    return batch;
+  }
+
+  @Test
+  public void accountsForTheRequestsInFlight() {
+    RequestDispatcher dispatcher = newDispatcher();
+    List<PendingRecord> batch = batch(1, 3);
+    CompletableFuture<Void> response = new CompletableFuture<Void>();
+    dispatcher.send(batch, records -> response);
+    assertEquals(1, window.getRequestCount());
+    assertEquals(batch.get(0).getSize() + batch.get(1).getSize(), window.getByteCount());
+    assertEquals(4, dispatcher.getEventsInFlight());
+
+    response.complete(null);
+    dispatcher.requestCompleted(batch, new BitSet(), new BitSet());
+    assertEquals(0, window.getRequestCount());
+    assertEquals(0, window.getByteCount());
+    assertEquals(0, dispatcher.getEventsInFlight());
+    assertEquals(4, metrics.getEventsSent());
+    assertTrue(spilled.isEmpty());
+  }
+
+  @Test
+  public void spillsTheRequestsOfFailedOrSpillingSends() {
+    RequestDispatcher dispatcher = newDispatcher();
+    List<PendingRecord> failing = batch(1);
+    dispatcher.send(failing, records -> {
+      throw new IllegalStateException("client closed");
+    });
+    List<PendingRecord> late = batch(2);
+    spilling = true;
+    boolean[] sent = new boolean[1];
+    dispatcher.send(late, records -> {
+      sent[0] = true;
+      return new CompletableFuture<Void>();
+    });
+
+    assertFalse(sent[0]);
+    assertEquals(Arrays.asList(failing, late), spilled);
+    assertEquals(0, window.getRequestCount());
+    assertEquals(0, dispatcher.getEventsInFlight());
+    assertEquals(1, metrics.getRequestsFailed());
+    Status error = owner.getContext().getStatusManager().getCopyOfStatusList().get(0);
+    assertEquals("Failed to send 1 log entries to stream: stream", error.getMessage());
+  }
+
+  @Test
+  public void cancelsTheRequestsStillInFlight() {
+    RequestDispatcher dispatcher = newDispatcher();
+    CompletableFuture<Void> response = new CompletableFuture<Void>();
+    dispatcher.send(batch(1), records -> response);
+    dispatcher.cancelOutstandingRequests();
+    assertTrue(response.isCancelled());
+  }
+
+  @Test
+  public void requeuesTheRecordsOfThrottledGroups() {
+    RequestDispatcher dispatcher = newDispatcher();
+    AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(2, key -> key.equals("a") ? 0 : 1, 10, 1024 * 1024);
+    dispatcher.enableRateLimit(limiter, Executors.defaultThreadFactory());
+    try {
+      // group a runs into debt
+      String[] keys = new String[20];
+      Arrays.fill(keys, "a");
+      assertEquals(20, limiter.tryAcquireAvailable(keyed(keys)).size());
+      List<PendingRecord> batch = keyed("a", "b", "a", "b");
+      List<List<PendingRecord>> sent = new ArrayList<List<PendingRecord>>();
+      long start = System.nanoTime();
+      dispatcher.send(batch, records -> {
+        sent.add(records);
+        return new CompletableFuture<Void>();
+      });
+      assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500), "waited for group a");
+      assertEquals(Collections.singletonList(Arrays.asList(batch.get(1), batch.get(3))), sent);
+      assertEquals(Collections.singletonList(Arrays.asList(batch.get(0), batch.get(2))), requeued);
+    }
+    finally {
+      dispatcher.closeRateLimit(0);
+    }
+  }
+
+  @Test
+  public void marksTheThreadsCompletingRequests() {
+    assertFalse(RequestDispatcher.isCompleting());
+    boolean[] completing = new boolean[1];
+    RequestDispatcher.runCompletion(() -> completing[0] = RequestDispatcher.isCompleting());
+    assertTrue(completing[0]);
+    assertFalse(RequestDispatcher.isCompleting());
+  }
+}
@@ -0,0 +1,123 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import ch.qos.logback.core.spi.ContextAwareBase;
+
+public class RingBufferSenderTest {
+
+  /**
+   * Sends the message of each event as its payload, remembering what it sent
+   * and spilled.
+   */
+  private static final class RecordingTarget implements RingBufferSender.Target<ILoggingEvent> {
+    final List<String> sent = new CopyOnWriteArrayList<String>();
+    final List<String> spilled = new CopyOnWriteArrayList<String>();
+    volatile boolean holding;
+
+    @Override
+    public String partitionKeyOf(ILoggingEvent event) {
+      return "key";
+    }
+
+    @Override
+    public byte[] encode(ILoggingEvent event) {
+      return event.getFormattedMessage().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public StageTrace newTrace(long appendNanos) {
+      return null;
+    }
+
+    @Override
+    public boolean isHolding() {
+      return holding;
+    }
+
+    @Override
+    public void spill(ILoggingEvent event) {
+      spilled.add(event.getFormattedMessage());
+    }
+
+    @Override
+    public void send(String partitionKey, byte[] payload, long appendNanos, StageTrace trace) {
+      sent.add(new String(payload, StandardCharsets.UTF_8));
+    }
+  }
+
+  private final LoggerContext context = new LoggerContext();
+  private final Logger logger = context.getLogger(RingBufferSenderTest.class);
+  private final RecordingTarget target = new RecordingTarget();
+  private final DropCounters dropCounters = new DropCounters();
+
+  private RingBufferSender<ILoggingEvent> newSender(int bufferSize) {
+    // deferred processing takes the MDC
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    ContextAwareBase owner = new ContextAwareBase();
+    owner.setContext(context);
+    return new RingBufferSender<ILoggingEvent>(bufferSize, target, dropCounters, owner, "test", "stream");
+  }
+
+  private LoggingEvent event(int i) {
+    return new LoggingEvent(Logger.FQCN, logger, Level.INFO, Integer.toString(i), null, null);
+  }
+
+  @Test
+  public void sendsEveryEventInOrderAcrossResizes() {
+    RingBufferSender<ILoggingEvent> sender = newSender(8);
+    sender.setDeferredLayoutEnabled(true);
+    sender.setLayoutThreadCount(2);
+    sender.start(new NamedThreadFactory("RingBufferSenderTest-sender-"),
+                 new NamedThreadFactory("RingBufferSenderTest-layout-"));
+    for(int i = 0; i < 5000; i++) {
+      if(i % 500 == 0) {
+        assertTrue(sender.resize(4 + i % 7));
+      }
+      sender.append(event(i));
+    }
+    sender.close();
+    sender.join(System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+    sender.shutdownLayout();
+
+    assertFalse(sender.isSending());
+    assertFalse(sender.resize(16));
+    assertEquals(0, sender.getUnsentCount());
+    assertEquals(5000, target.sent.size());
+    for(int i = 0; i < 5000; i++) {
+      assertEquals(Integer.toString(i), target.sent.get(i));
+    }
+  }
+
+  @Test
+  public void doesntWaitForABufferHeldBackByTheStartup() {
+    // without a sender thread, the buffer stays full
+    RingBufferSender<ILoggingEvent> sender = newSender(1);
+    target.holding = true;
+    sender.append(event(0));
+    sender.append(event(1));
+    assertEquals(1, dropCounters.getDroppedNewestCount());
+
+    sender.setSpillEnabled(true);
+    sender.append(event(2));
+    assertEquals(1, dropCounters.getDroppedNewestCount());
+    assertEquals("2", target.spilled.get(0));
+    assertEquals(1, sender.getSize());
+    sender.close();
+  }
+}
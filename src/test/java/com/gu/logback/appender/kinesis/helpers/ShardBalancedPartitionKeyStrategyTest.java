@@ -0,0 +1,62 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class ShardBalancedPartitionKeyStrategyTest {
+
+  private static final BigInteger QUARTER = BigInteger.ONE.shiftLeft(126);
+
+  @Test
+  public void cyclesThroughEveryShard() {
+    ShardMap shards = new ShardMap(Arrays.asList("0", QUARTER.toString(), QUARTER.shiftLeft(1).toString(),
+                                                 QUARTER.multiply(BigInteger.valueOf(3)).toString()));
+    ShardBalancedPartitionKeyStrategy<Object> strategy = new ShardBalancedPartitionKeyStrategy<Object>();
+    strategy.setShards(shards);
+    for(int round = 0; round < 3; round++) {
+      Set<Integer> seen = new HashSet<Integer>();
+      for(int i = 0; i < 4; i++) {
+        seen.add(shards.shardOf(strategy.partitionKey(null)));
+      }
+      assertEquals(4, seen.size(), "shards of round " + round);
+    }
+  }
+
+  @Test
+  public void leavesOutShardsTooNarrowToHit() {
+    // the second shard owns a single 64 bit hash key
+    BigInteger half = QUARTER.shiftLeft(1);
+    ShardMap shards = new ShardMap(Arrays.asList("0", half.toString(), half.add(BigInteger.ONE.shiftLeft(64)).toString()));
+    ShardBalancedPartitionKeyStrategy<Object> strategy = new ShardBalancedPartitionKeyStrategy<Object>();
+    strategy.setShards(shards);
+    Set<Integer> seen = new HashSet<Integer>();
+    for(int i = 0; i < 10; i++) {
+      seen.add(shards.shardOf(strategy.partitionKey(null)));
+    }
+    assertEquals(new HashSet<Integer>(Arrays.asList(0, 2)), seen);
+  }
+
+  @Test
+  public void usesRandomKeysUntilTheShardsAreKnown() {
+    ShardBalancedPartitionKeyStrategy<Object> strategy = new ShardBalancedPartitionKeyStrategy<Object>();
+    assertNotEquals(strategy.partitionKey(null), strategy.partitionKey(null));
+  }
+
+  @Test
+  public void followsTheShardsAsTheyChange() {
+    ShardBalancedPartitionKeyStrategy<Object> strategy = new ShardBalancedPartitionKeyStrategy<Object>();
+    strategy.setShards(new ShardMap(Arrays.asList("0")));
+    assertEquals(strategy.partitionKey(null), strategy.partitionKey(null));
+
+    ShardMap split = new ShardMap(Arrays.asList("0", QUARTER.shiftLeft(1).toString()));
+    strategy.setShards(split);
+    assertNotEquals(split.shardOf(strategy.partitionKey(null)), split.shardOf(strategy.partitionKey(null)));
+  }
+}
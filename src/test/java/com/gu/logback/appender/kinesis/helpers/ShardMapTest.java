@@ -0,0 +1,51 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+public class ShardMapTest {
+
+  private static String startingHashKey(int quarter) {
+    return BigInteger.ONE.shiftLeft(126).multiply(BigInteger.valueOf(quarter)).toString();
+  }
+
+  @Test
+  public void findsTheShardOwningAHashKey() {
+    // shards listed out of hash key order
+    ShardMap shards = new ShardMap(Arrays.asList(startingHashKey(2), startingHashKey(0), startingHashKey(3),
+                                                 startingHashKey(1)));
+    assertEquals(4, shards.getShardCount());
+    assertEquals(0, shards.shardOfHashKey(0));
+    assertEquals(0, shards.shardOfHashKey((1L << 62) - 1));
+    assertEquals(1, shards.shardOfHashKey(1L << 62));
+    assertEquals(1, shards.shardOfHashKey(Long.MAX_VALUE));
+    // hash keys are unsigned
+    assertEquals(2, shards.shardOfHashKey(Long.MIN_VALUE));
+    assertEquals(3, shards.shardOfHashKey(-1L));
+  }
+
+  @Test
+  public void singleShardOwnsEveryKey() {
+    ShardMap shards = new ShardMap(Arrays.asList("0"));
+    for(String key : new String[] { "a", "b", "partition key", "é€😀" }) {
+      assertEquals(0, shards.shardOf(key));
+    }
+  }
+
+  @Test
+  public void hashesKeysLikeKinesis() throws Exception {
+    ShardMap shards = new ShardMap(Arrays.asList(startingHashKey(0), startingHashKey(2)));
+    for(String key : new String[] { "a", "b", "partition key", "é€😀" }) {
+      BigInteger hashKey = new BigInteger(1, MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8)));
+      assertEquals(hashKey.shiftRight(64).longValue(), ShardMap.hashKey(key), key);
+      int shard = hashKey.compareTo(new BigInteger(startingHashKey(2))) < 0 ? 0 : 1;
+      assertEquals(shard, shards.shardOf(key), key);
+    }
+  }
+}
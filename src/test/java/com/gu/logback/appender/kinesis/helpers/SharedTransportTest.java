@@ -0,0 +1,87 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.http.Protocol;
+import software.amazon.awssdk.http.SdkHttpConfigurationOption;
+import software.amazon.awssdk.utils.AttributeMap;
+
+import ch.qos.logback.classic.LoggerContext;
+
+public class SharedTransportTest {
+
+  private static SharedTransport transport(LoggerContext context) {
+    SharedTransport transport = new SharedTransport();
+    transport.setContext(context);
+    transport.setName("shared");
+    transport.setThreadCount(1);
+    return transport;
+  }
+
+  @Test
+  public void sharedWithinAContextOnly() {
+    LoggerContext first = new LoggerContext();
+    LoggerContext second = new LoggerContext();
+    SharedTransport.Lease a = transport(first).acquire(AttributeMap.empty());
+    SharedTransport.Lease b = transport(first).acquire(AttributeMap.empty());
+    SharedTransport.Lease c = transport(second).acquire(AttributeMap.empty());
+    try {
+      assertSame(a.getHttpClient(), b.getHttpClient());
+      assertNotSame(a.getHttpClient(), c.getHttpClient());
+      assertNotSame(a.getScheduler(), c.getScheduler());
+    }
+    finally {
+      a.close();
+      b.close();
+      c.close();
+    }
+  }
+
+  @Test
+  public void closedOnceTheLastLeaseIsClosed() {
+    LoggerContext context = new LoggerContext();
+    SharedTransport.Lease a = transport(context).acquire(AttributeMap.empty());
+    SharedTransport.Lease b = transport(context).acquire(AttributeMap.empty());
+    a.close();
+    SharedTransport.Lease c = transport(context).acquire(AttributeMap.empty());
+    assertSame(b.getHttpClient(), c.getHttpClient());
+    b.close();
+    c.close();
+    SharedTransport.Lease d = transport(context).acquire(AttributeMap.empty());
+    assertNotSame(b.getHttpClient(), d.getHttpClient());
+    d.close();
+  }
+
+  @Test
+  public void refusedToAServiceDefaultingToAnotherProtocol() {
+    LoggerContext context = new LoggerContext();
+    AttributeMap http2 = AttributeMap.builder().put(SdkHttpConfigurationOption.PROTOCOL, Protocol.HTTP2).build();
+    SharedTransport.Lease kinesis = transport(context).acquire(http2);
+    try {
+      assertThrows(IllegalStateException.class, () -> transport(context).acquire(AttributeMap.empty()));
+      transport(context).acquire(http2).close();
+    }
+    finally {
+      kinesis.close();
+    }
+  }
+
+  @Test
+  public void sharedBetweenServicesOnceTheProtocolIsSet() {
+    LoggerContext context = new LoggerContext();
+    HttpClientSettings settings = new HttpClientSettings();
+    settings.setProtocol(Protocol.HTTP1_1);
+    SharedTransport configured = transport(context);
+    configured.setHttpClient(settings);
+    AttributeMap http2 = AttributeMap.builder().put(SdkHttpConfigurationOption.PROTOCOL, Protocol.HTTP2).build();
+    SharedTransport.Lease kinesis = configured.acquire(http2);
+    SharedTransport.Lease firehose = transport(context).acquire(AttributeMap.empty());
+    assertSame(kinesis.getHttpClient(), firehose.getHttpClient());
+    firehose.close();
+    kinesis.close();
+  }
+}
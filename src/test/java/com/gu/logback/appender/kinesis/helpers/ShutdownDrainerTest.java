@@ -0,0 +1,121 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.core.SdkBytes;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.core.spi.ContextAwareBase;
+import ch.qos.logback.core.status.Status;
+
+public class ShutdownDrainerTest {
+
+  private final InFlightWindow window = new InFlightWindow(1, 1024);
+  private final DropCounters dropCounters = new DropCounters();
+  private final AppenderMetrics metrics = new AppenderMetrics(dropCounters, () -> 0, window::getRequestCount,
+                                                             window::getByteCount);
+  private final List<List<PendingRecord>> spilled = new ArrayList<List<PendingRecord>>();
+  private final ContextAwareBase owner = new ContextAwareBase();
+  private final List<List<PendingRecord>> requeued = new ArrayList<List<PendingRecord>>();
+  private final RequestDispatcher dispatcher = new RequestDispatcher(window, metrics, false, () -> false, spilled::add,
+                                                                     requeued::add, owner, "stream");
+  private final List<String> calls = new ArrayList<String>();
+
+  private ShutdownDrainer newDrainer(int shutdownTimeout, ShutdownDrainer.Target target) {
+    owner.setContext(new LoggerContext());
+    return new ShutdownDrainer(shutdownTimeout, metrics, dropCounters, window, dispatcher, null, target, owner,
+                               "appender", "stream");
+  }
+
+  private static List<PendingRecord> batch(int eventCount) {
+    return Collections.singletonList(new PendingRecord("key", SdkBytes.fromUtf8String("data"), eventCount, 0L,
+                                                       null));
+  }
+
+  private Status lastStatus() {
+    List<Status> statuses = owner.getContext().getStatusManager().getCopyOfStatusList();
+    return statuses.get(statuses.size() - 1);
+  }
+
+  @Test
+  public void flushesUntilNothingIsLeft() {
+    ShutdownDrainer shutdown = newDrainer(10, new ShutdownDrainer.Target() {
+      @Override
+      public void flush() {
+        calls.add("flush");
+        if(calls.size() == 1) {
+          // delivered before the second flush finds nothing left
+          List<PendingRecord> batch = batch(2);
+          dispatcher.send(batch, records -> CompletableFuture.completedFuture(null));
+          dispatcher.requestCompleted(batch, new BitSet(), new BitSet());
+        }
+      }
+
+      @Override
+      public boolean isEmpty() {
+        return calls.size() == 2;
+      }
+
+      @Override
+      public void spillPending() {
+        calls.add("spill");
+      }
+    });
+
+    assertTrue(shutdown.drain());
+    shutdown.report();
+
+    assertEquals(Arrays.asList("flush", "flush"), calls);
+    assertEquals(Status.INFO, lastStatus().getLevel());
+    assertEquals("Appender appender delivered 2 log events to stream stream while stopping, spilled 0 and lost 0",
+                 lastStatus().getMessage());
+  }
+
+  @Test
+  public void spillsWhatIsLeftOnceTheDeadlinePassed() {
+    ShutdownDrainer shutdown = newDrainer(0, new ShutdownDrainer.Target() {
+      @Override
+      public void flush() {
+        calls.add("flush");
+      }
+
+      @Override
+      public boolean isEmpty() {
+        return false;
+      }
+
+      @Override
+      public void spillPending() {
+        calls.add("spill");
+        metrics.recordDropped(3);
+      }
+    });
+    List<PendingRecord> inFlight = batch(1);
+    CompletableFuture<Void> response = new CompletableFuture<Void>();
+    response.whenComplete((result, exception) -> dispatcher.requestFailed(inFlight, false));
+    dispatcher.send(inFlight, records -> response);
+
+    assertFalse(shutdown.drain());
+    window.close();
+    shutdown.spillRemaining();
+    shutdown.report();
+
+    assertEquals(Arrays.asList("flush", "spill"), calls);
+    assertTrue(response.isCancelled());
+    assertEquals(Collections.singletonList(inFlight), spilled);
+    assertEquals(Status.ERROR, lastStatus().getLevel());
+    assertEquals("Appender appender delivered 0 log events to stream stream while stopping, spilled 0 and lost 3"
+                 + " within its shutdownTimeout of 0 seconds", lastStatus().getMessage());
+  }
+}
@@ -0,0 +1,117 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import software.amazon.awssdk.core.SdkBytes;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.core.spi.ContextAwareBase;
+
+public class SpillDrainerTest {
+
+  private static final long DRAIN_INTERVAL_MILLIS = 10;
+
+  /**
+   * Records what the drainer sends again, spilled events being recorded with
+   * an event count of 0.
+   */
+  private static final class RecordingTarget implements SpillDrainer.Target {
+    final List<PendingRecord> sent = new CopyOnWriteArrayList<PendingRecord>();
+    volatile boolean accepting = true;
+
+    @Override
+    public boolean isAccepting() {
+      return accepting;
+    }
+
+    @Override
+    public void sendEvent(String partitionKey, byte[] data) {
+      sent.add(new PendingRecord(partitionKey, SdkBytes.fromByteArray(data), 0, 0L, null));
+    }
+
+    @Override
+    public void sendRecord(PendingRecord record) {
+      sent.add(record);
+    }
+  }
+
+  @TempDir
+  Path directory;
+
+  private final AppenderMetrics metrics = new AppenderMetrics(new DropCounters(), () -> 0, () -> 0, () -> 0);
+  private final RecordingTarget target = new RecordingTarget();
+
+  private SpillDrainer newDrainer() throws IOException {
+    ContextAwareBase owner = new ContextAwareBase();
+    owner.setContext(new LoggerContext());
+    SpillQueue queue = new SpillQueue(directory, 4096, 4, SpillQueue.FsyncPolicy.PER_SEGMENT);
+    return new SpillDrainer(queue, DRAIN_INTERVAL_MILLIS, 100, metrics, target, owner, "stream");
+  }
+
+  private static byte[] bytes(String data) {
+    return data.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private void awaitSent(int count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while(target.sent.size() < count) {
+      assertTrue(System.nanoTime() < deadline, "only " + target.sent.size() + " entries were sent again");
+      Thread.sleep(1);
+    }
+  }
+
+  @Test
+  public void sendsEntriesAgainAsTheyWereSpilled() throws Exception {
+    SpillDrainer drainer = newDrainer();
+    assertTrue(drainer.spillEvent("a", bytes("event")));
+    assertTrue(drainer.spillRecord(new PendingRecord("b", SdkBytes.fromByteArray(bytes("record")))));
+    assertTrue(drainer.spillRecord(new PendingRecord("c", SdkBytes.fromByteArray(bytes("aggregate")), 3, 0L, null)));
+    assertEquals(2, metrics.getRecordsSpilled());
+    assertEquals(4, metrics.getEventsSpilled());
+
+    drainer.start(new NamedThreadFactory("SpillDrainerTest-"));
+    awaitSent(3);
+    drainer.stop(TimeUnit.SECONDS.toNanos(10));
+    drainer.close();
+
+    List<PendingRecord> sent = target.sent;
+    assertEquals("a", sent.get(0).getPartitionKey());
+    assertArrayEquals(bytes("event"), sent.get(0).getData().asByteArray());
+    assertEquals(0, sent.get(0).getEventCount());
+    assertEquals("b", sent.get(1).getPartitionKey());
+    assertArrayEquals(bytes("record"), sent.get(1).getData().asByteArray());
+    assertEquals(1, sent.get(1).getEventCount());
+    // aggregated records keep the number of events they carry
+    assertEquals("c", sent.get(2).getPartitionKey());
+    assertArrayEquals(bytes("aggregate"), sent.get(2).getData().asByteArray());
+    assertEquals(3, sent.get(2).getEventCount());
+  }
+
+  @Test
+  public void keepsEntriesUntilTheTargetAcceptsThem() throws Exception {
+    SpillDrainer drainer = newDrainer();
+    target.accepting = false;
+    drainer.spillEvent("a", bytes("event"));
+    drainer.start(new NamedThreadFactory("SpillDrainerTest-"));
+    Thread.sleep(10 * DRAIN_INTERVAL_MILLIS);
+    assertTrue(target.sent.isEmpty());
+
+    target.accepting = true;
+    awaitSent(1);
+    drainer.stop(TimeUnit.SECONDS.toNanos(10));
+    drainer.close();
+    assertEquals(1, target.sent.size());
+  }
+}
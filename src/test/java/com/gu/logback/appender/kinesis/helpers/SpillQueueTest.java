@@ -0,0 +1,236 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.gu.logback.appender.kinesis.helpers.SpillQueue.Entry;
+import com.gu.logback.appender.kinesis.helpers.SpillQueue.FsyncPolicy;
+
+public class SpillQueueTest {
+
+  // with a partition key of 1 byte and 10 bytes of data, records take 22
+  // bytes, so that a segment holds 2 of them after its 8 byte header
+  private static final int SEGMENT_BYTES = 64;
+  private static final int HEADER_LENGTH = 8;
+  private static final int RECORD_LENGTH = 22;
+
+  @TempDir
+  Path directory;
+
+  private static byte[] data(int i) {
+    return String.format("record %03d", i).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private SpillQueue open(int maxSegments) throws IOException {
+    return new SpillQueue(directory, SEGMENT_BYTES, maxSegments, FsyncPolicy.PER_WRITE);
+  }
+
+  private List<Path> segmentFiles() throws IOException {
+    List<Path> files = new ArrayList<Path>();
+    try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "spill-*.seg")) {
+      for(Path file : stream) {
+        files.add(file);
+      }
+    }
+    files.sort(null);
+    return files;
+  }
+
+  private static void assertEntry(Entry entry, byte type, String partitionKey, byte[] data) {
+    assertEquals(type, entry.getType());
+    assertEquals(partitionKey, entry.getPartitionKey());
+    assertArrayEquals(data, entry.getData());
+  }
+
+  @Test
+  public void pollsRecordsInTheOrderTheyWereOffered() throws IOException {
+    SpillQueue queue = open(4);
+    assertTrue(queue.isEmpty());
+    for(int i = 0; i < 5; i++) {
+      assertTrue(queue.offer((byte) i, "k", data(i)));
+    }
+    assertTrue(queue.offer((byte) 9, null, new byte[0]));
+    assertEquals(5 * RECORD_LENGTH + 11, queue.getPendingBytes());
+
+    for(int i = 0; i < 5; i++) {
+      assertEntry(queue.poll(), (byte) i, "k", data(i));
+    }
+    assertEntry(queue.poll(), (byte) 9, null, new byte[0]);
+    assertNull(queue.poll());
+    assertTrue(queue.isEmpty());
+    queue.close();
+  }
+
+  @Test
+  public void reopenedQueueResumesWhereItWasRead() throws IOException {
+    SpillQueue queue = open(4);
+    for(int i = 0; i < 5; i++) {
+      queue.offer((byte) 0, "k", data(i));
+    }
+    // reads the whole of the first segment, and one record of the second
+    for(int i = 0; i < 3; i++) {
+      queue.poll();
+    }
+    queue.close();
+
+    SpillQueue reopened = open(4);
+    assertEquals(2 * RECORD_LENGTH, reopened.getPendingBytes());
+    assertArrayEquals(data(3), reopened.poll().getData());
+    assertArrayEquals(data(4), reopened.poll().getData());
+    assertNull(reopened.poll());
+    // new records go after those recovered
+    assertTrue(reopened.offer((byte) 0, "k", data(5)));
+    assertArrayEquals(data(5), reopened.poll().getData());
+    reopened.close();
+  }
+
+  @Test
+  public void recoveryStopsAtARecordFailingItsChecksum() throws IOException {
+    SpillQueue queue = open(4);
+    for(int i = 0; i < 2; i++) {
+      queue.offer((byte) 0, "k", data(i));
+    }
+    queue.close();
+
+    Path segment = segmentFiles().get(0);
+    byte[] content = Files.readAllBytes(segment);
+    // the last byte of the data of the second record
+    content[HEADER_LENGTH + 2 * RECORD_LENGTH - 1] ^= 1;
+    Files.write(segment, content);
+
+    SpillQueue reopened = open(4);
+    assertEquals(RECORD_LENGTH, reopened.getPendingBytes());
+    assertArrayEquals(data(0), reopened.poll().getData());
+    assertNull(reopened.poll());
+    reopened.close();
+  }
+
+  @Test
+  public void recoveryStopsAtATornRecord() throws IOException {
+    SpillQueue queue = open(4);
+    queue.offer((byte) 0, "k", data(0));
+    queue.close();
+
+    Path segment = segmentFiles().get(0);
+    byte[] content = Files.readAllBytes(segment);
+    // a record whose length was written but whose body wasn't
+    int torn = HEADER_LENGTH + RECORD_LENGTH;
+    content[torn + 3] = RECORD_LENGTH - 8;
+    Files.write(segment, content);
+
+    SpillQueue reopened = open(4);
+    assertEquals(RECORD_LENGTH, reopened.getPendingBytes());
+    assertArrayEquals(data(0), reopened.poll().getData());
+    assertNull(reopened.poll());
+    reopened.close();
+  }
+
+  @Test
+  public void reopeningDeletesSegmentsThatArentOurs() throws IOException {
+    SpillQueue queue = open(4);
+    queue.offer((byte) 0, "k", data(0));
+    queue.close();
+    Path truncated = directory.resolve(String.format("spill-%020d.seg", 7));
+    Files.write(truncated, new byte[SEGMENT_BYTES / 2]);
+    Path foreign = directory.resolve(String.format("spill-%020d.seg", 8));
+    Files.write(foreign, new byte[SEGMENT_BYTES]);
+
+    SpillQueue reopened = open(4);
+    assertFalse(Files.exists(truncated));
+    assertFalse(Files.exists(foreign));
+    assertArrayEquals(data(0), reopened.poll().getData());
+    assertNull(reopened.poll());
+    reopened.close();
+  }
+
+  @Test
+  public void reopeningKeepsSegmentsOfAnotherSize() throws IOException {
+    SpillQueue queue = open(4);
+    for(int i = 0; i < 3; i++) {
+      queue.offer((byte) 0, "k", data(i));
+    }
+    queue.close();
+
+    SpillQueue reopened = new SpillQueue(directory, 2 * SEGMENT_BYTES, 4, FsyncPolicy.PER_WRITE);
+    assertEquals(3 * RECORD_LENGTH, reopened.getPendingBytes());
+    // fits in the last segment of the previous run
+    assertTrue(reopened.offer((byte) 0, "k", data(3)));
+    assertTrue(reopened.offer((byte) 0, "k", data(4)));
+    for(int i = 0; i < 5; i++) {
+      assertArrayEquals(data(i), reopened.poll().getData());
+    }
+    assertNull(reopened.poll());
+    // the segments of the previous run are deleted once read, not recycled
+    for(Path file : segmentFiles()) {
+      assertEquals(2 * SEGMENT_BYTES, Files.size(file), file.toString());
+    }
+    reopened.close();
+  }
+
+  @Test
+  public void reopeningKeepsSegmentsBeyondMaxSegments() throws IOException {
+    SpillQueue queue = open(4);
+    for(int i = 0; i < 6; i++) {
+      queue.offer((byte) 0, "k", data(i));
+    }
+    queue.close();
+
+    SpillQueue reopened = open(2);
+    assertEquals(3, reopened.getSegmentCount());
+    assertFalse(reopened.offer((byte) 0, "k", data(6)), "offered to a queue holding too many segments");
+    for(int i = 0; i < 6; i++) {
+      assertArrayEquals(data(i), reopened.poll().getData());
+    }
+    assertTrue(reopened.offer((byte) 0, "k", data(6)));
+    assertArrayEquals(data(6), reopened.poll().getData());
+    reopened.close();
+  }
+
+  @Test
+  public void fullQueueRejectsRecordsUntilItIsRead() throws IOException {
+    SpillQueue queue = open(2);
+    for(int i = 0; i < 4; i++) {
+      assertTrue(queue.offer((byte) 0, "k", data(i)));
+    }
+    assertFalse(queue.offer((byte) 0, "k", data(4)));
+    assertFalse(queue.offer((byte) 0, "k", new byte[SEGMENT_BYTES]), "a record larger than a segment");
+
+    // reading the first segment makes room for a third one
+    queue.poll();
+    queue.poll();
+    assertTrue(queue.offer((byte) 0, "k", data(4)));
+    for(int i = 2; i < 5; i++) {
+      assertArrayEquals(data(i), queue.poll().getData());
+    }
+    queue.close();
+    assertFalse(queue.offer((byte) 0, "k", data(5)), "offered to a closed queue");
+  }
+
+  @Test
+  public void segmentsAreRecycledOnceRead() throws IOException {
+    SpillQueue queue = open(2);
+    for(int i = 0; i < 100; i++) {
+      assertTrue(queue.offer((byte) 0, "k", data(i)), "record " + i);
+      assertTrue(queue.offer((byte) 0, "k", data(i)), "record " + i);
+      assertArrayEquals(data(i), queue.poll().getData());
+      assertArrayEquals(data(i), queue.poll().getData());
+      assertTrue(segmentFiles().size() <= 2, segmentFiles().toString());
+    }
+    assertTrue(queue.isEmpty());
+    queue.close();
+  }
+}
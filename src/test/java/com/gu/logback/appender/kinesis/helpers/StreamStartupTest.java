@@ -0,0 +1,127 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.core.spi.ContextAwareBase;
+import ch.qos.logback.core.status.Status;
+
+public class StreamStartupTest {
+
+  private final ContextAwareBase owner = new ContextAwareBase();
+  private final List<String> events = new CopyOnWriteArrayList<String>();
+  private final AtomicInteger checks = new AtomicInteger();
+  private StreamStartup startup;
+
+  /**
+   * Target whose stream is found ready at the given check, never if 0, or
+   * missing if negative.
+   */
+  private StreamStartup newStartup(int maxAttempts, int readyAtCheck) {
+    owner.setContext(new LoggerContext());
+    startup = new StreamStartup(maxAttempts, new StreamStartup.Target() {
+      @Override
+      public void createClient() {
+        events.add("client");
+      }
+
+      @Override
+      public void validateStream() {
+        int check = checks.incrementAndGet();
+        if(readyAtCheck < 0) {
+          startup.notFound("Stream test doesn't exist", null);
+        } else if(readyAtCheck == 0 || check < readyAtCheck) {
+          startup.notReady("Stream test is not active", null);
+        }
+      }
+
+      @Override
+      public void ready() {
+        events.add("ready");
+      }
+
+      @Override
+      public void failed() {
+        events.add("failed");
+      }
+    }, owner, "appender", "test");
+    return startup;
+  }
+
+  private void awaitEvent(String event) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while(!events.contains(event)) {
+      assertTrue(System.nanoTime() < deadline, event + " didn't happen in time");
+      Thread.sleep(1);
+    }
+  }
+
+  private boolean hasStatus(String message) {
+    for(Status status : owner.getContext().getStatusManager().getCopyOfStatusList()) {
+      if(status.getMessage().contains(message)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Test
+  public void startingNowChecksTheStreamOnce() {
+    assertFalse(newStartup(5, 0).startNow());
+
+    assertEquals(1, checks.get());
+    assertEquals(1, events.size());
+    assertTrue(hasStatus("Stream test is not active"));
+    assertFalse(startup.stop(0));
+  }
+
+  @Test
+  public void triesAgainUntilTheStreamIsReady() throws InterruptedException {
+    newStartup(5, 2).startInBackground(Executors.defaultThreadFactory());
+    awaitEvent("ready");
+    // waits for the attempt to report the stream ready
+    assertFalse(startup.stop(TimeUnit.SECONDS.toNanos(1)));
+
+    assertEquals(2, checks.get());
+    assertTrue(hasStatus("trying again"));
+    assertTrue(hasStatus("Stream test is ready"));
+  }
+
+  @Test
+  public void givesUpAfterTheMaximumNumberOfAttempts() throws InterruptedException {
+    newStartup(2, 0).startInBackground(Executors.defaultThreadFactory());
+    awaitEvent("failed");
+
+    assertEquals(2, checks.get());
+    assertTrue(hasStatus("giving up after 2 attempts"));
+    assertFalse(events.contains("ready"));
+  }
+
+  @Test
+  public void aMissingStreamIsNotTriedAgain() throws InterruptedException {
+    newStartup(5, -1).startInBackground(Executors.defaultThreadFactory());
+    awaitEvent("failed");
+
+    assertEquals(1, checks.get());
+    assertFalse(hasStatus("trying again"));
+  }
+
+  @Test
+  public void stoppingBeforeTheStreamIsReadyLeavesItUnsettled() {
+    newStartup(5, 0).startInBackground(Executors.defaultThreadFactory());
+
+    assertTrue(startup.stop(TimeUnit.SECONDS.toNanos(1)));
+    assertFalse(events.contains("ready"));
+    assertFalse(events.contains("failed"));
+  }
+}
@@ -0,0 +1,58 @@
+package com.gu.logback.appender.kinesis.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class VirtualThreadsTest {
+
+  /**
+   * @return feature release of the running JVM, 8 for "1.8"
+   */
+  private static int javaVersion() {
+    String version = System.getProperty("java.specification.version");
+    return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+  }
+
+  private static boolean isVirtual(Thread thread) throws ReflectiveOperationException {
+    return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+  }
+
+  @Test
+  public void availableFromJava21() {
+    assertEquals(javaVersion() >= 21, VirtualThreads.isAvailable());
+  }
+
+  @Test
+  public void runsEachTaskInAVirtualThreadOfItsOwn() throws Exception {
+    if(!VirtualThreads.isAvailable()) {
+      assertThrows(UnsupportedOperationException.class, () -> VirtualThreads.newThreadPerTaskExecutor("test-"));
+      return;
+    }
+    ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor("VirtualThreadsTest-");
+    List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+    for(int i = 0; i < 100; i++) {
+      executor.execute(() -> threads.add(Thread.currentThread()));
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+    assertEquals(100, threads.size());
+    Set<String> names = new HashSet<String>();
+    for(Thread thread : threads) {
+      assertTrue(isVirtual(thread), thread + " isn't virtual");
+      assertTrue(thread.getName().matches("VirtualThreadsTest-\\d+"), thread.getName());
+      names.add(thread.getName());
+    }
+    assertEquals(100, names.size());
+  }
+}
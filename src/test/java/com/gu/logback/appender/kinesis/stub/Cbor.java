@@ -0,0 +1,234 @@
+package com.gu.logback.appender.kinesis.stub;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Just enough CBOR (RFC 7049) to read the requests of the Kinesis client and
+ * write responses it understands. Maps become {@link Map}s, arrays
+ * {@link List}s, text strings {@link String}s, byte strings byte arrays and
+ * integers {@link Long}s; tags are skipped.
+ */
+final class Cbor {
+
+  private static final int BREAK = 0xFF;
+
+  private Cbor() {
+  }
+
+  /**
+   * @param buffer a CBOR encoded value, read from its reader index
+   * @return the decoded value
+   * @throws IllegalArgumentException if the value is malformed or uses
+   *           unsupported features
+   */
+  static Object read(ByteBuf buffer) {
+    try {
+      return readValue(buffer);
+    }
+    catch(IndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("Truncated CBOR value", e);
+    }
+  }
+
+  /**
+   * @param value a value made of maps with String keys, lists, Strings, byte
+   *          arrays, integral numbers, booleans and nulls
+   * @return the CBOR encoding of the value
+   */
+  static byte[] write(Object value) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+    writeValue(out, value);
+    return out.toByteArray();
+  }
+
+  private static Object readValue(ByteBuf buffer) {
+    int initial = buffer.readUnsignedByte();
+    int major = initial >>> 5;
+    int info = initial & 0x1F;
+    switch(major) {
+      case 0:
+        return readLength(buffer, info);
+      case 1:
+        return -1 - readLength(buffer, info);
+      case 2:
+        return readBytes(buffer, info, 2);
+      case 3:
+        return new String(readBytes(buffer, info, 3), StandardCharsets.UTF_8);
+      case 4: {
+        List<Object> list = new ArrayList<Object>();
+        if(info == 31) {
+          while(buffer.getUnsignedByte(buffer.readerIndex()) != BREAK) {
+            list.add(readValue(buffer));
+          }
+          buffer.skipBytes(1);
+        } else {
+          for(long i = readLength(buffer, info); i > 0; i--) {
+            list.add(readValue(buffer));
+          }
+        }
+        return list;
+      }
+      case 5: {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        if(info == 31) {
+          while(buffer.getUnsignedByte(buffer.readerIndex()) != BREAK) {
+            map.put(String.valueOf(readValue(buffer)), readValue(buffer));
+          }
+          buffer.skipBytes(1);
+        } else {
+          for(long i = readLength(buffer, info); i > 0; i--) {
+            map.put(String.valueOf(readValue(buffer)), readValue(buffer));
+          }
+        }
+        return map;
+      }
+      case 6:
+        readLength(buffer, info);
+        return readValue(buffer);
+      default:
+        return readSimple(buffer, info);
+    }
+  }
+
+  private static Object readSimple(ByteBuf buffer, int info) {
+    switch(info) {
+      case 20:
+        return Boolean.FALSE;
+      case 21:
+        return Boolean.TRUE;
+      case 22:
+      case 23:
+        return null;
+      case 25:
+        return readHalfFloat(buffer.readUnsignedShort());
+      case 26:
+        return (double) Float.intBitsToFloat(buffer.readInt());
+      case 27:
+        return Double.longBitsToDouble(buffer.readLong());
+      default:
+        throw new IllegalArgumentException("Unsupported CBOR simple value " + info);
+    }
+  }
+
+  private static double readHalfFloat(int half) {
+    int exponent = (half >>> 10) & 0x1F;
+    int mantissa = half & 0x3FF;
+    double value;
+    if(exponent == 0) {
+      value = Math.scalb((double) mantissa, -24);
+    } else if(exponent != 31) {
+      value = Math.scalb((double) (mantissa + 1024), exponent - 25);
+    } else {
+      value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+    }
+    return (half & 0x8000) != 0 ? -value : value;
+  }
+
+  private static byte[] readBytes(ByteBuf buffer, int info, int major) {
+    if(info != 31) {
+      byte[] bytes = new byte[Math.toIntExact(readLength(buffer, info))];
+      buffer.readBytes(bytes);
+      return bytes;
+    }
+    // indefinite length, made of definite length chunks
+    ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+    while(buffer.getUnsignedByte(buffer.readerIndex()) != BREAK) {
+      int chunk = buffer.readUnsignedByte();
+      if(chunk >>> 5 != major) {
+        throw new IllegalArgumentException("Invalid CBOR string chunk");
+      }
+      byte[] bytes = new byte[Math.toIntExact(readLength(buffer, chunk & 0x1F))];
+      buffer.readBytes(bytes);
+      chunks.write(bytes, 0, bytes.length);
+    }
+    buffer.skipBytes(1);
+    return chunks.toByteArray();
+  }
+
+  private static long readLength(ByteBuf buffer, int info) {
+    if(info < 24) {
+      return info;
+    }
+    switch(info) {
+      case 24:
+        return buffer.readUnsignedByte();
+      case 25:
+        return buffer.readUnsignedShort();
+      case 26:
+        return buffer.readUnsignedInt();
+      case 27:
+        return buffer.readLong();
+      default:
+        throw new IllegalArgumentException("Unsupported CBOR length " + info);
+    }
+  }
+
+  private static void writeValue(ByteArrayOutputStream out, Object value) {
+    if(value == null) {
+      out.write(0xF6);
+    } else if(value instanceof Boolean) {
+      out.write((Boolean) value ? 0xF5 : 0xF4);
+    } else if(value instanceof Number) {
+      long number = ((Number) value).longValue();
+      if(number >= 0) {
+        writeHeader(out, 0, number);
+      } else {
+        writeHeader(out, 1, -1 - number);
+      }
+    } else if(value instanceof String) {
+      byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+      writeHeader(out, 3, bytes.length);
+      out.write(bytes, 0, bytes.length);
+    } else if(value instanceof byte[]) {
+      byte[] bytes = (byte[]) value;
+      writeHeader(out, 2, bytes.length);
+      out.write(bytes, 0, bytes.length);
+    } else if(value instanceof List) {
+      List<?> list = (List<?>) value;
+      writeHeader(out, 4, list.size());
+      for(Object element : list) {
+        writeValue(out, element);
+      }
+    } else if(value instanceof Map) {
+      Map<?, ?> map = (Map<?, ?>) value;
+      writeHeader(out, 5, map.size());
+      for(Map.Entry<?, ?> entry : map.entrySet()) {
+        writeValue(out, String.valueOf(entry.getKey()));
+        writeValue(out, entry.getValue());
+      }
+    } else {
+      throw new IllegalArgumentException("Unsupported value " + value.getClass().getName());
+    }
+  }
+
+  private static void writeHeader(ByteArrayOutputStream out, int major, long length) {
+    int type = major << 5;
+    if(length < 24) {
+      out.write(type | (int) length);
+    } else if(length < 1 << 8) {
+      out.write(type | 24);
+      out.write((int) length);
+    } else if(length < 1 << 16) {
+      out.write(type | 25);
+      writeBigEndian(out, length, 2);
+    } else if(length < 1L << 32) {
+      out.write(type | 26);
+      writeBigEndian(out, length, 4);
+    } else {
+      out.write(type | 27);
+      writeBigEndian(out, length, 8);
+    }
+  }
+
+  private static void writeBigEndian(ByteArrayOutputStream out, long value, int bytes) {
+    for(int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+      out.write((int) (value >>> shift));
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package com.gu.logback.appender.kinesis.stub;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cyclic schedule of the faults a {@link StubEndpoint} injects: a sequence of
+ * phases, each lasting a given time with its own latency and failure rates,
+ * that starts over once the last phase ends.
+ *
+ * Schedules can be written as a comma separated list of phases of the form
+ * {@code duration[:setting[;setting]...]}, where durations take a
+ * {@code ms}, {@code s}, {@code m} or {@code h} unit and settings are
+ * {@code latency=<ms>}, {@code jitter=<ms>}, {@code throttle=<rate>},
+ * {@code partial=<rate>} and {@code error=<rate>}, e.g.
+ * {@code 60s,20s:latency=200;jitter=100,20s:throttle=0.3;partial=0.1}.
+ */
+public final class FaultSchedule {
+
+  /**
+   * A schedule without any fault.
+   */
+  public static final FaultSchedule NONE = new FaultSchedule(
+      Collections.singletonList(new Phase(TimeUnit.HOURS.toMillis(1), 0, 0, 0, 0, 0)));
+
+  /**
+   * Faults injected during one phase of a schedule.
+   */
+  public static final class Phase {
+    private final long durationMillis;
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double throttleRate;
+    private final double partialFailureRate;
+    private final double errorRate;
+
+    /**
+     * @param durationMillis how long the phase lasts
+     * @param latencyMillis time added before answering every request
+     * @param jitterMillis maximum random time added to the latency
+     * @param throttleRate share of put requests rejected entirely as throttled
+     * @param partialFailureRate share of the records of accepted batch
+     *          requests that fail as throttled
+     * @param errorRate share of put requests failing with an internal error
+     */
+    public Phase(long durationMillis, long latencyMillis, long jitterMillis, double throttleRate,
+        double partialFailureRate, double errorRate) {
+      if(durationMillis <= 0 || latencyMillis < 0 || jitterMillis < 0) {
+        throw new IllegalArgumentException("Durations must be positive and latencies >= 0");
+      }
+      checkRate(throttleRate, "throttle");
+      checkRate(partialFailureRate, "partial");
+      checkRate(errorRate, "error");
+      this.durationMillis = durationMillis;
+      this.latencyMillis = latencyMillis;
+      this.jitterMillis = jitterMillis;
+      this.throttleRate = throttleRate;
+      this.partialFailureRate = partialFailureRate;
+      this.errorRate = errorRate;
+    }
+
+    public long getDurationMillis() {
+      return durationMillis;
+    }
+
+    public long getLatencyMillis() {
+      return latencyMillis;
+    }
+
+    public long getJitterMillis() {
+      return jitterMillis;
+    }
+
+    public double getThrottleRate() {
+      return throttleRate;
+    }
+
+    public double getPartialFailureRate() {
+      return partialFailureRate;
+    }
+
+    public double getErrorRate() {
+      return errorRate;
+    }
+
+    @Override
+    public String toString() {
+      return durationMillis + "ms:latency=" + latencyMillis + ";jitter=" + jitterMillis + ";throttle=" + throttleRate
+             + ";partial=" + partialFailureRate + ";error=" + errorRate;
+    }
+
+    private static void checkRate(double rate, String name) {
+      if(!(rate >= 0 && rate <= 1)) {
+        throw new IllegalArgumentException(name + " rate must be between 0 and 1");
+      }
+    }
+  }
+
+  private final List<Phase> phases;
+  private final long cycleMillis;
+
+  /**
+   * @param phases phases of the schedule, in order
+   */
+  public FaultSchedule(List<Phase> phases) {
+    if(phases.isEmpty()) {
+      throw new IllegalArgumentException("A schedule needs at least one phase");
+    }
+    this.phases = Collections.unmodifiableList(new ArrayList<Phase>(phases));
+    long cycle = 0;
+    for(Phase phase : phases) {
+      cycle += phase.getDurationMillis();
+    }
+    this.cycleMillis = cycle;
+  }
+
+  /**
+   * @param spec a schedule written as described in the class documentation
+   * @return the schedule
+   * @throws IllegalArgumentException if the schedule is malformed
+   */
+  public static FaultSchedule parse(String spec) {
+    if(spec == null || spec.trim().isEmpty()) {
+      return NONE;
+    }
+    List<Phase> phases = new ArrayList<Phase>();
+    for(String phaseSpec : spec.split(",")) {
+      String[] parts = phaseSpec.trim().split(":", 2);
+      long latency = 0;
+      long jitter = 0;
+      double throttle = 0;
+      double partial = 0;
+      double error = 0;
+      if(parts.length > 1) {
+        for(String setting : parts[1].split(";")) {
+          String[] pair = setting.trim().split("=", 2);
+          if(pair.length != 2) {
+            throw new IllegalArgumentException("Invalid fault setting '" + setting + "'");
+          }
+          String value = pair[1].trim();
+          switch(pair[0].trim().toLowerCase(Locale.ROOT)) {
+            case "latency":
+              latency = Long.parseLong(value);
+              break;
+            case "jitter":
+              jitter = Long.parseLong(value);
+              break;
+            case "throttle":
+              throttle = Double.parseDouble(value);
+              break;
+            case "partial":
+              partial = Double.parseDouble(value);
+              break;
+            case "error":
+              error = Double.parseDouble(value);
+              break;
+            default:
+              throw new IllegalArgumentException("Unknown fault setting '" + pair[0] + "'");
+          }
+        }
+      }
+      phases.add(new Phase(parseDurationMillis(parts[0].trim()), latency, jitter, throttle, partial, error));
+    }
+    return new FaultSchedule(phases);
+  }
+
+  /**
+   * @param text a duration such as {@code 500ms}, {@code 30s}, {@code 5m} or
+   *          {@code 1h}
+   * @return the duration in milliseconds
+   * @throws IllegalArgumentException if the duration is malformed
+   */
+  public static long parseDurationMillis(String text) {
+    String lower = text.toLowerCase(Locale.ROOT);
+    try {
+      if(lower.endsWith("ms")) {
+        return Long.parseLong(lower.substring(0, lower.length() - 2));
+      }
+      String amount = lower.substring(0, lower.length() - 1);
+      switch(lower.charAt(lower.length() - 1)) {
+        case 's':
+          return TimeUnit.SECONDS.toMillis(Long.parseLong(amount));
+        case 'm':
+          return TimeUnit.MINUTES.toMillis(Long.parseLong(amount));
+        case 'h':
+          return TimeUnit.HOURS.toMillis(Long.parseLong(amount));
+        default:
+          throw new IllegalArgumentException("Duration '" + text + "' has no unit");
+      }
+    }
+    catch(NumberFormatException | StringIndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("Invalid duration '" + text + "'", e);
+    }
+  }
+
+  public List<Phase> getPhases() {
+    return phases;
+  }
+
+  /**
+   * @param elapsedMillis time elapsed since the schedule started
+   * @return the phase in force at that time
+   */
+  public Phase phaseAt(long elapsedMillis) {
+    long offset = elapsedMillis % cycleMillis;
+    for(Phase phase : phases) {
+      if(offset < phase.getDurationMillis()) {
+        return phase;
+      }
+      offset -= phase.getDurationMillis();
+    }
+    return phases.get(phases.size() - 1);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder text = new StringBuilder();
+    for(Phase phase : phases) {
+      text.append(text.length() == 0 ? "" : ",").append(phase);
+    }
+    return text.toString();
+  }
+}
@@ -0,0 +1,68 @@
+package com.gu.logback.appender.kinesis.stub;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the responses of the stub endpoint as JSON. Requests are only ever
+ * scanned for the few fields the endpoint needs.
+ */
+final class Json {
+
+  private Json() {
+  }
+
+  /**
+   * @param value a value made of maps with String keys, lists, Strings,
+   *          numbers, booleans and nulls
+   * @return the JSON encoding of the value
+   */
+  static String write(Object value) {
+    StringBuilder out = new StringBuilder(256);
+    writeValue(out, value);
+    return out.toString();
+  }
+
+  private static void writeValue(StringBuilder out, Object value) {
+    if(value == null || value instanceof Boolean || value instanceof Number) {
+      out.append(value);
+    } else if(value instanceof List) {
+      out.append('[');
+      boolean first = true;
+      for(Object element : (List<?>) value) {
+        out.append(first ? "" : ",");
+        writeValue(out, element);
+        first = false;
+      }
+      out.append(']');
+    } else if(value instanceof Map) {
+      out.append('{');
+      boolean first = true;
+      for(Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        out.append(first ? "" : ",");
+        writeString(out, String.valueOf(entry.getKey()));
+        out.append(':');
+        writeValue(out, entry.getValue());
+        first = false;
+      }
+      out.append('}');
+    } else {
+      writeString(out, value.toString());
+    }
+  }
+
+  private static void writeString(StringBuilder out, String value) {
+    out.append('"');
+    for(int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if(c == '"' || c == '\\') {
+        out.append('\\').append(c);
+      } else if(c < 0x20) {
+        out.append(String.format("\\u%04x", (int) c));
+      } else {
+        out.append(c);
+      }
+    }
+    out.append('"');
+  }
+}
@@ -0,0 +1,546 @@
+package com.gu.logback.appender.kinesis.stub;
+
+import java.io.Closeable;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerKeepAliveHandler;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.CleartextHttp2ServerUpgradeHandler;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import com.gu.logback.appender.kinesis.helpers.ShardMap;
+
+/**
+ * In-process stand-in for the Kinesis and Firehose endpoints, answering the
+ * requests the appenders make (DescribeStream, ListShards, PutRecord and
+ * PutRecords for Kinesis, DescribeDeliveryStream, PutRecord and
+ * PutRecordBatch for Firehose), so that the whole send path can be exercised
+ * without AWS.
+ *
+ * It speaks both the JSON and the CBOR flavours of the APIs, over HTTP/1.1 or
+ * cleartext HTTP/2 (which the Kinesis client uses by default). Kinesis
+ * streams have a configurable number of shards evenly splitting the hash key
+ * space, and records are reported as written to the shard their partition
+ * key hashes to.
+ *
+ * A {@link FaultSchedule} makes it add latency to responses, throttle or fail
+ * entire put requests, and fail some of the records of batch requests, as
+ * Kinesis and Firehose do when they are overloaded.
+ */
+public final class StubEndpoint implements Closeable {
+
+  private static final int MAX_REQUEST_BYTES = 10 * 1024 * 1024;
+  private static final String JSON_CONTENT_TYPE = "application/x-amz-json-1.1";
+  private static final String CBOR_CONTENT_TYPE = "application/x-amz-cbor-1.1";
+  private static final String KINESIS_PREFIX = "Kinesis_20131202.";
+  private static final String FIREHOSE_PREFIX = "Firehose_20150804.";
+  private static final String KINESIS_THROTTLED = "ProvisionedThroughputExceededException";
+  private static final String FIREHOSE_THROTTLED = "ServiceUnavailableException";
+  private static final String INTERNAL_FAILURE = "InternalFailure";
+  private static final BigInteger HASH_KEY_SPACE = BigInteger.ONE.shiftLeft(128);
+  private static final byte[] DATA_FIELD = "\"Data\"".getBytes(StandardCharsets.US_ASCII);
+  private static final Pattern STREAM_NAME = Pattern.compile("\"(?:StreamName|DeliveryStreamName)\"\\s*:\\s*\"([^\"]*)\"");
+  private static final Pattern PARTITION_KEY = Pattern.compile("\"PartitionKey\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+  private final EventLoopGroup group;
+  private final Channel serverChannel;
+  private final List<Map<String, Object>> shards;
+  private final ShardMap shardMap;
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder throttledRequests = new LongAdder();
+  private final LongAdder failedRequests = new LongAdder();
+  private final LongAdder acceptedRecords = new LongAdder();
+  private final LongAdder rejectedRecords = new LongAdder();
+  private final LongAdder bytes = new LongAdder();
+  private final AtomicLong sequenceNumber = new AtomicLong();
+  private volatile ScheduleStart schedule = new ScheduleStart(FaultSchedule.NONE);
+
+  /**
+   * Starts the endpoint on an ephemeral port of the loopback interface, with
+   * a single shard per stream.
+   *
+   * @throws InterruptedException if interrupted while binding
+   */
+  public StubEndpoint() throws InterruptedException {
+    this(0, 1);
+  }
+
+  /**
+   * Starts the endpoint on the loopback interface.
+   *
+   * @param port port to listen on, 0 for an ephemeral port
+   * @param shardCount number of shards of Kinesis streams
+   * @throws InterruptedException if interrupted while binding
+   */
+  public StubEndpoint(int port, int shardCount) throws InterruptedException {
+    if(shardCount < 1) {
+      throw new IllegalArgumentException("shardCount must be > 0");
+    }
+    List<Map<String, Object>> shardList = new ArrayList<Map<String, Object>>();
+    List<String> startingHashKeys = new ArrayList<String>();
+    for(int i = 0; i < shardCount; i++) {
+      BigInteger start = HASH_KEY_SPACE.multiply(BigInteger.valueOf(i)).divide(BigInteger.valueOf(shardCount));
+      BigInteger end = HASH_KEY_SPACE.multiply(BigInteger.valueOf(i + 1L)).divide(BigInteger.valueOf(shardCount))
+        .subtract(BigInteger.ONE);
+      startingHashKeys.add(start.toString());
+      shardList.add(map("ShardId", String.format("shardId-%012d", i),
+                        "HashKeyRange", map("StartingHashKey", start.toString(), "EndingHashKey", end.toString()),
+                        "SequenceNumberRange", map("StartingSequenceNumber", "0")));
+    }
+    shards = Collections.unmodifiableList(shardList);
+    shardMap = new ShardMap(startingHashKeys);
+
+    group = new NioEventLoopGroup(0, new DefaultThreadFactory("stub-endpoint", true));
+    RequestHandler requestHandler = new RequestHandler();
+    ChannelInitializer<Http2StreamChannel> streamInitializer = new ChannelInitializer<Http2StreamChannel>() {
+      @Override
+      protected void initChannel(Http2StreamChannel ch) {
+        ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true),
+                              new HttpObjectAggregator(MAX_REQUEST_BYTES), requestHandler);
+      }
+    };
+    try {
+      serverChannel = new ServerBootstrap()
+        .group(group)
+        .channel(NioServerSocketChannel.class)
+        .childHandler(new ChannelInitializer<SocketChannel>() {
+          @Override
+          protected void initChannel(SocketChannel ch) {
+            HttpServerCodec http1 = new HttpServerCodec();
+            HttpServerUpgradeHandler upgradeHandler = new HttpServerUpgradeHandler(http1, protocol -> {
+              if(!AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)) {
+                return null;
+              }
+              return new Http2ServerUpgradeCodec(Http2FrameCodecBuilder.forServer().build(),
+                                                 new Http2MultiplexHandler(streamInitializer));
+            });
+            ChannelInitializer<Channel> priorKnowledge = new ChannelInitializer<Channel>() {
+              @Override
+              protected void initChannel(Channel channel) {
+                channel.pipeline().addLast(Http2FrameCodecBuilder.forServer().build(),
+                                           new Http2MultiplexHandler(streamInitializer));
+              }
+            };
+            ch.pipeline().addLast(new CleartextHttp2ServerUpgradeHandler(http1, upgradeHandler, priorKnowledge),
+                                  new HttpServerKeepAliveHandler(), new HttpObjectAggregator(MAX_REQUEST_BYTES),
+                                  requestHandler);
+          }
+        })
+        .bind(InetAddress.getLoopbackAddress(), port)
+        .sync()
+        .channel();
+    }
+    catch(InterruptedException | RuntimeException e) {
+      group.shutdownGracefully();
+      throw e;
+    }
+  }
+
+  /**
+   * @return URI to configure as the appender's endpoint
+   */
+  public URI getUri() {
+    InetSocketAddress address = (InetSocketAddress) serverChannel.localAddress();
+    return URI.create("http://" + address.getAddress().getHostAddress() + ":" + address.getPort());
+  }
+
+  /**
+   * Starts injecting faults according to a schedule, from its first phase.
+   *
+   * @param faultSchedule the schedule, {@link FaultSchedule#NONE} to stop
+   *          injecting faults
+   */
+  public void setFaultSchedule(FaultSchedule faultSchedule) {
+    this.schedule = new ScheduleStart(faultSchedule);
+  }
+
+  public FaultSchedule getFaultSchedule() {
+    return schedule.schedule;
+  }
+
+  /**
+   * @return the phase of the fault schedule currently in force
+   */
+  public FaultSchedule.Phase getCurrentPhase() {
+    return schedule.currentPhase();
+  }
+
+  /**
+   * @return number of requests received
+   */
+  public long getRequestCount() {
+    return requests.sum();
+  }
+
+  /**
+   * @return number of put requests rejected entirely as throttled
+   */
+  public long getThrottledRequestCount() {
+    return throttledRequests.sum();
+  }
+
+  /**
+   * @return number of put requests failed with an internal error
+   */
+  public long getFailedRequestCount() {
+    return failedRequests.sum();
+  }
+
+  /**
+   * @return number of records written
+   */
+  public long getRecordCount() {
+    return acceptedRecords.sum();
+  }
+
+  /**
+   * @return number of records of batch requests that were failed
+   */
+  public long getRejectedRecordCount() {
+    return rejectedRecords.sum();
+  }
+
+  /**
+   * @return size of the bodies of all the put requests received
+   */
+  public long getByteCount() {
+    return bytes.sum();
+  }
+
+  @Override
+  public void close() {
+    serverChannel.close().syncUninterruptibly();
+    group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+  }
+
+  private Response respond(String target, boolean cbor, ByteBuf body, FaultSchedule.Phase phase) {
+    boolean kinesis = target.startsWith(KINESIS_PREFIX);
+    if(!kinesis && !target.startsWith(FIREHOSE_PREFIX)) {
+      return Response.error(HttpResponseStatus.BAD_REQUEST, "UnknownOperationException", "Unknown target " + target);
+    }
+    String operation = target.substring(kinesis ? KINESIS_PREFIX.length() : FIREHOSE_PREFIX.length());
+    ParsedRequest request;
+    try {
+      request = cbor ? ParsedRequest.fromCbor(body) : ParsedRequest.fromJson(body, kinesis);
+    }
+    catch(IllegalArgumentException | ClassCastException e) {
+      return Response.error(HttpResponseStatus.BAD_REQUEST, "SerializationException", String.valueOf(e.getMessage()));
+    }
+
+    switch(operation) {
+      case "DescribeStream":
+        if(!kinesis) {
+          break;
+        }
+        return Response.ok(map("StreamDescription",
+                               map("StreamName", request.streamName, "StreamARN", arn("kinesis", "stream", request.streamName),
+                                   "StreamStatus", "ACTIVE", "Shards", shards, "HasMoreShards", false,
+                                   "RetentionPeriodHours", 24, "EnhancedMonitoring", Collections.emptyList(),
+                                   "EncryptionType", "NONE")));
+      case "ListShards":
+        if(!kinesis) {
+          break;
+        }
+        return Response.ok(map("Shards", shards));
+      case "DescribeDeliveryStream":
+        if(kinesis) {
+          break;
+        }
+        return Response.ok(map("DeliveryStreamDescription",
+                               map("DeliveryStreamName", request.streamName,
+                                   "DeliveryStreamARN", arn("firehose", "deliverystream", request.streamName),
+                                   "DeliveryStreamStatus", "ACTIVE", "DeliveryStreamType", "DirectPut", "VersionId", "1",
+                                   "Destinations", Collections.emptyList(), "HasMoreDestinations", false)));
+      case "PutRecord":
+        return put(kinesis, false, request, body.readableBytes(), phase);
+      case "PutRecords":
+        if(!kinesis) {
+          break;
+        }
+        return put(true, true, request, body.readableBytes(), phase);
+      case "PutRecordBatch":
+        if(kinesis) {
+          break;
+        }
+        return put(false, true, request, body.readableBytes(), phase);
+      default:
+        break;
+    }
+    return Response.error(HttpResponseStatus.BAD_REQUEST, "UnknownOperationException", "Unsupported operation " + target);
+  }
+
+  private Response put(boolean kinesis, boolean batch, ParsedRequest request, int size, FaultSchedule.Phase phase) {
+    bytes.add(size);
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    if(random.nextDouble() < phase.getErrorRate()) {
+      failedRequests.increment();
+      return Response.error(HttpResponseStatus.INTERNAL_SERVER_ERROR, INTERNAL_FAILURE, "Injected internal failure");
+    }
+    if(random.nextDouble() < phase.getThrottleRate()) {
+      throttledRequests.increment();
+      return kinesis
+          ? Response.error(HttpResponseStatus.BAD_REQUEST, KINESIS_THROTTLED, "Rate exceeded for stream " + request.streamName)
+          : Response.error(HttpResponseStatus.SERVICE_UNAVAILABLE, FIREHOSE_THROTTLED, "Slow down.");
+    }
+
+    List<Object> entries = new ArrayList<Object>(request.recordCount);
+    int failed = 0;
+    for(int i = 0; i < request.recordCount; i++) {
+      if(batch && random.nextDouble() < phase.getPartialFailureRate()) {
+        failed++;
+        entries.add(kinesis ? map("ErrorCode", KINESIS_THROTTLED, "ErrorMessage", "Rate exceeded for shard")
+                            : map("ErrorCode", FIREHOSE_THROTTLED, "ErrorMessage", "Slow down."));
+      } else if(kinesis) {
+        entries.add(map("ShardId", shardIdOf(request.partitionKeys.get(i)),
+                        "SequenceNumber", String.valueOf(sequenceNumber.incrementAndGet())));
+      } else {
+        entries.add(map("RecordId", UUID.randomUUID().toString()));
+      }
+    }
+    acceptedRecords.add(request.recordCount - failed);
+    rejectedRecords.add(failed);
+
+    if(!batch) {
+      @SuppressWarnings("unchecked")
+      Map<String, Object> entry = request.recordCount == 1 ? (Map<String, Object>) entries.get(0) : map();
+      if(!kinesis) {
+        entry.put("Encrypted", false);
+      }
+      return Response.ok(entry);
+    }
+    return Response.ok(kinesis ? map("FailedRecordCount", failed, "Records", entries, "EncryptionType", "NONE")
+                               : map("FailedPutCount", failed, "Encrypted", false, "RequestResponses", entries));
+  }
+
+  private Object shardIdOf(String partitionKey) {
+    int shard = shards.size() == 1 || partitionKey == null ? 0 : shardMap.shardOf(partitionKey);
+    return shards.get(shard).get("ShardId");
+  }
+
+  private static String arn(String service, String type, String streamName) {
+    return "arn:aws:" + service + ":us-east-1:000000000000:" + type + "/" + streamName;
+  }
+
+  private static Map<String, Object> map(Object... keysAndValues) {
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    for(int i = 0; i < keysAndValues.length; i += 2) {
+      map.put((String) keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return map;
+  }
+
+  /**
+   * The few fields of a request that the endpoint looks at.
+   */
+  private static final class ParsedRequest {
+    String streamName = "";
+    int recordCount;
+    List<String> partitionKeys = new ArrayList<String>();
+
+    static ParsedRequest fromCbor(ByteBuf body) {
+      ParsedRequest request = new ParsedRequest();
+      if(!body.isReadable()) {
+        return request;
+      }
+      Map<?, ?> fields = (Map<?, ?>) Cbor.read(body.duplicate());
+      Object name = fields.containsKey("StreamName") ? fields.get("StreamName") : fields.get("DeliveryStreamName");
+      request.streamName = name == null ? "" : name.toString();
+      List<?> records = (List<?>) fields.get("Records");
+      if(records != null) {
+        for(Object record : records) {
+          request.partitionKeys.add((String) ((Map<?, ?>) record).get("PartitionKey"));
+        }
+      } else if(fields.containsKey("Record") || fields.containsKey("Data")) {
+        request.partitionKeys.add((String) fields.get("PartitionKey"));
+      }
+      request.recordCount = request.partitionKeys.size();
+      return request;
+    }
+
+    /**
+     * Scans a JSON request for its fields rather than parsing it: Base64
+     * payloads can't contain the quotes around field names.
+     */
+    static ParsedRequest fromJson(ByteBuf body, boolean kinesis) {
+      ParsedRequest request = new ParsedRequest();
+      String text = body.toString(StandardCharsets.UTF_8);
+      Matcher name = STREAM_NAME.matcher(text);
+      if(name.find()) {
+        request.streamName = name.group(1);
+      }
+      if(kinesis) {
+        Matcher key = PARTITION_KEY.matcher(text);
+        while(key.find()) {
+          request.partitionKeys.add(unescape(key.group(1)));
+        }
+        request.recordCount = request.partitionKeys.size();
+      } else {
+        request.recordCount = countDataFields(body);
+      }
+      return request;
+    }
+
+    private static String unescape(String json) {
+      if(json.indexOf('\\') < 0) {
+        return json;
+      }
+      StringBuilder text = new StringBuilder(json.length());
+      for(int i = 0; i < json.length(); i++) {
+        char c = json.charAt(i);
+        if(c != '\\' || i + 1 == json.length()) {
+          text.append(c);
+          continue;
+        }
+        char escaped = json.charAt(++i);
+        switch(escaped) {
+          case 'u':
+            text.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+            i += 4;
+            break;
+          case 'n':
+            text.append('\n');
+            break;
+          case 't':
+            text.append('\t');
+            break;
+          case 'r':
+            text.append('\r');
+            break;
+          case 'b':
+            text.append('\b');
+            break;
+          case 'f':
+            text.append('\f');
+            break;
+          default:
+            text.append(escaped);
+        }
+      }
+      return text.toString();
+    }
+
+    private static int countDataFields(ByteBuf body) {
+      int count = 0;
+      int end = body.writerIndex() - DATA_FIELD.length;
+      outer:
+      for(int i = body.readerIndex(); i <= end; i++) {
+        for(int j = 0; j < DATA_FIELD.length; j++) {
+          if(body.getByte(i + j) != DATA_FIELD[j]) {
+            continue outer;
+          }
+        }
+        count++;
+        i += DATA_FIELD.length - 1;
+      }
+      return count;
+    }
+  }
+
+  private static final class Response {
+    final HttpResponseStatus status;
+    final String errorType;
+    final Map<String, Object> body;
+
+    Response(HttpResponseStatus status, String errorType, Map<String, Object> body) {
+      this.status = status;
+      this.errorType = errorType;
+      this.body = body;
+    }
+
+    static Response ok(Map<String, Object> body) {
+      return new Response(HttpResponseStatus.OK, null, body);
+    }
+
+    static Response error(HttpResponseStatus status, String errorType, String message) {
+      return new Response(status, errorType, map("__type", errorType, "message", message));
+    }
+  }
+
+  private static final class ScheduleStart {
+    final FaultSchedule schedule;
+    final long startNanos = System.nanoTime();
+
+    ScheduleStart(FaultSchedule schedule) {
+      this.schedule = schedule;
+    }
+
+    FaultSchedule.Phase currentPhase() {
+      return schedule.phaseAt(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+  }
+
+  @ChannelHandler.Sharable
+  private final class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+      requests.increment();
+      String target = request.headers().get("X-Amz-Target", "");
+      boolean cbor = request.headers().get(HttpHeaderNames.CONTENT_TYPE, "").contains("cbor");
+      FaultSchedule.Phase phase = schedule.currentPhase();
+      Response response = respond(target, cbor, request.content(), phase);
+
+      byte[] body = cbor ? Cbor.write(response.body) : Json.write(response.body).getBytes(StandardCharsets.UTF_8);
+      FullHttpResponse httpResponse = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, response.status,
+                                                                  Unpooled.wrappedBuffer(body));
+      httpResponse.headers()
+        .set(HttpHeaderNames.CONTENT_TYPE, cbor ? CBOR_CONTENT_TYPE : JSON_CONTENT_TYPE)
+        .setInt(HttpHeaderNames.CONTENT_LENGTH, body.length)
+        .set("x-amzn-RequestId", UUID.randomUUID().toString());
+      if(response.errorType != null) {
+        httpResponse.headers().set("x-amzn-ErrorType", response.errorType);
+      }
+
+      long delayMillis = phase.getLatencyMillis();
+      if(phase.getJitterMillis() > 0) {
+        delayMillis += ThreadLocalRandom.current().nextLong(phase.getJitterMillis() + 1);
+      }
+      if(delayMillis > 0) {
+        ctx.executor().schedule(() -> ctx.writeAndFlush(httpResponse), delayMillis, TimeUnit.MILLISECONDS);
+      } else {
+        ctx.writeAndFlush(httpResponse);
+      }
+    }
+  }
+}